@@ -0,0 +1,172 @@
+package com.blackberry.benchmarks;
+
+import com.google.common.io.BaseEncoding;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+
+/**
+ * Deterministic inputs shared by the benchmarks.  Every generator is seeded, so that successive
+ * runs (and builds) measure exactly the same work and their results can be compared.
+ */
+final class BenchmarkData {
+    static final Charset US_ASCII = Charset.forName("US-ASCII");
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String[] WORDS = {
+        "meeting", "tomorrow", "the", "quarterly", "report", "attached", "please", "review",
+        "and", "send", "comments", "by", "Friday", "thanks", "regards",
+        // Accented and non-latin words, so that the text needs encoding in headers and bodies
+        "caf\u00e9", "Z\u00fcrich", "na\u00efve", "r\u00e9sum\u00e9",
+        "\u6771\u4eac", "\u4f1a\u8b70", "\u043f\u0440\u0438\u0432\u0435\u0442"
+    };
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * @return roughly {@code length} characters of text made of words separated by spaces, line
+     *     breaks and the occasional run of extra whitespace
+     */
+    static String text(int length, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(length + 16);
+        while (sb.length() < length) {
+            sb.append(WORDS[random.nextInt(WORDS.length)]);
+            final int separator = random.nextInt(16);
+            if (separator == 0) {
+                sb.append("\r\n");
+            } else if (separator == 1) {
+                sb.append(" \t  ");
+            } else {
+                sb.append(' ');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return an HTML document of roughly {@code length} characters, with the kind of markup
+     *     found in real messages (tables, inline styles, links, entities, quoted replies)
+     */
+    static String html(int length, long seed) {
+        final Random random = new Random(seed);
+        final StringBuilder sb = new StringBuilder(length + 256);
+        sb.append("<html><head><style>p { margin: 0 }</style></head><body>");
+        while (sb.length() < length) {
+            switch (random.nextInt(5)) {
+                case 0:
+                    sb.append("<p style=\"font-family: Arial; color: #333\">")
+                            .append(text(200, random.nextLong())).append("</p>");
+                    break;
+                case 1:
+                    sb.append("<table border=\"0\" cellpadding=\"2\"><tr><td>")
+                            .append(text(40, random.nextLong())).append("</td><td><b>")
+                            .append(text(20, random.nextLong())).append("</b></td></tr></table>");
+                    break;
+                case 2:
+                    sb.append("<a href=\"http://www.example.com/path?id=")
+                            .append(random.nextInt(100000)).append("&amp;ref=mail\">")
+                            .append(text(30, random.nextLong())).append("</a><br>");
+                    break;
+                case 3:
+                    sb.append("<blockquote type=\"cite\"><div>&gt; ")
+                            .append(text(120, random.nextLong()))
+                            .append("&nbsp;&copy;</div></blockquote>");
+                    break;
+                default:
+                    sb.append("<div><span style=\"font-size: 10pt\">")
+                            .append(text(80, random.nextLong())).append("</span></div>");
+                    break;
+            }
+        }
+        sb.append("</body></html>");
+        return sb.toString();
+    }
+
+    /**
+     * @return {@code data} encoded as quoted-printable with soft line breaks, as it appears in a
+     *     message body
+     */
+    static byte[] quotedPrintable(byte[] data) {
+        final StringBuilder sb = new StringBuilder(data.length * 2);
+        int lineLength = 0;
+        for (byte b : data) {
+            final int c = b & 0xff;
+            final String encoded;
+            if (c == '\r' || c == '\n') {
+                encoded = String.valueOf((char) c);
+                lineLength = -1;
+            } else if (c >= 33 && c <= 126 && c != '=') {
+                encoded = String.valueOf((char) c);
+            } else if (c == ' ') {
+                encoded = " ";
+            } else {
+                encoded = String.format("=%02X", c);
+            }
+            if (lineLength + encoded.length() > 75) {
+                sb.append("=\r\n");
+                lineLength = 0;
+            }
+            sb.append(encoded);
+            lineLength += encoded.length();
+        }
+        return sb.toString().getBytes(US_ASCII);
+    }
+
+    /**
+     * @return {@code data} encoded as base64 with 76 character lines, as it appears in a message
+     *     body
+     */
+    static byte[] base64(byte[] data) {
+        final String encoded = BaseEncoding.base64()
+                .withSeparator("\r\n", 76).encode(data);
+        return encoded.getBytes(US_ASCII);
+    }
+
+    /**
+     * @return a multipart/mixed message with a quoted-printable text part, an HTML part and a
+     *     base64 attachment of {@code attachmentSize} bytes
+     */
+    static byte[] multipartMessage(int attachmentSize, long seed) {
+        final Random random = new Random(seed);
+        final byte[] attachment = new byte[attachmentSize];
+        random.nextBytes(attachment);
+
+        final String boundary = "----=_Part_" + random.nextInt(1000000);
+        final StringBuilder sb = new StringBuilder();
+        sb.append("From: =?UTF-8?Q?Fran=C3=A7ois_Dupont?= <francois@example.com>\r\n")
+                .append("To: Team <team@example.com>, =?UTF-8?B?5p2x5Lqs?= <tokyo@example.jp>\r\n")
+                .append("Subject: =?UTF-8?Q?R=C3=A9union_trimestrielle?=\r\n")
+                .append("Date: Mon, 7 Jul 2014 10:15:00 -0400\r\n")
+                .append("Message-ID: <").append(random.nextLong()).append("@example.com>\r\n")
+                .append("MIME-Version: 1.0\r\n")
+                .append("Content-Type: multipart/mixed; boundary=\"").append(boundary)
+                .append("\"\r\n\r\n")
+                .append("This is a multi-part message in MIME format.\r\n");
+
+        sb.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: text/plain; charset=UTF-8\r\n")
+                .append("Content-Transfer-Encoding: quoted-printable\r\n\r\n")
+                .append(new String(quotedPrintable(text(4096, random.nextLong())
+                        .getBytes(UTF_8)), US_ASCII))
+                .append("\r\n");
+
+        sb.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: text/html; charset=UTF-8\r\n")
+                .append("Content-Transfer-Encoding: quoted-printable\r\n\r\n")
+                .append(new String(quotedPrintable(html(8192, random.nextLong())
+                        .getBytes(UTF_8)), US_ASCII))
+                .append("\r\n");
+
+        sb.append("--").append(boundary).append("\r\n")
+                .append("Content-Type: application/octet-stream; name=\"report.bin\"\r\n")
+                .append("Content-Disposition: attachment; filename=\"report.bin\"\r\n")
+                .append("Content-Transfer-Encoding: base64\r\n\r\n")
+                .append(new String(base64(attachment), US_ASCII))
+                .append("\r\n");
+
+        sb.append("--").append(boundary).append("--\r\n");
+        return sb.toString().getBytes(US_ASCII);
+    }
+}
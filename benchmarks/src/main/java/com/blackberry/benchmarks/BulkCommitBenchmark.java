@@ -0,0 +1,131 @@
+package com.blackberry.benchmarks;
+
+import com.blackberry.pimbase.provider.utilities.BatchBudget;
+import com.blackberry.pimbase.provider.utilities.OperationChunker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * ContentProviderBulkOpsHelper.commit() of a sync's worth of operations: {@link #OPERATIONS}
+ * operations, in groups of a message insert, its body and three contacts back referencing the
+ * message, with a separator after each group.
+ * <p>
+ * The binder is simulated by copying the bytes of every transaction into a buffer, which is
+ * what marshalling a batch costs; a transaction over {@link #limitKb} is copied and then
+ * refused, as the binder does. Measuring the operations is simulated as one more copy of every
+ * operation. The provider's own work, the same for both strategies, is left out.
+ * <ul>
+ * <li>wholeThenSeparators: the whole batch in one transaction, and after a refusal one
+ * transaction per group of separators, as commit() did before it chunked.</li>
+ * <li>chunked: OperationChunker with a BatchBudget kept across commits, as commit() keeps one
+ * per authority.</li>
+ * </ul>
+ * With a limit below the default budget, the first chunked commits learn it from refusals.
+ */
+@State(Scope.Thread)
+public class BulkCommitBenchmark {
+
+    private static final int OPERATIONS = 10000;
+
+    /** The operations of each message: the message, its body and its contacts */
+    private static final int GROUP = 5;
+
+    /** The size of a transaction the simulated binder refuses, in KB */
+    @Param({"1024", "200"})
+    public int limitKb;
+
+    private int[] mSizes;
+    private int[] mLowestReferences;
+    private boolean[] mSeparators;
+    private byte[] mPayload;
+    private byte[] mTransaction;
+    private final BatchBudget mBudget = new BatchBudget();
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(3);
+        mSizes = new int[OPERATIONS];
+        mLowestReferences = new int[OPERATIONS];
+        mSeparators = new boolean[OPERATIONS];
+        int largest = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            final int inGroup = i % GROUP;
+            if (inGroup == 0) {
+                // The message
+                mSizes[i] = 400 + random.nextInt(400);
+                mLowestReferences[i] = Integer.MAX_VALUE;
+                mSeparators[i] = i > 0;
+            } else {
+                // Its body, then its contacts
+                mSizes[i] = inGroup == 1 ? 1024 + random.nextInt(15 * 1024)
+                        : 100 + random.nextInt(100);
+                mLowestReferences[i] = i - inGroup;
+            }
+            largest = Math.max(largest, mSizes[i]);
+        }
+        mPayload = new byte[largest];
+        random.nextBytes(mPayload);
+        mTransaction = new byte[4 * 1024 * 1024];
+    }
+
+    @Benchmark
+    public int wholeThenSeparators() throws IOException {
+        if (transact(0, OPERATIONS)) {
+            return 1;
+        }
+        int transactions = 1;
+        int start = 0;
+        for (int i = 1; i <= OPERATIONS; i++) {
+            if (i == OPERATIONS || mSeparators[i]) {
+                if (!transact(start, i)) {
+                    throw new IOException("Refused");
+                }
+                transactions++;
+                start = i;
+            }
+        }
+        return transactions;
+    }
+
+    @Benchmark
+    public int chunked() throws IOException {
+        // Measuring each operation
+        for (int i = 0; i < OPERATIONS; i++) {
+            System.arraycopy(mPayload, 0, mTransaction, 0, mSizes[i]);
+        }
+        final int[] transactions = new int[1];
+        new OperationChunker(mSizes, mLowestReferences, mSeparators).commit(mBudget,
+                new OperationChunker.Sender() {
+                    @Override
+                    public boolean send(int start, int end) {
+                        transactions[0]++;
+                        return transact(start, end);
+                    }
+                });
+        return transactions[0];
+    }
+
+    /**
+     * Marshal the operations in [start, end), then refuse the transaction if it is too large
+     */
+    private boolean transact(int start, int end) {
+        int size = 0;
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            if (position + mSizes[i] > mTransaction.length) {
+                position = 0;
+            }
+            System.arraycopy(mPayload, 0, mTransaction, position, mSizes[i]);
+            position += mSizes[i];
+            size += mSizes[i];
+        }
+        return size <= limitKb * 1024;
+    }
+}
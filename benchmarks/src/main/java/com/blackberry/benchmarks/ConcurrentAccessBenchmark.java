@@ -0,0 +1,288 @@
+package com.blackberry.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.sqlite.SQLiteConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A sync writing to a mailbox while its message list is scrolled. One thread runs sync batches,
+ * each a transaction adding {@link #BATCH_SIZE} messages, marking as many read and deleting the
+ * oldest ones, while three threads read pages of the list. The schema and queries mirror the
+ * provider's (only the columns involved); the database is a file, as on a device, and runs on the
+ * desktop SQLite of sqlite-jdbc.
+ * <p>
+ * With {@link #connections} "readPool", the database is in WAL mode and the readers take turns
+ * on {@link #readConnections} read-only connections of their own, as on EmailProvider's
+ * ReadConnectionPool; running it with -p readConnections=1,2,3 on a device's number of cores
+ * tells the pool size that serves it best (on a single core, the readers can't run in parallel
+ * and only pay for the extra page caches). The writer checkpoints every
+ * WriteAheadLog.AUTO_CHECKPOINT_PAGES pages, as the provider's does while a sync keeps it from
+ * going idle. With "single", the
+ * database has the rollback journal SQLiteDatabase uses by default and everything runs on the
+ * writer's connection, one thread at a time, as SQLiteDatabase hands out its only connection
+ * outside WAL mode: a query waits for the transaction in progress.
+ */
+@State(Scope.Benchmark)
+public class ConcurrentAccessBenchmark {
+
+    /** The number of mailboxes the messages are spread over; the list and the sync are of #1 */
+    private static final int MAILBOXES = 10;
+
+    /** The messages added, marked read and deleted by each sync batch */
+    private static final int BATCH_SIZE = 10;
+
+    /** The number of messages of a page of the list */
+    private static final int PAGE_SIZE = 50;
+
+    /** WriteAheadLog.AUTO_CHECKPOINT_PAGES */
+    private static final int AUTO_CHECKPOINT_PAGES = 1000;
+
+    /** How long a connection waits for a lock, as SQLiteDatabase's connections do */
+    private static final int BUSY_TIMEOUT_MILLIS = 2500;
+
+    private static final long FIRST_TIMESTAMP = 1400000000000L;
+
+    @Param({"10000"})
+    public int messages;
+
+    /** "readPool" or "single"; see above */
+    @Param({"readPool", "single"})
+    public String connections;
+
+    /** The size of the read pool, with "readPool" */
+    @Param({"3"})
+    public int readConnections;
+
+    private File mFile;
+    // The id of the next message synced; shared in case JMH sets up more than one writer
+    private final AtomicLong mNextId = new AtomicLong();
+    // The writer's connection, when the readers share it; the connection is also its lock
+    private Connection mSharedConnection;
+    // The read pool, with "readPool"; each connection is also its lock
+    private Connection[] mReadConnections;
+    private final AtomicInteger mNextReadConnection = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        mFile = File.createTempFile("concurrent", ".db");
+        final boolean readPool = "readPool".equals(connections);
+        final Connection connection = open(this, false);
+        final Statement statement = connection.createStatement();
+        statement.executeQuery("PRAGMA journal_mode=" + (readPool ? "wal" : "truncate")).close();
+        statement.execute("create table Message (_id integer primary key autoincrement, "
+                + "displayName text, timeStamp integer, subject text, snippet text, "
+                + "flagRead integer, mailboxKey integer, accountKey integer)");
+        statement.execute("create index message_timeStamp on Message (timeStamp)");
+        statement.execute("create index message_flagRead on Message (flagRead)");
+        statement.execute("create index message_mailboxKey on Message (mailboxKey)");
+        statement.close();
+
+        connection.setAutoCommit(false);
+        final PreparedStatement insert = prepareInsert(connection);
+        final Random random = new Random(42);
+        for (int id = 1; id <= messages; id++) {
+            insert(insert, id, 1 + id % MAILBOXES, random);
+        }
+        connection.commit();
+        insert.close();
+        connection.close();
+        mNextId.set(messages + 1);
+        if (readPool) {
+            mReadConnections = new Connection[readConnections];
+            for (int i = 0; i < readConnections; i++) {
+                mReadConnections[i] = open(this, true);
+            }
+        } else {
+            mSharedConnection = open(this, false);
+            mSharedConnection.setAutoCommit(false);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        if (mSharedConnection != null) {
+            mSharedConnection.close();
+        }
+        if (mReadConnections != null) {
+            for (Connection connection : mReadConnections) {
+                connection.close();
+            }
+        }
+        mFile.delete();
+        new File(mFile.getPath() + "-wal").delete();
+        new File(mFile.getPath() + "-shm").delete();
+    }
+
+    /**
+     * The sync adapter's connection
+     */
+    @State(Scope.Thread)
+    public static class Writer {
+        private Connection mConnection;
+        private boolean mOwnConnection;
+        private PreparedStatement mInsert;
+        private PreparedStatement mMarkRead;
+        private PreparedStatement mDeleteOldest;
+        private AtomicLong mNextId;
+        private final Random mRandom = new Random(7);
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentAccessBenchmark benchmark) throws SQLException {
+            mConnection = benchmark.mSharedConnection;
+            mOwnConnection = mConnection == null;
+            if (mOwnConnection) {
+                mConnection = open(benchmark, false);
+                mConnection.setAutoCommit(false);
+            }
+            final Statement statement = mConnection.createStatement();
+            statement.executeQuery("PRAGMA wal_autocheckpoint=" + AUTO_CHECKPOINT_PAGES).close();
+            statement.close();
+            mInsert = prepareInsert(mConnection);
+            mMarkRead = mConnection.prepareStatement("update Message set flagRead=1 where _id in "
+                    + "(select _id from Message where mailboxKey=1 and flagRead=0 limit "
+                    + BATCH_SIZE + ")");
+            mDeleteOldest = mConnection.prepareStatement("delete from Message where _id in "
+                    + "(select _id from Message where mailboxKey=1 order by timeStamp limit "
+                    + BATCH_SIZE + ")");
+            mNextId = benchmark.mNextId;
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws SQLException {
+            // The statements close with the connection; JMH may close a shared one first
+            if (mOwnConnection) {
+                mConnection.close();
+            }
+        }
+
+        long sync() throws SQLException {
+            try {
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    insert(mInsert, mNextId.getAndIncrement(), 1, mRandom);
+                }
+                final long changed = mMarkRead.executeUpdate() + mDeleteOldest.executeUpdate();
+                mConnection.commit();
+                return changed;
+            } catch (SQLException e) {
+                mConnection.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A list scrolling, on the connections of the read pool in turn or on the writer's
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        private ConcurrentAccessBenchmark mBenchmark;
+        private Connection[] mConnections;
+        // The page query prepared on each of mConnections; closed with the connections, which
+        // JMH may close before it tears the readers down
+        private PreparedStatement[] mPages;
+        private int mOffset;
+
+        @Setup(Level.Trial)
+        public void setUp(ConcurrentAccessBenchmark benchmark) throws SQLException {
+            mBenchmark = benchmark;
+            mConnections = benchmark.mSharedConnection != null
+                    ? new Connection[] { benchmark.mSharedConnection }
+                    : benchmark.mReadConnections;
+            mPages = new PreparedStatement[mConnections.length];
+            for (int i = 0; i < mConnections.length; i++) {
+                mPages[i] = mConnections[i].prepareStatement("select _id, displayName, "
+                        + "timeStamp, subject, snippet, flagRead from Message where mailboxKey=1 "
+                        + "order by timeStamp desc limit " + PAGE_SIZE + " offset ?");
+            }
+        }
+
+        long scroll() throws SQLException {
+            // The connection ReadConnectionPool.get() would hand out
+            final int i = (mBenchmark.mNextReadConnection.getAndIncrement() & Integer.MAX_VALUE)
+                    % mConnections.length;
+            // SQLiteDatabase hands a connection to one thread at a time
+            synchronized (mConnections[i]) {
+                return scroll(mPages[i]);
+            }
+        }
+
+        private long scroll(PreparedStatement page) throws SQLException {
+            // Half a page further down each time, back to the top after a thousand messages
+            page.setInt(1, mOffset);
+            mOffset = (mOffset + PAGE_SIZE / 2) % 1000;
+            final ResultSet results = page.executeQuery();
+            long sum = 0;
+            try {
+                while (results.next()) {
+                    sum += results.getLong(1) + results.getString(4).length();
+                }
+            } finally {
+                results.close();
+            }
+            return sum;
+        }
+    }
+
+    @Benchmark
+    @Group("syncWhileScrolling")
+    @GroupThreads(1)
+    public long sync(Writer writer) throws SQLException {
+        // SQLiteDatabase hands a connection to one thread at a time, for a whole transaction
+        synchronized (writer.mConnection) {
+            return writer.sync();
+        }
+    }
+
+    @Benchmark
+    @Group("syncWhileScrolling")
+    @GroupThreads(3)
+    public long scroll(Reader reader) throws SQLException {
+        return reader.scroll();
+    }
+
+    private static Connection open(ConcurrentAccessBenchmark benchmark, boolean readOnly)
+            throws SQLException {
+        final SQLiteConfig config = new SQLiteConfig();
+        config.setReadOnly(readOnly);
+        config.setBusyTimeout(Integer.toString(BUSY_TIMEOUT_MILLIS));
+        return DriverManager.getConnection("jdbc:sqlite:" + benchmark.mFile.getPath(),
+                config.toProperties());
+    }
+
+    private static PreparedStatement prepareInsert(Connection connection) throws SQLException {
+        return connection.prepareStatement("insert into Message (_id, displayName, timeStamp, "
+                + "subject, snippet, flagRead, mailboxKey, accountKey) "
+                + "values (?, ?, ?, ?, ?, 0, ?, 1)");
+    }
+
+    private static void insert(PreparedStatement insert, long id, long mailboxId, Random random)
+            throws SQLException {
+        insert.setLong(1, id);
+        insert.setString(2, "First" + random.nextInt(1000) + " Last");
+        insert.setLong(3, FIRST_TIMESTAMP + id * 60000L);
+        insert.setString(4, BenchmarkData.text(40, random.nextLong()));
+        insert.setString(5, BenchmarkData.text(200, random.nextLong()));
+        insert.setLong(6, mailboxId);
+        insert.executeUpdate();
+    }
+}
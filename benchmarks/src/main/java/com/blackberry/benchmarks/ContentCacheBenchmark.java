@@ -0,0 +1,112 @@
+package com.blackberry.benchmarks;
+
+import com.blackberry.common.utils.SegmentedLruCache;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Read throughput of EmailProvider's ContentCache as the number of binder threads reading it
+ * grows. Each read takes the lock of the row's segment, looks the row up and, on a miss, caches
+ * the row read from the database, as getCachedCursor() and putCursor() do; {@link #ROWS} rows are
+ * read at random, a few more than the cache holds, so that some reads miss and evict.
+ * <p>
+ * With {@link #segments} 1, the cache has a single lock, as ContentCache had before it was
+ * segmented; with 8, it has ContentCache's segments. Compare the readN results (operations per
+ * millisecond, across all threads) between the two on a device with as many cores as threads:
+ * with one lock, the threads serialize on it and the throughput stays flat or drops as threads
+ * are added; with segments, it grows with the cores available.
+ */
+@State(Scope.Benchmark)
+public class ContentCacheBenchmark {
+
+    /** The number of rows the cache holds */
+    private static final int CACHE_SIZE = 100;
+
+    /** The number of distinct rows read */
+    private static final int ROWS = 120;
+
+    /** The number of segments of the cache; see above */
+    @Param({"1", "8"})
+    public int segments;
+
+    private SegmentedLruCache<Object> mCache;
+    // The ids of the rows
+    private long[] mIds;
+    // What the database returns for each row
+    private Object[] mRows;
+
+    @Setup
+    public void setUp() {
+        mCache = new SegmentedLruCache<Object>(CACHE_SIZE, segments);
+        mIds = new long[ROWS];
+        mRows = new Object[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            mIds[i] = 1000 + i;
+            mRows[i] = new Object();
+        }
+    }
+
+    /**
+     * The row each thread reads next
+     */
+    @State(Scope.Thread)
+    public static class Reader {
+        private int mSeed;
+
+        @Setup
+        public void setUp() {
+            mSeed = System.identityHashCode(this) | 1;
+        }
+
+        int nextRow() {
+            // xorshift, so that picking a row doesn't contend or allocate
+            mSeed ^= mSeed << 13;
+            mSeed ^= mSeed >>> 17;
+            mSeed ^= mSeed << 5;
+            return (mSeed & Integer.MAX_VALUE) % ROWS;
+        }
+    }
+
+    private Object read(Reader reader) {
+        final int row = reader.nextRow();
+        final long id = mIds[row];
+        final SegmentedLruCache.Segment<Object> segment = mCache.segmentFor(id);
+        synchronized (segment) {
+            Object cached = segment.get(id);
+            if (cached == null) {
+                cached = mRows[row];
+                segment.put(id, cached);
+            }
+            return cached;
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Object read1(Reader reader) {
+        return read(reader);
+    }
+
+    @Benchmark
+    @Threads(2)
+    public Object read2(Reader reader) {
+        return read(reader);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object read4(Reader reader) {
+        return read(reader);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object read8(Reader reader) {
+        return read(reader);
+    }
+}
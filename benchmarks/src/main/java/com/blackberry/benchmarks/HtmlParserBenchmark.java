@@ -0,0 +1,84 @@
+package com.blackberry.benchmarks;
+
+import com.google.android.mail.common.html.parser.HtmlDocument;
+import com.google.android.mail.common.html.parser.HtmlParser;
+import com.google.android.mail.common.html.parser.HtmlTree;
+import com.google.android.mail.common.html.parser.HtmlTreeBuilder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * Parsing message HTML, building the tree and converting it to plain text, as done for snippets
+ * and for replying in plain text, and the same conversions streamed from a Reader without
+ * building the document or the tree.
+ */
+@State(Scope.Thread)
+public class HtmlParserBenchmark {
+
+    /** The size of the HTML document, in characters */
+    @Param({"4096", "65536", "524288"})
+    public int htmlSize;
+
+    private String mHtml;
+    private HtmlDocument mDocument;
+
+    @Setup
+    public void setUp() {
+        mHtml = BenchmarkData.html(htmlSize, 4);
+        mDocument = new HtmlParser().parse(mHtml);
+    }
+
+    private static HtmlTree buildTree(HtmlDocument document) {
+        final HtmlTreeBuilder builder = new HtmlTreeBuilder();
+        document.accept(builder);
+        return builder.getTree();
+    }
+
+    @Benchmark
+    public HtmlDocument parse() {
+        return new HtmlParser().parse(mHtml);
+    }
+
+    @Benchmark
+    public HtmlTree buildTree() {
+        return buildTree(mDocument);
+    }
+
+    /**
+     * The tree caches its plain text, so converting is only measured together with building it
+     */
+    @Benchmark
+    public String htmlToPlainText() {
+        return buildTree(new HtmlParser().parse(mHtml)).getPlainText();
+    }
+
+    @Benchmark
+    public String htmlToSanitizedHtml() {
+        return buildTree(new HtmlParser().parse(mHtml)).getHtml();
+    }
+
+    @Benchmark
+    public String streamToPlainText() throws IOException {
+        final StringWriter out = new StringWriter();
+        new HtmlParser().parse(new StringReader(mHtml),
+                new HtmlTreeBuilder(new HtmlTree.PlainTextWriter(new PrintWriter(out))));
+        return out.toString();
+    }
+
+    @Benchmark
+    public String streamToSanitizedHtml() throws IOException {
+        final StringWriter out = new StringWriter();
+        new HtmlParser().parse(new StringReader(mHtml),
+                new HtmlTreeBuilder(new HtmlDocument.HtmlPrinter(new PrintWriter(out))));
+        return out.toString();
+    }
+}
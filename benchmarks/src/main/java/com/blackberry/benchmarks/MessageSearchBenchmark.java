@@ -0,0 +1,167 @@
+package com.blackberry.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * Local search over a mailbox database of {@link #messages} messages, with the FTS4 index of
+ * EmailProvider's MessageSearchIndex against the LIKE scan of the message and body columns it
+ * replaces. The schema and queries mirror the provider's (only the columns involved); the
+ * database is a file, as on a device, and runs on the desktop SQLite of sqlite-jdbc.
+ * <p>
+ * The sender query matches about one message in a thousand, the word query most of them; both
+ * return the 50 most recent matches, as a search result list would show. LIKE has to scan every
+ * row for the former, but finds the latter in the first few rows it scans, the one case where
+ * it beats the index; MessageSearchIndex.MAX_MATCHES bounds what the index does for it.
+ */
+@State(Scope.Benchmark)
+public class MessageSearchBenchmark {
+
+    /** The number of distinct senders; each sends about messages / SENDERS messages */
+    private static final int SENDERS = 1000;
+
+    /** The number of matches returned, most recent first */
+    private static final int LIMIT = 50;
+
+    /** MessageSearchIndex.MAX_MATCHES */
+    private static final int MAX_MATCHES = 1500;
+
+    @Param({"100000"})
+    public int messages;
+
+    /** The length of the text of each body */
+    @Param({"1024"})
+    public int bodyLength;
+
+    /** What is searched for: a sender's name, or a word found in most bodies */
+    @Param({"sender", "word"})
+    public String query;
+
+    private File mFile;
+    private Connection mConnection;
+    private PreparedStatement mLike;
+    private PreparedStatement mMatch;
+    private String mPattern;
+    private String mExpression;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException, IOException, ClassNotFoundException {
+        Class.forName("org.sqlite.JDBC");
+        mFile = File.createTempFile("search", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + mFile.getPath());
+        final Statement statement = mConnection.createStatement();
+        statement.execute("create table Message (_id integer primary key autoincrement, "
+                + "displayName text, timeStamp integer, subject text, mailboxKey integer, "
+                + "accountKey integer, fromList text, toList text, ccList text, bccList text)");
+        statement.execute("create index message_timeStamp on Message (timeStamp)");
+        statement.execute("create table Body (_id integer primary key autoincrement, "
+                + "messageKey integer, textContent text)");
+        statement.execute("create index body_messageKey on Body (messageKey)");
+        statement.execute("create virtual table MessageSearch using fts4(subject, sender, "
+                + "recipients, body)");
+        statement.close();
+
+        mConnection.setAutoCommit(false);
+        final PreparedStatement message = mConnection.prepareStatement("insert into Message "
+                + "(_id, displayName, timeStamp, subject, mailboxKey, accountKey, fromList, "
+                + "toList) values (?, ?, ?, ?, 1, 1, ?, ?)");
+        final PreparedStatement body = mConnection.prepareStatement(
+                "insert into Body (messageKey, textContent) values (?, ?)");
+        final PreparedStatement index = mConnection.prepareStatement("insert into MessageSearch "
+                + "(docid, subject, sender, recipients, body) values (?, ?, ?, ?, ?)");
+        final Random random = new Random(42);
+        for (int id = 1; id <= messages; id++) {
+            final int sender = random.nextInt(SENDERS);
+            final String name = "First" + sender + " Last" + sender;
+            final String fromList = "first" + sender + ".last" + sender + "@example.com\2" + name;
+            final String toList = "me@example.com\2Me";
+            final String subject = BenchmarkData.text(40, random.nextLong());
+            final String text = BenchmarkData.text(bodyLength, random.nextLong());
+            message.setLong(1, id);
+            message.setString(2, name);
+            message.setLong(3, 1400000000000L + id * 60000L);
+            message.setString(4, subject);
+            message.setString(5, fromList);
+            message.setString(6, toList);
+            message.executeUpdate();
+            body.setLong(1, id);
+            body.setString(2, text);
+            body.executeUpdate();
+            index.setLong(1, id);
+            index.setString(2, subject);
+            index.setString(3, name + ' ' + fromList);
+            index.setString(4, toList);
+            index.setString(5, text);
+            index.executeUpdate();
+        }
+        mConnection.commit();
+        message.close();
+        body.close();
+        index.close();
+        mConnection.setAutoCommit(true);
+
+        final String term = "sender".equals(query) ? "Last137" : "quarterly";
+        mPattern = '%' + term + '%';
+        mExpression = '"' + term + "*\"";
+        mLike = mConnection.prepareStatement("select Message._id from Message "
+                + "left join Body on Body.messageKey=Message._id where accountKey=? and "
+                + "(subject like ? or displayName like ? or fromList like ? or toList like ? "
+                + "or ccList like ? or bccList like ? or textContent like ?) "
+                + "order by timeStamp desc limit " + LIMIT);
+        mMatch = mConnection.prepareStatement("select _id from Message where accountKey=? and "
+                + "_id in (select docid from MessageSearch where MessageSearch match ? "
+                + "order by docid desc limit " + MAX_MATCHES + ") "
+                + "order by timeStamp desc limit " + LIMIT);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        mLike.close();
+        mMatch.close();
+        mConnection.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public long like() throws SQLException {
+        mLike.setLong(1, 1);
+        for (int i = 2; i <= 8; i++) {
+            mLike.setString(i, mPattern);
+        }
+        return drain(mLike.executeQuery());
+    }
+
+    @Benchmark
+    public long match() throws SQLException {
+        mMatch.setLong(1, 1);
+        mMatch.setString(2, mExpression);
+        return drain(mMatch.executeQuery());
+    }
+
+    private static long drain(ResultSet results) throws SQLException {
+        long sum = 0;
+        try {
+            while (results.next()) {
+                sum += results.getLong(1);
+            }
+        } finally {
+            results.close();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+package com.blackberry.benchmarks;
+
+import org.apache.james.mime4j.decoder.Base64InputStream;
+import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Decoding quoted-printable and base64 message bodies, i.e. the streams MimeUtility wraps around
+ * a body when loading a message; MimeUtility itself depends on the Android framework and can't
+ * run here.
+ */
+@State(Scope.Thread)
+public class MimeDecodingBenchmark {
+
+    /** The size of the decoded body, in bytes; the largest is that of a typical attachment */
+    @Param({"4096", "262144", "4194304"})
+    public int bodySize;
+
+    private byte[] mQuotedPrintable;
+    private byte[] mBase64;
+    private final byte[] mBuffer = new byte[4096];
+
+    @Setup
+    public void setUp() {
+        mQuotedPrintable = BenchmarkData.quotedPrintable(
+                BenchmarkData.text(bodySize, 1).getBytes(BenchmarkData.UTF_8));
+        final byte[] binary = new byte[bodySize];
+        new Random(2).nextBytes(binary);
+        mBase64 = BenchmarkData.base64(binary);
+    }
+
+    @Benchmark
+    public long decodeQuotedPrintable() throws IOException {
+        return drain(new QuotedPrintableInputStream(new ByteArrayInputStream(mQuotedPrintable)));
+    }
+
+    @Benchmark
+    public long decodeBase64() throws IOException {
+        return drain(new Base64InputStream(new ByteArrayInputStream(mBase64)));
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        int count;
+        while ((count = in.read(mBuffer)) != -1) {
+            total += count;
+        }
+        in.close();
+        return total;
+    }
+}
@@ -0,0 +1,59 @@
+package com.blackberry.benchmarks;
+
+import org.apache.james.mime4j.codec.EncoderUtil;
+import org.apache.james.mime4j.decoder.DecoderUtil;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Header decoding and encoding, i.e. the work MimeUtility.decode() delegates to when a message is
+ * loaded, and the per-header work Rfc822Output does when writing an outgoing message.  Both
+ * classes themselves depend on the Android framework and can't run here.
+ */
+@State(Scope.Thread)
+public class MimeHeaderBenchmark {
+
+    private String mEncodedHeader;
+    private String mAsciiHeader;
+    private String mUnicodeSubject;
+    private String mDisplayName;
+
+    @Setup
+    public void setUp() {
+        mEncodedHeader = "=?UTF-8?Q?R=C3=A9union_trimestrielle?="
+                + " =?UTF-8?B?5p2x5Lqs44Gn44Gu5Lya6K2w?= and =?ISO-8859-1?Q?caf=E9?= notes";
+        mAsciiHeader = "Re: Quarterly meeting notes and the report for review";
+        mUnicodeSubject = "Re: R\u00e9union trimestrielle - \u6771\u4eac\u3067\u306e\u4f1a\u8b70"
+                + " - \u043f\u0440\u0438\u0432\u0435\u0442";
+        mDisplayName = "Dupont, Fran\u00e7ois";
+    }
+
+    @Benchmark
+    public String decodeEncodedWords() {
+        return DecoderUtil.decodeEncodedWords(mEncodedHeader);
+    }
+
+    @Benchmark
+    public String decodeAsciiHeader() {
+        return DecoderUtil.decodeEncodedWords(mAsciiHeader);
+    }
+
+    @Benchmark
+    public String encodeAsciiSubject() {
+        return EncoderUtil.encodeIfNecessary(mAsciiHeader, EncoderUtil.Usage.TEXT_TOKEN,
+                "Subject: ".length());
+    }
+
+    @Benchmark
+    public String encodeUnicodeSubject() {
+        return EncoderUtil.encodeIfNecessary(mUnicodeSubject, EncoderUtil.Usage.TEXT_TOKEN,
+                "Subject: ".length());
+    }
+
+    @Benchmark
+    public String encodeDisplayName() {
+        return EncoderUtil.encodeAddressDisplayName(mDisplayName);
+    }
+}
@@ -0,0 +1,64 @@
+package com.blackberry.benchmarks;
+
+import org.apache.james.mime4j.AbstractContentHandler;
+import org.apache.james.mime4j.BodyDescriptor;
+import org.apache.james.mime4j.MimeStreamParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parsing a whole multipart message with MimeStreamParser, reading every body as the message
+ * loaders do.
+ */
+@State(Scope.Thread)
+public class MimeParserBenchmark {
+
+    /** The size of the base64 attachment, in bytes */
+    @Param({"0", "65536", "1048576"})
+    public int attachmentSize;
+
+    private byte[] mMessage;
+
+    /**
+     * Counts the fields and drains every body, so that the parser has to scan for boundaries
+     */
+    private static class CountingHandler extends AbstractContentHandler {
+        private final byte[] mBuffer = new byte[4096];
+        long mFields;
+        long mBodyBytes;
+
+        @Override
+        public void field(String fieldData) {
+            mFields++;
+        }
+
+        @Override
+        public void body(BodyDescriptor bd, InputStream is) throws IOException {
+            int count;
+            while ((count = is.read(mBuffer)) != -1) {
+                mBodyBytes += count;
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mMessage = BenchmarkData.multipartMessage(attachmentSize, 3);
+    }
+
+    @Benchmark
+    public long parse() throws IOException {
+        final CountingHandler handler = new CountingHandler();
+        final MimeStreamParser parser = new MimeStreamParser();
+        parser.setContentHandler(handler);
+        parser.parse(new ByteArrayInputStream(mMessage));
+        return handler.mFields + handler.mBodyBytes;
+    }
+}
@@ -0,0 +1,88 @@
+package com.blackberry.benchmarks;
+
+import com.blackberry.email.mail.PackedString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+
+/**
+ * PackedString is used to store the sender and recipients of every message row, and is unpacked
+ * whenever the message list is bound.  Run with "-prof gc" to see the allocation rate of each
+ * access pattern.
+ */
+@State(Scope.Thread)
+public class PackedStringBenchmark {
+
+    /** The number of rows bound by {@link #bindRows} */
+    private static final int ROWS = 512;
+
+    /** The number of tagged elements in the packed string */
+    @Param({"2", "8", "32"})
+    public int elements;
+
+    private String mPacked;
+    private String[] mRows;
+    private String mFirstTag;
+    private String mLastTag;
+    private final PackedString.Builder mBuilder = new PackedString.Builder();
+
+    @Setup
+    public void setUp() {
+        final PackedString.Builder builder = new PackedString.Builder();
+        mRows = new String[ROWS];
+        for (int row = 0; row < ROWS; row++) {
+            builder.reset(null);
+            for (int i = 0; i < elements; i++) {
+                builder.put("tag" + i, BenchmarkData.text(24, row * elements + i));
+            }
+            mRows[row] = builder.toString();
+        }
+        mPacked = mRows[0];
+        mFirstTag = "tag0";
+        mLastTag = "tag" + (elements - 1);
+    }
+
+    @Benchmark
+    public Map<String, String> unpack() {
+        return new PackedString(mPacked).unpack();
+    }
+
+    @Benchmark
+    public String getFirst() {
+        return new PackedString(mPacked).get(mFirstTag);
+    }
+
+    @Benchmark
+    public String getLast() {
+        return new PackedString(mPacked).get(mLastTag);
+    }
+
+    @Benchmark
+    public CharSequence getSequence() {
+        return new PackedString(mPacked).getSequence(mLastTag);
+    }
+
+    /**
+     * What a conversation list does when it binds its rows: read two values of every row
+     */
+    @Benchmark
+    public void bindRows(Blackhole blackhole) {
+        for (String row : mRows) {
+            blackhole.consume(PackedString.get(row, mFirstTag));
+            blackhole.consume(PackedString.get(row, mLastTag));
+        }
+    }
+
+    @Benchmark
+    public String rebuild() {
+        mBuilder.reset(mPacked);
+        mBuilder.put(mFirstTag, "changed");
+        return mBuilder.toString();
+    }
+}
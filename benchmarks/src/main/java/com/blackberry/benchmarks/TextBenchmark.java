@@ -0,0 +1,63 @@
+package com.blackberry.benchmarks;
+
+import com.google.android.mail.common.base.CharMatcher;
+import com.google.android.mail.common.base.StringUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The StringUtil and CharMatcher helpers used by the HTML and plain text converters.
+ */
+@State(Scope.Thread)
+public class TextBenchmark {
+
+    /** The length of the text, in characters */
+    @Param({"256", "16384"})
+    public int length;
+
+    private String mText;
+
+    @Setup
+    public void setUp() {
+        mText = "  \t" + BenchmarkData.text(length, 5) + " \r\n ";
+    }
+
+    @Benchmark
+    public String collapseWhitespace() {
+        return CharMatcher.WHITESPACE.collapseFrom(mText, ' ');
+    }
+
+    @Benchmark
+    public String trimAndCollapseWhitespace() {
+        return CharMatcher.WHITESPACE.trimAndCollapseFrom(mText, ' ');
+    }
+
+    @Benchmark
+    public String removeInvisible() {
+        return CharMatcher.INVISIBLE.removeFrom(mText);
+    }
+
+    @Benchmark
+    public int countAscii() {
+        return CharMatcher.ASCII.countIn(mText);
+    }
+
+    @Benchmark
+    public String[] split() {
+        return StringUtil.split(mText, StringUtil.WHITE_SPACES);
+    }
+
+    @Benchmark
+    public String convertEOLToLF() {
+        return StringUtil.convertEOLToLF(mText);
+    }
+
+    @Benchmark
+    public String trimStartAndEnd() {
+        return StringUtil.trimEnd(StringUtil.trimStart(mText));
+    }
+}
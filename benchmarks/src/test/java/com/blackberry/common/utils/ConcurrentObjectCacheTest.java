@@ -0,0 +1,116 @@
+package com.blackberry.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks that ConcurrentObjectCache counts every get() from any number of threads, including
+ * threads that have since died, and that the objects kept by a thread that died are not kept
+ * alive by the pool.
+ */
+public class ConcurrentObjectCacheTest {
+
+    private static class Counter implements ObjectCache.Callback<Object> {
+        final AtomicInteger mCreated = new AtomicInteger();
+        final AtomicInteger mReleased = new AtomicInteger();
+
+        @Override
+        public Object newInstance() {
+            mCreated.incrementAndGet();
+            return new Object();
+        }
+
+        @Override
+        public void onObjectReleased(Object object) {
+            mReleased.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void countsGetsOfEveryThread() throws InterruptedException {
+        final Counter callback = new Counter();
+        final ConcurrentObjectCache<Object> cache = new ConcurrentObjectCache<Object>(callback, 16);
+        final int threads = 12;
+        final int rounds = 5000;
+        final int borrowed = 20;
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    final Object[] objects = new Object[borrowed];
+                    for (int round = 0; round < rounds; round++) {
+                        for (int i = 0; i < borrowed; i++) {
+                            objects[i] = cache.get();
+                        }
+                        for (int i = 0; i < borrowed; i++) {
+                            cache.release(objects[i]);
+                        }
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        final long gets = (long) threads * rounds * borrowed;
+        assertEquals(gets, cache.getHitCount() + cache.getMissCount());
+        assertEquals(callback.mCreated.get(), cache.getMissCount());
+        assertEquals(gets, callback.mReleased.get());
+        assertTrue(cache.getHitCount() > 0);
+        assertTrue(cache.getOverflowCount() > 0);
+    }
+
+    @Test
+    public void magazineOfDeadThreadIsCollected() throws InterruptedException {
+        final ConcurrentObjectCache<Object> cache =
+                new ConcurrentObjectCache<Object>(new Counter(), 16);
+        final ArrayList<WeakReference<Object>> released = new ArrayList<WeakReference<Object>>();
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                // Fewer than fit in the thread's magazine, so none of them reach the shared ring
+                final Object[] objects = new Object[ConcurrentObjectCache.MAGAZINE_SIZE / 2];
+                for (int i = 0; i < objects.length; i++) {
+                    objects[i] = cache.get();
+                    released.add(new WeakReference<Object>(objects[i]));
+                }
+                for (int i = 0; i < objects.length; i++) {
+                    cache.release(objects[i]);
+                    objects[i] = null;
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        thread = null;
+
+        for (int i = 0; i < 20 && !allCleared(released); i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        for (WeakReference<Object> reference : released) {
+            assertNull(reference.get());
+        }
+        // The counts of the dead thread remain
+        assertEquals(ConcurrentObjectCache.MAGAZINE_SIZE / 2, cache.getMissCount());
+    }
+
+    private static boolean allCleared(ArrayList<WeakReference<Object>> references) {
+        for (WeakReference<Object> reference : references) {
+            if (reference.get() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,185 @@
+package com.blackberry.common.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Checks SegmentedLruCache's eviction order and counts, and hammers it from several threads, as
+ * EmailProvider's binder threads do ContentCache: every value put must be removed exactly once,
+ * no segment may grow past its size, and the hits and misses must add up to the lookups. Also
+ * checks that looking up a row, as ContentCache.getCachedCursor() does, allocates nothing.
+ */
+public class SegmentedLruCacheTest {
+
+    @Test
+    public void segmentEvictsItsLeastRecentlyUsed() {
+        final AtomicInteger evicted = new AtomicInteger();
+        final SegmentedLruCache<String> cache = new SegmentedLruCache<String>(2, 1) {
+            @Override
+            protected void entryRemoved(boolean isEvicted, long key, String oldValue,
+                    String newValue) {
+                if (isEvicted) {
+                    evicted.incrementAndGet();
+                }
+            }
+        };
+        cache.put(1, "a");
+        cache.put(2, "b");
+        assertEquals("a", cache.get(1));
+        cache.put(3, "c");
+        assertNull(cache.get(2));
+        assertEquals("a", cache.get(1));
+        assertEquals("c", cache.get(3));
+        assertEquals(1, cache.evictionCount());
+        assertEquals(3, cache.hitCount());
+        assertEquals(1, cache.missCount());
+
+        // Invalidating the cache doesn't count as evictions
+        cache.evictAll();
+        assertEquals(0, cache.size());
+        assertEquals(3, evicted.get());
+        assertEquals(1, cache.evictionCount());
+        assertEquals(1, cache.invalidationCount());
+    }
+
+    @Test
+    public void concurrentAccess() throws InterruptedException {
+        final int threads = 8;
+        final int operations = 200000;
+        final int keys = 300;
+        final int maxSize = 128;
+        final AtomicInteger removed = new AtomicInteger();
+        final AtomicInteger evicted = new AtomicInteger();
+        final SegmentedLruCache<Object> cache = new SegmentedLruCache<Object>(maxSize) {
+            @Override
+            protected void entryRemoved(boolean isEvicted, long key, Object oldValue,
+                    Object newValue) {
+                // Called with the segment lock held
+                assertTrue(Thread.holdsLock(segmentFor(key)));
+                removed.incrementAndGet();
+                if (isEvicted) {
+                    evicted.incrementAndGet();
+                }
+            }
+        };
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger lookups = new AtomicInteger();
+        final AtomicInteger invalidations = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        final Random random = new Random(seed);
+                        for (int i = 0; i < operations; i++) {
+                            final long id = random.nextInt(keys);
+                            final int action = random.nextInt(1000);
+                            if (action == 0) {
+                                cache.evictAll();
+                                invalidations.incrementAndGet();
+                            } else if (action < 50) {
+                                cache.remove(id);
+                            } else {
+                                final SegmentedLruCache.Segment<Object> segment =
+                                        cache.segmentFor(id);
+                                synchronized (segment) {
+                                    lookups.incrementAndGet();
+                                    if (segment.get(id) == null) {
+                                        final Object value = new Object();
+                                        segment.put(id, value);
+                                        puts.incrementAndGet();
+                                        assertSame(value, segment.peek(id));
+                                    }
+                                    assertTrue(segment.size()
+                                            <= (maxSize + cache.segmentCount() - 1)
+                                                    / cache.segmentCount());
+                                }
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+
+        assertEquals(lookups.get(), cache.hitCount() + cache.missCount());
+        assertEquals(puts.get(), cache.missCount());
+        assertEquals(invalidations.get(), cache.invalidationCount());
+        assertTrue(cache.evictionCount() <= evicted.get());
+        // Every value put is either still cached or was removed exactly once
+        assertEquals(puts.get(), cache.size() + removed.get());
+        assertTrue(cache.size() <= maxSize);
+    }
+
+    @Test
+    public void lookupAllocatesNothing() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            // Allocations can't be measured on this JVM
+            return;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        final long thread = Thread.currentThread().getId();
+        final int rows = 200;
+        final SegmentedLruCache<Object> cache = new SegmentedLruCache<Object>(rows);
+        for (long id = 0; id < rows; id++) {
+            cache.put(1000000000L + id, new Object());
+        }
+        // Warm up, so that the lookups are compiled before they are measured
+        lookUp(cache, rows, 200000);
+
+        final int lookups = 100000;
+        final long before = threads.getThreadAllocatedBytes(thread);
+        final int found = lookUp(cache, rows, lookups);
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+        assertTrue(found > 0);
+        // Allow for the bookkeeping of the measurement itself, not for anything per lookup
+        assertTrue("Allocated " + allocated + " bytes for " + lookups + " lookups",
+                allocated < lookups / 10);
+    }
+
+    /**
+     * Look rows up as ContentCache.getCachedCursor() does, hits and misses alike
+     */
+    private static int lookUp(SegmentedLruCache<Object> cache, int rows, int lookups) {
+        int found = 0;
+        for (int i = 0; i < lookups; i++) {
+            // Every other lookup is of a row that isn't cached
+            final long id = 1000000000L + (i * 7) % (rows * 2);
+            final SegmentedLruCache.Segment<Object> segment = cache.segmentFor(id);
+            synchronized (segment) {
+                if (segment.get(id) != null) {
+                    found++;
+                }
+                if (segment.peek(id) != null) {
+                    found++;
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,127 @@
+package com.blackberry.email.mail;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that PackedString, which scans the packed string in place, reads the same values as the
+ * map the previous implementation exploded every packed string into, for mixes of tagged and
+ * untagged values with duplicate and numeric tags.
+ */
+public class PackedStringTest {
+    private static final String[] TAGS = { "a", "b", "c", "0", "1", "2", "3", "10", "" };
+
+    @Test
+    public void positionalTagCountsDistinctTags() {
+        // The untagged values are tagged 1 and 2: "a" is the only tag before them
+        assertEquivalent("a\u00021\u0001b\u0001c");
+        assertEquals("c", new PackedString("a\u00021\u0001b\u0001c").get("1"));
+        // The duplicate "0" counts once, so "c" is tagged 1 and "d" 2
+        assertEquivalent("a\u00020\u0001b\u00020\u0001c\u0001d");
+        assertEquals("c", new PackedString("a\u00020\u0001b\u00020\u0001c\u0001d").get("1"));
+    }
+
+    @Test
+    public void lastDuplicateWins() {
+        assertEquivalent("a\u0002x\u0001b\u0002x");
+        assertEquivalent("a\u0001b\u00020");
+        assertEquivalent("a\u00021\u0001b\u0001c\u00021");
+    }
+
+    @Test
+    public void builderCollapsesDuplicates() {
+        final PackedString.Builder builder =
+                new PackedString.Builder("a\u0002x\u0001b\u0002x\u0001c");
+        builder.put("x", null);
+        assertEquals(null, builder.get("x"));
+        assertEquals("c", builder.get("1"));
+        assertEquals(explode(builder.toString()), new PackedString(builder.toString()).unpack());
+    }
+
+    @Test
+    public void randomMixes() {
+        final Random random = new Random(1);
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder packed = new StringBuilder();
+            final int elements = random.nextInt(6);
+            for (int element = 0; element < elements; element++) {
+                if (element > 0) {
+                    packed.append('\u0001');
+                }
+                packed.append('v').append(element);
+                if (random.nextBoolean()) {
+                    packed.append('\u0002').append(TAGS[random.nextInt(TAGS.length)]);
+                }
+            }
+            assertEquivalent(packed.toString());
+
+            // Edits through the builder read the same as edits of the exploded map
+            final PackedString.Builder builder = new PackedString.Builder(packed.toString());
+            final Map<String, String> expected = explode(packed.toString());
+            for (int edit = 0; edit < 4; edit++) {
+                final String tag = TAGS[random.nextInt(TAGS.length)];
+                final String value = random.nextBoolean() ? null : "w" + edit;
+                builder.put(tag, value);
+                if (value == null) {
+                    expected.remove(tag);
+                } else {
+                    expected.put(tag, value);
+                }
+                for (String t : TAGS) {
+                    assertEquals(expected.get(t), builder.get(t));
+                }
+            }
+            assertEquals(expected, new PackedString(builder.toString()).unpack());
+        }
+    }
+
+    private static void assertEquivalent(String packed) {
+        final Map<String, String> expected = explode(packed);
+        final PackedString string = new PackedString(packed);
+        assertEquals(packed, expected, string.unpack());
+        for (String tag : TAGS) {
+            assertEquals(packed + " " + tag, expected.get(tag), string.get(tag));
+            final CharSequence sequence = string.getSequence(tag);
+            assertEquals(expected.get(tag), sequence == null ? null : sequence.toString());
+        }
+    }
+
+    /**
+     * The previous implementation of PackedString.explode(), as the reference
+     */
+    private static HashMap<String, String> explode(String packed) {
+        final HashMap<String, String> map = new HashMap<String, String>();
+        if (packed == null || packed.length() == 0) {
+            return map;
+        }
+        final int length = packed.length();
+        int elementStartIndex = 0;
+        int elementEndIndex = 0;
+        int tagEndIndex = packed.indexOf('\u0002');
+
+        while (elementStartIndex < length) {
+            elementEndIndex = packed.indexOf('\u0001', elementStartIndex);
+            if (elementEndIndex == -1) {
+                elementEndIndex = length;
+            }
+            String tag;
+            String value;
+            if (tagEndIndex == -1 || elementEndIndex <= tagEndIndex) {
+                value = packed.substring(elementStartIndex, elementEndIndex);
+                tag = Integer.toString(map.size());
+            } else {
+                value = packed.substring(elementStartIndex, tagEndIndex);
+                tag = packed.substring(tagEndIndex + 1, elementEndIndex);
+                tagEndIndex = packed.indexOf('\u0002', elementEndIndex + 1);
+            }
+            map.put(tag, value);
+            elementStartIndex = elementEndIndex + 1;
+        }
+        return map;
+    }
+}
@@ -0,0 +1,135 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Checks where OperationChunker cuts batches: never between an operation and the operations it
+ * back references, only at separators when there are any, and not at all when a batch fits.
+ */
+public class OperationChunkerTest {
+
+    @Test
+    public void batchThatFitsIsSentWhole() throws IOException {
+        final int[] sizes = { 100, 100, 100 };
+        final int[] references = { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE };
+        final Recorder recorder = new Recorder(sizes, Integer.MAX_VALUE);
+        new OperationChunker(sizes, references, null).commit(new BatchBudget(), recorder);
+        assertEquals(1, recorder.mChunks.size());
+    }
+
+    @Test
+    public void randomBatches() throws IOException {
+        final Random random = new Random(1);
+        for (int run = 0; run < 2000; run++) {
+            final int count = 1 + random.nextInt(200);
+            final int[] sizes = new int[count];
+            final int[] references = new int[count];
+            final boolean withSeparators = random.nextBoolean();
+            final boolean[] separators = withSeparators ? new boolean[count] : null;
+            for (int i = 0; i < count; i++) {
+                sizes[i] = 100 + random.nextInt(random.nextInt(10) == 0 ? 30000 : 4000);
+                references[i] = i > 0 && random.nextInt(3) == 0
+                        ? Math.max(0, i - 1 - random.nextInt(5)) : Integer.MAX_VALUE;
+                if (withSeparators) {
+                    separators[i] = random.nextInt(4) == 0;
+                }
+            }
+            final Recorder recorder = new Recorder(sizes, 200 * 1024);
+            try {
+                new OperationChunker(sizes, references, separators).commit(new BatchBudget(),
+                        recorder);
+            } catch (IOException e) {
+                // A chunk the budget can't cut below the limit
+                continue;
+            }
+
+            int expectedStart = 0;
+            for (int[] chunk : recorder.mChunks) {
+                final int start = chunk[0];
+                final int end = chunk[1];
+                assertEquals(expectedStart, start);
+                assertTrue(end > start);
+                if (start > 0 && withSeparators) {
+                    assertTrue(separators[start]);
+                }
+                for (int i = start; i < end; i++) {
+                    assertTrue(references[i] == Integer.MAX_VALUE || references[i] >= start);
+                }
+                expectedStart = end;
+            }
+            assertEquals(count, expectedStart);
+        }
+    }
+
+    @Test
+    public void budgetIsLearned() throws IOException {
+        final int count = 1000;
+        final int[] sizes = new int[count];
+        final int[] references = new int[count];
+        for (int i = 0; i < count; i++) {
+            sizes[i] = 1000;
+            references[i] = Integer.MAX_VALUE;
+        }
+        final BatchBudget budget = new BatchBudget();
+        final OperationChunker chunker = new OperationChunker(sizes, references, null);
+        Recorder recorder = new Recorder(sizes, 100 * 1024);
+        chunker.commit(budget, recorder);
+        assertTrue(recorder.mRefused > 0);
+        assertTrue(budget.get() <= 100 * 1024);
+
+        // The next commit to the same provider starts with what the first one learned
+        recorder = new Recorder(sizes, 100 * 1024);
+        chunker.commit(budget, recorder);
+        assertEquals(0, recorder.mRefused);
+    }
+
+    @Test
+    public void unsplittableChunkFails() {
+        final int[] sizes = { 300 * 1024, 300 * 1024 };
+        final int[] references = { Integer.MAX_VALUE, 0 };
+        try {
+            new OperationChunker(sizes, references, null).commit(new BatchBudget(),
+                    new Recorder(sizes, 200 * 1024));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Records the chunks it is sent, and refuses those over a size
+     */
+    private static class Recorder implements OperationChunker.Sender {
+        final ArrayList<int[]> mChunks = new ArrayList<int[]>();
+        final int[] mSizes;
+        final int mLimit;
+        int mRefused;
+
+        Recorder(int[] sizes, int limit) {
+            mSizes = sizes;
+            mLimit = limit;
+        }
+
+        @Override
+        public boolean send(int start, int end) {
+            long size = 0;
+            for (int i = start; i < end; i++) {
+                size += mSizes[i];
+            }
+            if (size > mLimit) {
+                mRefused++;
+                return false;
+            }
+            mChunks.add(new int[] { start, end });
+            return true;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.blackberry.common.perf;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, lock-free latency histogram in the style of HdrHistogram.
+ *
+ * Values (in microseconds) below 32 each get their own bucket; above that, every power of two
+ * range is split into 16 linear sub-buckets, so a recorded value is never off by more than
+ * 1/16th (about 6%) when read back.  Values above {@link #MAX_VALUE_MICROS} (a bit over an hour)
+ * are clamped.  Recording is a couple of atomic increments and never allocates, so it is cheap
+ * enough to be left on in production builds.
+ */
+public class LatencyHistogram {
+    /** The largest value that can be told apart from larger ones, in microseconds */
+    public static final long MAX_VALUE_MICROS = (1L << 32) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    private static final int BUCKET_COUNT = bucketIndex(MAX_VALUE_MICROS) + 1;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mTotal = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a value, in microseconds; negative values are recorded as 0.
+     */
+    public void record(long valueMicros) {
+        final long value = Math.max(0, Math.min(valueMicros, MAX_VALUE_MICROS));
+        mCounts.incrementAndGet(bucketIndex(value));
+        mTotal.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Forget all the recorded values; values recorded concurrently may or may not be kept.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts.set(i, 0);
+        }
+        mTotal.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * @return a consistent copy of the histogram, to compute percentiles from
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKET_COUNT];
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mTotal.get(), mMax.get());
+    }
+
+    /**
+     * An immutable copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mTotal;
+        private final long mMax;
+
+        private Snapshot(long[] counts, long count, long total, long max) {
+            mCounts = counts;
+            mCount = count;
+            mTotal = total;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return the largest value recorded, in microseconds
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return the mean of the recorded values, in microseconds
+         */
+        public long getMean() {
+            return mCount == 0 ? 0 : mTotal / mCount;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the value below or at which the given percentage of values fall, in
+         *     microseconds
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            final long rank =
+                    Math.max(1, (long) Math.ceil(mCount * Math.min(percentile, 100) / 100));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestEquivalentValue(i), mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+
+    /**
+     * The bucket a value falls in: the value itself below SUB_BUCKET_COUNT, otherwise the top
+     * SUB_BUCKET_BITS bits of the value, offset by the number of bits dropped
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return shift * SUB_BUCKET_HALF + (int) (value >>> shift);
+    }
+
+    /**
+     * The largest value that falls in a bucket
+     */
+    private static long highestEquivalentValue(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int shift = index / SUB_BUCKET_HALF - 1;
+        final long subBucket = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
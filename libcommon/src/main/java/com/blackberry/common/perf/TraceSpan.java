@@ -0,0 +1,57 @@
+package com.blackberry.common.perf;
+
+/**
+ * A named, pre-registered operation whose latency is traced by {@link Tracer}.  Spans are
+ * created once through {@link Tracer#register} (typically into a static field) and then timed
+ * with:
+ *
+ * <pre>
+ * final long start = span.start();
+ * try {
+ *     ... code for the operation ...
+ * } finally {
+ *     span.end(start);
+ * }
+ * </pre>
+ */
+public final class TraceSpan {
+    private final int mId;
+    private final String mName;
+    private final LatencyHistogram mHistogram = new LatencyHistogram();
+
+    TraceSpan(int id, String name) {
+        mId = id;
+        mName = name;
+    }
+
+    public int getId() {
+        return mId;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return mHistogram;
+    }
+
+    /**
+     * @return the start time to pass to {@link #end}, or {@link Tracer#NOT_TRACING} if tracing is
+     *     disabled
+     */
+    public long start() {
+        return Tracer.isEnabled() ? System.nanoTime() : Tracer.NOT_TRACING;
+    }
+
+    /**
+     * Record one occurrence of the operation
+     *
+     * @param startNanos the value returned by {@link #start}
+     */
+    public void end(long startNanos) {
+        if (startNanos != Tracer.NOT_TRACING) {
+            Tracer.record(this, startNanos, System.nanoTime());
+        }
+    }
+}
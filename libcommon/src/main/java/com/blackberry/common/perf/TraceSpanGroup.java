@@ -0,0 +1,70 @@
+package com.blackberry.common.perf;
+
+import java.util.Arrays;
+
+/**
+ * A family of {@link TraceSpan}s sharing a name prefix and told apart by an integer key, e.g. one
+ * span per UriMatcher code of a content provider.  Spans are registered the first time their key
+ * is seen; looking up a span that is already registered takes no lock and allocates nothing.
+ */
+public final class TraceSpanGroup {
+    private final String mPrefix;
+
+    // The registered keys, sorted, and their spans; replaced as a whole when a key is added
+    private static final class Table {
+        final int[] mKeys;
+        final TraceSpan[] mSpans;
+
+        Table(int[] keys, TraceSpan[] spans) {
+            mKeys = keys;
+            mSpans = spans;
+        }
+    }
+
+    private volatile Table mTable = new Table(new int[0], new TraceSpan[0]);
+
+    /**
+     * @param prefix the name of the group; span names are "prefix[name]"
+     */
+    public TraceSpanGroup(String prefix) {
+        mPrefix = prefix;
+    }
+
+    public String getPrefix() {
+        return mPrefix;
+    }
+
+    /**
+     * @return the span registered for {@code key}, or null if there is none yet
+     */
+    public TraceSpan get(int key) {
+        final Table table = mTable;
+        final int index = Arrays.binarySearch(table.mKeys, key);
+        return index >= 0 ? table.mSpans[index] : null;
+    }
+
+    /**
+     * Register the span for {@code key}, or return the span already registered for it
+     *
+     * @param name the name of the key, used to name the span
+     */
+    public synchronized TraceSpan register(int key, String name) {
+        final Table table = mTable;
+        int index = Arrays.binarySearch(table.mKeys, key);
+        if (index >= 0) {
+            return table.mSpans[index];
+        }
+        index = -(index + 1);
+        final int size = table.mKeys.length;
+        final int[] keys = new int[size + 1];
+        final TraceSpan[] spans = new TraceSpan[size + 1];
+        System.arraycopy(table.mKeys, 0, keys, 0, index);
+        System.arraycopy(table.mSpans, 0, spans, 0, index);
+        System.arraycopy(table.mKeys, index, keys, index + 1, size - index);
+        System.arraycopy(table.mSpans, index, spans, index + 1, size - index);
+        keys[index] = key;
+        spans[index] = Tracer.register(mPrefix + "[" + name + "]");
+        mTable = new Table(keys, spans);
+        return spans[index];
+    }
+}
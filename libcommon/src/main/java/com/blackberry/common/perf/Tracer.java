@@ -0,0 +1,242 @@
+package com.blackberry.common.perf;
+
+import java.io.PrintWriter;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always-on, low overhead latency tracing.
+ *
+ * Unlike {@link Timer}, which is compiled out unless ENABLE_TIMER is set, the tracer is meant to
+ * stay enabled in production builds.  Operations are pre-registered as {@link TraceSpan}s, each
+ * with an integer id and its own {@link LatencyHistogram}.  Ending a span records its duration in
+ * the histogram and appends (span id, start, duration) to a ring buffer owned by the calling
+ * thread; neither allocates, and the ring buffer is written without any synchronization other
+ * than publishing its write position.
+ *
+ * The histograms answer "what are p50/p99 of X" since the process started (or since
+ * {@link #reset}); the ring buffers keep the last {@link #EVENTS_PER_THREAD} events of every
+ * thread, for seeing what happened just before a dump.
+ */
+public final class Tracer {
+    /** The start time returned by {@link TraceSpan#start} when tracing is disabled */
+    public static final long NOT_TRACING = 0;
+
+    /** The number of events each thread remembers */
+    public static final int EVENTS_PER_THREAD = 256;
+
+    private static volatile boolean sEnabled = true;
+
+    // Registered spans, indexed by id; guarded by sLock, read without locking
+    private static final Object sLock = new Object();
+    private static volatile TraceSpan[] sSpans = new TraceSpan[0];
+    private static final HashMap<String, TraceSpan> sSpansByName =
+            new HashMap<String, TraceSpan>();
+
+    // Every live thread's event buffer; guarded by sLock
+    private static final ArrayList<EventBuffer> sBuffers = new ArrayList<EventBuffer>();
+    private static final ThreadLocal<EventBuffer> sBuffer = new ThreadLocal<EventBuffer>() {
+        @Override
+        protected EventBuffer initialValue() {
+            final EventBuffer buffer = new EventBuffer(Thread.currentThread());
+            synchronized (sLock) {
+                // Drop the buffers of threads that have died
+                for (Iterator<EventBuffer> i = sBuffers.iterator(); i.hasNext(); ) {
+                    if (i.next().mThread.get() == null) {
+                        i.remove();
+                    }
+                }
+                sBuffers.add(buffer);
+            }
+            return buffer;
+        }
+    };
+
+    /**
+     * A single-writer ring buffer of events, written by its owning thread only.  Each event takes
+     * three longs: the span id, the start time and the duration, both in nanoseconds.  Readers
+     * copy the events and then check that the writer didn't lap them in the meantime.
+     */
+    private static final class EventBuffer {
+        private static final int EVENT_SIZE = 3;
+
+        final WeakReference<Thread> mThread;
+        final String mThreadName;
+        final long[] mEvents = new long[EVENTS_PER_THREAD * EVENT_SIZE];
+        // The number of events ever written; only the last EVENTS_PER_THREAD are kept
+        volatile long mWriteCount;
+        // Events before this one were discarded by reset()
+        volatile long mResetCount;
+
+        EventBuffer(Thread thread) {
+            mThread = new WeakReference<Thread>(thread);
+            mThreadName = thread.getName();
+        }
+
+        void add(int spanId, long startNanos, long durationNanos) {
+            final long count = mWriteCount;
+            final int offset = (int) (count % EVENTS_PER_THREAD) * EVENT_SIZE;
+            mEvents[offset] = spanId;
+            mEvents[offset + 1] = startNanos;
+            mEvents[offset + 2] = durationNanos;
+            mWriteCount = count + 1;
+        }
+
+        /**
+         * Copy the events that are still in the buffer into {@code out}, oldest first
+         */
+        void copyTo(ArrayList<Event> out) {
+            final long end = mWriteCount;
+            final long begin = Math.max(mResetCount, end - EVENTS_PER_THREAD);
+            final long[] events = Arrays.copyOf(mEvents, mEvents.length);
+            // Events overwritten while we were copying are no longer trustworthy
+            final long overwritten = mWriteCount - EVENTS_PER_THREAD;
+            for (long i = Math.max(begin, overwritten + 1); i < end; i++) {
+                final int offset = (int) (i % EVENTS_PER_THREAD) * EVENT_SIZE;
+                out.add(new Event(mThreadName, (int) events[offset], events[offset + 1],
+                        events[offset + 2]));
+            }
+        }
+    }
+
+    /**
+     * A traced event, as returned to dump()
+     */
+    private static final class Event implements Comparable<Event> {
+        final String mThreadName;
+        final int mSpanId;
+        final long mStartNanos;
+        final long mDurationNanos;
+
+        Event(String threadName, int spanId, long startNanos, long durationNanos) {
+            mThreadName = threadName;
+            mSpanId = spanId;
+            mStartNanos = startNanos;
+            mDurationNanos = durationNanos;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            return mStartNanos < other.mStartNanos ? -1
+                    : (mStartNanos == other.mStartNanos ? 0 : 1);
+        }
+    }
+
+    private Tracer() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * Turn tracing on or off; spans already started when tracing is turned off are still
+     * recorded.
+     */
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Register a span, or return the span already registered with that name
+     */
+    public static TraceSpan register(String name) {
+        synchronized (sLock) {
+            TraceSpan span = sSpansByName.get(name);
+            if (span == null) {
+                final TraceSpan[] spans = Arrays.copyOf(sSpans, sSpans.length + 1);
+                span = new TraceSpan(spans.length - 1, name);
+                spans[span.getId()] = span;
+                sSpansByName.put(name, span);
+                sSpans = spans;
+            }
+            return span;
+        }
+    }
+
+    static void record(TraceSpan span, long startNanos, long endNanos) {
+        final long durationNanos = endNanos - startNanos;
+        span.getHistogram().record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+        sBuffer.get().add(span.getId(), startNanos, durationNanos);
+    }
+
+    /**
+     * Forget everything recorded so far; the spans stay registered.
+     */
+    public static void reset() {
+        for (TraceSpan span : sSpans) {
+            span.getHistogram().reset();
+        }
+        synchronized (sLock) {
+            for (EventBuffer buffer : sBuffers) {
+                buffer.mResetCount = buffer.mWriteCount;
+            }
+        }
+    }
+
+    /**
+     * Dump the latency statistics of every span whose name starts with {@code prefix}
+     *
+     * @param prefix the prefix of the spans to dump, or null for all spans
+     */
+    public static void dump(PrintWriter writer, String prefix) {
+        writer.println(String.format("%-48s %8s %9s %9s %9s %9s %9s", "Span (ms)", "count",
+                "mean", "p50", "p90", "p99", "max"));
+        for (TraceSpan span : sSpans) {
+            if (prefix != null && !span.getName().startsWith(prefix)) {
+                continue;
+            }
+            final LatencyHistogram.Snapshot snapshot = span.getHistogram().snapshot();
+            if (snapshot.getCount() == 0) {
+                continue;
+            }
+            writer.println(String.format("%-48s %8d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                    span.getName(), snapshot.getCount(),
+                    toMillis(snapshot.getMean()),
+                    toMillis(snapshot.getValueAtPercentile(50)),
+                    toMillis(snapshot.getValueAtPercentile(90)),
+                    toMillis(snapshot.getValueAtPercentile(99)),
+                    toMillis(snapshot.getMax())));
+        }
+    }
+
+    /**
+     * Dump the most recent events of all threads, oldest first
+     *
+     * @param prefix the prefix of the spans to dump, or null for all spans
+     * @param maxEvents the maximum number of events to dump
+     */
+    public static void dumpRecentEvents(PrintWriter writer, String prefix, int maxEvents) {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        synchronized (sLock) {
+            for (EventBuffer buffer : sBuffers) {
+                buffer.copyTo(events);
+            }
+        }
+        final TraceSpan[] spans = sSpans;
+        final ArrayList<Event> matching = new ArrayList<Event>(events.size());
+        for (Event event : events) {
+            if (prefix == null || spans[event.mSpanId].getName().startsWith(prefix)) {
+                matching.add(event);
+            }
+        }
+        Collections.sort(matching);
+
+        final long now = System.nanoTime();
+        for (int i = Math.max(0, matching.size() - maxEvents); i < matching.size(); i++) {
+            final Event event = matching.get(i);
+            writer.println(String.format("  -%.3fs %-24s %-48s %9.3fms",
+                    (now - event.mStartNanos) / 1e9, event.mThreadName,
+                    spans[event.mSpanId].getName(), event.mDurationNanos / 1e6));
+        }
+    }
+
+    private static double toMillis(long micros) {
+        return micros / 1000.0;
+    }
+}
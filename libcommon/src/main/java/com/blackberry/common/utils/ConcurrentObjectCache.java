@@ -0,0 +1,223 @@
+package com.blackberry.common.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A pool of object instances for heavily threaded callers; a drop-in alternative to
+ * {@link ObjectCache} using the same {@link ObjectCache.Callback} contract.
+ *
+ * Each thread first gets from and releases to its own small "magazine" (an array used as a stack),
+ * which needs no synchronization at all.  When a thread's magazine is empty (on get) or full (on
+ * release), it falls back to a shared, bounded, lock-free ring buffer.  Neither structure allocates
+ * nodes; released objects are only dropped when both the magazine and the ring are full.
+ *
+ * Since every thread keeps up to {@link #MAGAZINE_SIZE} objects of its own, the pool may hold more
+ * than maxSize objects in total; maxSize bounds the shared ring only.  A magazine is only
+ * referenced by its thread, so when the thread dies, the magazine and the objects in it are
+ * garbage collected with it.  Hits and misses are counted in a few padded, striped atomic
+ * counters, so that counting neither makes threads contend nor needs a list of the magazines.
+ *
+ * @param <T>
+ */
+public class ConcurrentObjectCache<T> {
+    /** The maximum number of objects each thread keeps for itself */
+    public static final int MAGAZINE_SIZE = 8;
+
+    // The number of stripes of the hit and miss counters; a power of two
+    private static final int COUNTER_STRIPES = 8;
+    // The longs between two stripes, so that each stripe has a cache line of its own
+    private static final int COUNTER_PADDING = 8;
+
+    private final ObjectCache.Callback<T> mCallback;
+    private final Ring<T> mRing;
+    private final int mMagazineSize;
+
+    // Objects dropped because the magazine and the ring were both full
+    private final AtomicLong mOverflows = new AtomicLong();
+    // Objects returned from a magazine or the ring, and objects that had to be created; each
+    // thread counts in the stripe of its magazine
+    private final AtomicLongArray mHits = new AtomicLongArray(COUNTER_STRIPES * COUNTER_PADDING);
+    private final AtomicLongArray mMisses =
+            new AtomicLongArray(COUNTER_STRIPES * COUNTER_PADDING);
+    private final AtomicInteger mNextStripe = new AtomicInteger();
+
+    private final ThreadLocal<Magazine> mMagazine = new ThreadLocal<Magazine>() {
+        @Override
+        protected Magazine initialValue() {
+            int stripe = mNextStripe.getAndIncrement() & (COUNTER_STRIPES - 1);
+            return new Magazine(mMagazineSize, stripe * COUNTER_PADDING);
+        }
+    };
+
+    /**
+     * A per-thread stack of cached objects; only ever touched by its owning thread
+     */
+    private static final class Magazine {
+        final Object[] mObjects;
+        // The index of the thread's stripe in mHits and mMisses
+        final int mCounter;
+        int mSize;
+
+        Magazine(int size, int counter) {
+            mObjects = new Object[size];
+            mCounter = counter;
+        }
+    }
+
+    /**
+     * A bounded multi-producer, multi-consumer ring buffer.  Every slot carries a sequence number
+     * telling producers and consumers whose turn it is, so that claiming a slot is a single CAS on
+     * the head or tail position and no nodes are ever allocated.
+     */
+    private static final class Ring<E> {
+        private final AtomicReferenceArray<E> mBuffer;
+        private final AtomicLongArray mSequences;
+        private final int mMask;
+        private final AtomicLong mTail = new AtomicLong();
+        private final AtomicLong mHead = new AtomicLong();
+
+        Ring(int minCapacity) {
+            int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+            mBuffer = new AtomicReferenceArray<E>(capacity);
+            mSequences = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                mSequences.set(i, i);
+            }
+            mMask = capacity - 1;
+        }
+
+        boolean offer(E element) {
+            long pos = mTail.get();
+            int index;
+            while (true) {
+                index = (int) (pos & mMask);
+                long diff = mSequences.get(index) - pos;
+                if (diff == 0) {
+                    if (mTail.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                } else if (diff < 0) {
+                    // The slot still holds an element from the previous lap: we're full
+                    return false;
+                }
+                pos = mTail.get();
+            }
+            mBuffer.set(index, element);
+            mSequences.set(index, pos + 1);
+            return true;
+        }
+
+        E poll() {
+            long pos = mHead.get();
+            int index;
+            while (true) {
+                index = (int) (pos & mMask);
+                long diff = mSequences.get(index) - (pos + 1);
+                if (diff == 0) {
+                    if (mHead.compareAndSet(pos, pos + 1)) {
+                        break;
+                    }
+                } else if (diff < 0) {
+                    // Nothing has been published in this slot yet: we're empty
+                    return null;
+                }
+                pos = mHead.get();
+            }
+            E element = mBuffer.get(index);
+            mBuffer.set(index, null);
+            mSequences.set(index, pos + mMask + 1);
+            return element;
+        }
+
+        int capacity() {
+            return mMask + 1;
+        }
+    }
+
+    /**
+     * Creates a new ConcurrentObjectCache instance
+     * @param callbacks Callback object that that will return a new instance of the object, and
+     *        perform any cleanup when the object is released back to the cache
+     * @param maxSize the number of objects kept in the shared ring (rounded up to a power of two)
+     */
+    public ConcurrentObjectCache(ObjectCache.Callback<T> callbacks, int maxSize) {
+        mCallback = callbacks;
+        mRing = new Ring<T>(maxSize);
+        mMagazineSize = Math.max(1, Math.min(MAGAZINE_SIZE, maxSize));
+    }
+
+    /**
+     * Returns an instance of the specified object type, creating a new instance if needed.
+     */
+    @SuppressWarnings("unchecked")
+    public T get() {
+        final Magazine magazine = mMagazine.get();
+        if (magazine.mSize > 0) {
+            final int top = --magazine.mSize;
+            final T result = (T) magazine.mObjects[top];
+            magazine.mObjects[top] = null;
+            mHits.incrementAndGet(magazine.mCounter);
+            return result;
+        }
+        T result = mRing.poll();
+        if (result != null) {
+            mHits.incrementAndGet(magazine.mCounter);
+            return result;
+        }
+        mMisses.incrementAndGet(magazine.mCounter);
+        return mCallback.newInstance();
+    }
+
+    /**
+     * Releases the specified object back to the cache.  Once an object is released, it can be
+     * returned by subsequent calls to get()
+     */
+    public void release(T objectToCache) {
+        mCallback.onObjectReleased(objectToCache);
+        final Magazine magazine = mMagazine.get();
+        if (magazine.mSize < magazine.mObjects.length) {
+            magazine.mObjects[magazine.mSize++] = objectToCache;
+        } else if (!mRing.offer(objectToCache)) {
+            mOverflows.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of get() calls satisfied from the pool
+     */
+    public long getHitCount() {
+        return sum(mHits);
+    }
+
+    /**
+     * @return the number of get() calls that had to create a new instance
+     */
+    public long getMissCount() {
+        return sum(mMisses);
+    }
+
+    /**
+     * @return the number of released objects dropped because the pool was full
+     */
+    public long getOverflowCount() {
+        return mOverflows.get();
+    }
+
+    private static long sum(AtomicLongArray counter) {
+        long sum = 0;
+        for (int i = 0; i < COUNTER_STRIPES; i++) {
+            sum += counter.get(i * COUNTER_PADDING);
+        }
+        return sum;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentObjectCache[ring=" + mRing.capacity() + ",magazine=" + mMagazineSize
+                + ",hits=" + getHitCount() + ",misses=" + getMissCount()
+                + ",overflows=" + getOverflowCount() + "]";
+    }
+}
@@ -0,0 +1,185 @@
+package com.blackberry.common.utils;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A map from primitive longs to non-negative ints, typically from row ids to cursor positions,
+ * for when a HashMap&lt;Long, Integer&gt; would box every key and value and allocate an entry
+ * object per mapping.  Keys and values live in two parallel arrays indexed by an open-addressing
+ * (linear probing) hash of the key, so a mapping costs 12 bytes per slot, and get() and put()
+ * allocate nothing.  Mappings cannot be removed, only cleared all at once, which keeps the probe
+ * sequences intact without tombstones.
+ *
+ * Sizing the map for the expected number of entries up front (as when indexing a cursor whose
+ * count is known) means it never has to rehash while being filled.
+ *
+ * This class is NOT synchronized; callers must provide their own locking.
+ */
+public class LongIntHashMap {
+    /** The value returned by {@link #get} for keys that aren't in the map */
+    public static final int NOT_FOUND = -1;
+
+    private static final int MIN_CAPACITY = 8;
+
+    private long[] mKeys;
+    // The value + 1 of each slot; 0 marks an empty slot
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+
+    /**
+     * @param expectedSize the number of entries the map is expected to hold; it grows past that
+     *     as needed
+     */
+    public LongIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Returns the value for {@code key}, or {@link #NOT_FOUND}.
+     */
+    public int get(long key) {
+        for (int slot = slotFor(key); ; slot = (slot + 1) & mMask) {
+            final int value = mValues[slot];
+            if (value == 0) {
+                return NOT_FOUND;
+            }
+            if (mKeys[slot] == key) {
+                return value - 1;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != NOT_FOUND;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, replacing any previous value.
+     *
+     * @param value a non-negative value
+     * @return the previous value for {@code key}, or {@link #NOT_FOUND}
+     */
+    public int put(long key, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value < 0");
+        }
+        int slot = slotFor(key);
+        for (; mValues[slot] != 0; slot = (slot + 1) & mMask) {
+            if (mKeys[slot] == key) {
+                final int previous = mValues[slot] - 1;
+                mValues[slot] = value + 1;
+                return previous;
+            }
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value + 1;
+        // Keep the load factor at or below three quarters
+        if (++mSize > ((mMask + 1) >> 2) * 3) {
+            rehash((mMask + 1) << 1);
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Removes all the entries, keeping the current capacity.
+     */
+    public void clear() {
+        Arrays.fill(mValues, 0);
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a read-only view of the keys; each key is boxed as it is iterated over, but
+     * contains() and size() don't allocate.  The view must not be iterated over while the map is
+     * being modified.
+     */
+    public Set<Long> keySet() {
+        return new AbstractSet<Long>() {
+            @Override
+            public boolean contains(Object o) {
+                return o instanceof Long && containsKey((Long) o);
+            }
+
+            @Override
+            public int size() {
+                return mSize;
+            }
+
+            @Override
+            public Iterator<Long> iterator() {
+                return new Iterator<Long>() {
+                    private int mSlot = nextSlot(0);
+
+                    @Override
+                    public boolean hasNext() {
+                        return mSlot < mValues.length;
+                    }
+
+                    @Override
+                    public Long next() {
+                        if (mSlot >= mValues.length) {
+                            throw new NoSuchElementException();
+                        }
+                        final long key = mKeys[mSlot];
+                        mSlot = nextSlot(mSlot + 1);
+                        return key;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    // The first occupied slot at or after slot, or mValues.length
+    private int nextSlot(int slot) {
+        while (slot < mValues.length && mValues[slot] == 0) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        final int minCapacity = Math.max(expectedSize, 1) + expectedSize / 3 + 1;
+        return Math.max(MIN_CAPACITY, Integer.highestOneBit(minCapacity - 1) << 1);
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+    }
+
+    private void rehash(int capacity) {
+        final long[] keys = mKeys;
+        final int[] values = mValues;
+        allocate(capacity);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != 0) {
+                int slot = slotFor(keys[i]);
+                while (mValues[slot] != 0) {
+                    slot = (slot + 1) & mMask;
+                }
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    private int slotFor(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+}
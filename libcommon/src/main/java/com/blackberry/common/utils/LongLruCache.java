@@ -0,0 +1,341 @@
+package com.blackberry.common.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache keyed by primitive longs (typically row ids).  Like
+ * {@link SparseLongArray}, it keeps its keys in primitive arrays rather than boxing them, and
+ * unlike android.util.LruCache, it allocates nothing on get(), put() or remove(): entries live in
+ * parallel arrays sized for the maximum number of entries, the hash table is an open-addressing
+ * (linear probing) int array of entry indices, and the access order is a doubly linked list
+ * threaded through two int arrays.
+ *
+ * This class is NOT synchronized; callers must provide their own locking.
+ *
+ * @param <V> the type of the cached values
+ */
+public class LongLruCache<V> {
+    // Marks the end of the access order list, or an empty free list
+    private static final int NONE = -1;
+
+    private final int mMaxSize;
+
+    // Hash table of (entry index + 1); 0 marks an empty slot
+    private final int[] mTable;
+    private final int mMask;
+
+    // Entries
+    private final long[] mKeys;
+    private final Object[] mValues;
+    // Access order; mHead is the least recently used entry, mTail the most recently used one
+    private final int[] mPrev;
+    private final int[] mNext;
+    private int mHead = NONE;
+    private int mTail = NONE;
+    // Unused entries, linked through mNext
+    private int mFree;
+    private int mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mEvictionCount;
+
+    /**
+     * @param maxSize the maximum number of entries in the cache
+     */
+    public LongLruCache(int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        mMaxSize = maxSize;
+        // Keep the load factor at or below one half
+        int tableSize = Integer.highestOneBit(maxSize) << 2;
+        mTable = new int[tableSize];
+        mMask = tableSize - 1;
+        mKeys = new long[maxSize];
+        mValues = new Object[maxSize];
+        mPrev = new int[maxSize];
+        mNext = new int[maxSize];
+        initFreeList();
+    }
+
+    private void initFreeList() {
+        for (int i = 0; i < mMaxSize - 1; i++) {
+            mNext[i] = i + 1;
+        }
+        mNext[mMaxSize - 1] = NONE;
+        mFree = 0;
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, making it the most recently
+     * used entry, or null otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public final V get(long key) {
+        int entry = findEntry(key);
+        if (entry == NONE) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        moveToTail(entry);
+        return (V) mValues[entry];
+    }
+
+    /**
+     * Returns the value for {@code key} if it exists in the cache, or null otherwise, without
+     * changing the access order or the hit/miss statistics.
+     */
+    @SuppressWarnings("unchecked")
+    public final V peek(long key) {
+        int entry = findEntry(key);
+        return entry == NONE ? null : (V) mValues[entry];
+    }
+
+    /**
+     * Returns whether {@code key} is in the cache, without changing the access order or the
+     * hit/miss statistics.
+     */
+    public final boolean containsKey(long key) {
+        return findEntry(key) != NONE;
+    }
+
+    /**
+     * Caches {@code value} for {@code key}, making it the most recently used entry; if the cache
+     * is full, the least recently used entry is evicted first.
+     *
+     * @return the previous value mapped by {@code key}, or null
+     */
+    @SuppressWarnings("unchecked")
+    public final V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("value == null");
+        }
+        int entry = findEntry(key);
+        if (entry != NONE) {
+            V previous = (V) mValues[entry];
+            mValues[entry] = value;
+            moveToTail(entry);
+            entryRemoved(false, key, previous, value);
+            return previous;
+        }
+
+        if (mSize == mMaxSize) {
+            int eldest = mHead;
+            long eldestKey = mKeys[eldest];
+            V eldestValue = (V) mValues[eldest];
+            removeEntry(eldest);
+            mEvictionCount++;
+            entryRemoved(true, eldestKey, eldestValue, null);
+        }
+
+        entry = mFree;
+        mFree = mNext[entry];
+        mKeys[entry] = key;
+        mValues[entry] = value;
+        linkAtTail(entry);
+        mTable[emptySlotFor(key)] = entry + 1;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Removes the entry for {@code key} if it exists.
+     *
+     * @return the previous value mapped by {@code key}, or null
+     */
+    @SuppressWarnings("unchecked")
+    public final V remove(long key) {
+        int entry = findEntry(key);
+        if (entry == NONE) {
+            return null;
+        }
+        V previous = (V) mValues[entry];
+        removeEntry(entry);
+        entryRemoved(false, key, previous, null);
+        return previous;
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.
+     */
+    @SuppressWarnings("unchecked")
+    public final void evictAll() {
+        while (mHead != NONE) {
+            int eldest = mHead;
+            long eldestKey = mKeys[eldest];
+            V eldestValue = (V) mValues[eldest];
+            removeEntry(eldest);
+            mEvictionCount++;
+            entryRemoved(true, eldestKey, eldestValue, null);
+        }
+    }
+
+    /**
+     * Called for entries that have been evicted or removed, as with android.util.LruCache.
+     *
+     * @param evicted true if the entry is being removed to make space, or by evictAll(); false if
+     *     the removal was caused by a put() or remove().
+     * @param newValue the new value for {@code key}, if it exists. If non-null, this removal was
+     *     caused by a put(). Otherwise it was caused by an eviction or a remove().
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+    }
+
+    /**
+     * Copy the keys of the cache, from least to most recently used, into a new array (debugging
+     * only; this allocates).
+     */
+    public final long[] keys() {
+        long[] keys = new long[mSize];
+        int i = 0;
+        for (int entry = mHead; entry != NONE; entry = mNext[entry]) {
+            keys[i++] = mKeys[entry];
+        }
+        return keys;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache, ordered from least recently accessed
+     * to most recently accessed (debugging only; this allocates).
+     */
+    @SuppressWarnings("unchecked")
+    public final Map<Long, V> snapshot() {
+        Map<Long, V> snapshot = new LinkedHashMap<Long, V>(mSize);
+        for (int entry = mHead; entry != NONE; entry = mNext[entry]) {
+            snapshot.put(mKeys[entry], (V) mValues[entry]);
+        }
+        return snapshot;
+    }
+
+    public final int size() {
+        return mSize;
+    }
+
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    public final int hitCount() {
+        return mHitCount;
+    }
+
+    public final int missCount() {
+        return mMissCount;
+    }
+
+    public final int evictionCount() {
+        return mEvictionCount;
+    }
+
+    private int slotFor(long key) {
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mMask;
+    }
+
+    private int findEntry(long key) {
+        for (int slot = slotFor(key); ; slot = (slot + 1) & mMask) {
+            int entry = mTable[slot] - 1;
+            if (entry == NONE || mKeys[entry] == key) {
+                return entry;
+            }
+        }
+    }
+
+    private int findSlot(int entry) {
+        for (int slot = slotFor(mKeys[entry]); ; slot = (slot + 1) & mMask) {
+            if (mTable[slot] == entry + 1) {
+                return slot;
+            }
+        }
+    }
+
+    private int emptySlotFor(long key) {
+        int slot = slotFor(key);
+        while (mTable[slot] != 0) {
+            slot = (slot + 1) & mMask;
+        }
+        return slot;
+    }
+
+    /**
+     * Unlink an entry from the hash table and the access order, and return it to the free list
+     */
+    private void removeEntry(int entry) {
+        removeSlot(findSlot(entry));
+        unlink(entry);
+        mValues[entry] = null;
+        mNext[entry] = mFree;
+        mFree = entry;
+        mSize--;
+    }
+
+    /**
+     * Empty a slot of the hash table, shifting back the entries of the probe sequence that follows
+     * so that no tombstones are needed
+     */
+    private void removeSlot(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) & mMask;
+            int entry = mTable[next] - 1;
+            if (entry == NONE) {
+                break;
+            }
+            int home = slotFor(mKeys[entry]);
+            // The entry may stay if its home slot lies cyclically within (hole, next]
+            boolean stays = (hole <= next)
+                    ? (hole < home && home <= next)
+                    : (hole < home || home <= next);
+            if (!stays) {
+                mTable[hole] = entry + 1;
+                hole = next;
+            }
+        }
+        mTable[hole] = 0;
+    }
+
+    private void linkAtTail(int entry) {
+        mPrev[entry] = mTail;
+        mNext[entry] = NONE;
+        if (mTail != NONE) {
+            mNext[mTail] = entry;
+        } else {
+            mHead = entry;
+        }
+        mTail = entry;
+    }
+
+    private void unlink(int entry) {
+        int prev = mPrev[entry];
+        int next = mNext[entry];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mHead = next;
+        }
+        if (next != NONE) {
+            mPrev[next] = prev;
+        } else {
+            mTail = prev;
+        }
+    }
+
+    private void moveToTail(int entry) {
+        if (entry != mTail) {
+            unlink(entry);
+            linkAtTail(entry);
+        }
+    }
+
+    @Override
+    public final String toString() {
+        int accesses = mHitCount + mMissCount;
+        int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return String.format("LongLruCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                mMaxSize, mHitCount, mMissCount, hitPercent);
+    }
+}
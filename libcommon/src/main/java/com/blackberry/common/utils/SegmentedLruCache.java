@@ -0,0 +1,239 @@
+package com.blackberry.common.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A least recently used cache keyed by primitive longs (typically row ids), split into a fixed
+ * number of segments, each of them a separate {@link LongLruCache} guarded by its own monitor, so
+ * that threads working on keys of different segments don't contend.  The maximum size is divided
+ * evenly between the segments, and each segment evicts its own least recently used entry when it
+ * is full; the cache as a whole is therefore only approximately least recently used.  Like
+ * LongLruCache, it allocates nothing on get(), put() or remove().
+ *
+ * The get(), put() and remove() methods of the cache synchronize on the segment of the key.  To
+ * make several calls atomic, synchronize on {@link #segmentFor} and call the methods of the
+ * segment, which must only be called with its monitor held.
+ *
+ * Hits, misses and evictions are counted per segment, under the segment lock, so that counting
+ * doesn't make the segments contend either; entries removed by {@link #evictAll} count as an
+ * invalidation, not as evictions.
+ *
+ * @param <V> the type of the cached values
+ */
+public class SegmentedLruCache<V> {
+    /** The number of segments of a cache created without an explicit count */
+    public static final int DEFAULT_SEGMENT_COUNT = 8;
+
+    private final Segment<V>[] mSegments;
+    private final int mMaxSize;
+    // Guarded by mSegments
+    private int mInvalidationCount;
+
+    /**
+     * One segment of the cache; all of its methods must be called with its monitor held, and the
+     * whole cache is cleared with {@link SegmentedLruCache#evictAll}, not segment by segment
+     */
+    public static final class Segment<V> extends LongLruCache<V> {
+        private final SegmentedLruCache<V> mCache;
+        // Entries evicted to make space, as opposed to by SegmentedLruCache.evictAll()
+        private int mEvictionCount;
+        private boolean mClearing;
+
+        private Segment(SegmentedLruCache<V> cache, int maxSize) {
+            super(maxSize);
+            mCache = cache;
+        }
+
+        @Override
+        protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+            if (evicted && !mClearing) {
+                mEvictionCount++;
+            }
+            mCache.entryRemoved(evicted, key, oldValue, newValue);
+        }
+
+        private void clear() {
+            mClearing = true;
+            try {
+                evictAll();
+            } finally {
+                mClearing = false;
+            }
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of entries in the cache
+     */
+    public SegmentedLruCache(int maxSize) {
+        this(maxSize, DEFAULT_SEGMENT_COUNT);
+    }
+
+    /**
+     * @param maxSize the maximum number of entries in the cache, divided evenly between the
+     *     segments
+     * @param segmentCount the number of segments; must be a power of two
+     */
+    @SuppressWarnings("unchecked")
+    public SegmentedLruCache(int maxSize, int segmentCount) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentCount <= 0 || (segmentCount & (segmentCount - 1)) != 0) {
+            throw new IllegalArgumentException("segmentCount must be a power of two");
+        }
+        mMaxSize = maxSize;
+        int segmentSize = Math.max(1, (maxSize + segmentCount - 1) / segmentCount);
+        mSegments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            mSegments[i] = new Segment<V>(this, segmentSize);
+        }
+    }
+
+    /**
+     * Return the index of the segment responsible for {@code key}
+     */
+    public final int indexFor(long key) {
+        // Spread the bits of the key, as consecutive row ids differ only in their low bits; use
+        // the high bits of the product, as LongLruCache's table uses the low ones
+        int h = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+        return (h >>> 16) & (mSegments.length - 1);
+    }
+
+    /**
+     * Return the segment responsible for {@code key}; synchronize on it to call its methods
+     */
+    public final Segment<V> segmentFor(long key) {
+        return mSegments[indexFor(key)];
+    }
+
+    /**
+     * Return the segment with the given index, see {@link #indexFor}
+     */
+    public final Segment<V> segment(int index) {
+        return mSegments[index];
+    }
+
+    public final int segmentCount() {
+        return mSegments.length;
+    }
+
+    public final V get(long key) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public final V put(long key, V value) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.put(key, value);
+        }
+    }
+
+    public final V remove(long key) {
+        Segment<V> segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.remove(key);
+        }
+    }
+
+    /**
+     * Clear the cache, calling {@link #entryRemoved} on each removed entry.  The segments are
+     * cleared one at a time, never holding more than one segment lock.
+     */
+    public final void evictAll() {
+        synchronized (mSegments) {
+            mInvalidationCount++;
+        }
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * Called, with the segment lock held, for entries that have been evicted or removed, as with
+     * android.util.LruCache.
+     *
+     * @param evicted true if the entry is being removed to make space, or by evictAll(); false if
+     *     the removal was caused by a put() or remove().
+     * @param newValue the new value for {@code key}, if it exists. If non-null, this removal was
+     *     caused by a put(). Otherwise it was caused by an eviction or a remove().
+     */
+    protected void entryRemoved(boolean evicted, long key, V oldValue, V newValue) {
+    }
+
+    public final int size() {
+        int size = 0;
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public final int maxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Returns a copy of the current contents of the cache (debugging only)
+     */
+    public final Map<Long, V> snapshot() {
+        Map<Long, V> snapshot = new HashMap<Long, V>();
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                snapshot.putAll(segment.snapshot());
+            }
+        }
+        return snapshot;
+    }
+
+    public final int hitCount() {
+        int count = 0;
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                count += segment.hitCount();
+            }
+        }
+        return count;
+    }
+
+    public final int missCount() {
+        int count = 0;
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                count += segment.missCount();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of entries evicted to make space; entries removed by {@link #evictAll}
+     *     are not counted
+     */
+    public final int evictionCount() {
+        int count = 0;
+        for (Segment<V> segment: mSegments) {
+            synchronized (segment) {
+                count += segment.mEvictionCount;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of times the whole cache was cleared by {@link #evictAll}
+     */
+    public final int invalidationCount() {
+        synchronized (mSegments) {
+            return mInvalidationCount;
+        }
+    }
+}
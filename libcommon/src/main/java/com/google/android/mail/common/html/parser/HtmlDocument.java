@@ -1270,4 +1270,47 @@ public class HtmlDocument {
     }
   }
 
+  /**
+   * A Visitor that prints out the HTML of the nodes it visits, as toHTML()
+   * would for a document of these nodes, without keeping them.
+   */
+  public static class HtmlPrinter implements Visitor {
+
+    private final PrintWriter writer;
+    private final StringBuilder sb = new StringBuilder();
+
+    public HtmlPrinter(PrintWriter writer) {
+      this.writer = writer;
+    }
+
+    public void start() {
+    }
+
+    public void visitText(Text t) {
+      print(t);
+    }
+
+    public void visitComment(Comment n) {
+      print(n);
+    }
+
+    public void visitTag(Tag tag) {
+      print(tag);
+    }
+
+    public void visitEndTag(EndTag endtag) {
+      print(endtag);
+    }
+
+    private void print(Node n) {
+      n.toHTML(sb);
+      writer.append(sb);
+      sb.setLength(0);
+    }
+
+    public void finish() {
+      writer.flush();
+    }
+  }
+
 }
\ No newline at end of file
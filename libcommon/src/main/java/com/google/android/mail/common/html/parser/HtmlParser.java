@@ -25,6 +25,7 @@ import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -36,7 +37,8 @@ import java.util.regex.Pattern;
 /**
  * HtmlParser is a simple but efficient html parser.
  * - It's simple because it does not do incremental parsing like some other
- * parser. It assumes that the entire html text is available.
+ * parser. It assumes that the entire html text is available, except in
+ * streaming mode (see {@link #parse(Reader, HtmlDocument.Visitor)}).
  * - It offers 3 levels of aggressiveness in correcting errors in HTML (see
  * HtmlParser.ParseStyle).
  * - HTML comments are ignored unless initialized with ParseStyle.PRESERVE_ALL.
@@ -54,12 +56,47 @@ public class HtmlParser {
   private int clipLength = Integer.MAX_VALUE;
   private boolean clipped;
 
-  // The html text
+  // The html text, or in streaming mode the part of it being scanned
   private String html;
 
-  // The entire array of nodes
+  // The entire array of nodes; null in streaming mode
   private List<HtmlDocument.Node> nodes;
 
+  // In streaming mode, where nodes go instead of into the array of nodes
+  private HtmlDocument.Visitor visitor;
+
+  // In streaming mode, the text nodes not handed to the visitor yet, so that
+  // they can be coalesced like in coalesceTextNodes()
+  private final LinkedList<HtmlDocument.Text> pendingText = Lists.newLinkedList();
+  private int pendingTextLength;
+
+  // The position of html in the whole input
+  private long offset;
+
+  // False while html may be followed by more input
+  private boolean endOfInput;
+
+  // The STYLE or SCRIPT element whose content is being scanned in IN_CDATA
+  private HTML.Element cdataElement;
+
+  /**
+   * In streaming mode, the number of characters read from the input at a time.
+   */
+  private static final int READ_CHUNK_LENGTH = 8192;
+
+  /**
+   * In streaming mode, the maximum length of a tag, comment or STYLE/SCRIPT
+   * content the parser waits for the end of. A tag that isn't complete by then
+   * is treated as text and a comment ends at the first '>' in it, as when the
+   * input ends before them; longer STYLE/SCRIPT content is handed on in
+   * pieces. This, and the read chunk length, bound the memory the parser uses.
+   */
+  static final int MAX_PENDING_LENGTH = 64 * 1024;
+
+  // Returned by the scanners in streaming mode when the construct they scan
+  // may continue past the input read so far
+  private static final int NEED_MORE_INPUT = -1;
+
   // Turn on for debug information.
   private static boolean DEBUG = false;
 
@@ -190,35 +227,119 @@ public class HtmlParser {
     // time. This will be compacted into an ArrayList in coalesceTextNodes().
     nodes = Lists.newLinkedList();
     state = State.IN_TEXT;
+    offset = 0;
+    endOfInput = true;
+
+    clipped = false;
+    scan(0);
+
+    nodes = coalesceTextNodes(nodes);
+
+    HtmlDocument doc = new HtmlDocument(nodes);
+    nodes = null;
+    html = null;
+    return doc;
+  }
 
+  /**
+   * Parses HTML read from a Reader, handing the nodes to a visitor as they
+   * are parsed instead of building an HtmlDocument, so that huge documents
+   * can be parsed, sanitized and converted in bounded memory, e.g. into an
+   * {@link HtmlTreeBuilder#HtmlTreeBuilder(HtmlDocument.Visitor) HtmlTreeBuilder}
+   * feeding an {@link HtmlDocument.HtmlPrinter} or an
+   * {@link HtmlTree.PlainTextWriter}.
+   *
+   * The visitor is handed the nodes parse(String) would have put in the
+   * document, in the same order, except that text or STYLE/SCRIPT content
+   * longer than {@link #MAX_PENDING_LENGTH} may be split into several nodes,
+   * and that tags and comments longer than that are cut short as described
+   * there.
+   * Reading stops once the clip length is reached.
+   *
+   * @param in Reader to parse the HTML from; it is not closed
+   * @param visitor Visitor the nodes are handed to
+   */
+  public void parse(Reader in, HtmlDocument.Visitor visitor) throws IOException {
+    this.visitor = visitor;
+    html = "";
+    state = State.IN_TEXT;
+    offset = 0;
+    endOfInput = false;
     clipped = false;
+
+    try {
+      visitor.start();
+      char[] chunk = new char[READ_CHUNK_LENGTH];
+      int pos = 0;
+      while (!clipped && !endOfInput) {
+        int count = in.read(chunk);
+        if (count < 0) {
+          endOfInput = true;
+        } else {
+          // Keep only what hasn't been scanned yet
+          html = html.substring(pos).concat(new String(chunk, 0, count));
+          offset += pos;
+          pos = 0;
+        }
+        pos = scan(pos);
+      }
+      flushPendingText();
+      visitor.finish();
+    } finally {
+      this.visitor = null;
+      pendingText.clear();
+      pendingTextLength = 0;
+      html = null;
+    }
+  }
+
+  /**
+   * Scans html from {@code start} until its end, the clipping length, or in
+   * streaming mode a construct that may continue past the input read so far.
+   *
+   * @param start Position in html.
+   * @return End position of scanned content.
+   */
+  private int scan(final int start) {
     int end = html.length();
-    int clipEnd = Math.min(clipLength, end);
+    int clipEnd = (int) Math.min(clipLength - offset, end);
 
-    for (int i = 0; i < end && !clipped;) {
+    int i = start;
+    while (i < end && !clipped) {
 
       // At any one time, the parser is in one of these states:
       int pos;
       switch (state) {
         case IN_TEXT:
           // text will not attempt to parse beyond the clipping length
-          pos = scanText(i, clipEnd);
-          X.assertTrue(pos > i || state != State.IN_TEXT); // Must make progress.
+          pos = scanText(i, Math.min(clipEnd, safeTextEnd(i, end)));
+          if (pos == i && state == State.IN_TEXT) {
+            return i;                   // Wait for more input
+          }
           break;
 
         case IN_TAG:
           pos = scanTag(i, end);
+          if (pos == NEED_MORE_INPUT) {
+            return i;
+          }
           X.assertTrue(pos > i);        // Must make progress
           break;
 
         case IN_COMMENT:
           pos = scanComment(i, end);
+          if (pos == NEED_MORE_INPUT) {
+            return i;
+          }
           state = State.IN_TEXT;
           X.assertTrue(pos > i);        // Must make progress
           break;
 
         case IN_CDATA:
           pos = scanCDATA(i, end);
+          if (pos == NEED_MORE_INPUT) {
+            return i;
+          }
           X.assertTrue(pos > i || state != State.IN_CDATA); // Must make progress
           break;
 
@@ -229,15 +350,50 @@ public class HtmlParser {
       i = pos;
 
       // If we've reached or gone beyond the clipping length, stop.
-      clipped = pos >= clipLength;
+      clipped = offset + pos >= clipLength;
     }
+    return i;
+  }
 
-    nodes = coalesceTextNodes(nodes);
+  /**
+   * In streaming mode, whether a construct starting at {@code start} that
+   * doesn't end before {@code end} should be waited for.
+   */
+  private boolean mayWaitForInput(int start, int end) {
+    return !endOfInput && end - start < MAX_PENDING_LENGTH;
+  }
 
-    HtmlDocument doc = new HtmlDocument(nodes);
-    nodes = null;
-    html = null;
-    return doc;
+  /**
+   * Adds a node to the array of nodes, or in streaming mode hands it to the
+   * visitor. Text nodes are held back until the next other node, so that they
+   * can be coalesced first.
+   */
+  private void addNode(HtmlDocument.Node node) {
+    if (visitor == null) {
+      nodes.add(node);
+    } else if (node instanceof HtmlDocument.Text) {
+      HtmlDocument.Text text = (HtmlDocument.Text) node;
+      pendingText.add(text);
+      pendingTextLength += text.getText().length();
+      if (pendingTextLength >= MAX_PENDING_LENGTH) {
+        flushPendingText();
+      }
+    } else {
+      flushPendingText();
+      node.accept(visitor);
+    }
+  }
+
+  /**
+   * In streaming mode, hands the coalesced pending text nodes to the visitor.
+   */
+  private void flushPendingText() {
+    if (!pendingText.isEmpty()) {
+      List<HtmlDocument.Node> merged = new ArrayList<HtmlDocument.Node>(1);
+      mergeTextNodes(pendingText, merged);
+      pendingTextLength = 0;
+      merged.get(0).accept(visitor);
+    }
   }
 
   /**
@@ -305,6 +461,50 @@ public class HtmlParser {
   //------------------------------------------------------------------------
   // Text scanning
   //------------------------------------------------------------------------
+  /**
+   * The number of characters after a '<' that decide whether it starts a tag,
+   * a comment or neither.
+   */
+  private static final int TAG_START_LOOKAHEAD = 3;
+
+  /**
+   * The maximum length of an entity, including '&' and '#'; see
+   * TRUNCATED_ENTITY.
+   */
+  private static final int MAX_ENTITY_LENGTH = 10;
+
+  /**
+   * In streaming mode, finds how far text may be scanned before the end of the
+   * input read so far, which is short of the last character and of any '<' or
+   * entity that may continue past it.
+   * @param start Position in html.
+   * @param end End of html.
+   * @return Position in html.
+   */
+  private int safeTextEnd(final int start, final int end) {
+    if (endOfInput) {
+      return end;
+    }
+    int safeEnd = end - 1;
+    for (int pos = Math.max(start, end - 1 - TAG_START_LOOKAHEAD); pos < safeEnd; pos++) {
+      if (html.charAt(pos) == '<') {
+        safeEnd = pos;
+        break;
+      }
+    }
+    int limit = Math.max(start, safeEnd - MAX_ENTITY_LENGTH);
+    for (int pos = safeEnd - 1; pos >= limit; pos--) {
+      char ch = html.charAt(pos);
+      if (ch == '&') {
+        return pos;
+      }
+      if (ch != '#' && !Character.isLetterOrDigit(ch)) {
+        break;
+      }
+    }
+    return safeEnd;
+  }
+
   /**
    * A truncated entity is something like <pre>&nbs or &#1a3</pre>.
    * We only want to find these at the end of a clipped text.
@@ -342,7 +542,7 @@ public class HtmlParser {
       int finalPos = pos;
       String htmlTail = this.html.substring(start, finalPos);
 
-      if ((pos == clipLength) && (clipLength < html.length())) {
+      if ((offset + pos == clipLength) && (pos < html.length())) {
         // We're clipping this HTML, not running off the end.
         // If we're ending with what looks like a truncated entity,
         // then clip that part off, too.
@@ -374,7 +574,7 @@ public class HtmlParser {
         }
 
         HtmlDocument.Text textnode = HtmlDocument.createEscapedText(htmlTail, originalHtml);
-        nodes.add(textnode);
+        addNode(textnode);
       }
     }
     return pos;
@@ -670,7 +870,7 @@ public class HtmlParser {
       if (!isEndTag) {
         // This is not really a tag, treat the '<' as text.
         HtmlDocument.Text text = HtmlDocument.createText("<", preserveAll ? "<" : null);
-        nodes.add(text);
+        addNode(text);
         state = State.IN_TEXT;
         return nameStart;
       }
@@ -753,6 +953,10 @@ public class HtmlParser {
 
     // Cannot find the close tag, so we treat this as text
     if (pos == end) {
+      if (mayWaitForInput(start, end)) {
+        state = State.IN_TAG;
+        return NEED_MORE_INPUT;
+      }
       X.assertTrue(start < end);
       String textNodeContent = html.substring(start, end);
       String originalContent = null;
@@ -764,7 +968,7 @@ public class HtmlParser {
         originalContent =
             CharMatcher.is('<').replaceFrom(html.substring(start, end), "&lt;");
       }
-      nodes.add(HtmlDocument.createEscapedText(textNodeContent, originalContent));
+      addNode(HtmlDocument.createEscapedText(textNodeContent, originalContent));
       return end;
     }
 
@@ -782,6 +986,7 @@ public class HtmlParser {
         // CDATA state.
         if (HTML4.SCRIPT_ELEMENT.equals(element) || HTML4.STYLE_ELEMENT.equals(element)) {
           state = State.IN_CDATA;
+          cdataElement = element;
         }
 
         addStartTag(element, start, allAttributesStartPos,
@@ -858,7 +1063,7 @@ public class HtmlParser {
               beforeAttrs, afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs, afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else if (preserveValidHtml) {
       // This is the beginning of the tag up through the tag name. It should not
       // be possible for this to contain characters needing escaping, but we add
@@ -889,13 +1094,13 @@ public class HtmlParser {
               beforeAttrs.toString(), afterAttrs)
           : HtmlDocument.createTag(element, attributes,
               beforeAttrs.toString(), afterAttrs);
-      nodes.add(tag);
+      addNode(tag);
     } else {
       // Normalize.
       HtmlDocument.Tag tag = (isSingleTag)
           ? HtmlDocument.createSelfTerminatingTag(element, attributes)
           : HtmlDocument.createTag(element, attributes);
-      nodes.add(tag);
+      addNode(tag);
     }
   }
 
@@ -918,7 +1123,7 @@ public class HtmlParser {
       // Preserve all: keep actual content even if it's malformed.
       X.assertTrue(startPos < endPos);
       String content = html.substring(startPos, endPos);
-      nodes.add(HtmlDocument.createEndTag(element, content));
+      addNode(HtmlDocument.createEndTag(element, content));
     } else if (preserveValidHtml) {
       // Preserve valid: terminate the tag.
 
@@ -943,10 +1148,10 @@ public class HtmlParser {
       // Strip everything but leading whitespace.
       validContent.append(endOfTag.replaceAll("\\S+.*>", ">"));
 
-      nodes.add(HtmlDocument.createEndTag(element, validContent.toString()));
+      addNode(HtmlDocument.createEndTag(element, validContent.toString()));
     } else {
       // Normalize: ignore the original content.
-      nodes.add(HtmlDocument.createEndTag(element));
+      addNode(HtmlDocument.createEndTag(element));
     }
   }
 
@@ -1064,6 +1269,8 @@ public class HtmlParser {
     int pos = html.indexOf(END_COMMENT, start + START_COMMENT.length());
     if (pos != -1) {
       pos += END_COMMENT.length();
+    } else if (mayWaitForInput(start, end)) {
+      return NEED_MORE_INPUT;
     } else {
       // Look for '>'. If we can't find that, the rest of the text is comments.
       pos = html.indexOf('>', start + 4);
@@ -1075,7 +1282,7 @@ public class HtmlParser {
     }
 
     if (preserveAll) {
-      nodes.add(HtmlDocument.createHtmlComment(html.substring(start, pos)));
+      addNode(HtmlDocument.createHtmlComment(html.substring(start, pos)));
     }
 
     return pos;
@@ -1086,9 +1293,8 @@ public class HtmlParser {
   //------------------------------------------------------------------------
   int scanCDATA(final int start, final int end) {
 
-    // Get the tag: must be either STYLE or SCRIPT
-    HtmlDocument.Tag tag = (HtmlDocument.Tag) nodes.get(nodes.size() - 1);
-    HTML.Element element = tag.getElement();
+    // Get the element: must be either STYLE or SCRIPT
+    HTML.Element element = cdataElement;
     X.assertTrue(HTML4.SCRIPT_ELEMENT.equals(element) || HTML4.STYLE_ELEMENT.equals(element));
 
     int pos;
@@ -1102,11 +1308,23 @@ public class HtmlParser {
       }
     }
 
+    if (pos == end && !endOfInput) {
+      if (mayWaitForInput(start, end)) {
+        return NEED_MORE_INPUT;
+      }
+      // Hand on what can't be part of the end tag, bypassing coalescing so
+      // that the pieces stay CDATA.
+      pos = end - 2 - element.getName().length();
+      flushPendingText();
+      HtmlDocument.createCDATA(html.substring(start, pos)).accept(visitor);
+      return pos;
+    }
+
     // Add a CDATA node
     if (pos > start) {
       HtmlDocument.CDATA cdata =
         HtmlDocument.createCDATA(html.substring(start, pos));
-      nodes.add(cdata);
+      addNode(cdata);
     }
 
     state = State.IN_TAG;
@@ -21,6 +21,7 @@ import com.google.android.mail.common.base.X;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -653,6 +654,15 @@ public class HtmlTree {
       return sb.toString();
     }
 
+    /**
+     * Writes out the current text and removes it, which leaves the state for
+     * the text to come unchanged.
+     */
+    final void drainTo(PrintWriter writer) {
+      writer.append(sb);
+      sb.setLength(0);
+    }
+
     /**
      * Sets the next separator between two text nodes. A Space separator is
      * used if there is any whitespace between the two text nodes when there is
@@ -931,6 +941,70 @@ public class HtmlTree {
     public final String getPlainText() {
       return printer.getText();
     }
+
+    /**
+     * Writes out the plain text converted since the last call, which is then
+     * no longer part of getPlainText().
+     */
+    final void drainTo(PrintWriter writer) {
+      printer.drainTo(writer);
+    }
+  }
+
+  /**
+   * A Visitor that converts the nodes of a well-formed tree to plain text the
+   * same way {@link HtmlTree#getPlainText} does, and writes it out as it goes
+   * instead of keeping the nodes or the text. It must be fed by an
+   * {@link HtmlTreeBuilder#HtmlTreeBuilder(HtmlDocument.Visitor) HtmlTreeBuilder}.
+   */
+  public static class PlainTextWriter implements HtmlDocument.Visitor {
+
+    /** How much plain text is converted before it is written out */
+    private static final int WRITE_THRESHOLD = 4096;
+
+    private final PrintWriter writer;
+    private final DefaultPlainTextConverter converter = new DefaultPlainTextConverter();
+
+    public PlainTextWriter(PrintWriter writer) {
+      this.writer = writer;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void visitText(HtmlDocument.Text n) {
+      addNode(n);
+    }
+
+    @Override
+    public void visitTag(HtmlDocument.Tag n) {
+      addNode(n);
+    }
+
+    @Override
+    public void visitEndTag(HtmlDocument.EndTag n) {
+      addNode(n);
+    }
+
+    @Override
+    public void visitComment(HtmlDocument.Comment n) {
+    }
+
+    private void addNode(HtmlDocument.Node n) {
+      // DefaultPlainTextConverter doesn't use the node numbers
+      converter.addNode(n, -1, -1);
+      if (converter.getPlainTextLength() >= WRITE_THRESHOLD) {
+        converter.drainTo(writer);
+      }
+    }
+
+    @Override
+    public void finish() {
+      converter.drainTo(writer);
+      writer.flush();
+    }
   }
 
   //------------------------------------------------------------------------
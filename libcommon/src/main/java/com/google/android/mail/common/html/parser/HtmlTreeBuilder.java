@@ -28,6 +28,10 @@ import java.util.logging.Logger;
 /**
  * HtmlTreeBuilder builds a well-formed HtmlTree.
  *
+ * Alternatively, it hands the nodes of the well-formed tree on to another
+ * visitor as they are built, without keeping them, e.g. when fed by
+ * {@link HtmlParser#parse(java.io.Reader, HtmlDocument.Visitor)}.
+ *
  * @see HtmlTree
  * @author jlim@google.com (Jing Yee Lim)
  */
@@ -41,16 +45,36 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
   private HtmlTree tree;
   private boolean built = false;
 
+  /** The visitor the nodes are handed to instead of the tree, if any */
+  private final HtmlDocument.Visitor output;
+
+  /** Builds an HtmlTree */
+  public HtmlTreeBuilder() {
+    this(null);
+  }
+
+  /**
+   * Hands the nodes of the well-formed tree to {@code output} as they are
+   * built instead of building an HtmlTree.
+   */
+  public HtmlTreeBuilder(HtmlDocument.Visitor output) {
+    this.output = output;
+  }
+
   /** Gets the built html tree */
   public HtmlTree getTree() {
-    X.assertTrue(built);
+    X.assertTrue(built && output == null);
     return tree;
   }
 
   /** Implements HtmlDocument.Visitor.start */
   public void start() {
-    tree = new HtmlTree();
-    tree.start();
+    if (output != null) {
+      output.start();
+    } else {
+      tree = new HtmlTree();
+      tree.start();
+    }
   }
 
   /** Implements HtmlDocument.Visitor.finish */
@@ -60,7 +84,11 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
       addMissingEndTag();
     }
     tableFixer.finish();
-    tree.finish();
+    if (output != null) {
+      output.finish();
+    } else {
+      tree.finish();
+    }
 
     built = true;
   }
@@ -71,7 +99,7 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
     HTML.Element element = t.getElement();
     if (element.isEmpty()) {
-      tree.addSingularTag(t);
+      addSingularTag(t);
     } else if (t.isSelfTerminating()) {
       // Explicitly create a non-selfterminating open tag and add it to the tree
       // and also immediately add the corresponding close tag. This is done
@@ -79,14 +107,14 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
       // will be balanced consistently.
       // Otherwise there is a possibility of "<span /></span>" for example, if
       // the created tree is converted to string through toXHTML.
-      tree.addStartTag(HtmlDocument.createTag(element,
+      addStartTag(HtmlDocument.createTag(element,
           t.getAttributes(), t.getOriginalHtmlBeforeAttributes(),
           t.getOriginalHtmlAfterAttributes()));
       EndTag end = HtmlDocument.createEndTag(element);
       tableFixer.seeEndTag(end);
-      tree.addEndTag(end);
+      addEndTag(end);
     } else {
-      tree.addStartTag(t);
+      addStartTag(t);
       push(element);                       // Track the open tags
     }
   }
@@ -106,7 +134,7 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
       pop();
       tableFixer.seeEndTag(t);
-      tree.addEndTag(t);
+      addEndTag(t);
 
     } else {
       // Not found, ignore this end tag
@@ -117,7 +145,11 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
   /** Implements HtmlDocument.Visitor.visitText */
   public void visitText(HtmlDocument.Text t) {
     tableFixer.seeText(t);
-    tree.addText(t);
+    if (output != null) {
+      output.visitText(t);
+    } else {
+      tree.addText(t);
+    }
   }
 
   /** Implements HtmlDocument.Visitor.visitComment */
@@ -145,7 +177,34 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
     HtmlDocument.EndTag endTag = HtmlDocument.createEndTag(element);
     tableFixer.seeEndTag(endTag);
-    tree.addEndTag(endTag);
+    addEndTag(endTag);
+  }
+
+  /** Adds a start tag to the tree, or hands it to the output */
+  private void addStartTag(HtmlDocument.Tag t) {
+    if (output != null) {
+      output.visitTag(t);
+    } else {
+      tree.addStartTag(t);
+    }
+  }
+
+  /** Adds a tag without end tag to the tree, or hands it to the output */
+  private void addSingularTag(HtmlDocument.Tag t) {
+    if (output != null) {
+      output.visitTag(t);
+    } else {
+      tree.addSingularTag(t);
+    }
+  }
+
+  /** Adds an end tag to the tree, or hands it to the output */
+  private void addEndTag(HtmlDocument.EndTag t) {
+    if (output != null) {
+      output.visitEndTag(t);
+    } else {
+      tree.addEndTag(t);
+    }
   }
 
   /** Pushes a tag onto the stack */
@@ -272,7 +331,7 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
 
         HtmlDocument.Tag tableTag =
           HtmlDocument.createTag(HTML4.TABLE_ELEMENT, null);
-        tree.addStartTag(tableTag);
+        addStartTag(tableTag);
 
         tables++;
       }
@@ -284,7 +343,7 @@ public class HtmlTreeBuilder implements HtmlDocument.Visitor {
         push(HTML4.TD_ELEMENT);
 
         HtmlDocument.Tag tdTag = HtmlDocument.createTag(HTML4.TD_ELEMENT, null);
-        tree.addStartTag(tdTag);
+        addStartTag(tdTag);
 
         state = IN_CELL;
       }
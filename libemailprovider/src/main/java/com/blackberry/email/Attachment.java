@@ -36,13 +36,13 @@ import com.blackberry.email.provider.UIProvider.AttachmentDestination;
 import com.blackberry.email.provider.UIProvider.AttachmentRendition;
 import com.blackberry.email.provider.UIProvider.AttachmentState;
 import com.blackberry.email.provider.UIProvider.AttachmentType;
+import com.blackberry.email.utils.AttachmentUtilities;
 import com.blackberry.email.utils.MimeType;
 import com.blackberry.email.utils.Utility;
 import com.blackberry.common.utils.LogTag;
 import com.blackberry.common.utils.LogUtils;
 import com.google.common.collect.Lists;
 
-import org.apache.commons.io.IOUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -266,10 +266,8 @@ public class Attachment implements Parcelable {
             try {
                 final InputStream in = part.getBody().getInputStream();
                 final OutputStream out = resolver.openOutputStream(uri, "rwt");
-                size = IOUtils.copy(in, out);
+                size = (int) AttachmentUtilities.copyFile(in, out);
                 downloadedSize = size;
-                in.close();
-                out.close();
             } catch (FileNotFoundException e) {
                 LogUtils.e(LOG_TAG, e, "Error in writing attachment to cache");
             } catch (IOException e) {
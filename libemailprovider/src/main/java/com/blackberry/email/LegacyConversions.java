@@ -22,9 +22,6 @@ import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
 
-
-import org.apache.commons.io.IOUtils;
-
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -313,9 +310,7 @@ public class LegacyConversions {
                     attachmentId);
             saveAs.createNewFile();
             FileOutputStream out = new FileOutputStream(saveAs);
-            long copySize = IOUtils.copy(in, out);
-            in.close();
-            out.close();
+            long copySize = AttachmentUtilities.copyFile(in, out);
 
             // update the attachment with the extra information we now know
             String contentUriString = AttachmentUtilities.getAttachmentUri(
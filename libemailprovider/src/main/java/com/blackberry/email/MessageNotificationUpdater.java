@@ -0,0 +1,198 @@
+package com.blackberry.email;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.blackberry.common.utils.LogUtils;
+import com.blackberry.email.provider.EmailProvider;
+import com.blackberry.email.provider.UIProvider;
+import com.blackberry.email.provider.contract.EmailContent;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * Turns the changes {@link NotificationController}'s message observers see into new mail
+ * notification requests.
+ * <p>
+ * A sync writes messages one operation after another, and every write fires the observer of
+ * every account. Instead of querying on each of them, the changes are debounced: the accounts
+ * are refreshed {@link #DEBOUNCE_MILLIS} after the last change, but no later than
+ * {@link #MAX_DELAY_MILLIS} after the first one, so that a long sync still notifies as it goes.
+ * Each refresh of an account is a single query, returning the folder of each of its mailboxes
+ * along with their unread and unseen counts and the id of their newest message, and only the
+ * mailboxes where any of these differ from what was last notified are notified again: the counts
+ * alone can stay the same while new mail arrives, e.g. as much as was read meanwhile. The
+ * account itself is only queried when one of its mailboxes is notified, and then kept until
+ * {@link #onAccountsChanged}.
+ * <p>
+ * All methods must be called on the handler's thread.
+ */
+class MessageNotificationUpdater {
+    private static final String LOG_TAG = NotificationController.LOG_TAG;
+
+    /** How long a refresh waits for more changes */
+    static final long DEBOUNCE_MILLIS = 500;
+    /** How long a refresh may be put off by more changes */
+    static final long MAX_DELAY_MILLIS = 2000;
+
+    private final Context mContext;
+    private final Handler mHandler;
+
+    // The accounts to refresh, in the order they changed
+    private final LinkedHashSet<Long> mPendingAccounts = new LinkedHashSet<Long>();
+    private long mFirstChangeTime;
+    // Accounts by id, as passed along with their notifications
+    private final HashMap<Long, Account> mAccounts = new HashMap<Long, Account>();
+    // What was last notified by mailbox id, by account id: the unread count in the upper 32 bits
+    // and the unseen count in the lower ones of the first element, the id of the newest message in
+    // the second
+    private final HashMap<Long, HashMap<Long, long[]>> mNotifiedCounts =
+            new HashMap<Long, HashMap<Long, long[]>>();
+
+    // Statistics of the current refresh
+    private int mChangeCount;
+    private int mQueryCount;
+    private int mNotificationCount;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+
+    MessageNotificationUpdater(Context context, Handler handler) {
+        mContext = context;
+        mHandler = handler;
+    }
+
+    /**
+     * Refresh the notifications of an account once its messages stop changing
+     */
+    void onMessagesChanged(long accountId) {
+        final long now = SystemClock.uptimeMillis();
+        if (mPendingAccounts.isEmpty()) {
+            mFirstChangeTime = now;
+        }
+        mPendingAccounts.add(accountId);
+        mChangeCount++;
+        mHandler.removeCallbacks(mRefresh);
+        mHandler.postAtTime(mRefresh,
+                Math.min(now + DEBOUNCE_MILLIS, mFirstChangeTime + MAX_DELAY_MILLIS));
+    }
+
+    /**
+     * Drop the cached accounts, e.g. because their settings changed
+     */
+    void onAccountsChanged() {
+        mAccounts.clear();
+    }
+
+    /**
+     * Forget everything about an account that is no longer watched
+     */
+    void forgetAccount(long accountId) {
+        mPendingAccounts.remove(accountId);
+        mAccounts.remove(accountId);
+        mNotifiedCounts.remove(accountId);
+    }
+
+    private void refresh() {
+        final Long[] accountIds = mPendingAccounts.toArray(new Long[mPendingAccounts.size()]);
+        mPendingAccounts.clear();
+        mQueryCount = 0;
+        mNotificationCount = 0;
+        for (Long accountId : accountIds) {
+            refresh(accountId);
+        }
+        LogUtils.d(LOG_TAG, "Refreshed %d accounts after %d changes with %d queries, "
+                + "%d notifications", accountIds.length, mChangeCount, mQueryCount,
+                mNotificationCount);
+        mChangeCount = 0;
+    }
+
+    private void refresh(long accountId) {
+        final Cursor c = mContext.getContentResolver().query(ContentUris.withAppendedId(
+                EmailContent.MAILBOX_NOTIFICATION_FOLDERS_URI, accountId), null, null, null, null);
+        mQueryCount++;
+        if (c == null) {
+            LogUtils.e(LOG_TAG, "Null notification folder cursor for account %d", accountId);
+            return;
+        }
+        final HashMap<Long, long[]> previous = mNotifiedCounts.get(accountId);
+        final HashMap<Long, long[]> current = new HashMap<Long, long[]>();
+        try {
+            while (c.moveToNext()) {
+                final long mailboxId = c.getLong(UIProvider.FOLDER_ID_COLUMN);
+                final int unreadCount =
+                        c.getInt(EmailContent.NOTIFICATION_FOLDER_UNREAD_COUNT_COLUMN);
+                final int unseenCount =
+                        c.getInt(EmailContent.NOTIFICATION_FOLDER_UNSEEN_COUNT_COLUMN);
+                final long[] counts = new long[] {
+                        ((long) unreadCount << 32) | (unseenCount & 0xffffffffL),
+                        c.getLong(EmailContent.NOTIFICATION_FOLDER_LATEST_MESSAGE_ID_COLUMN)
+                };
+                current.put(mailboxId, counts);
+                if (previous != null && Arrays.equals(counts, previous.get(mailboxId))) {
+                    continue;
+                }
+                final Account account = getAccount(accountId);
+                if (account == null) {
+                    LogUtils.d(LOG_TAG, "Tried to create a notification for a missing account %d",
+                            accountId);
+                    return;
+                }
+                sendNotification(account, new Folder(c), unreadCount, unseenCount);
+            }
+        } finally {
+            c.close();
+        }
+        mNotifiedCounts.put(accountId, current);
+    }
+
+    private Account getAccount(long accountId) {
+        Account account = mAccounts.get(accountId);
+        if (account != null) {
+            return account;
+        }
+        final Cursor c = mContext.getContentResolver().query(
+                EmailProvider.uiUri("uiaccount", accountId), UIProvider.ACCOUNTS_PROJECTION,
+                null, null, null);
+        mQueryCount++;
+        if (c == null) {
+            LogUtils.e(LOG_TAG, "Null account cursor for mAccountId %d", accountId);
+            return null;
+        }
+        try {
+            if (c.moveToFirst()) {
+                account = new Account(c);
+                mAccounts.put(accountId, account);
+            }
+        } finally {
+            c.close();
+        }
+        return account;
+    }
+
+    private void sendNotification(Account account, Folder folder, int unreadCount,
+            int unseenCount) {
+        LogUtils.d(LOG_TAG, "Changes to account " + account.name + ", folder: "
+                + folder.name + ", unreadCount: " + unreadCount + ", unseenCount: "
+                + unseenCount);
+        final Intent intent = new Intent();
+        intent.setAction(NotificationController.ADD_EMAIL_NOT);
+        intent.putExtra("extra.unreadcount", unreadCount);
+        intent.putExtra("extra.unseencount", unseenCount);
+        intent.putExtra("extra.account", account);
+        intent.putExtra("extra.folder", folder);
+        intent.putExtra("extra.show", folder);
+        mContext.startService(intent);
+        mNotificationCount++;
+    }
+}
@@ -23,7 +23,6 @@ import android.app.ActivityManager;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
 import android.database.ContentObserver;
@@ -96,6 +95,8 @@ public class NotificationController {
     protected final Map<Long, ContentObserver> mNotificationMap =
             new HashMap<Long, ContentObserver>();
     protected ContentObserver mAccountObserver;
+    /** Turns the changes the message observers see into notifications */
+    protected MessageNotificationUpdater mMessageNotificationUpdater;
 
     /** Constructor */
     protected NotificationController(Context context, Clock clock) {
@@ -255,7 +256,7 @@ public class NotificationController {
             if (obs != null) return;  // we're already observing; nothing to do
             LogUtils.i(LOG_TAG, "Registering for notifications for account " + accountId);
             ContentObserver observer = new MessageContentObserver(
-                    sNotificationHandler, mContext, accountId);
+                    sNotificationHandler, getMessageNotificationUpdater(), accountId);
             resolver.registerContentObserver(Message.NOTIFIER_URI, true, observer);
             mNotificationMap.put(accountId, observer);
             // Now, ping the observer for any initial notifications
@@ -276,8 +277,9 @@ public class NotificationController {
         if (accountId == Account.ACCOUNT_ID_COMBINED_VIEW) {
             LogUtils.i(LOG_TAG, "Unregistering notifications for all accounts");
             // cancel all existing message observers
-            for (ContentObserver observer : mNotificationMap.values()) {
-                resolver.unregisterContentObserver(observer);
+            for (Map.Entry<Long, ContentObserver> entry : mNotificationMap.entrySet()) {
+                resolver.unregisterContentObserver(entry.getValue());
+                getMessageNotificationUpdater().forgetAccount(entry.getKey());
             }
             mNotificationMap.clear();
         } else {
@@ -286,9 +288,21 @@ public class NotificationController {
             if (observer != null) {
                 resolver.unregisterContentObserver(observer);
             }
+            getMessageNotificationUpdater().forgetAccount(accountId);
         }
     }
 
+    /**
+     * NOTE: This must be called on the notification handler thread.
+     */
+    protected MessageNotificationUpdater getMessageNotificationUpdater() {
+        if (mMessageNotificationUpdater == null) {
+            mMessageNotificationUpdater =
+                    new MessageNotificationUpdater(mContext, sNotificationHandler);
+        }
+        return mMessageNotificationUpdater;
+    }
+
     public static final String EXTRA_ACCOUNT = "account";
     public static final String EXTRA_CONVERSATION = "conversationUri";
     public static final String EXTRA_FOLDER = "folder";
@@ -611,101 +625,20 @@ public class NotificationController {
      * Observer invoked whenever a message we're notifying the user about changes.
      */
     protected static class MessageContentObserver extends ContentObserver {
-        private final Context mContext;
+        private final MessageNotificationUpdater mUpdater;
         private final long mAccountId;
 
-        public MessageContentObserver(
-                final Handler handler, final Context context, final long accountId) {
+        public MessageContentObserver(final Handler handler,
+                final MessageNotificationUpdater updater, final long accountId) {
             super(handler);
-            mContext = context;
+            mUpdater = updater;
             mAccountId = accountId;
         }
 
         @Override
         public void onChange(final boolean selfChange) {
-            final ContentResolver contentResolver = mContext.getContentResolver();
-
-            final Cursor accountCursor = contentResolver.query(
-                    EmailProvider.uiUri("uiaccount", mAccountId), UIProvider.ACCOUNTS_PROJECTION,
-                    null, null, null);
-
-            if (accountCursor == null) {
-                LogUtils.e(LOG_TAG, "Null account cursor for mAccountId %d", mAccountId);
-                return;
-            }
-
-            com.blackberry.email.Account account = null;
-            try {
-                if (accountCursor.moveToFirst()) {
-                    account = new com.blackberry.email.Account(accountCursor);
-                }
-            } finally {
-                accountCursor.close();
-            }
-
-            if (account == null) {
-                LogUtils.d(LOG_TAG, "Tried to create a notification for a missing account %d",
-                        mAccountId);
-                return;
-            }
-
-            final Cursor mailboxCursor = contentResolver.query(
-                    ContentUris.withAppendedId(EmailContent.MAILBOX_NOTIFICATION_URI, mAccountId),
-                    null, null, null, null);
-            try {
-                while (mailboxCursor.moveToNext()) {
-                    final long mailboxId =
-                            mailboxCursor.getLong(EmailContent.NOTIFICATION_MAILBOX_ID_COLUMN);
-                    if (mailboxId == 0) continue;
-
-                    final int unreadCount = mailboxCursor.getInt(
-                            EmailContent.NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN);
-                    final int unseenCount = mailboxCursor.getInt(
-                            EmailContent.NOTIFICATION_MAILBOX_UNSEEN_COUNT_COLUMN);
-
-                    final Cursor folderCursor = contentResolver.query(
-                            EmailProvider.uiUri("uifolder", mailboxId),
-                            UIProvider.FOLDERS_PROJECTION, null, null, null);
-
-                    if (folderCursor == null) {
-                        LogUtils.e(LOG_TAG, "Null folder cursor for account %d, mailbox %d",
-                                mAccountId, mailboxId);
-                        continue;
-                    }
-
-                    Folder folder = null;
-                    try {
-                        if (folderCursor.moveToFirst()) {
-                            folder = new Folder(folderCursor);
-                        } else {
-                            LogUtils.e(LOG_TAG, "Empty folder cursor for account %d, mailbox %d",
-                                    mAccountId, mailboxId);
-                            continue;
-                        }
-                    } finally {
-                        folderCursor.close();
-                    }
-
-                    LogUtils.d(LOG_TAG, "Changes to account " + account.name + ", folder: "
-                            + folder.name + ", unreadCount: " + unreadCount + ", unseenCount: "
-                            + unseenCount);
-
-                    //will just fire intent 
-                    Intent createFullNoficationIntent = new Intent();
-                    createFullNoficationIntent.setAction(ADD_EMAIL_NOT);
-                    createFullNoficationIntent.putExtra("extra.unreadcount", unreadCount);
-                    createFullNoficationIntent.putExtra("extra.unseencount", unseenCount);
-                    createFullNoficationIntent.putExtra("extra.account", account);
-                    createFullNoficationIntent.putExtra("extra.folder", folder);
-                    createFullNoficationIntent.putExtra("extra.show", folder);
-                    
-                    mContext.startService(createFullNoficationIntent);
-   //                 NotificationUtils.setNewEmailIndicator(mContext, unreadCount, unseenCount,
-   //                         account, folder, true);
-                }
-            } finally {
-                mailboxCursor.close();
-            }
+            // Runs on the notification handler thread, as every message written fires it
+            mUpdater.onMessagesChanged(mAccountId);
         }
     }
 
@@ -757,6 +690,8 @@ public class NotificationController {
             for (final long accountId : removedAccountList) {
                 sInstance.unregisterMessageNotification(accountId);
             }
+            // The notification settings may have changed
+            sInstance.getMessageNotificationUpdater().onAccountsChanged();
 
             //.resendNotifications(mContext, false, null, null);
         }
@@ -21,13 +21,14 @@ import com.blackberry.email.mail.Body;
 import com.blackberry.email.mail.MessagingException;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.MappedTempStorage;
+import org.apache.james.mime4j.util.MappedTempStorage.MappedTempFile;
 
 import android.util.Base64;
 import android.util.Base64OutputStream;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,9 +39,29 @@ import java.io.OutputStream;
  * the user to write to the temp file. After the write the body is available via getInputStream
  * and writeTo one time. After writeTo is called, or the InputStream returned from
  * getInputStream is closed the file is deleted and the Body should be considered disposed of.
+ * <p>
+ * Bodies written through getOutputStream are kept by a {@link MappedTempStorage}: small ones on
+ * the heap, large ones in memory-mapped segments which are recycled when the body is disposed of
+ * (or garbage collected without having been). The InputStream of such a body can hand its
+ * contents to a file channel without copying them through the heap (see
+ * AttachmentUtilities.copyFile).
  */
 public class BinaryTempFileBody implements Body {
+    /** The directory of the temp storage, in the temp directory */
+    private static final String SEGMENT_DIRECTORY = "body-segments";
+
+    private static MappedTempStorage sTempStorage;
+
     private File mFile;
+    private MappedTempFile mTempFile;
+
+    private static synchronized MappedTempStorage getTempStorage() {
+        if (sTempStorage == null) {
+            sTempStorage = new MappedTempStorage(
+                    new File(TempDirectory.getTempDirectory(), SEGMENT_DIRECTORY));
+        }
+        return sTempStorage;
+    }
 
     /**
      * An alternate way to put data into a BinaryTempFileBody is to simply supply an already-
@@ -49,17 +70,21 @@ public class BinaryTempFileBody implements Body {
      */
     public void setFile(String filePath) {
         mFile = new File(filePath);
+        mTempFile = null;
     }
 
     public OutputStream getOutputStream() throws IOException {
-        mFile = File.createTempFile("body", null, TempDirectory.getTempDirectory());
-        mFile.deleteOnExit();
-        return new FileOutputStream(mFile);
+        mFile = null;
+        mTempFile = getTempStorage().createTempFile();
+        return mTempFile.getOutputStream();
     }
 
     @Override
     public InputStream getInputStream() throws MessagingException {
         try {
+            if (mTempFile != null) {
+                return mTempFile.getInputStream(true);
+            }
             return new BinaryTempFileBodyInputStream(new FileInputStream(mFile));
         }
         catch (IOException ioe) {
@@ -74,7 +99,8 @@ public class BinaryTempFileBody implements Body {
             out, Base64.CRLF | Base64.NO_CLOSE);
         IOUtils.copy(in, base64Out);
         base64Out.close();
-        mFile.delete();
+        // Deletes the file
+        in.close();
     }
 
     class BinaryTempFileBodyInputStream extends FilterInputStream {
@@ -17,9 +17,6 @@
 package com.blackberry.email.internet;
 
 import android.text.TextUtils;
-import android.util.Base64;
-import android.util.Base64DataException;
-import android.util.Base64InputStream;
 import android.util.Log;
 
 import com.blackberry.email.mail.Body;
@@ -31,6 +28,7 @@ import com.blackberry.email.mail.Part;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.james.mime4j.codec.EncoderUtil;
+import org.apache.james.mime4j.decoder.Base64InputStream;
 import org.apache.james.mime4j.decoder.DecoderUtil;
 import org.apache.james.mime4j.decoder.QuotedPrintableInputStream;
 import org.apache.james.mime4j.util.CharsetUtil;
@@ -364,7 +362,7 @@ public class MimeUtility {
                 in = new QuotedPrintableInputStream(in);
             }
             else if ("base64".equalsIgnoreCase(contentTransferEncoding)) {
-                in = new Base64InputStream(in, Base64.DEFAULT);
+                in = new Base64InputStream(in);
             }
         }
         return in;
@@ -383,10 +381,6 @@ public class MimeUtility {
         OutputStream out = tempBody.getOutputStream();
         try {
             IOUtils.copy(in, out);
-        } catch (Base64DataException bde) {
-            // TODO Need to fix this somehow
-            //String warning = "\n\n" + Email.getMessageDecodeErrorString();
-            //out.write(warning.getBytes());
         } finally {
             out.close();
         }
@@ -16,7 +16,8 @@
 
 package com.blackberry.email.mail;
 
-import java.util.HashMap;
+import java.nio.CharBuffer;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -26,6 +27,13 @@ import java.util.Map;
  * strings only, so please use base64 or other encoding if you need to hide any binary data here.
  *
  * Binary compatible with Address.pack() format, which should migrate to use this code.
+ *
+ * Values are looked up by scanning the packed string in place, so reading a value allocates
+ * nothing but the value itself (and nothing at all with {@link #getSequence}); there is no
+ * intermediate map of every tag.  Packed strings are short, so a scan is cheaper than building
+ * the map, even when several values of the same string are read.  The one exception is a
+ * positional tag looked up in a string that has untagged values: their positions depend on the
+ * tags before them (see {@link #explode}), so the values are read out into a map for that.
  */
 public class PackedString {
 
@@ -33,13 +41,17 @@ public class PackedString {
      * Packing format is:
      *   element : [ value ] or [ value TAG-DELIMITER tag ]
      *   packed-string : [ element ] [ ELEMENT-DELIMITER [ element ] ]*
+     *
+     * An element without a tag is given a positional tag: the number of distinct tags before it.
      */
     private static final char DELIMITER_ELEMENT = '\1';
     private static final char DELIMITER_TAG = '\2';
 
+    private static final int NOT_FOUND = -1;
+    // Returned by findElement when the tag may be the positional tag of an untagged value
+    private static final int POSITIONAL = -2;
+
     private String mString;
-    private HashMap<String, String> mExploded;
-    private static final HashMap<String, String> EMPTY_MAP = new HashMap<String, String>();
 
     /**
      * Create a packed string using an already-packed string (e.g. from database)
@@ -47,7 +59,6 @@ public class PackedString {
      */
     public PackedString(String string) {
         mString = string;
-        mExploded = null;
     }
 
     /**
@@ -56,10 +67,26 @@ public class PackedString {
      * @return returns value, or null if no string is found
      */
     public String get(String tag) {
-        if (mExploded == null) {
-            mExploded = explode(mString);
+        return get(mString, tag);
+    }
+
+    /**
+     * Get the value referred to by a given tag, without copying it out of the packed string.
+     * If the tag does not exist, return null.
+     * @param tag identifier of string of interest
+     * @return returns a read-only view of the value, or null if no string is found
+     */
+    public CharSequence getSequence(String tag) {
+        if (mString == null) {
+            return null;
+        }
+        final int element = findElement(mString, tag);
+        if (element == NOT_FOUND) {
+            return null;
+        } else if (element == POSITIONAL) {
+            return explode(mString).get(tag);
         }
-        return mExploded.get(tag);
+        return CharBuffer.wrap(mString, element, valueEnd(mString, element));
     }
 
     /**
@@ -68,70 +95,180 @@ public class PackedString {
      * @return a map of the values in the packed string
      */
     public Map<String, String> unpack() {
-        if (mExploded == null) {
-            mExploded = explode(mString);
+        return explode(mString);
+    }
+
+    /**
+     * Get the value referred to by a given tag in a packed string, without creating a
+     * PackedString (e.g. when binding many rows).  If the tag does not exist, return null.
+     * @param packed packed string
+     * @param tag identifier of string of interest
+     * @return returns value, or null if no string is found
+     */
+    public static String get(CharSequence packed, String tag) {
+        if (packed == null) {
+            return null;
+        }
+        final int element = findElement(packed, tag);
+        if (element == NOT_FOUND) {
+            return null;
+        } else if (element == POSITIONAL) {
+            return explode(packed.toString()).get(tag);
         }
-        return new HashMap<String,String>(mExploded);
+        return packed.subSequence(element, valueEnd(packed, element)).toString();
     }
 
     /**
-     * Read out all values into a map.
+     * Read out all values into a map, in the order their tags first appear.  An untagged value
+     * is tagged with the size of the map so far, so a later value with the same tag replaces it.
      */
-    private static HashMap<String, String> explode(String packed) {
-        if (packed == null || packed.length() == 0) {
-            return EMPTY_MAP;
+    private static LinkedHashMap<String, String> explode(String packed) {
+        final LinkedHashMap<String, String> map = new LinkedHashMap<String, String>();
+        if (packed == null) {
+            return map;
         }
-        HashMap<String, String> map = new HashMap<String, String>();
+        final int length = packed.length();
+        int elementStart = 0;
+        while (elementStart < length) {
+            final int elementEnd = elementEnd(packed, elementStart);
+            final int valueEnd = indexOf(packed, DELIMITER_TAG, elementStart, elementEnd);
+            if (valueEnd == NOT_FOUND) {
+                // No tag; synthesize a positional tag for the value
+                map.put(Integer.toString(map.size()), packed.substring(elementStart, elementEnd));
+            } else {
+                map.put(packed.substring(valueEnd + 1, elementEnd),
+                        packed.substring(elementStart, valueEnd));
+            }
+            elementStart = elementEnd + 1;
+        }
+        return map;
+    }
 
-        int length = packed.length();
-        int elementStartIndex = 0;
-        int elementEndIndex = 0;
-        int tagEndIndex = packed.indexOf(DELIMITER_TAG);
+    /**
+     * Find the element holding a tag.  If the tag appears more than once, the last occurrence
+     * wins, as it does when the values are read out into a map.
+     * @return the start of the element, i.e. of its value, NOT_FOUND, or POSITIONAL if the tag
+     *     is a positional one and there are untagged values, which only {@link #explode} tags
+     */
+    private static int findElement(CharSequence packed, String tag) {
+        final int length = packed.length();
+        final boolean positional = isPositional(tag);
+        int found = NOT_FOUND;
+        int elementStart = 0;
+        while (elementStart < length) {
+            final int elementEnd = elementEnd(packed, elementStart);
+            final int valueEnd = indexOf(packed, DELIMITER_TAG, elementStart, elementEnd);
+            if (valueEnd == NOT_FOUND) {
+                if (positional) {
+                    return POSITIONAL;
+                }
+            } else if (regionEquals(packed, valueEnd + 1, elementEnd, tag)) {
+                found = elementStart;
+            }
+            elementStart = elementEnd + 1;
+        }
+        return found;
+    }
+
+    /**
+     * @return the end of the value of the element starting at elementStart
+     */
+    private static int valueEnd(CharSequence packed, int elementStart) {
+        final int elementEnd = elementEnd(packed, elementStart);
+        final int valueEnd = indexOf(packed, DELIMITER_TAG, elementStart, elementEnd);
+        return valueEnd == NOT_FOUND ? elementEnd : valueEnd;
+    }
 
-        while (elementStartIndex < length) {
-            elementEndIndex = packed.indexOf(DELIMITER_ELEMENT, elementStartIndex);
-            if (elementEndIndex == -1) {
-                elementEndIndex = length;
+    /**
+     * @return the end of the element starting at elementStart, i.e. the position of the next
+     *     element delimiter or the end of the packed string
+     */
+    private static int elementEnd(CharSequence packed, int elementStart) {
+        final int length = packed.length();
+        final int elementEnd = indexOf(packed, DELIMITER_ELEMENT, elementStart, length);
+        return elementEnd == NOT_FOUND ? length : elementEnd;
+    }
+
+    private static int indexOf(CharSequence s, char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) == c) {
+                return i;
             }
-            String tag;
-            String value;
-            if (tagEndIndex == -1 || elementEndIndex <= tagEndIndex) {
-                // in this case the DELIMITER_PERSONAL is in a future pair (or not found)
-                // so synthesize a positional tag for the value, and don't update tagEndIndex
-                value = packed.substring(elementStartIndex, elementEndIndex);
-                tag = Integer.toString(map.size());
-            } else {
-                value = packed.substring(elementStartIndex, tagEndIndex);
-                tag = packed.substring(tagEndIndex + 1, elementEndIndex);
-                // scan forward for next tag, if any
-                tagEndIndex = packed.indexOf(DELIMITER_TAG, elementEndIndex + 1);
+        }
+        return NOT_FOUND;
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String other) {
+        if (end - start != other.length()) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (s.charAt(i) != other.charAt(i - start)) {
+                return false;
             }
-            map.put(tag, value);
-            elementStartIndex = elementEndIndex + 1;
         }
+        return true;
+    }
 
-        return map;
+    /**
+     * @return whether a tag could be a positional tag, i.e. a number as written by
+     *     Integer.toString()
+     */
+    private static boolean isPositional(String tag) {
+        final int length = tag.length();
+        if (length == 0 || length > 10 || (length > 1 && tag.charAt(0) == '0')) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            final char c = tag.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
      * Builder class for creating PackedString values.  Can also be used for editing existing
      * PackedString representations.
+     *
+     * The values are edited in place in a single StringBuilder, which can be reused for several
+     * packed strings through {@link #reset}.
      */
     static public class Builder {
-        HashMap<String, String> mMap;
+        private final StringBuilder mPacked = new StringBuilder();
 
         /**
          * Create a builder that's empty (for filling)
          */
         public Builder() {
-            mMap = new HashMap<String, String>();
         }
 
         /**
          * Create a builder using the values of an existing PackedString (for editing).
          */
         public Builder(String packed) {
-            mMap = explode(packed);
+            reset(packed);
+        }
+
+        /**
+         * Start over with the values of another packed string, reusing this builder's buffer
+         * @param packed the packed string to edit, or null to start empty
+         */
+        public Builder reset(String packed) {
+            mPacked.setLength(0);
+            if (packed != null) {
+                // Read the values out once, so that untagged values get their positional tag and
+                // keep it when other values are removed, and duplicate tags collapse to the last
+                // value, as put() expects every tag to appear once
+                for (Map.Entry<String, String> entry : explode(packed).entrySet()) {
+                    if (mPacked.length() > 0) {
+                        mPacked.append(DELIMITER_ELEMENT);
+                    }
+                    mPacked.append(entry.getValue()).append(DELIMITER_TAG).append(entry.getKey());
+                }
+            }
+            return this;
         }
 
         /**
@@ -140,10 +277,15 @@ public class PackedString {
          * @param value the value to record in this position.  null to delete entry.
          */
         public void put(String tag, String value) {
-            if (value == null) {
-                mMap.remove(tag);
-            } else {
-                mMap.put(tag, value);
+            final int element = findElement(mPacked, tag);
+            if (element != NOT_FOUND) {
+                removeElement(element);
+            }
+            if (value != null) {
+                if (mPacked.length() > 0) {
+                    mPacked.append(DELIMITER_ELEMENT);
+                }
+                mPacked.append(value).append(DELIMITER_TAG).append(tag);
             }
         }
 
@@ -153,7 +295,7 @@ public class PackedString {
          * @return returns value, or null if no string is found
          */
         public String get(String tag) {
-            return mMap.get(tag);
+            return PackedString.get(mPacked, tag);
         }
 
         /**
@@ -161,16 +303,20 @@ public class PackedString {
          */
         @Override
         public String toString() {
-            StringBuilder sb = new StringBuilder();
-            for (Map.Entry<String,String> entry : mMap.entrySet()) {
-                if (sb.length() > 0) {
-                    sb.append(DELIMITER_ELEMENT);
-                }
-                sb.append(entry.getValue());
-                sb.append(DELIMITER_TAG);
-                sb.append(entry.getKey());
+            return mPacked.toString();
+        }
+
+        private void removeElement(int elementStart) {
+            final int elementEnd = elementEnd(mPacked, elementStart);
+            if (elementEnd < mPacked.length()) {
+                // Remove the element and the delimiter that follows it
+                mPacked.delete(elementStart, elementEnd + 1);
+            } else if (elementStart > 0) {
+                // Last element: remove the delimiter that precedes it
+                mPacked.delete(elementStart - 1, elementEnd);
+            } else {
+                mPacked.setLength(0);
             }
-            return sb.toString();
         }
     }
 }
@@ -18,6 +18,11 @@ package com.blackberry.email.photomanager;
 
 import android.content.ContentResolver;
 import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.CommonDataKinds.Email;
+import android.provider.ContactsContract.DeletedContacts;
 import android.text.TextUtils;
 import android.util.LruCache;
 
@@ -49,6 +54,9 @@ public class ContactPhotoManager extends PhotoManager {
     /** Cache size for {@link #mPhotoIdCache}. Starting with 500 entries. */
     private static final int PHOTO_ID_CACHE_SIZE = 500;
 
+    /** Name of the file photos are cached in across restarts, keyed by email address. */
+    private static final String DISK_CACHE_NAME = "contact_photos.cache";
+
     /**
      * Requests the singleton instance with data bound from the available authenticators. This
      * method can safely be called from the UI thread.
@@ -89,14 +97,73 @@ public class ContactPhotoManager extends PhotoManager {
         return generateHash(view, contactId.pos, contactId.getKey());
     }
 
+    @Override
+    protected String getDiskCacheName() {
+        return DISK_CACHE_NAME;
+    }
+
+    @Override
+    protected Uri getDiskCacheInvalidationUri() {
+        return ContactsContract.AUTHORITY_URI;
+    }
+
+    /**
+     * @return the addresses of the contacts updated since {@code sinceMillis}, or null if a
+     *     contact was deleted since then, as the addresses of deleted contacts aren't kept
+     */
+    @Override
+    protected Collection<String> getChangedKeys(ContentResolver resolver, long sinceMillis) {
+        final String[] selectionArgs = { String.valueOf(sinceMillis) };
+        Cursor cursor = resolver.query(DeletedContacts.CONTENT_URI,
+                new String[] { DeletedContacts.CONTACT_ID },
+                DeletedContacts.CONTACT_DELETED_TIMESTAMP + ">?", selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.getCount() > 0) {
+                return null;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        cursor = resolver.query(Email.CONTENT_URI, new String[] { Email.ADDRESS },
+                Email.CONTACT_LAST_UPDATED_TIMESTAMP + ">?", selectionArgs, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            final Set<String> addresses = new HashSet<String>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                addresses.add(cursor.getString(0));
+            }
+            return addresses;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    protected void evictFromMemoryCaches(Collection<String> keys) {
+        super.evictFromMemoryCaches(keys);
+        if (keys == null) {
+            mPhotoIdCache.evictAll();
+        } else {
+            for (final String key : keys) {
+                mPhotoIdCache.remove(key);
+            }
+        }
+    }
+
     @Override
     protected PhotoLoaderThread getLoaderThread(ContentResolver contentResolver) {
         return new ContactPhotoLoaderThread(contentResolver);
     }
 
     @Override
-    public void clear() {
-        super.clear();
+    protected void clearMemoryCaches() {
+        super.clearMemoryCaches();
         mPhotoIdCache.evictAll();
     }
 
@@ -207,8 +274,12 @@ public class ContactPhotoManager extends PhotoManager {
             } else {
                 // Still need to set a null result for all addresses, otherwise we end
                 // up in the loop where photo manager attempts to load these again.
+                // But since we don't actually know that they have no photo, don't have the
+                // disk cache remember that.
                 for (final String address: addresses) {
-                    photos.put(address, new BitmapHolder(null, -1, -1));
+                    final BitmapHolder holder = new BitmapHolder(null, -1, -1);
+                    holder.persistent = false;
+                    photos.put(address, holder);
                 }
             }
 
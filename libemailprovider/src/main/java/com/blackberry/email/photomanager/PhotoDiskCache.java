@@ -0,0 +1,314 @@
+package com.blackberry.email.photomanager;
+
+import com.blackberry.common.utils.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A size-bounded, persistent LRU cache of encoded thumbnails, which backs the in-memory caches of
+ * {@link PhotoManager} across process restarts.
+ * <p>
+ * The cache is a single memory-mapped file of {@link #SLOT_COUNT} fixed-size slots, each holding
+ * at most one thumbnail, keyed by photo key and size. Thumbnails that don't fit in a slot aren't
+ * cached. Every slot starts with a header:
+ * <pre>
+ *   int   magic       SLOT_MAGIC, or 0 for a free slot; written last
+ *   int   crc         CRC32 of everything from "written" to the end of the data
+ *   long  accessed    last access time, only used to rebuild the LRU order
+ *   long  written     time the thumbnail was stored, to expire it
+ *   int   width, height
+ *   short key length  followed by the UTF-8 key
+ *   int   data length followed by the data
+ * </pre>
+ * A slot is rewritten by first clearing its magic, then writing its contents, and writing the
+ * magic last. Slots whose magic or checksum doesn't match on open, e.g. after the device lost
+ * power in the middle of a write, are treated as free, so each slot serves as its own journal
+ * record and the cache never returns a torn thumbnail.
+ * <p>
+ * An entry with no data records that a key has no photo at all, so that contacts without a
+ * photo aren't queried again either.
+ * <p>
+ * This class is thread safe.
+ */
+class PhotoDiskCache {
+    private static final String TAG = PhotoManager.TAG;
+
+    /** The size of a slot; thumbnails larger than that minus the header aren't cached */
+    static final int SLOT_SIZE = 16 * 1024;
+
+    /** The number of slots, i.e. the maximum number of entries */
+    static final int SLOT_COUNT = 256;
+
+    // Changing the layout requires a new magic, which makes the old slots free
+    private static final int SLOT_MAGIC = 0x50444331; // "PDC1"
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_CRC = 4;
+    private static final int OFFSET_ACCESSED = 8;
+    private static final int OFFSET_WRITTEN = 16;
+    private static final int OFFSET_WIDTH = 24;
+    private static final int OFFSET_HEIGHT = 28;
+    private static final int OFFSET_KEY_LENGTH = 32;
+    private static final int OFFSET_KEY = 34;
+    private static final int MAX_KEY_LENGTH = 512;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** The data returned by {@link #get} for a key recorded as having no photo */
+    static final byte[] NO_PHOTO = new byte[0];
+
+    private final MappedByteBuffer mBuffer;
+    // Slots by entry key, least recently used first
+    private final LinkedHashMap<String, Integer> mSlots =
+            new LinkedHashMap<String, Integer>(SLOT_COUNT, 0.75f, true);
+    private final ArrayDeque<Integer> mFreeSlots = new ArrayDeque<Integer>();
+
+    /**
+     * Open the cache in {@code file}, creating it if needed
+     *
+     * @return null if the file can't be created or mapped, in which case photos simply aren't
+     *     cached on disk
+     */
+    static PhotoDiskCache open(File file) {
+        try {
+            return new PhotoDiskCache(file);
+        } catch (IOException e) {
+            LogUtils.w(TAG, e, "Can't open photo disk cache %s", file);
+            return null;
+        }
+    }
+
+    private PhotoDiskCache(File file) throws IOException {
+        final long size = (long) SLOT_SIZE * SLOT_COUNT;
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            if (raf.length() != size) {
+                // Allocate the whole file up front: a store to a mapped page that can't be backed
+                // by the disk (e.g. because the disk is full) kills the process
+                raf.setLength(0);
+                final ByteBuffer zeroes = ByteBuffer.allocate(SLOT_SIZE);
+                for (int i = 0; i < SLOT_COUNT; i++) {
+                    zeroes.clear();
+                    while (zeroes.hasRemaining()) {
+                        channel.write(zeroes);
+                    }
+                }
+            }
+            mBuffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+        loadIndex();
+    }
+
+    /**
+     * Rebuild the index from the valid slots, in the order they were last accessed
+     */
+    private void loadIndex() {
+        final ArrayList<long[]> valid = new ArrayList<long[]>();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            final int base = slot * SLOT_SIZE;
+            if (mBuffer.getInt(base + OFFSET_MAGIC) != SLOT_MAGIC) {
+                mFreeSlots.add(slot);
+                continue;
+            }
+            final long crc = checksum(base);
+            if (crc != -1 && (int) crc == mBuffer.getInt(base + OFFSET_CRC)) {
+                valid.add(new long[] { mBuffer.getLong(base + OFFSET_ACCESSED), slot });
+            } else {
+                mFreeSlots.add(slot);
+            }
+        }
+        Collections.sort(valid, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] > rhs[0] ? 1 : 0);
+            }
+        });
+        for (final long[] entry : valid) {
+            final int slot = (int) entry[1];
+            final int base = slot * SLOT_SIZE;
+            final Integer previous = mSlots.put(entryKey(readKey(base),
+                    mBuffer.getInt(base + OFFSET_WIDTH), mBuffer.getInt(base + OFFSET_HEIGHT)),
+                    slot);
+            if (previous != null) {
+                mFreeSlots.add(previous);
+            }
+        }
+        LogUtils.d(TAG, "Photo disk cache opened with %d entries", mSlots.size());
+    }
+
+    /**
+     * @param maxAgeMillis entries stored longer ago than that are dropped
+     * @return the data stored for a key and size, {@link #NO_PHOTO} if the key was recorded as
+     *     having no photo, or null if there is no such entry
+     */
+    synchronized byte[] get(String key, int width, int height, long maxAgeMillis) {
+        final String entryKey = entryKey(key, width, height);
+        final Integer slot = mSlots.get(entryKey);
+        if (slot == null) {
+            return null;
+        }
+        final int base = slot * SLOT_SIZE;
+        final long now = System.currentTimeMillis();
+        final long written = mBuffer.getLong(base + OFFSET_WRITTEN);
+        if (now - written > maxAgeMillis || now < written) {
+            free(entryKey, slot);
+            return null;
+        }
+        mBuffer.putLong(base + OFFSET_ACCESSED, now);
+        final int dataOffset = base + OFFSET_KEY + mBuffer.getShort(base + OFFSET_KEY_LENGTH);
+        final int length = mBuffer.getInt(dataOffset);
+        if (length == 0) {
+            return NO_PHOTO;
+        }
+        final byte[] data = new byte[length];
+        final ByteBuffer source = mBuffer.duplicate();
+        source.position(dataOffset + 4);
+        source.get(data);
+        return data;
+    }
+
+    /**
+     * Store the data for a key and size, evicting the least recently used entry if the cache is
+     * full; {@link #NO_PHOTO} records that the key has no photo.
+     *
+     * @return false if the data or key is too large to be cached
+     */
+    synchronized boolean put(String key, int width, int height, byte[] data) {
+        final byte[] keyBytes = key.getBytes(UTF_8);
+        if (keyBytes.length > MAX_KEY_LENGTH
+                || OFFSET_KEY + keyBytes.length + 4 + data.length > SLOT_SIZE) {
+            return false;
+        }
+        final String entryKey = entryKey(key, width, height);
+        Integer slot = mSlots.get(entryKey);
+        if (slot == null) {
+            slot = mFreeSlots.poll();
+            if (slot == null) {
+                final Iterator<Integer> eldest = mSlots.values().iterator();
+                slot = eldest.next();
+                eldest.remove();
+            }
+            mSlots.put(entryKey, slot);
+        }
+
+        final int base = slot * SLOT_SIZE;
+        final long now = System.currentTimeMillis();
+        mBuffer.putInt(base + OFFSET_MAGIC, 0);
+        mBuffer.putLong(base + OFFSET_ACCESSED, now);
+        mBuffer.putLong(base + OFFSET_WRITTEN, now);
+        mBuffer.putInt(base + OFFSET_WIDTH, width);
+        mBuffer.putInt(base + OFFSET_HEIGHT, height);
+        mBuffer.putShort(base + OFFSET_KEY_LENGTH, (short) keyBytes.length);
+        final ByteBuffer target = mBuffer.duplicate();
+        target.position(base + OFFSET_KEY);
+        target.put(keyBytes);
+        target.putInt(data.length);
+        target.put(data);
+        mBuffer.putInt(base + OFFSET_CRC, (int) checksum(base));
+        mBuffer.putInt(base + OFFSET_MAGIC, SLOT_MAGIC);
+        return true;
+    }
+
+    /**
+     * Drop all the entries
+     */
+    synchronized void clear() {
+        for (final Integer slot : mSlots.values()) {
+            mBuffer.putInt(slot * SLOT_SIZE + OFFSET_MAGIC, 0);
+            mFreeSlots.add(slot);
+        }
+        mSlots.clear();
+    }
+
+    /**
+     * Drop the entries of a key, at every size
+     */
+    synchronized void remove(String key) {
+        final Iterator<Map.Entry<String, Integer>> entries = mSlots.entrySet().iterator();
+        while (entries.hasNext()) {
+            final Map.Entry<String, Integer> entry = entries.next();
+            final String entryKey = entry.getKey();
+            // Entry keys are "<width>x<height>:<key>"
+            if (entryKey.substring(entryKey.indexOf(':') + 1).equals(key)) {
+                entries.remove();
+                mBuffer.putInt(entry.getValue() * SLOT_SIZE + OFFSET_MAGIC, 0);
+                mFreeSlots.add(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return the time the oldest entry was stored, or 0 if the cache is empty
+     */
+    synchronized long oldestWriteTime() {
+        long oldest = 0;
+        for (final Integer slot : mSlots.values()) {
+            final long written = mBuffer.getLong(slot * SLOT_SIZE + OFFSET_WRITTEN);
+            if (oldest == 0 || written < oldest) {
+                oldest = written;
+            }
+        }
+        return oldest;
+    }
+
+    synchronized int size() {
+        return mSlots.size();
+    }
+
+    private void free(String entryKey, int slot) {
+        mSlots.remove(entryKey);
+        mBuffer.putInt(slot * SLOT_SIZE + OFFSET_MAGIC, 0);
+        mFreeSlots.add(slot);
+    }
+
+    /**
+     * @return the CRC32 of a slot's checksummed fields, or -1 if its lengths are out of bounds
+     */
+    private long checksum(int base) {
+        final int keyLength = mBuffer.getShort(base + OFFSET_KEY_LENGTH);
+        if (keyLength < 0 || keyLength > MAX_KEY_LENGTH) {
+            return -1;
+        }
+        final int dataLength = mBuffer.getInt(base + OFFSET_KEY + keyLength);
+        final int end = base + OFFSET_KEY + keyLength + 4 + dataLength;
+        if (dataLength < 0 || end > base + SLOT_SIZE) {
+            return -1;
+        }
+        final byte[] bytes = new byte[end - base - OFFSET_WRITTEN];
+        final ByteBuffer source = mBuffer.duplicate();
+        source.position(base + OFFSET_WRITTEN);
+        source.get(bytes);
+        final CRC32 crc = new CRC32();
+        crc.update(bytes);
+        return crc.getValue();
+    }
+
+    private String readKey(int base) {
+        final byte[] keyBytes = new byte[mBuffer.getShort(base + OFFSET_KEY_LENGTH)];
+        final ByteBuffer source = mBuffer.duplicate();
+        source.position(base + OFFSET_KEY);
+        source.get(keyBytes);
+        return new String(keyBytes, UTF_8);
+    }
+
+    private static String entryKey(String key, int width, int height) {
+        return width + "x" + height + ":" + key;
+    }
+}
@@ -20,31 +20,47 @@ import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Configuration;
+import android.database.ContentObserver;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Handler.Callback;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
 import android.util.LruCache;
 
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.Tracer;
 import com.blackberry.common.utils.LogUtils;
 import com.blackberry.email.ui.ImageCanvas;
 import com.blackberry.email.utils.UtilsEx;
 import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Asynchronously loads photos and maintains a cache of photos
+ * <p>
+ * Photos are loaded by a pool of {@link #getLoaderThreadCount()} loader threads, which take their
+ * requests from a shared priority queue. The most recently requested photos, i.e. those of the
+ * rows that are on screen, are loaded first; requests for canvases that have since been recycled
+ * for another row, or that were removed with {@link #removePhoto}, are dropped without being
+ * loaded, and a request for a photo that another loader is already loading waits for that load
+ * instead of repeating it.
  */
 public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     /**
@@ -59,10 +75,77 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     protected abstract int getHash(PhotoIdentifier id, ImageCanvas view);
 
     /**
-     * Return a specific implementation of PhotoLoaderThread.
+     * Return a specific implementation of PhotoLoaderThread. This is called once for each of the
+     * {@link #getLoaderThreadCount()} loaders, which run concurrently.
      */
     protected abstract PhotoLoaderThread getLoaderThread(ContentResolver contentResolver);
 
+    /**
+     * Subclasses may keep the photos they load in a {@link PhotoDiskCache} as well, which lets
+     * them be displayed after a process restart without going to the provider. The
+     * {@link PhotoIdentifier#getKey()} of the photos must then identify them across restarts by
+     * its string value.
+     *
+     * @return the name of the disk cache file in the cache directory, or null to only cache
+     *         photos in memory
+     */
+    protected String getDiskCacheName() {
+        return null;
+    }
+
+    /**
+     * Subclasses with a disk cache may name the provider uri their photos are loaded from. The
+     * disk cache is then revalidated with {@link #getChangedKeys} when it is opened, for the
+     * changes made while the process wasn't running, and whenever the uri (or a descendant)
+     * notifies a change.
+     *
+     * @return the uri to observe, or null to only expire the disk cache by age
+     */
+    protected Uri getDiskCacheInvalidationUri() {
+        return null;
+    }
+
+    /**
+     * Called on a background thread to revalidate the disk cache.
+     *
+     * @param sinceMillis the time of the previous revalidation, or of the oldest entry of the
+     *         disk cache when it was opened
+     * @return the keys of the photos that may have changed since then, or null if they can't be
+     *         told apart, in which case the whole disk cache is dropped
+     */
+    protected Collection<String> getChangedKeys(ContentResolver resolver, long sinceMillis) {
+        return null;
+    }
+
+    /**
+     * Drops photos from the memory caches after they have changed in the provider; subclasses
+     * with caches of their own evict from them here as well. Called on a background thread.
+     *
+     * @param keys the keys of the changed photos, or null to drop all of them
+     */
+    protected void evictFromMemoryCaches(Collection<String> keys) {
+        if (keys == null) {
+            sBitmapHolderCache.evictAll();
+            sBitmapCache.evictAll();
+            return;
+        }
+        for (final String key : keys) {
+            sBitmapHolderCache.remove(key);
+        }
+        for (final BitmapIdentifier bitmapKey : sBitmapCache.snapshot().keySet()) {
+            if (keys.contains(String.valueOf(bitmapKey.key))) {
+                sBitmapCache.remove(bitmapKey);
+            }
+        }
+    }
+
+    /**
+     * Subclasses may specify how many loader threads load and decode photos concurrently.
+     */
+    protected int getLoaderThreadCount() {
+        return DEFAULT_LOADER_THREAD_COUNT;
+    }
+
     /**
      * Subclasses can implement this method to alert callbacks that images finished loading.
      * @param request The original request made.
@@ -104,6 +187,37 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
 
     private static final String LOADER_THREAD_NAME = "PhotoLoader";
 
+    /** The default number of loader threads: enough to keep up with a fling, but at most 3 */
+    private static final int DEFAULT_LOADER_THREAD_COUNT =
+            Math.max(1, Math.min(3, Runtime.getRuntime().availableProcessors() - 1));
+
+    /**
+     * The default maximum number of requests a loader takes from the queue at a time; they have to
+     * be bounded so that the other loaders get their share
+     */
+    private static final int DEFAULT_MAX_BATCH_COUNT = 8;
+
+    /** Time requests spend in the queue before a loader takes them */
+    private static final TraceSpan QUEUE_WAIT_SPAN = Tracer.register("PhotoManager.queueWait");
+    /** Time spent reading a batch of photos from the provider */
+    private static final TraceSpan LOAD_SPAN = Tracer.register("PhotoManager.load");
+    /** Time spent decoding a single photo */
+    private static final TraceSpan DECODE_SPAN = Tracer.register("PhotoManager.decode");
+    /** Time spent looking up and decoding a single photo from the disk cache */
+    private static final TraceSpan DISK_READ_SPAN = Tracer.register("PhotoManager.diskRead");
+    /** Time spent encoding and storing a single photo into the disk cache */
+    private static final TraceSpan DISK_WRITE_SPAN = Tracer.register("PhotoManager.diskWrite");
+
+    /** How long photos are kept in the disk cache before being loaded again */
+    private static final long DISK_CACHE_MAX_AGE_MILLIS = 7 * 24 * 60 * 60 * 1000L;
+
+    /** How long the disk cache remembers that a key has no photo */
+    private static final long DISK_CACHE_NO_PHOTO_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000L;
+
+    /** Encoding of the thumbnails in the disk cache */
+    private static final Bitmap.CompressFormat DISK_CACHE_FORMAT = Bitmap.CompressFormat.WEBP;
+    private static final int DISK_CACHE_QUALITY = 90;
+
     /**
      * Type of message sent by the UI thread to itself to indicate that some photos
      * need to be loaded.
@@ -141,6 +255,12 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
 
         volatile boolean fresh;
 
+        /**
+         * Whether a holder without bytes may be remembered in the disk cache; false if the
+         * photo couldn't be looked up, rather than being known not to exist
+         */
+        boolean persistent = true;
+
         public BitmapHolder(byte[] bytes, int width, int height) {
             this.bytes = bytes;
             this.width = width;
@@ -236,16 +356,62 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     private final Map<Integer, Request> mPendingRequests = Collections.synchronizedMap(
             new HashMap<Integer, Request>());
 
+    /**
+     * The requests waiting for a loader, most urgent first. Only requests from
+     * {@link #mPendingRequests} are queued, and only from the main thread.
+     */
+    private final PriorityBlockingQueue<Request> mLoadQueue = new PriorityBlockingQueue<Request>();
+
+    /**
+     * The requests being loaded or decoded by a loader, by {@link Request#getKey()}. A request
+     * taken from the queue while one with the same key is being processed is added to the list of
+     * that key, and processed by the same loader once its photo is loaded. Guarded by itself.
+     */
+    private final HashMap<Object, ArrayList<Request>> mInFlightRequests =
+            new HashMap<Object, ArrayList<Request>>();
+
+    /**
+     * Orders requests queued at the same priority, most recent first. Only used on the main thread.
+     */
+    private long mRequestSequence;
+
+    /**
+     * The disk tier behind the memory caches; opened by the first loader that needs it
+     */
+    private PhotoDiskCache mDiskCache;
+    private boolean mDiskCacheOpened;
+    /**
+     * Whether the provider may have changed since the disk cache was last revalidated, and when
+     * that was; see {@link #getDiskCacheInvalidationUri()}
+     */
+    private volatile boolean mDiskCacheStale;
+    private long mDiskCacheValidatedAt;
+
+    private final ContentObserver mDiskCacheObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            // Notifications come in bursts, e.g. during a contacts sync; the revalidations
+            // queued while one is running find nothing left to do
+            mDiskCacheStale = true;
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    getDiskCache();
+                }
+            });
+        }
+    };
+
     /**
      * Handler for messages sent to the UI thread.
      */
     private final Handler mMainThreadHandler = new Handler(this);
 
     /**
-     * Thread responsible for loading photos from the database. Created upon
+     * Threads responsible for loading photos from the database. Created upon
      * the first request.
      */
-    private PhotoLoaderThread mLoaderThread;
+    private PhotoLoaderThread[] mLoaderThreads;
 
     /**
      * A gate to make sure we only send one instance of MESSAGE_PHOTOS_NEEDED at a time.
@@ -326,14 +492,131 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     public void removePhoto(int hashcode) {
         Request r = mPendingRequests.remove(hashcode);
         if (r != null) {
+            // If it is queued, the loader that takes it will drop it
+            r.cancel();
             LogUtils.d(TAG, "removed request %s", r.getKey());
         }
     }
 
-    private void ensureLoaderThread() {
-        if (mLoaderThread == null) {
-            mLoaderThread = getLoaderThread(mContext.getContentResolver());
-            mLoaderThread.start();
+    private void ensureLoaderThreads() {
+        if (mLoaderThreads == null) {
+            final int count = Math.max(1, getLoaderThreadCount());
+            mLoaderThreads = new PhotoLoaderThread[count];
+            for (int i = 0; i < count; i++) {
+                mLoaderThreads[i] = getLoaderThread(mContext.getContentResolver());
+                mLoaderThreads[i].setName(LOADER_THREAD_NAME + "-" + i);
+                mLoaderThreads[i].start();
+            }
+            LogUtils.d(TAG, "%s started %d loader threads", getClass().getName(), count);
+        }
+    }
+
+    /**
+     * @return the disk cache, revalidated if the provider has changed, or null if this manager
+     *     doesn't have one or it can't be opened
+     */
+    private synchronized PhotoDiskCache getDiskCache() {
+        if (!mDiskCacheOpened) {
+            mDiskCacheOpened = true;
+            final String name = getDiskCacheName();
+            if (name != null) {
+                mDiskCache = PhotoDiskCache.open(new File(mContext.getCacheDir(), name));
+            }
+            final Uri uri = getDiskCacheInvalidationUri();
+            if (mDiskCache != null && uri != null) {
+                // Registered for the life of the process, as the photo managers are
+                mContext.getContentResolver().registerContentObserver(uri, true,
+                        mDiskCacheObserver);
+                // Any entry may have changed since it was stored; an empty cache has nothing to
+                // revalidate
+                final long oldest = mDiskCache.oldestWriteTime();
+                mDiskCacheValidatedAt = oldest > 0 ? oldest : System.currentTimeMillis();
+                mDiskCacheStale = oldest > 0;
+            }
+        }
+        if (mDiskCacheStale && mDiskCache != null) {
+            revalidateDiskCache();
+        }
+        return mDiskCache;
+    }
+
+    /**
+     * Drops the photos that have changed in the provider since the last revalidation from the
+     * disk and memory caches. Must be called with the manager locked, so that no loader reads
+     * the disk cache in the meantime.
+     */
+    private void revalidateDiskCache() {
+        // Cleared first, so that a change notified during the query is checked again
+        mDiskCacheStale = false;
+        final long now = System.currentTimeMillis();
+        Collection<String> keys;
+        try {
+            keys = getChangedKeys(mContext.getContentResolver(), mDiskCacheValidatedAt);
+        } catch (RuntimeException e) {
+            LogUtils.w(TAG, e, "Can't revalidate the photo disk cache");
+            keys = null;
+        }
+        if (keys == null) {
+            mDiskCache.clear();
+        } else {
+            for (final String key : keys) {
+                mDiskCache.remove(key);
+            }
+        }
+        if (keys == null || !keys.isEmpty()) {
+            evictFromMemoryCaches(keys);
+        }
+        mDiskCacheValidatedAt = now;
+        if (DEBUG) {
+            LogUtils.d(TAG, "revalidated disk cache: %s", keys == null ? "all" : keys.size());
+        }
+    }
+
+    /**
+     * Empties the disk cache; one that hasn't been opened yet is deleted instead
+     */
+    private synchronized void clearDiskCache() {
+        if (mDiskCache != null) {
+            mDiskCache.clear();
+        } else if (!mDiskCacheOpened) {
+            final String name = getDiskCacheName();
+            if (name != null) {
+                new File(mContext.getCacheDir(), name).delete();
+            }
+        }
+    }
+
+    /**
+     * Queues the pending requests that aren't queued or being loaded yet, and drops those whose
+     * canvas has moved on to another item.
+     */
+    private void enqueuePendingRequests() {
+        synchronized (mPendingRequests) {
+            for (Iterator<Request> i = mPendingRequests.values().iterator(); i.hasNext(); ) {
+                final Request request = i.next();
+                if (request.queued) {
+                    continue;
+                }
+                if (request.isStale()) {
+                    i.remove();
+                    continue;
+                }
+                request.queued = true;
+                request.sequence = ++mRequestSequence;
+                request.queuedAt = QUEUE_WAIT_SPAN.start();
+                mLoadQueue.add(request);
+            }
+        }
+    }
+
+    /**
+     * Takes back the requests that no loader has taken yet; they stay pending.
+     */
+    private void dequeueRequests() {
+        final List<Request> dequeued = Lists.newArrayList();
+        mLoadQueue.drainTo(dequeued);
+        for (final Request request : dequeued) {
+            request.queued = false;
         }
     }
 
@@ -422,6 +705,7 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     public void pause() {
         LogUtils.d(TAG, "%s paused.", getClass().getName());
         mPaused = true;
+        dequeueRequests();
     }
 
     /**
@@ -458,8 +742,8 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
             case MESSAGE_REQUEST_LOADING: {
                 mLoadingRequested = false;
                 if (!mPaused) {
-                    ensureLoaderThread();
-                    mLoaderThread.requestLoading();
+                    ensureLoaderThreads();
+                    enqueuePendingRequests();
                 }
                 return true;
             }
@@ -471,9 +755,10 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
             }
 
             case MESSAGE_PHOTO_LOADING: {
-                final int hashcode = msg.arg1;
-                final Request request = mPendingRequests.get(hashcode);
-                onImageLoadStarted(request);
+                final Request request = (Request) msg.obj;
+                if (!request.isStale()) {
+                    onImageLoadStarted(request);
+                }
                 return true;
             }
         }
@@ -481,29 +766,40 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     }
 
     /**
-     * Goes over pending loading requests and displays loaded photos.  If some of the
-     * photos still haven't been loaded, sends another request for image loading.
+     * Goes over the pending loading requests the loaders are done with and displays loaded
+     * photos.  If some of the photos still haven't been loaded, sends another request for image
+     * loading.
      */
     private void processLoadedImages() {
         UtilsEx.traceBeginSection("process loaded images");
         final List<Integer> toRemove = Lists.newArrayList();
+        int retries = 0;
         for (final Integer hash : mPendingRequests.keySet()) {
             final Request request = mPendingRequests.get(hash);
+            if (request.queued) {
+                // Still waiting for, or being processed by, a loader
+                continue;
+            }
+            if (request.isStale()) {
+                toRemove.add(hash);
+                continue;
+            }
             final boolean loaded = loadCachedPhoto(request, true);
             // Request can go through multiple attempts if the LoaderThread fails to load any
             // images for it, or if the images it loads are evicted from the cache before we
             // could access them in the main thread.
             if (loaded || request.attempts > 2) {
                 toRemove.add(hash);
+            } else {
+                retries++;
             }
         }
         for (final Integer key : toRemove) {
             mPendingRequests.remove(key);
         }
 
-        if (!mPaused && !mPendingRequests.isEmpty()) {
-            LogUtils.d(TAG, "Finished loading batch. %d still have to be loaded.",
-                    mPendingRequests.size());
+        if (!mPaused && retries > 0) {
+            LogUtils.d(TAG, "Finished loading batch. %d still have to be loaded.", retries);
             requestLoading();
         }
         UtilsEx.traceEndSection();
@@ -512,7 +808,7 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     /**
      * Stores the supplied bitmap in cache.
      */
-    private static void cacheBitmapHolder(final String cacheKey, final BitmapHolder holder) {
+    private static void cacheBitmapHolder(final Object cacheKey, final BitmapHolder holder) {
         if (DEBUG) {
             BitmapHolder prev = sBitmapHolderCache.get(cacheKey);
             if (prev != null && prev.bytes != null) {
@@ -550,14 +846,33 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     public void onTrimMemory(int level) {
         if (DEBUG) LogUtils.d(TAG, "onTrimMemory: " + level);
         if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
-            // Clear the caches.  Note all pending requests will be removed too.
-            clear();
+            // Clear the memory caches; the disk cache doesn't take any.  Note all pending
+            // requests will be removed too.
+            clearMemoryCaches();
         }
     }
 
+    /**
+     * Clears all the caches, including the disk cache, and removes the pending requests
+     */
     public void clear() {
         if (DEBUG) LogUtils.d(TAG, "clear");
-        mPendingRequests.clear();
+        clearMemoryCaches();
+        clearDiskCache();
+    }
+
+    /**
+     * Clears the memory caches and removes the pending requests; subclasses with caches of their
+     * own clear them here as well
+     */
+    protected void clearMemoryCaches() {
+        dequeueRequests();
+        synchronized (mPendingRequests) {
+            for (final Request request : mPendingRequests.values()) {
+                request.cancel();
+            }
+            mPendingRequests.clear();
+        }
         sBitmapHolderCache.evictAll();
         sBitmapCache.evictAll();
     }
@@ -631,24 +946,22 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
     }
 
     /**
-     * The thread that performs loading of photos from the database.
+     * One of the threads that perform loading of photos from the database. Each loader takes
+     * batches of requests from the shared queue, reads the photos it doesn't have yet through
+     * {@link #loadPhotos}, decodes them, and then has the main thread display them.
      */
-    protected abstract class PhotoLoaderThread extends HandlerThread implements Callback {
+    protected abstract class PhotoLoaderThread extends Thread {
 
         /**
          * Return photos mapped from {@link Request#getKey()} to the photo for
-         * that request.
+         * that request. Loaders call this concurrently, each with its own requests.
          */
         protected abstract Map<String, BitmapHolder> loadPhotos(Collection<Request> requests);
 
-        private static final int MESSAGE_LOAD_PHOTOS = 0;
-
         private final ContentResolver mResolver;
 
-        private Handler mLoaderThreadHandler;
-
         public PhotoLoaderThread(ContentResolver resolver) {
-            super(LOADER_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+            super(LOADER_THREAD_NAME);
             mResolver = resolver;
         }
 
@@ -656,34 +969,18 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
             return mResolver;
         }
 
-        public void ensureHandler() {
-            if (mLoaderThreadHandler == null) {
-                mLoaderThreadHandler = new Handler(getLooper(), this);
-            }
-        }
-
-        /**
-         * Sends a message to this thread to load requested photos.  Cancels a preloading
-         * request, if any: we don't want preloading to impede loading of the photos
-         * we need to display now.
-         */
-        public void requestLoading() {
-            ensureHandler();
-            mLoaderThreadHandler.sendEmptyMessage(MESSAGE_LOAD_PHOTOS);
-        }
-
-        /**
-         * Receives the above message, loads photos and then sends a message
-         * to the main thread to process them.
-         */
         @Override
-        public boolean handleMessage(Message msg) {
-            switch (msg.what) {
-                case MESSAGE_LOAD_PHOTOS:
-                    loadPhotosInBackground();
-                    break;
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            while (true) {
+                final Request first;
+                try {
+                    first = mLoadQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                loadPhotosInBackground(first);
             }
-            return true;
         }
 
         /**
@@ -691,77 +988,162 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
          * #loadPhotos(). For batch count N, the UI will be updated with up to N images at a time.
          *
          * @return A positive integer if you would like to limit the number of
-         *         items in a single batch.
+         *         items in a single batch; otherwise batches are limited to
+         *         {@link #DEFAULT_MAX_BATCH_COUNT} items.
          */
         protected int getMaxBatchCount() {
             return -1;
         }
 
-        private void loadPhotosInBackground() {
+        private void loadPhotosInBackground(Request first) {
+            // The requests to hand back to the main thread once done
+            final List<Request> taken = Lists.newArrayList();
+            // The requests left to this loader by the others
+            final Collection<Request> shared = new HashSet<PhotoManager.Request>();
+            try {
+                loadBatch(first, taken, shared);
+            } catch (RuntimeException e) {
+                // Keep the loader alive; the main thread gets the requests back below, and
+                // retries them up to their limit of attempts
+                LogUtils.e(TAG, e, "Failed to load photos");
+            } finally {
+                taken.addAll(shared);
+                for (final Request r : taken) {
+                    r.queued = false;
+                }
+                mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+            }
+        }
+
+        /**
+         * Takes a batch of requests, starting with {@code first}, and loads and decodes their
+         * photos. The requests taken are added to {@code taken}, and those left to this loader
+         * by the others to {@code shared}.
+         */
+        private void loadBatch(Request first, List<Request> taken, Collection<Request> shared) {
             UtilsEx.traceBeginSection("pre processing");
             final Collection<Request> loadRequests = new HashSet<PhotoManager.Request>();
             final Collection<Request> decodeRequests = new HashSet<PhotoManager.Request>();
-            final PriorityQueue<Request> requests;
-            synchronized (mPendingRequests) {
-                requests = new PriorityQueue<Request>(mPendingRequests.values());
-            }
+            // The keys of the requests this loader is processing for the others
+            final List<Object> claimedKeys = Lists.newArrayList();
 
+            final int maxBatchCount = getMaxBatchCount() > 0 ? getMaxBatchCount()
+                    : DEFAULT_MAX_BATCH_COUNT;
             int batchCount = 0;
-            int maxBatchCount = getMaxBatchCount();
-            while (!requests.isEmpty()) {
-                Request request = requests.poll();
-                final BitmapHolder holder = sBitmapHolderCache
-                        .get(request.getKey());
-                if (holder == null || holder.bytes == null || !holder.fresh || !isSizeCompatible(
-                        holder.width, holder.height, request.bitmapKey.w, request.bitmapKey.h)) {
-                    loadRequests.add(request);
-                    decodeRequests.add(request);
-                    batchCount++;
-
-                    final Message msg = Message.obtain();
-                    msg.what = MESSAGE_PHOTO_LOADING;
-                    msg.arg1 = request.hashCode();
-                    mMainThreadHandler.sendMessage(msg);
-                } else {
-                    // Even if the image load is already done, this particular decode configuration
-                    // may not yet have run. Be sure to add it to the queue.
-                    if (sBitmapCache.get(request.bitmapKey) == null) {
+            Request request = first;
+            while (request != null) {
+                QUEUE_WAIT_SPAN.end(request.queuedAt);
+                request.attempts++;
+                // The view generation is read without synchronization; at worst a request for a
+                // canvas that has just been recycled is still loaded, and dropped when displayed
+                if (request.isStale()) {
+                    taken.add(request);
+                } else if (claim(request, claimedKeys)) {
+                    taken.add(request);
+                    final BitmapHolder holder = sBitmapHolderCache.get(request.getKey());
+                    if (sBitmapCache.get(request.bitmapKey) != null) {
+                        // Decoded in the meantime
+                    } else if (loadFromDiskCache(request)) {
+                        // No need to go to the provider
+                    } else if (holder == null || holder.bytes == null || !holder.fresh
+                            || !isSizeCompatible(holder.width, holder.height, request.bitmapKey.w,
+                                    request.bitmapKey.h)) {
+                        loadRequests.add(request);
+                        decodeRequests.add(request);
+                        batchCount++;
+
+                        mMainThreadHandler.obtainMessage(MESSAGE_PHOTO_LOADING, request)
+                                .sendToTarget();
+                    } else {
+                        // Even if the image load is already done, this particular decode
+                        // configuration may not yet have run. Be sure to add it to the queue.
                         decodeRequests.add(request);
                     }
                 }
-                request.attempts++;
-                if (maxBatchCount > 0 && batchCount >= maxBatchCount) {
+                if (batchCount >= maxBatchCount) {
                     break;
                 }
+                request = mLoadQueue.poll();
             }
             UtilsEx.traceEndSection();
 
-            UtilsEx.traceBeginSection("load photos");
-            // Ask subclass to do the actual loading
-            final Map<String, BitmapHolder> photosMap = loadPhotos(loadRequests);
-            UtilsEx.traceEndSection();
+            try {
+                if (!loadRequests.isEmpty()) {
+                    UtilsEx.traceBeginSection("load photos");
+                    // Ask subclass to do the actual loading
+                    final long start = LOAD_SPAN.start();
+                    final Map<String, BitmapHolder> photosMap = loadPhotos(loadRequests);
+                    LOAD_SPAN.end(start);
+                    UtilsEx.traceEndSection();
+
+                    if (DEBUG) {
+                        LogUtils.d(TAG,
+                                "worker thread completed read request batch. inputN=%s outputN=%s",
+                                loadRequests.size(),
+                                photosMap.size());
+                    }
+                    for (String cacheKey : photosMap.keySet()) {
+                        if (DEBUG) {
+                            LogUtils.d(TAG,
+                                    "worker thread completed read request key=%s byteCount=%s"
+                                            + " thread=%s",
+                                    cacheKey,
+                                    photosMap.get(cacheKey) == null ? 0
+                                            : photosMap.get(cacheKey).bytes.length,
+                                    Thread.currentThread());
+                        }
+                        final BitmapHolder holder = photosMap.get(cacheKey);
+                        cacheBitmapHolder(cacheKey, holder);
+                        if (holder.bytes == null && holder.persistent) {
+                            storeInDiskCache(cacheKey, 0, 0, PhotoDiskCache.NO_PHOTO);
+                        }
+                    }
+                }
+                decode(decodeRequests);
+            } finally {
+                release(claimedKeys, shared);
+            }
+            // Requests for the same photos that were taken by other loaders in the meantime
+            // were left to this one; decode them too
+            decode(shared);
+        }
 
-            if (DEBUG) {
-                LogUtils.d(TAG,
-                        "worker thread completed read request batch. inputN=%s outputN=%s",
-                        loadRequests.size(),
-                        photosMap.size());
+        /**
+         * Claims the key of a request for this loader
+         *
+         * @return false if another loader (or this one, earlier in the batch) is already
+         *     processing that key, in which case the request is left to it, and handed back to
+         *     the main thread by it
+         */
+        private boolean claim(Request request, List<Object> claimedKeys) {
+            final Object key = request.getKey();
+            synchronized (mInFlightRequests) {
+                final ArrayList<Request> waiting = mInFlightRequests.get(key);
+                if (waiting != null) {
+                    waiting.add(request);
+                    return false;
+                }
+                mInFlightRequests.put(key, new ArrayList<Request>());
             }
-            UtilsEx.traceBeginSection("post processing");
-            for (String cacheKey : photosMap.keySet()) {
-                if (DEBUG) {
-                    LogUtils.d(TAG,
-                            "worker thread completed read request key=%s byteCount=%s thread=%s",
-                            cacheKey,
-                            photosMap.get(cacheKey) == null ? 0
-                                    : photosMap.get(cacheKey).bytes.length,
-                            Thread.currentThread());
+            claimedKeys.add(key);
+            return true;
+        }
+
+        /**
+         * Releases the claimed keys, collecting the requests left to this loader for them
+         */
+        private void release(List<Object> claimedKeys, Collection<Request> shared) {
+            synchronized (mInFlightRequests) {
+                for (final Object key : claimedKeys) {
+                    shared.addAll(mInFlightRequests.remove(key));
                 }
-                cacheBitmapHolder(cacheKey, photosMap.get(cacheKey));
             }
+        }
 
+        private void decode(Collection<Request> decodeRequests) {
+            UtilsEx.traceBeginSection("post processing");
             for (Request r : decodeRequests) {
-                if (sBitmapCache.get(r.bitmapKey) != null) {
+                if (r.isStale() || sBitmapCache.get(r.bitmapKey) != null) {
                     continue;
                 }
 
@@ -781,7 +1163,9 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
                             r, w, h);
                 }
 
+                final long start = DECODE_SPAN.start();
                 final Bitmap decoded = BitmapUtil.decodeByteArrayWithCenterCrop(src, w, h);
+                DECODE_SPAN.end(start);
                 if (DEBUG) {
                     LogUtils.i(TAG,
                             "worker thread completed decode bmpKey=%s decoded=%s holder=%s",
@@ -790,11 +1174,64 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
 
                 if (decoded != null) {
                     cacheBitmap(r.bitmapKey, decoded);
+                    storeInDiskCache(r.getKey(), w, h, decoded);
                 }
             }
             UtilsEx.traceEndSection();
+        }
 
-            mMainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
+        /**
+         * Looks up the photo of a request in the disk cache, and puts what is found in the memory
+         * caches
+         *
+         * @return true if the disk cache had either the photo at the requested size, or a record
+         *         that the key has no photo
+         */
+        private boolean loadFromDiskCache(Request request) {
+            final PhotoDiskCache diskCache = getDiskCache();
+            if (diskCache == null) {
+                return false;
+            }
+            final String key = String.valueOf(request.getKey());
+            final long start = DISK_READ_SPAN.start();
+            try {
+                final byte[] data = diskCache.get(key, request.bitmapKey.w, request.bitmapKey.h,
+                        DISK_CACHE_MAX_AGE_MILLIS);
+                if (data != null) {
+                    final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
+                    if (bitmap != null) {
+                        cacheBitmap(request.bitmapKey, bitmap);
+                        return true;
+                    }
+                }
+                if (diskCache.get(key, 0, 0, DISK_CACHE_NO_PHOTO_MAX_AGE_MILLIS)
+                        == PhotoDiskCache.NO_PHOTO) {
+                    cacheBitmapHolder(request.getKey(), new BitmapHolder(null, -1, -1));
+                    return true;
+                }
+                return false;
+            } finally {
+                DISK_READ_SPAN.end(start);
+            }
+        }
+
+        private void storeInDiskCache(Object key, int w, int h, Bitmap bitmap) {
+            if (getDiskCache() == null) {
+                return;
+            }
+            final long start = DISK_WRITE_SPAN.start();
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            if (bitmap.compress(DISK_CACHE_FORMAT, DISK_CACHE_QUALITY, out)) {
+                storeInDiskCache(key, w, h, out.toByteArray());
+            }
+            DISK_WRITE_SPAN.end(start);
+        }
+
+        private void storeInDiskCache(Object key, int w, int h, byte[] data) {
+            final PhotoDiskCache diskCache = getDiskCache();
+            if (diskCache != null) {
+                diskCache.put(String.valueOf(key), w, h, data);
+            }
         }
 
         protected String createInQuery(String value, int itemCount) {
@@ -897,7 +1334,15 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
         private final ImageCanvas mView;
         public final BitmapIdentifier bitmapKey;
         public final int viewGeneration;
-        public int attempts;
+        public volatile int attempts;
+
+        /** Whether the request is queued or being processed by a loader */
+        volatile boolean queued;
+        /** Orders queued requests, most recent first; set by the main thread when queued */
+        long sequence;
+        /** The {@link TraceSpan#start()} of the request's queue wait */
+        long queuedAt;
+        private volatile boolean mCancelled;
 
         private Request(final PhotoIdentifier photoIdentifier,
                 final DefaultImageProvider defaultProvider, final ImageCanvas view,
@@ -919,6 +1364,21 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
             return mPhotoIdentifier;
         }
 
+        /**
+         * Mark the request as no longer wanted; loaders drop cancelled requests.
+         */
+        void cancel() {
+            mCancelled = true;
+        }
+
+        /**
+         * @return true if the request was cancelled, or its canvas has moved on to another item
+         *     (e.g. its row scrolled off screen and was recycled)
+         */
+        boolean isStale() {
+            return mCancelled || mView.getGeneration() != viewGeneration;
+        }
+
         /**
          * @see PhotoIdentifier#getKey()
          */
@@ -987,6 +1447,11 @@ public abstract class PhotoManager implements ComponentCallbacks2, Callback {
             if (attempts - another.attempts != 0) {
                 return attempts - another.attempts;
             }
+            // The most recent requests are for the rows on screen now, the older ones may well
+            // have scrolled off already
+            if (sequence != another.sequence) {
+                return sequence > another.sequence ? -1 : 1;
+            }
             return mPhotoIdentifier.compareTo(another.mPhotoIdentifier);
         }
     }
@@ -23,10 +23,10 @@ import android.database.CursorWindow;
 import android.database.CursorWrapper;
 import android.database.MatrixCursor;
 import android.net.Uri;
-import android.util.LruCache;
 
 import com.blackberry.common.utils.LogUtils;
 import com.blackberry.common.utils.MatrixCursorWithCachedColumns;
+import com.blackberry.common.utils.SegmentedLruCache;
 import com.google.common.annotations.VisibleForTesting;
 
 import java.util.ArrayList;
@@ -40,8 +40,10 @@ import java.util.Set;
  * user of this cache is EmailProvider itself; caching is entirely transparent to users of the
  * provider.
  *
- * Usage examples; id is a String representation of a row id (_id), as it might be retrieved from
- * a uri via getPathSegment
+ * Usage examples; id is a row id (_id); each method also accepts the String representation of the
+ * id, as it might be retrieved from a uri via getPathSegment.  Rows are keyed by the primitive id
+ * internally, and closed cursors of a cached row are reused, so looking up a cached row doesn't
+ * allocate.
  *
  * To create a cache:
  *    ContentCache cache = new ContentCache(name, projection, max);
@@ -68,10 +70,13 @@ import java.util.Set;
  * 2. Update the row: db.update(...);
  * 3. Unlock the row in the cache, passing in the new values: cache.unlock(id, values);
  *
- * Synchronization note: All of the public methods in ContentCache are synchronized (i.e. on the
- * cache itself) except for methods that are solely used for debugging and do not modify the cache.
- * All references to ContentCache that are external to the ContentCache class MUST synchronize on
- * the ContentCache instance (e.g. CachedCursor.close())
+ * Synchronization note: The rows are cached in a SegmentedLruCache; the hash of the id picks the
+ * segment, and each segment has its own lock map and token list (see SegmentState) and guards
+ * the cursors of its rows (see CachedRow).  All of the per-id public methods synchronize on the
+ * segment for that id only, so binder threads working on rows of different segments don't
+ * contend.  invalidate() visits the segments one at a time and never holds more than one segment
+ * lock.  All references to ContentCache that are external to the ContentCache class MUST
+ * synchronize on the segment of the id (e.g. CachedCursor.close())
  */
 public final class ContentCache {
     private static final boolean DEBUG_CACHE = false;  // DO NOT CHECK IN TRUE
@@ -87,18 +92,12 @@ public final class ContentCache {
     // A map of queries that aren't cacheable (debug only)
     private static final CounterMap<String> sNotCacheableMap = new CounterMap<String>();
 
-    private final LruCache<String, Cursor> mLruCache;
+    private final SegmentedLruCache<CachedRow> mLruCache;
+    // The state of each segment of mLruCache, indexed like its segments
+    private final SegmentState[] mSegmentStates;
 
     // All defined caches
     private static final ArrayList<ContentCache> sContentCaches = new ArrayList<ContentCache>();
-    // A set of all unclosed, cached cursors; this will typically be a very small set, as cursors
-    // tend to be closed quickly after use.  The value, for each cursor, is its reference count
-    /*package*/ static final CounterMap<Cursor> sActiveCursors = new CounterMap<Cursor>(24);
-
-    // A set of locked content id's
-    private final CounterMap<String> mLockMap = new CounterMap<String>(4);
-    // A set of active tokens
-    /*package*/ TokenList mTokenList;
 
     // The name of the cache (used for logging)
     private final String mName;
@@ -183,20 +182,18 @@ public final class ContentCache {
             mLogTag = "TokenList-" + name;
         }
 
-        /*package*/ int invalidateTokens(String id) {
+        /*package*/ int invalidateTokens(long id) {
             LogUtils.d(mLogTag, "============ Invalidate tokens for: " + id);
-            ArrayList<CacheToken> removeList = new ArrayList<CacheToken>();
             int count = 0;
-            for (CacheToken token: this) {
-                if (token.getId().equals(id)) {
+            // Walk backwards, so that removing a token doesn't disturb the rest of the walk
+            for (int i = size() - 1; i >= 0; i--) {
+                CacheToken token = get(i);
+                if (token.getId() == id) {
                     token.invalidate();
-                    removeList.add(token);
+                    super.remove(i);
                     count++;
                 }
             }
-            for (CacheToken token: removeList) {
-                remove(token);
-            }
             return count;
         }
 
@@ -218,7 +215,7 @@ public final class ContentCache {
             return result;
         }
 
-        public CacheToken add(String id) {
+        public CacheToken add(long id) {
             CacheToken token = new CacheToken(id);
             super.add(token);
             LogUtils.d(mLogTag, "============ Taking token for: " + token.mId);
@@ -226,20 +223,163 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * A reference counter for locked row ids.  Ids and counts are kept in parallel primitive
+     * arrays using open addressing, so locking and checking a row doesn't box or allocate (except
+     * when the arrays have to grow).  Access is synchronized by the owning segment.
+     */
+    /*package*/ static final class LockCounter {
+        private long[] mKeys;
+        private int[] mCounts;
+        private int mSize;
+
+        /*package*/ LockCounter(int expectedSize) {
+            int capacity = Integer.highestOneBit(Math.max(expectedSize, 2)) << 2;
+            mKeys = new long[capacity];
+            mCounts = new int[capacity];
+        }
+
+        private static int slotFor(long id, int mask) {
+            int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+
+        // Return the slot holding id, or the empty slot where it would go
+        private int find(long id) {
+            int mask = mKeys.length - 1;
+            int slot = slotFor(id, mask);
+            while (mCounts[slot] != 0 && mKeys[slot] != id) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        /*package*/ void add(long id) {
+            int slot = find(id);
+            if (mCounts[slot] == 0) {
+                if ((mSize + 1) * 2 > mKeys.length) {
+                    grow();
+                    slot = find(id);
+                }
+                mKeys[slot] = id;
+                mSize++;
+            }
+            mCounts[slot]++;
+        }
+
+        /*package*/ int subtract(long id) {
+            int slot = find(id);
+            if (mCounts[slot] == 0) {
+                throw new IllegalStateException();
+            }
+            int newCount = --mCounts[slot];
+            if (newCount == 0) {
+                mSize--;
+                removeSlot(slot);
+            }
+            return newCount;
+        }
+
+        /*package*/ boolean contains(long id) {
+            return mCounts[find(id)] != 0;
+        }
+
+        /*package*/ int getCount(long id) {
+            return mCounts[find(id)];
+        }
+
+        /*package*/ int size() {
+            return mSize;
+        }
+
+        // Shift back the rest of the probe sequence into the emptied slot (no tombstones)
+        private void removeSlot(int hole) {
+            int mask = mKeys.length - 1;
+            int next = hole;
+            while (true) {
+                next = (next + 1) & mask;
+                if (mCounts[next] == 0) {
+                    break;
+                }
+                int home = slotFor(mKeys[next], mask);
+                boolean stays = (hole <= next)
+                        ? (hole < home && home <= next)
+                        : (hole < home || home <= next);
+                if (!stays) {
+                    mKeys[hole] = mKeys[next];
+                    mCounts[hole] = mCounts[next];
+                    hole = next;
+                }
+            }
+            mCounts[hole] = 0;
+        }
+
+        private void grow() {
+            long[] oldKeys = mKeys;
+            int[] oldCounts = mCounts;
+            mKeys = new long[oldKeys.length * 2];
+            mCounts = new int[oldCounts.length * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldCounts[i] != 0) {
+                    int slot = find(oldKeys[i]);
+                    mKeys[slot] = oldKeys[i];
+                    mCounts[slot] = oldCounts[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * The rows of one segment of the cache that are locked or being read from the database;
+     * guarded by the segment of mLruCache with the same index
+     */
+    /*package*/ static final class SegmentState {
+        // A set of locked content id's
+        /*package*/ final LockCounter mLockMap = new LockCounter(4);
+        // A set of active tokens
+        /*package*/ final TokenList mTokenList;
+        // Statistics that the segment keeps, so that counting doesn't make segments contend
+        private int mStaleCount;
+        private int mProjectionMissCount;
+        private int mOpCount;
+
+        /*package*/ SegmentState(String name) {
+            mTokenList = new TokenList(name);
+        }
+    }
+
+    /**
+     * A cached row: the cursor holding it, the number of CachedCursors using that cursor, and the
+     * closed CachedCursors of the row kept for reuse, so that a cache hit allocates nothing once
+     * the row has been read.  Guarded by the segment of the row.
+     */
+    /*package*/ static final class CachedRow {
+        /*package*/ final Cursor mCursor;
+        // The number of unclosed CachedCursors of the row; this will typically be small, as
+        // cursors tend to be closed quickly after use
+        /*package*/ int mUsers;
+        // The closed CachedCursors of the row, linked through mNextFree
+        private CachedCursor mFreeCursors;
+
+        /*package*/ CachedRow(Cursor cursor) {
+            mCursor = cursor;
+        }
+    }
+
     /**
      * A CacheToken is an opaque object that must be passed into putCursor in order to attempt to
      * write into the cache.  The token becomes invalidated by any intervening write to the cached
      * record.
      */
     public static final class CacheToken {
-        private final String mId;
+        private final long mId;
         private boolean mIsValid = READ_CACHE_ENABLED;
 
-        /*package*/ CacheToken(String id) {
+        /*package*/ CacheToken(long id) {
             mId = id;
         }
 
-        /*package*/ String getId() {
+        /*package*/ long getId() {
             return mId;
         }
 
@@ -253,12 +393,12 @@ public final class ContentCache {
 
         @Override
         public boolean equals(Object token) {
-            return ((token instanceof CacheToken) && ((CacheToken)token).mId.equals(mId));
+            return ((token instanceof CacheToken) && ((CacheToken)token).mId == mId);
         }
 
         @Override
         public int hashCode() {
-            return mId.hashCode();
+            return (int) (mId ^ (mId >>> 32));
         }
     }
 
@@ -267,43 +407,76 @@ public final class ContentCache {
      * rows.  We handle simple movement (moveToFirst(), moveToNext(), etc.), and override close()
      * to keep the underlying cursor alive (unless it's no longer cached due to an invalidation).
      * Multiple CachedCursor's can use the same underlying cursor, so we override the various
-     * moveX methods such that each CachedCursor can have its own position information
+     * moveX methods such that each CachedCursor can have its own position information.
+     *
+     * Once closed, a CachedCursor of a row that is still cached is kept by the row and handed out
+     * again by a later hit, so a closed CachedCursor must not be used again.
      */
     public static final class CachedCursor extends CursorWrapper implements CrossProcessCursor {
         // The cursor we're wrapping
         private final Cursor mCursor;
-        // The cache which generated this cursor
-        private final ContentCache mCache;
-        private final String mId;
+        // The cached row we're wrapping, and the cache segment which generated this cursor
+        private final CachedRow mRow;
+        private final SegmentedLruCache.Segment<CachedRow> mSegment;
+        private final long mId;
+        // The next closed cursor of the row, while this one is closed
+        private CachedCursor mNextFree;
         // The current position of the cursor (can only be 0 or 1)
         private int mPosition = -1;
         // The number of rows in this cursor (-1 = not determined)
         private int mCount = -1;
         private boolean isClosed = false;
 
-        public CachedCursor(Cursor cursor, ContentCache cache, String id) {
-            super(cursor);
-            mCursor = cursor;
-            mCache = cache;
+        private CachedCursor(CachedRow row, SegmentedLruCache.Segment<CachedRow> segment,
+                long id) {
+            super(row.mCursor);
+            mCursor = row.mCursor;
+            mRow = row;
+            mSegment = segment;
             mId = id;
-            // Add this to our set of active cursors
-            sActiveCursors.add(cursor);
+        }
+
+        /**
+         * Return a cursor for a cached row, reusing a closed one of the row if there is one.  Must
+         * be called with the segment lock held.
+         */
+        /*package*/ static CachedCursor obtain(CachedRow row,
+                SegmentedLruCache.Segment<CachedRow> segment, long id) {
+            CachedCursor cursor = row.mFreeCursors;
+            if (cursor != null) {
+                row.mFreeCursors = cursor.mNextFree;
+                cursor.mNextFree = null;
+                cursor.mPosition = -1;
+                cursor.isClosed = false;
+            } else {
+                cursor = new CachedCursor(row, segment, id);
+            }
+            // Add this to the users of the row
+            row.mUsers++;
+            return cursor;
         }
 
         /**
          * Close this cursor; if the cursor's cache no longer contains the underlying cursor, and
-         * there are no other users of that cursor, we'll close it here. In any event,
-         * we'll remove the cursor from our set of active cursors.
+         * there are no other users of that cursor, we'll close it here.  If the cache still
+         * contains it, this cursor is kept for reuse.  In any event, we'll remove the cursor from
+         * the users of the row.
          */
         @Override
         public void close() {
-            synchronized(mCache) {
-                int count = sActiveCursors.subtract(mCursor);
-                if ((count == 0) && mCache.mLruCache.get(mId) != (mCursor)) {
+            synchronized(mSegment) {
+                if (isClosed) {
+                    return;
+                }
+                isClosed = true;
+                mRow.mUsers--;
+                if (mSegment.peek(mId) == mRow) {
+                    mNextFree = mRow.mFreeCursors;
+                    mRow.mFreeCursors = this;
+                } else if (mRow.mUsers == 0) {
                     super.close();
                 }
             }
-            isClosed = true;
         }
 
         @Override
@@ -397,27 +570,35 @@ public final class ContentCache {
      * @param name the name of the cache (used for logging)
      * @param baseProjection the projection used for cached cursors; queries whose columns are not
      *  included in baseProjection will always generate a cache miss
-     * @param maxSize the maximum number of content cursors to cache
+     * @param maxSize the maximum number of content cursors to cache; the capacity is divided
+     *  evenly between the segments of the cache
      */
     public ContentCache(String name, String[] baseProjection, int maxSize) {
         mName = name;
-        mLruCache = new LruCache<String, Cursor>(maxSize) {
+        mLruCache = new SegmentedLruCache<CachedRow>(maxSize) {
             @Override
             protected void entryRemoved(
-                    boolean evicted, String key, Cursor oldValue, Cursor newValue) {
+                    boolean evicted, long key, CachedRow oldValue, CachedRow newValue) {
                 // Close this cursor if it's no longer being used
-                if (evicted && !sActiveCursors.contains(oldValue)) {
-                    oldValue.close();
+                if (evicted && oldValue.mUsers == 0) {
+                    oldValue.mCursor.close();
                 }
             }
         };
+        mSegmentStates = new SegmentState[mLruCache.segmentCount()];
+        for (int i = 0; i < mSegmentStates.length; i++) {
+            mSegmentStates[i] = new SegmentState(mName);
+        }
         mBaseProjection = baseProjection;
         mLogTag = "ContentCache-" + name;
         sContentCaches.add(this);
-        mTokenList = new TokenList(mName);
         mStats = new Statistics(this);
     }
 
+    /*package*/ SegmentState stateFor(long id) {
+        return mSegmentStates[mLruCache.indexFor(id)];
+    }
+
     /**
      * Return the base projection for cached rows
      * Get the projection used for cached rows (typically, the largest possible projection)
@@ -433,27 +614,60 @@ public final class ContentCache {
      * @param id the id of the record
      * @return a CacheToken needed in order to write data for the record back to the cache
      */
-    public synchronized CacheToken getCacheToken(String id) {
-        // If another thread is already writing the data, return an invalid token
-        CacheToken token = mTokenList.add(id);
-        if (mLockMap.contains(id)) {
-            token.invalidate();
+    public CacheToken getCacheToken(String id) {
+        return getCacheToken(Long.parseLong(id));
+    }
+
+    /**
+     * Get a CacheToken for a row as specified by its id (_id column)
+     * @param id the id of the record
+     * @return a CacheToken needed in order to write data for the record back to the cache
+     */
+    public CacheToken getCacheToken(long id) {
+        SegmentState state = stateFor(id);
+        synchronized (mLruCache.segmentFor(id)) {
+            // If another thread is already writing the data, return an invalid token
+            CacheToken token = state.mTokenList.add(id);
+            if (state.mLockMap.contains(id)) {
+                token.invalidate();
+            }
+            return token;
         }
-        return token;
     }
 
     public int size() {
         return mLruCache.size();
     }
 
+    /*package*/ int tokenCount() {
+        int count = 0;
+        for (int i = 0; i < mSegmentStates.length; i++) {
+            synchronized (mLruCache.segment(i)) {
+                count += mSegmentStates[i].mTokenList.size();
+            }
+        }
+        return count;
+    }
+
     @VisibleForTesting
-    Cursor get(String id) {
-        return mLruCache.get(id);
+    Cursor get(long id) {
+        CachedRow row = mLruCache.get(id);
+        return (row != null) ? row.mCursor : null;
     }
 
-    protected Map<String, Cursor> getSnapshot() {
-        return mLruCache.snapshot();
+    @VisibleForTesting
+    Statistics getStatistics() {
+        return mStats;
+    }
+
+    protected Map<Long, Cursor> getSnapshot() {
+        Map<Long, Cursor> snapshot = new HashMap<Long, Cursor>();
+        for (Map.Entry<Long, CachedRow> entry: mLruCache.snapshot().entrySet()) {
+            snapshot.put(entry.getKey(), entry.getValue().mCursor);
+        }
+        return snapshot;
     }
+
     /**
      * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
      * cached cursor (if caching was successful) or the original cursor
@@ -464,33 +678,50 @@ public final class ContentCache {
      * @return whether or not the cursor was cached
      */
     public Cursor putCursor(Cursor c, String id, String[] projection, CacheToken token) {
+        return putCursor(c, Long.parseLong(id), projection, token);
+    }
+
+    /**
+     * Try to cache a cursor for the given id and projection; returns a valid cursor, either a
+     * cached cursor (if caching was successful) or the original cursor
+     *
+     * @param c the cursor to be cached
+     * @param id the record id (_id) of the content
+     * @param projection the projection represented by the cursor
+     * @return whether or not the cursor was cached
+     */
+    public Cursor putCursor(Cursor c, long id, String[] projection, CacheToken token) {
         // Make sure the underlying cursor is at the first row, and do this without synchronizing,
         // to prevent deadlock with a writing thread (which might, for example, be calling into
         // CachedCursor.invalidate)
         c.moveToPosition(0);
         return putCursorImpl(c, id, projection, token);
     }
-    public synchronized Cursor putCursorImpl(Cursor c, String id, String[] projection,
+    public Cursor putCursorImpl(Cursor c, long id, String[] projection,
             CacheToken token) {
-        try {
-            if (!token.isValid()) {
-                LogUtils.d(mLogTag, "============ Stale token for " + id);
-                mStats.mStaleCount++;
-                return c;
-            }
-            if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
-                LogUtils.d(mLogTag, "============ Caching cursor for: " + id);
-                // If we've already cached this cursor, invalidate the older one
-                Cursor existingCursor = get(id);
-                if (existingCursor != null) {
-                   unlockImpl(id, null, false);
+        SegmentedLruCache.Segment<CachedRow> segment = mLruCache.segmentFor(id);
+        SegmentState state = stateFor(id);
+        synchronized (segment) {
+            try {
+                if (!token.isValid()) {
+                    LogUtils.d(mLogTag, "============ Stale token for " + id);
+                    state.mStaleCount++;
+                    return c;
+                }
+                if (c != null && Arrays.equals(projection, mBaseProjection) && !sLockCache) {
+                    LogUtils.d(mLogTag, "============ Caching cursor for: " + id);
+                    // If we've already cached this cursor, invalidate the older one
+                    if (segment.containsKey(id)) {
+                       unlockImpl(segment, state, id, null, false);
+                    }
+                    CachedRow row = new CachedRow(c);
+                    segment.put(id, row);
+                    return CachedCursor.obtain(row, segment, id);
                 }
-                mLruCache.put(id, c);
-                return new CachedCursor(c, this, id);
+                return c;
+            } finally {
+                state.mTokenList.remove(token);
             }
-            return c;
-        } finally {
-            mTokenList.remove(token);
         }
     }
 
@@ -500,34 +731,47 @@ public final class ContentCache {
      * @param projection the requested projection for a query
      * @return a cursor based on cached values, or null if the row is not cached
      */
-    public synchronized Cursor getCachedCursor(String id, String[] projection) {
-        // Every 200 calls to getCursor, report cache statistics
-        dumpOnCount(200);
-        if (projection == mBaseProjection) {
-            return getCachedCursorImpl(id);
-        } else {
-            return getMatrixCursor(id, projection);
-        }
+    public Cursor getCachedCursor(String id, String[] projection) {
+        return getCachedCursor(Long.parseLong(id), projection);
     }
 
-    private CachedCursor getCachedCursorImpl(String id) {
-        Cursor c = get(id);
-        if (c != null) {
-            mStats.mHitCount++;
-            return new CachedCursor(c, this, id);
+    /**
+     * Find and, if found, return a cursor, based on cached values, for the supplied id.  With the
+     * base projection, a hit allocates nothing once the row has been read by as many concurrent
+     * users as it has now: the lookup is on the primitive id, and closed cursors are reused.
+     *
+     * @param id the _id column of the desired row
+     * @param projection the requested projection for a query
+     * @return a cursor based on cached values, or null if the row is not cached
+     */
+    public Cursor getCachedCursor(long id, String[] projection) {
+        SegmentedLruCache.Segment<CachedRow> segment = mLruCache.segmentFor(id);
+        SegmentState state = stateFor(id);
+        boolean dump;
+        Cursor cursor;
+        synchronized (segment) {
+            // Every 200 calls to getCursor in a segment, report cache statistics
+            dump = (++state.mOpCount % 200) == 0;
+            if (projection == mBaseProjection) {
+                CachedRow row = segment.get(id);
+                cursor = (row != null) ? CachedCursor.obtain(row, segment, id) : null;
+            } else {
+                cursor = getMatrixCursor(segment, state, id, projection, null);
+            }
         }
-        mStats.mMissCount++;
-        return null;
-    }
-
-    private MatrixCursor getMatrixCursor(String id, String[] projection) {
-        return getMatrixCursor(id, projection, null);
+        if (dump) {
+            dumpStats();
+        }
+        return cursor;
     }
 
-    private MatrixCursor getMatrixCursor(String id, String[] projection,
-            ContentValues values) {
-        Cursor c = get(id);
-        if (c != null) {
+    private MatrixCursor getMatrixCursor(SegmentedLruCache.Segment<CachedRow> segment,
+            SegmentState state, long id, String[] projection, ContentValues values) {
+        // The lookup counts as a hit or a miss, unless it's for an update of the row; a cached
+        // row without the requested columns also counts as a projection miss (see Statistics)
+        CachedRow cachedRow = (values == null) ? segment.get(id) : segment.peek(id);
+        if (cachedRow != null) {
+            Cursor c = cachedRow.mCursor;
             // Make a new MatrixCursor with the requested columns
             MatrixCursor mc = new MatrixCursorWithCachedColumns(projection, 1);
             if (c.getCount() == 0) {
@@ -542,7 +786,7 @@ public final class ContentCache {
             for (String column: projection) {
                 int columnIndex = c.getColumnIndex(column);
                 if (columnIndex < 0) {
-                    mStats.mProjectionMissCount++;
+                    state.mProjectionMissCount++;
                     return null;
                 } else {
                     String value;
@@ -564,10 +808,8 @@ public final class ContentCache {
                 return null;
             }
             mc.addRow(row);
-            mStats.mHitCount++;
             return mc;
         }
-        mStats.mMissCount++;
         return null;
     }
 
@@ -575,20 +817,51 @@ public final class ContentCache {
      * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
      * @param id the id of the row to lock
      */
-    public synchronized void lock(String id) {
-        // Prevent new valid tokens from being created
-        mLockMap.add(id);
-        // Invalidate current tokens
-        int count = mTokenList.invalidateTokens(id);
-        LogUtils.d(mTokenList.mLogTag, "============ Lock invalidated " + count + " tokens for: " + id);
+    public void lock(String id) {
+        lock(Long.parseLong(id));
+    }
+
+    /**
+     * Lock a given row, such that no new valid CacheTokens can be created for the passed-in id.
+     * @param id the id of the row to lock
+     */
+    public void lock(long id) {
+        SegmentState state = stateFor(id);
+        synchronized (mLruCache.segmentFor(id)) {
+            // Prevent new valid tokens from being created
+            state.mLockMap.add(id);
+            // Invalidate current tokens
+            int count = state.mTokenList.invalidateTokens(id);
+            LogUtils.d(state.mTokenList.mLogTag,
+                    "============ Lock invalidated " + count + " tokens for: " + id);
+        }
+    }
+
+    /**
+     * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
+     * @param id the id of the item whose cursor is cached
+     */
+    public void unlock(String id) {
+        unlock(Long.parseLong(id), null);
     }
 
     /**
      * Unlock a given row, allowing new valid CacheTokens to be created for the passed-in id.
      * @param id the id of the item whose cursor is cached
      */
-    public synchronized void unlock(String id) {
-        unlockImpl(id, null, true);
+    public void unlock(long id) {
+        unlock(id, null);
+    }
+
+    /**
+     * If the row with id is currently cached, replaces the cached values with the supplied
+     * ContentValues.  Then, unlock the row, so that new valid CacheTokens can be created.
+     *
+     * @param id the id of the item whose cursor is cached
+     * @param values updated values for this row
+     */
+    public void unlock(String id, ContentValues values) {
+        unlock(Long.parseLong(id), values);
     }
 
     /**
@@ -598,8 +871,11 @@ public final class ContentCache {
      * @param id the id of the item whose cursor is cached
      * @param values updated values for this row
      */
-    public synchronized void unlock(String id, ContentValues values) {
-        unlockImpl(id, values, true);
+    public void unlock(long id, ContentValues values) {
+        SegmentedLruCache.Segment<CachedRow> segment = mLruCache.segmentFor(id);
+        synchronized (segment) {
+            unlockImpl(segment, stateFor(id), id, values, true);
+        }
     }
 
     /**
@@ -611,36 +887,38 @@ public final class ContentCache {
      * @param values new ContentValues for the row (or null if row should simply be removed)
      * @param wasLocked whether or not the row was locked; if so, the lock will be removed
      */
-    private void unlockImpl(String id, ContentValues values, boolean wasLocked) {
-        Cursor c = get(id);
-        if (c != null) {
+    private void unlockImpl(SegmentedLruCache.Segment<CachedRow> segment,
+            SegmentState state, long id, ContentValues values, boolean wasLocked) {
+        CachedRow row = segment.peek(id);
+        if (row != null) {
             LogUtils.d(mLogTag, "=========== Unlocking cache for: " + id);
             if (values != null && !sLockCache) {
-                MatrixCursor cursor = getMatrixCursor(id, mBaseProjection, values);
+                MatrixCursor cursor =
+                        getMatrixCursor(segment, state, id, mBaseProjection, values);
                 if (cursor != null) {
                     LogUtils.d(mLogTag, "=========== Recaching with new values: " + id);
                     cursor.moveToFirst();
-                    mLruCache.put(id, cursor);
+                    segment.put(id, new CachedRow(cursor));
                 } else {
-                    mLruCache.remove(id);
+                    segment.remove(id);
                 }
             } else {
-                mLruCache.remove(id);
+                segment.remove(id);
             }
             // If there are no cursors using the old cached cursor, close it
-            if (!sActiveCursors.contains(c)) {
-                c.close();
+            if (row.mUsers == 0) {
+                row.mCursor.close();
             }
         }
         if (wasLocked) {
-            mLockMap.subtract(id);
+            state.mLockMap.subtract(id);
         }
     }
 
     /**
      * Invalidate the entire cache, without logging
      */
-    public synchronized void invalidate() {
+    public void invalidate() {
         invalidate(null, null, null);
     }
 
@@ -652,35 +930,34 @@ public final class ContentCache {
      * @param uri the uri causing the invalidate (or null)
      * @param selection the selection used with the uri (or null)
      */
-    public synchronized void invalidate(String operation, Uri uri, String selection) {
+    public void invalidate(String operation, Uri uri, String selection) {
         if (DEBUG_CACHE && (operation != null)) {
             LogUtils.d(mLogTag, "============ INVALIDATED BY " + operation + ": " + uri +
                     ", SELECTION: " + selection);
         }
-        mStats.mInvalidateCount++;
-        // Close all cached cursors that are no longer in use
+        // Close all cached cursors that are no longer in use; this counts as an invalidation of
+        // the cache rather than as evictions
         mLruCache.evictAll();
         // Invalidate all current tokens
-        mTokenList.invalidate();
+        for (int i = 0; i < mSegmentStates.length; i++) {
+            synchronized (mLruCache.segment(i)) {
+                mSegmentStates[i].mTokenList.invalidate();
+            }
+        }
     }
 
     // Debugging code below
 
-    private void dumpOnCount(int num) {
-        mStats.mOpCount++;
-        if ((mStats.mOpCount % num) == 0) {
-            dumpStats();
-        }
-    }
-
     /*package*/ void recordQueryTime(Cursor c, long nanoTime) {
-        if (c instanceof CachedCursor) {
-            mStats.hitTimes += nanoTime;
-            mStats.hits++;
-        } else {
-            if (c.getCount() == 1) {
-                mStats.missTimes += nanoTime;
-                mStats.miss++;
+        synchronized (mStats) {
+            if (c instanceof CachedCursor) {
+                mStats.hitTimes += nanoTime;
+                mStats.hits++;
+            } else {
+                if (c.getCount() == 1) {
+                    mStats.missTimes += nanoTime;
+                    mStats.miss++;
+                }
             }
         }
     }
@@ -708,6 +985,11 @@ public final class ContentCache {
         }
     }
 
+    /**
+     * The statistics of a cache, or the totals of all caches.  Hits, misses and evictions are
+     * counted by the segments of the cache and gathered when the statistics are read; the timing
+     * statistics are guarded by the Statistics object.
+     */
     static class Statistics {
         private final ContentCache mCache;
         private final String mName;
@@ -717,15 +999,16 @@ public final class ContentCache {
         private int mHitCount = 0;
         // Basic cache miss (the item is not cached)
         private int mMissCount = 0;
+        // Incremented when a cursor is evicted to make space for another
+        private int mEvictionCount = 0;
         // Incremented when a cachePut is invalid due to an intervening write
         private int mStaleCount = 0;
         // A projection miss occurs when the item is cached, but not all requested columns are
         // available in the base projection
         private int mProjectionMissCount = 0;
-        // Incremented whenever the entire cache is invalidated
+        // Incremented whenever the entire cache is invalidated; the cursors this removes are not
+        // counted as evictions
         private int mInvalidateCount = 0;
-        // Count of operations put/get
-        private int mOpCount = 0;
         // The following are for timing statistics
         private long hits = 0;
         private long hitTimes = 0;
@@ -746,18 +1029,71 @@ public final class ContentCache {
             mName = name;
         }
 
-        private void addCacheStatistics(ContentCache cache) {
+        /**
+         * Gather the counts of the cache from its segments
+         */
+        private synchronized void collect() {
+            if (mCache == null) {
+                return;
+            }
+            int projectionMissCount = 0;
+            int staleCount = 0;
+            for (int i = 0; i < mCache.mSegmentStates.length; i++) {
+                synchronized (mCache.mLruCache.segment(i)) {
+                    projectionMissCount += mCache.mSegmentStates[i].mProjectionMissCount;
+                    staleCount += mCache.mSegmentStates[i].mStaleCount;
+                }
+            }
+            // A lookup of a cached row without all of the requested columns is a projection miss
+            // rather than a hit
+            mHitCount = mCache.mLruCache.hitCount() - projectionMissCount;
+            mMissCount = mCache.mLruCache.missCount();
+            mEvictionCount = mCache.mLruCache.evictionCount();
+            mInvalidateCount = mCache.mLruCache.invalidationCount();
+            mProjectionMissCount = projectionMissCount;
+            mStaleCount = staleCount;
+            mCursorCount = mCache.size();
+            mTokenCount = mCache.tokenCount();
+        }
+
+        synchronized int getHitCount() {
+            collect();
+            return mHitCount;
+        }
+
+        synchronized int getMissCount() {
+            collect();
+            return mMissCount + mProjectionMissCount;
+        }
+
+        synchronized int getEvictionCount() {
+            collect();
+            return mEvictionCount;
+        }
+
+        synchronized int getInvalidateCount() {
+            collect();
+            return mInvalidateCount;
+        }
+
+        private synchronized void addCacheStatistics(ContentCache cache) {
             if (cache != null) {
-                mHitCount += cache.mStats.mHitCount;
-                mMissCount += cache.mStats.mMissCount;
-                mProjectionMissCount += cache.mStats.mProjectionMissCount;
-                mStaleCount += cache.mStats.mStaleCount;
-                hitTimes += cache.mStats.hitTimes;
-                missTimes += cache.mStats.missTimes;
-                hits += cache.mStats.hits;
-                miss += cache.mStats.miss;
-                mCursorCount += cache.size();
-                mTokenCount += cache.mTokenList.size();
+                Statistics stats = cache.mStats;
+                synchronized (stats) {
+                    stats.collect();
+                    mHitCount += stats.mHitCount;
+                    mMissCount += stats.mMissCount;
+                    mEvictionCount += stats.mEvictionCount;
+                    mProjectionMissCount += stats.mProjectionMissCount;
+                    mStaleCount += stats.mStaleCount;
+                    mInvalidateCount += stats.mInvalidateCount;
+                    hitTimes += stats.hitTimes;
+                    missTimes += stats.missTimes;
+                    hits += stats.hits;
+                    miss += stats.miss;
+                    mCursorCount += stats.mCursorCount;
+                    mTokenCount += stats.mTokenCount;
+                }
             }
         }
 
@@ -769,16 +1105,18 @@ public final class ContentCache {
         }
 
         @Override
-        public String toString() {
+        public synchronized String toString() {
+            collect();
             if (mHitCount + mMissCount == 0) return "No cache";
             int totalTries = mMissCount + mProjectionMissCount + mHitCount;
             StringBuilder sb = new StringBuilder();
             sb.append("Cache " + mName);
-            append(sb, "Cursors", mCache == null ? mCursorCount : mCache.size());
+            append(sb, "Cursors", mCursorCount);
             append(sb, "Hits", mHitCount);
             append(sb, "Misses", mMissCount + mProjectionMissCount);
+            append(sb, "Evicted", mEvictionCount);
             append(sb, "Inval", mInvalidateCount);
-            append(sb, "Tokens", mCache == null ? mTokenCount : mCache.mTokenList.size());
+            append(sb, "Tokens", mTokenCount);
             append(sb, "Hit%", mHitCount * 100 / totalTries);
             append(sb, "\nHit time", hitTimes / 1000000.0 / hits);
             append(sb, "Miss time", missTimes / 1000000.0 / miss);
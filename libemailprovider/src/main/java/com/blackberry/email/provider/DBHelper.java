@@ -56,17 +56,18 @@ public final class DBHelper {
 
     // Any changes to the database format *must* include update-in-place code.
     // Version 1: Took version 124 from android source
-    public static final int DATABASE_VERSION = 1;
+    // Version 2: Add the unread, unseen and included message counters to Mailbox
+    // Version 3: Add the MessagePurge queue, which deleting a mailbox now adds its messages to
+    public static final int DATABASE_VERSION = 3;
 
     // Any changes to the database format *must* include update-in-place code.
     // Version 1: took version 8 from Android source
-    public static final int BODY_DATABASE_VERSION = 1;
+    // Version 2: Add the MessageSearch full-text index
+    public static final int BODY_DATABASE_VERSION = 2;
 
     private static final String TRIGGER_MAILBOX_DELETE =
         "create trigger mailbox_delete before delete on " + Mailbox.TABLE_NAME +
-        " begin" +
-        " delete from " + Message.TABLE_NAME +
-        "  where " + MessageColumns.MAILBOX_KEY + "=old." + EmailContent.RECORD_ID +
+        " begin " + MessagePurge.QUEUE_DELETED_MAILBOX +
         "; delete from " + Message.UPDATED_TABLE_NAME +
         "  where " + MessageColumns.MAILBOX_KEY + "=old." + EmailContent.RECORD_ID +
         "; delete from " + Message.DELETED_TABLE_NAME +
@@ -309,6 +310,7 @@ public final class DBHelper {
 
         // Add triggers to maintain message_count.
         createMessageCountTriggers(db);
+        MailboxCounters.createTriggers(db);
         createDeleteDuplicateMessagesTrigger(context, db);
     }
 
@@ -514,14 +516,18 @@ public final class DBHelper {
             + MailboxColumns.LAST_NOTIFIED_MESSAGE_COUNT + " integer not null default 0, "
             + MailboxColumns.TOTAL_COUNT + " integer, "
             + MailboxColumns.HIERARCHICAL_NAME + " text, "
-            + MailboxColumns.LAST_FULL_SYNC_TIME + " integer"
+            + MailboxColumns.LAST_FULL_SYNC_TIME + " integer, "
+            + MailboxColumns.UNREAD_MESSAGE_COUNT + " integer not null default 0, "
+            + MailboxColumns.UNSEEN_MESSAGE_COUNT + " integer not null default 0, "
+            + MailboxColumns.INCLUDED_MESSAGE_COUNT + " integer not null default 0"
             + ");";
         db.execSQL("create table " + Mailbox.TABLE_NAME + s);
         db.execSQL("create index mailbox_" + MailboxColumns.SERVER_ID
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.SERVER_ID + ")");
         db.execSQL("create index mailbox_" + MailboxColumns.ACCOUNT_KEY
                 + " on " + Mailbox.TABLE_NAME + " (" + MailboxColumns.ACCOUNT_KEY + ")");
-        // Deleting a Mailbox deletes associated Messages in all three tables
+        // Deleting a Mailbox deletes associated Messages in the updated and deleted tables, and
+        // queues those in the Message table for MessagePurge
         db.execSQL(TRIGGER_MAILBOX_DELETE);
     }
 
@@ -614,11 +620,15 @@ public final class DBHelper {
             + ");";
         db.execSQL("create table " + Body.TABLE_NAME + s);
         db.execSQL(createIndex(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
+        MessageSearchIndex.createTable(db);
     }
 
     static void upgradeBodyTable(SQLiteDatabase db, int oldVersion, int newVersion) {
         LogUtils.i(LogUtils.TAG, "Upgrading Body database from %d to %d db=", oldVersion, newVersion, db.getPath());
-        // Nothing to upgrade yet - will ship with version 1 (assumption)
+        if (oldVersion < 2) {
+            // The existing messages are indexed by the provider's maintenance, a chunk at a time
+            MessageSearchIndex.createTable(db);
+        }
     }
 
     protected static class BodyDatabaseHelper extends SQLiteOpenHelper {
@@ -673,6 +683,7 @@ public final class DBHelper {
             createMessageStateChangeTable(db);
             createPolicyTable(db);
             createQuickResponseTable(db);
+            MessagePurge.createTable(db);
         }
 
         @Override
@@ -687,7 +698,19 @@ public final class DBHelper {
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
             LogUtils.i(LogUtils.TAG, "Upgrading from %d to %d db=", oldVersion, newVersion, db.getPath());
-            // Nothing to upgrade yet, will ship with version 1 (assumption)
+            if (oldVersion < 2) {
+                for (String column : MailboxCounters.COLUMNS) {
+                    db.execSQL("alter table " + Mailbox.TABLE_NAME + " add column " + column
+                            + " integer not null default 0");
+                }
+                MailboxCounters.createTriggers(db);
+                MailboxCounters.recalculate(db);
+            }
+            if (oldVersion < 3) {
+                MessagePurge.createTable(db);
+                db.execSQL("drop trigger mailbox_delete");
+                db.execSQL(TRIGGER_MAILBOX_DELETE);
+            }
         }
 
         @Override
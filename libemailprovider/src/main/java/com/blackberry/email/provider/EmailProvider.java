@@ -119,6 +119,10 @@ import com.blackberry.email.utils.Utility;
 import com.blackberry.ex.photo.provider.PhotoContract;
 import com.blackberry.lib.emailprovider.R;
 import com.blackberry.pimbase.provider.PIMContentProviderBase;
+import com.blackberry.pimbase.provider.utilities.MaintenanceTask;
+import com.blackberry.pimbase.provider.utilities.ReadConnectionPool;
+import com.blackberry.pimbase.provider.utilities.WriteAheadLog;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 
@@ -172,14 +176,8 @@ public class EmailProvider extends PIMContentProviderBase {
     /** The query string to trigger a folder refresh. */
     private static String QUERY_UIREFRESH = "uirefresh";
 
-    // Definitions for our queries looking for orphaned messages
-    private static final String[] ORPHANS_PROJECTION = new String[] {
-            MessageColumns.ID, MessageColumns.MAILBOX_KEY
-    };
-    private static final int ORPHANS_ID = 0;
-    private static final int ORPHANS_MAILBOX_KEY = 1;
-
-    private static final String WHERE_ID = EmailContent.RECORD_ID + "=?";
+    // Orphaned messages are deleted this many at a time
+    private static final int ORPHANS_CHUNK_SIZE = 200;
 
     private static final int ACCOUNT_BASE = 0;
     private static final int ACCOUNT = ACCOUNT_BASE;
@@ -196,6 +194,7 @@ public class EmailProvider extends PIMContentProviderBase {
     private static final int MAILBOX_NOTIFICATION = MAILBOX_BASE + 2;
     private static final int MAILBOX_MOST_RECENT_MESSAGE = MAILBOX_BASE + 3;
     private static final int MAILBOX_MESSAGE_COUNT = MAILBOX_BASE + 4;
+    private static final int MAILBOX_NOTIFICATION_FOLDERS = MAILBOX_BASE + 5;
 
     private static final int MESSAGE_BASE = 0x2000;
     private static final int MESSAGE = MESSAGE_BASE;
@@ -308,17 +307,30 @@ public class EmailProvider extends PIMContentProviderBase {
         Message.DELETED_TABLE_NAME + " select * from " + Message.TABLE_NAME + " where " +
         EmailContent.RECORD_ID + '=';
 
-    private static final String DELETE_ORPHAN_BODIES = "delete from " + Body.TABLE_NAME +
-        " where " + BodyColumns.MESSAGE_KEY + " in " + "(select " + BodyColumns.MESSAGE_KEY +
-        " from " + Body.TABLE_NAME + " except select " + EmailContent.RECORD_ID + " from " +
-        Message.TABLE_NAME + ')';
-
     private static final String DELETE_BODY = "delete from " + Body.TABLE_NAME +
         " where " + BodyColumns.MESSAGE_KEY + '=';
 
     private static ContentValues CONTENT_VALUES_RESET_NEW_MESSAGE_COUNT;
     private static final ContentValues EMPTY_CONTENT_VALUES = new ContentValues();
 
+    // The columns mailboxNotificationFolders adds to UIProvider.FOLDERS_PROJECTION
+    private static final String NOTIFICATION_UNREAD_COUNT = "notificationUnreadCount";
+    private static final String NOTIFICATION_UNSEEN_COUNT = "notificationUnseenCount";
+    private static final String NOTIFICATION_LATEST_MESSAGE_ID = "notificationLatestMessageId";
+    private static final String[] NOTIFICATION_FOLDERS_PROJECTION =
+            (new ImmutableList.Builder<String>()
+                    .addAll(ImmutableList.copyOf(UIProvider.FOLDERS_PROJECTION))
+                    .add(NOTIFICATION_UNREAD_COUNT)
+                    .add(NOTIFICATION_UNSEEN_COUNT)
+                    .add(NOTIFICATION_LATEST_MESSAGE_ID)
+                    .build().toArray(new String[0]));
+
+    // Generated SQL for the hot UI queries, keyed by uri match, projection and unseen flag
+    private static final QueryCache sQueryCache = new QueryCache(32);
+
+    // Compiled statements kept per connection; large enough for every cached UI query
+    private static final int SQL_STATEMENT_CACHE_SIZE = 64;
+
     private static final String MESSAGE_URI_PARAMETER_MAILBOX_ID = "mailboxId";
 
     // For undo handling
@@ -371,12 +383,24 @@ public class EmailProvider extends PIMContentProviderBase {
         return match;
     }
 
+    @Override
+    protected int getTraceMatch(Uri uri) {
+        return sURIMatcher.match(uri);
+    }
+
     protected static Uri INTEGRITY_CHECK_URI;
     public static Uri ACCOUNT_BACKUP_URI;
     private static Uri FOLDER_STATUS_URI;
 
     private SQLiteDatabase mDatabase;
     private SQLiteDatabase mBodyDatabase;
+    // Whether mDatabase and the attached body database are in WAL mode
+    private volatile boolean mWriteAheadLogging;
+    // Read connections to mDatabase, with the body database attached; null unless it is in WAL
+    // mode
+    private ReadConnectionPool mReaders;
+    // Deletes the messages of deleted mailboxes in the background
+    private MessagePurge mPurge;
     private volatile DBHelper.DatabaseHelper mDbHelper;
     private volatile DBHelper.BodyDatabaseHelper mBodyDbHelper;
 
@@ -526,6 +550,7 @@ public class EmailProvider extends PIMContentProviderBase {
     @Override
     protected void closeAllDatabases() {
         synchronized (sDatabaseLock) {
+            closeReaders();
             if (mDbHelper != null) {
                 mDbHelper.close();
             }
@@ -542,9 +567,34 @@ public class EmailProvider extends PIMContentProviderBase {
         return getDatabase(getContext());
     }
 
+    /**
+     * The next read connection of the pool, or the writable database when the databases aren't in
+     * WAL mode, or when this thread is in a transaction, whose changes only the writable database
+     * sees until it commits
+     */
     @Override
     protected SQLiteDatabase getReadableDatabase() {
-        return getDatabase(getContext());
+        final SQLiteDatabase db = getDatabase(getContext());
+        final ReadConnectionPool readers;
+        synchronized (sDatabaseLock) {
+            readers = mReaders;
+        }
+        if (readers == null || db.inTransaction()) {
+            return db;
+        }
+        return readers.get();
+    }
+
+    @Override
+    protected boolean useWriteAheadLogging() {
+        return mWriteAheadLogging;
+    }
+
+    private void closeReaders() {
+        if (mReaders != null) {
+            mReaders.close();
+            mReaders = null;
+        }
     }
 
     @Override
@@ -584,26 +634,50 @@ public class EmailProvider extends PIMContentProviderBase {
             checkDatabases();
 
             mDatabase = mDbHelper.getWritableDatabase();
+            mDatabase.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
+            MessageSearchIndex.onMailboxesChanged();
             mBodyDatabase = mBodyDbHelper.getWritableDatabase();
 
-            if (mBodyDatabase != null) {
-                String bodyFileName = mBodyDatabase.getPath();
+            final String bodyFileName = mBodyDatabase != null ? mBodyDatabase.getPath() : null;
+            if (bodyFileName != null) {
                 mDatabase.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
             }
 
+            // SQLiteDatabase can't keep a database with others attached in WAL mode, and resets
+            // the journal mode whenever it opens one without it: switch both databases back, and
+            // read them on connections of their own, so that queries don't wait for syncs
+            mWriteAheadLogging = WriteAheadLog.enable(mDatabase, null)
+                    && (bodyFileName == null || WriteAheadLog.enable(mDatabase, "BodyDatabase"));
+            if (mWriteAheadLogging) {
+                mReaders = new ReadConnectionPool(mDatabase.getPath(),
+                        ReadConnectionPool.defaultSize()) {
+                    @Override
+                    protected void onOpen(SQLiteDatabase db) {
+                        db.setMaxSqlCacheSize(SQL_STATEMENT_CACHE_SIZE);
+                        if (bodyFileName != null) {
+                            db.execSQL("attach \"" + bodyFileName + "\" as BodyDatabase");
+                        }
+                    }
+                };
+            }
+
             // Restore accounts if the database is corrupted...
             restoreIfNeeded(context, mDatabase);
             // Check for any orphaned Messages in the updated/deleted tables
             deleteMessageOrphans(mDatabase, Message.UPDATED_TABLE_NAME);
             deleteMessageOrphans(mDatabase, Message.DELETED_TABLE_NAME);
-            // Delete orphaned mailboxes/messages/policies (account no longer
-            // exists)
+            // Delete orphaned mailboxes/policies (account no longer exists)
             deleteUnlinked(mDatabase, Mailbox.TABLE_NAME, MailboxColumns.ACCOUNT_KEY,
                     AccountColumns.ID, Account.TABLE_NAME);
-            deleteUnlinked(mDatabase, Message.TABLE_NAME, MessageColumns.ACCOUNT_KEY,
-                    AccountColumns.ID, Account.TABLE_NAME);
             deleteUnlinked(mDatabase, Policy.TABLE_NAME, PolicyColumns.ID,
                     AccountColumns.POLICY_KEY, Account.TABLE_NAME);
+            // The messages of the mailboxes deleted above, and of those deleted before the
+            // process last died, are left to the purge
+            MessagePurge.queueOrphans(mDatabase);
+            if (mPurge == null) {
+                mPurge = new MessagePurge(this);
+            }
+            mPurge.schedule();
             fixParentKeys(mDatabase);
             initUiProvider();
             return mDatabase;
@@ -652,60 +726,44 @@ public class EmailProvider extends PIMContentProviderBase {
 
     protected static void deleteMessageOrphans(SQLiteDatabase database, String tableName) {
         if (database != null) {
-            // We'll look at all of the items in the table; there won't be many
-            // typically
-            Cursor c = database.query(tableName, ORPHANS_PROJECTION, null, null, null, null, null);
-            // Usually, there will be nothing in these tables, so make a quick
-            // check
-            try {
-                if (c.getCount() == 0)
-                    return;
-                ArrayList<Long> foundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> notFoundMailboxes = new ArrayList<Long>();
-                ArrayList<Long> deleteList = new ArrayList<Long>();
-                String[] bindArray = new String[1];
-                while (c.moveToNext()) {
-                    // Get the mailbox key and see if we've already found this
-                    // mailbox
-                    // If so, we're fine
-                    long mailboxId = c.getLong(ORPHANS_MAILBOX_KEY);
-                    // If we already know this mailbox doesn't exist, mark the
-                    // message for deletion
-                    if (notFoundMailboxes.contains(mailboxId)) {
-                        deleteList.add(c.getLong(ORPHANS_ID));
-                        // If we don't know about this mailbox, we'll try to
-                        // find it
-                    } else if (!foundMailboxes.contains(mailboxId)) {
-                        bindArray[0] = Long.toString(mailboxId);
-                        Cursor boxCursor = database.query(Mailbox.TABLE_NAME,
-                                Mailbox.ID_PROJECTION, WHERE_ID, bindArray, null, null, null);
-                        try {
-                            // If it exists, we'll add it to the "found"
-                            // mailboxes
-                            if (boxCursor.moveToFirst()) {
-                                foundMailboxes.add(mailboxId);
-                                // Otherwise, we'll add to "not found" and mark
-                                // the message for deletion
-                            } else {
-                                notFoundMailboxes.add(mailboxId);
-                                deleteList.add(c.getLong(ORPHANS_ID));
-                            }
-                        } finally {
-                            boxCursor.close();
-                        }
-                    }
-                }
-                // Now, delete the orphan messages
-                for (long messageId : deleteList) {
-                    bindArray[0] = Long.toString(messageId);
-                    database.delete(tableName, WHERE_ID, bindArray);
-                }
-            } finally {
-                c.close();
+            // Usually, there will be nothing in these tables; otherwise delete the orphans a
+            // chunk at a time, each chunk in a single statement
+            final String selection = orphanSelection(tableName);
+            while (MaintenanceTask.deleteChunk(database, tableName, selection, ORPHANS_CHUNK_SIZE)
+                    == ORPHANS_CHUNK_SIZE) {
+                // Keep going
             }
         }
     }
 
+    /**
+     * The selection of the rows of an updated/deleted message table whose mailbox no longer
+     * exists
+     */
+    private static String orphanSelection(String tableName) {
+        return "NOT EXISTS (SELECT 1 FROM " + Mailbox.TABLE_NAME + " WHERE " + Mailbox.TABLE_NAME
+                + "." + EmailContent.RECORD_ID + "=" + tableName + "."
+                + MessageColumns.MAILBOX_KEY + ")";
+    }
+
+    @Override
+    protected void addDbMaintenanceTasks(ArrayList<MaintenanceTask> tasks) {
+        final SQLiteOpenHelper helper = getDatabaseHelpers(false)[0];
+        for (String tableName : new String[] {
+                Message.UPDATED_TABLE_NAME, Message.DELETED_TABLE_NAME }) {
+            tasks.add(MaintenanceTask.delete("orphans." + tableName, helper, tableName,
+                    orphanSelection(tableName), ORPHANS_CHUNK_SIZE));
+        }
+        // Bodies and index rows are deleted along with their messages, or swept after bulk
+        // deletes; these catch the sweeps cut short
+        tasks.add(MessagePurge.sweep(helper, Body.TABLE_NAME, BodyColumns.MESSAGE_KEY));
+        tasks.add(MessagePurge.sweep(helper, MessageSearchIndex.TABLE_NAME, "docid"));
+        // The index is kept up to date as messages change; this catches what that missed, e.g.
+        // the messages that existed before the index did
+        tasks.add(MessageSearchIndex.backfill(helper));
+        tasks.add(MailboxCounters.check(helper));
+    }
+
     @Override
     public int pimDelete(Uri uri, String selection, String[] selectionArgs) {
         Log.d(TAG, "Delete: " + uri);
@@ -775,8 +833,9 @@ public class EmailProvider extends PIMContentProviderBase {
                     // handled in triggers
                     // 3) End the transaction, committing all changes atomically
                     //
-                    // Bodies are auto-deleted here; Attachments are
-                    // auto-deleted via trigger
+                    // The Body of a single message is deleted here, those of bulk
+                    // deletes are swept by mPurge; Attachments are auto-deleted via
+                    // trigger. Deleting mailboxes only queues their messages for mPurge.
                     messageDeletion = true;
                     db.beginTransaction();
                     break;
@@ -851,15 +910,15 @@ public class EmailProvider extends PIMContentProviderBase {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
             if (messageDeletion) {
-                if (match == MESSAGE_ID) {
-                    //I know the Msg is deletes so will now sync against domain provider
-                    MessageProviderUtilities.deleteMessage(context, id);
+                if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+                    if (match == MESSAGE_ID) {
+                        //I know the Msg is deletes so will now sync against domain provider
+                        MessageProviderUtilities.deleteMessage(context, id);
+                    }
                     // Delete the Body record associated with the deleted
                     // message
                     db.execSQL(DELETE_BODY + id);
-                } else {
-                    // Delete any orphaned Body records
-                    db.execSQL(DELETE_ORPHAN_BODIES);
+                    MessageSearchIndex.delete(db, Long.parseLong(id));
                 }
                 db.setTransactionSuccessful();
             }
@@ -871,6 +930,17 @@ public class EmailProvider extends PIMContentProviderBase {
                 db.endTransaction();
             }
         }
+        if (messageDeletion && match != MESSAGE_ID && match != SYNCED_MESSAGE_ID) {
+            if (match == MESSAGE) {
+                // Delete the Body records left behind, in the background
+                mPurge.sweepOrphans();
+            } else {
+                mPurge.schedule();
+            }
+        }
+        if (match == MAILBOX || match == MAILBOX_ID || match == ACCOUNT || match == ACCOUNT_ID) {
+            MessageSearchIndex.onMailboxesChanged();
+        }
 
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_DELETE, id);
@@ -1010,6 +1080,9 @@ public class EmailProvider extends PIMContentProviderBase {
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.put(MailboxColumns.UNREAD_COUNT, 0);
             values.put(MailboxColumns.MESSAGE_COUNT, 0);
+            for (String column : MailboxCounters.COLUMNS) {
+                values.put(column, 0);
+            }
         }
 
         Uri resultUri = null;
@@ -1107,8 +1180,12 @@ public class EmailProvider extends PIMContentProviderBase {
             ContentValues values,
             boolean invokeIncomingInterceptLogic) {
 
-        long longId = this.getDatabase(context).insert(Message.TABLE_NAME, "foo", values);
+        final SQLiteDatabase db = this.getDatabase(context);
+        long longId = db.insert(Message.TABLE_NAME, "foo", values);
         Uri resultUri = ContentUris.withAppendedId(uri, longId);
+        if (longId != -1) {
+            MessageSearchIndex.insertMessage(db, longId, values);
+        }
 
         // NOTE THIS WAS A PROTOTYPE FINAL CODE MAY ONLY LIVE AT DOMAIN LAYER
         // based on above logic
@@ -1138,6 +1215,7 @@ public class EmailProvider extends PIMContentProviderBase {
 
         long longId = this.getDatabase(context).insert(Mailbox.TABLE_NAME, "foo", values);
         Uri resultUri = ContentUris.withAppendedId(uri, longId);
+        MessageSearchIndex.onMailboxesChanged();
 
         if (values.containsKey(MailboxColumns.TYPE)) {
             if (values.getAsInteger(MailboxColumns.TYPE) < Mailbox.TYPE_NOT_EMAIL) {
@@ -1168,8 +1246,13 @@ public class EmailProvider extends PIMContentProviderBase {
      * @return
      */
     protected Uri handleBodyInsert(Context context, Uri uri, ContentValues values) {
-        long longId = this.getDatabase(context).insert(Body.TABLE_NAME, "foo", values);
+        final SQLiteDatabase db = this.getDatabase(context);
+        long longId = db.insert(Body.TABLE_NAME, "foo", values);
         Uri resultUri = ContentUris.withAppendedId(uri, longId);
+        final Long messageKey = values.getAsLong(BodyColumns.MESSAGE_KEY);
+        if (longId != -1 && messageKey != null && MessageSearchIndex.affectsBody(values)) {
+            MessageSearchIndex.reindex(db, messageKey);
+        }
 
         MessageProviderUtilities.insertBody(context, resultUri, values);
         return resultUri;
@@ -1537,6 +1620,8 @@ public class EmailProvider extends PIMContentProviderBase {
             sURIMatcher.addURI(EmailContent.AUTHORITY, "mailboxMostRecentMessage/#",
                     MAILBOX_MOST_RECENT_MESSAGE);
             sURIMatcher.addURI(EmailContent.AUTHORITY, "mailboxCount/#", MAILBOX_MESSAGE_COUNT);
+            sURIMatcher.addURI(EmailContent.AUTHORITY, "mailboxNotificationFolders/#",
+                    MAILBOX_NOTIFICATION_FOLDERS);
 
             // Virtual mailboxes
             sURIMatcher.addURI(EmailContent.AUTHORITY, "virtualMailbox", VIRTUAL_MAILBOX);
@@ -1652,6 +1737,8 @@ public class EmailProvider extends PIMContentProviderBase {
     public void checkDatabases() {
         synchronized (sDatabaseLock) {
             // Uncache the databases
+            closeReaders();
+            closeCheckpointConnections();
 
             if (mBodyDbHelper != null) {
                 mBodyDbHelper.close();
@@ -1718,9 +1805,8 @@ public class EmailProvider extends PIMContentProviderBase {
             }
             throw e;
         }
-        Context context = getContext();
         // See the comment at delete(), above
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getReadableDatabase();
         int table = match >> BASE_SHIFT;
         String limit = uri.getQueryParameter(EmailContent.PARAMETER_LIMIT);
         String id;
@@ -1773,6 +1859,9 @@ public class EmailProvider extends PIMContentProviderBase {
                 case MAILBOX_NOTIFICATION:
                     c = notificationQuery(uri);
                     return c;
+                case MAILBOX_NOTIFICATION_FOLDERS:
+                    c = notificationFoldersQuery(uri);
+                    return c;
                 case MAILBOX_MOST_RECENT_MESSAGE:
                     c = mostRecentMessageQuery(uri);
                     return c;
@@ -1855,7 +1944,8 @@ public class EmailProvider extends PIMContentProviderBase {
             checkDatabases();
             throw e;
         } catch (RuntimeException e) {
-            checkDatabases();
+            // Not a database failure (those are SQLiteExceptions, above): leave the databases,
+            // and the cursors other threads have open on them, alone
             e.printStackTrace();
             // will through this as to not let user know it was a db thing
             throw new IllegalArgumentException("Unknown URI " + uri);
@@ -2263,6 +2353,9 @@ public class EmailProvider extends PIMContentProviderBase {
         if (match == MAILBOX_ID || match == MAILBOX) {
             values.remove(MailboxColumns.UNREAD_COUNT);
             values.remove(MailboxColumns.MESSAGE_COUNT);
+            for (String column : MailboxCounters.COLUMNS) {
+                values.remove(column);
+            }
         }
 
         String tableName = TABLE_NAMES.valueAt(table);
@@ -2433,6 +2526,9 @@ public class EmailProvider extends PIMContentProviderBase {
                     result = db.update(tableName, values, whereWithId(id, selection),
                             selectionArgs);
                     if (match == MESSAGE_ID || match == SYNCED_MESSAGE_ID) {
+                        if (MessageSearchIndex.affectsMessage(values)) {
+                            MessageSearchIndex.reindex(db, Long.parseLong(id));
+                        }
                         //note both backend service and device msg updates hit this path
                         handleMessageUpdated(context,uri,id,values);
                     } else if (match == ATTACHMENT_ID) {
@@ -2466,6 +2562,11 @@ public class EmailProvider extends PIMContentProviderBase {
                         notifyChange(UIPROVIDER_ALL_ACCOUNTS_NOTIFIER, null);
                         restartPushForAccount(context, db, values, id);
                     } else if (match == BODY_ID) {
+                        if (MessageSearchIndex.affectsBody(values)) {
+                            MessageSearchIndex.reindex(db, Body.TABLE_NAME,
+                                    BodyColumns.MESSAGE_KEY, whereWithId(id, selection),
+                                    selectionArgs);
+                        }
                         if ((values.containsKey(BodyColumns.HTML_CONTENT) || values
                                 .containsKey(BodyColumns.TEXT_CONTENT))
                                 && values.containsKey(BodyColumns.MESSAGE_KEY)) {
@@ -2484,6 +2585,9 @@ public class EmailProvider extends PIMContentProviderBase {
                         final ContentValues insertValues = new ContentValues(values);
                         insertValues.put(EmailContent.Body.MESSAGE_KEY, selectionArgs[0]);
                         insert(EmailContent.Body.CONTENT_URI, insertValues);
+                    } else if (result > 0 && MessageSearchIndex.affectsBody(values)) {
+                        MessageSearchIndex.reindex(db, Body.TABLE_NAME, BodyColumns.MESSAGE_KEY,
+                                selection, selectionArgs);
                     }
                     break;
                 case MESSAGE:
@@ -2500,6 +2604,11 @@ public class EmailProvider extends PIMContentProviderBase {
                         }
                     }
                     result = db.update(tableName, values, selection, selectionArgs);
+                    if (match == MESSAGE && result > 0
+                            && MessageSearchIndex.affectsMessage(values)) {
+                        MessageSearchIndex.reindex(db, Message.TABLE_NAME,
+                                EmailContent.RECORD_ID, selection, selectionArgs);
+                    }
                     break;
 
                 case ACCOUNT_RESET_NEW_COUNT_ID:
@@ -2538,6 +2647,9 @@ public class EmailProvider extends PIMContentProviderBase {
             checkDatabases();
             throw e;
         }
+        if ((match == MAILBOX || match == MAILBOX_ID) && values.containsKey(MailboxColumns.TYPE)) {
+            MessageSearchIndex.onMailboxesChanged();
+        }
 
         // Notify all notifier cursors
         sendNotifierChange(getBaseNotificationUri(match), NOTIFICATION_OP_UPDATE, id);
@@ -2605,6 +2717,7 @@ public class EmailProvider extends PIMContentProviderBase {
 
             Uri messageUri = null;
             String folderUri = null;
+            long[] localResults = null;
 
             if (TextUtils.equals(method, UIProvider.AccountCallMethods.SEND_MESSAGE)) {
                 messageUri = uiSendDraftMessage(accountId, extras);
@@ -2617,6 +2730,10 @@ public class EmailProvider extends PIMContentProviderBase {
                 String filter = extras.getString(UIProvider.SearchQueryParameters.QUERY);
                 int limit = extras.getInt("_limit", -1);
                 folderUri = apiRemoteSearch(accountId, filter, limit);
+                // Hand back what the device already has, while the server is searched
+                localResults = MessageSearchIndex.search(getDatabase(getContext()), accountId,
+                        filter, limit > 0 ? limit
+                                : UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMT);
             } else if (TextUtils.equals(method, UIProvider.AccountCallMethods.FETCH_MORE)) {
                 folderUri = extras.getString(UIProvider.FolderColumns.URI);
                 Mailbox searchMailbox = getMailbox(Uri.parse(folderUri));
@@ -2631,8 +2748,12 @@ public class EmailProvider extends PIMContentProviderBase {
                 result = new Bundle(1);
                 result.putParcelable(UIProvider.MessageColumns.URI, messageUri);
             } else if (folderUri != null) {
-                result = new Bundle(1);
+                result = new Bundle(2);
                 result.putString(UIProvider.FolderColumns.URI, folderUri);
+                if (localResults != null) {
+                    result.putLongArray(UIProvider.AccountCallMethods.LOCAL_SEARCH_RESULTS,
+                            localResults);
+                }
             } else {
                 result = null;
             }
@@ -2727,35 +2848,34 @@ public class EmailProvider extends PIMContentProviderBase {
             attachmentService == null ? DEFAULT_ATTACHMENT_SERVICE : attachmentService;
     }
 
+    /**
+     * The unread and unseen counts of each mailbox of an account, read from the counters the
+     * Mailbox table maintains
+     */
     private Cursor notificationQuery(final Uri uri) {
-        final SQLiteDatabase db = getDatabase(getContext());
+        final SQLiteDatabase db = getReadableDatabase();
         final String accountId = uri.getLastPathSegment();
-
-        final StringBuilder sqlBuilder = new StringBuilder();
-        sqlBuilder.append("SELECT ");
-        sqlBuilder.append(MessageColumns.MAILBOX_KEY).append(", ");
-        sqlBuilder.append("SUM(CASE ")
-                .append(MessageColumns.FLAG_READ).append(" WHEN 0 THEN 1 ELSE 0 END), ");
-        sqlBuilder.append("SUM(CASE ")
-                .append(MessageColumns.FLAG_SEEN).append(" WHEN 0 THEN 1 ELSE 0 END)\n");
-        sqlBuilder.append("FROM ");
-        sqlBuilder.append(Message.TABLE_NAME).append('\n');
-        sqlBuilder.append("WHERE ");
-        sqlBuilder.append(MessageColumns.ACCOUNT_KEY).append(" = ?\n");
-        sqlBuilder.append("GROUP BY ");
-        sqlBuilder.append(MessageColumns.MAILBOX_KEY);
-
-        final String sql = sqlBuilder.toString();
-
-        final String[] selectionArgs = {
+        return db.rawQuery(MailboxCounters.NOTIFICATION_QUERY, new String[] {
             accountId
-        };
+        });
+    }
 
-        return db.rawQuery(sql, selectionArgs);
+    /**
+     * The folders of an account's mailboxes that have messages, as uifolder returns them, each
+     * followed by its unread and unseen counts; see
+     * {@link EmailContent#MAILBOX_NOTIFICATION_FOLDERS_URI}
+     */
+    private Cursor notificationFoldersQuery(final Uri uri) {
+        final SQLiteDatabase db = getReadableDatabase();
+        final String accountId = uri.getLastPathSegment();
+        final Cursor c = db.rawQuery(genQueryNotificationFolders(), new String[] {
+            accountId
+        });
+        return getFolderListCursor(c, Long.parseLong(accountId), NOTIFICATION_FOLDERS_PROJECTION);
     }
 
     public Cursor mostRecentMessageQuery(Uri uri) {
-        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteDatabase db = getReadableDatabase();
         String mailboxId = uri.getLastPathSegment();
         return db.rawQuery("select max(_id) from Message where mailboxKey=?",
                 new String[] {
@@ -2764,9 +2884,9 @@ public class EmailProvider extends PIMContentProviderBase {
     }
 
     private Cursor getMailboxMessageCount(Uri uri) {
-        SQLiteDatabase db = getDatabase(getContext());
+        SQLiteDatabase db = getReadableDatabase();
         String mailboxId = uri.getLastPathSegment();
-        return db.rawQuery("select count(*) from Message where mailboxKey=? AND flagIncluded = 1 ",
+        return db.rawQuery(MailboxCounters.INCLUDED_COUNT_QUERY,
                 new String[] {
                     mailboxId
                 });
@@ -3353,14 +3473,18 @@ public class EmailProvider extends PIMContentProviderBase {
                     .build();
             values.put(UIProvider.MessageColumns.ATTACHMENT_LIST_URI, attachmentListUri.toString());
         }
+        // The select clause embeds values of this message, so it cannot be cached
         StringBuilder sb = genSelect(getMessageViewMap(), uiProjection, values);
-        sb.append(" FROM " + Message.TABLE_NAME + " LEFT JOIN " + Body.TABLE_NAME + " ON " +
-                Body.MESSAGE_KEY + "=" + Message.TABLE_NAME + "." + Message.RECORD_ID + " WHERE " +
-                Message.TABLE_NAME + "." + Message.RECORD_ID + "=?");
+        sb.append(VIEW_MESSAGE_FROM_CLAUSE);
         String sql = sb.toString();
         return new MessageQuery(sql, attachmentJson);
     }
 
+    private static final String VIEW_MESSAGE_FROM_CLAUSE = " FROM " + Message.TABLE_NAME +
+            " LEFT JOIN " + Body.TABLE_NAME + " ON " + Body.MESSAGE_KEY + "=" +
+            Message.TABLE_NAME + "." + Message.RECORD_ID + " WHERE " + Message.TABLE_NAME + "." +
+            Message.RECORD_ID + "=?";
+
     private static void appendConversationInfoColumns(final StringBuilder stringBuilder) {
         // TODO(skennedy) These columns are needed for the respond call for
         // ConversationInfo :(
@@ -3380,6 +3504,10 @@ public class EmailProvider extends PIMContentProviderBase {
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryMailboxMessages(String[] uiProjection, final boolean unseenOnly) {
+        final String cached = sQueryCache.get(UI_MESSAGES, uiProjection, unseenOnly);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         appendConversationInfoColumns(sb);
         sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
@@ -3395,7 +3523,45 @@ public class EmailProvider extends PIMContentProviderBase {
         sb.append("AND ").append(MessageColumns.FLAG_INCLUDED).append(" = 1 ");
         sb.append("ORDER BY " + MessageColumns.TIMESTAMP + " DESC ");
         sb.append("LIMIT " + UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMT);
-        return sb.toString();
+        return sQueryCache.put(UI_MESSAGES, uiProjection, unseenOnly, sb.toString());
+    }
+
+    /**
+     * Generate the "message list" SQLite query of the search mailbox of {@link #uiSearch}: the
+     * results delivered to the mailbox by the remote search, together with the messages of the
+     * account that match the search in the local index, so that those come up right away. A
+     * local match is left out once the remote search has delivered its own copy of the message.
+     * The arguments are the search mailbox id, the FTS expression, the account id and the search
+     * mailbox id again.
+     *
+     * @param uiProjection as passed from UnifiedEmail
+     * @param unseenOnly <code>true</code> to only return unseen messages
+     * @return the SQLite query to be executed on the EmailProvider database
+     */
+    private static String genQuerySearchMailboxMessages(String[] uiProjection,
+            final boolean unseenOnly) {
+        final String cached = sQueryCache.get(UI_SEARCH, uiProjection, unseenOnly);
+        if (cached != null) {
+            return cached;
+        }
+        StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
+        appendConversationInfoColumns(sb);
+        sb.append(" FROM " + Message.TABLE_NAME + " WHERE " +
+                Message.FLAG_LOADED_SELECTION + " AND (" +
+                Message.MAILBOX_KEY + "=? OR (" +
+                Message.RECORD_ID + " IN (" + MessageSearchIndex.MATCHING_MESSAGE_IDS + ") AND (" +
+                MessageColumns.MESSAGE_ID + " IS NULL OR " + MessageColumns.MESSAGE_ID +
+                " NOT IN (SELECT " + MessageColumns.MESSAGE_ID + " FROM " + Message.TABLE_NAME +
+                " WHERE " + Message.MAILBOX_KEY + "=? AND " + MessageColumns.MESSAGE_ID +
+                " IS NOT NULL)))) ");
+        if (unseenOnly) {
+            sb.append("AND ").append(MessageColumns.FLAG_SEEN).append(" = 0 ");
+            sb.append("AND ").append(MessageColumns.FLAG_READ).append(" = 0 ");
+        }
+        sb.append("AND ").append(MessageColumns.FLAG_INCLUDED).append(" = 1 ");
+        sb.append("ORDER BY " + MessageColumns.TIMESTAMP + " DESC ");
+        sb.append("LIMIT " + UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMT);
+        return sQueryCache.put(UI_SEARCH, uiProjection, unseenOnly, sb.toString());
     }
 
     /**
@@ -3420,6 +3586,8 @@ public class EmailProvider extends PIMContentProviderBase {
 
         // adding only included ones **MFL
         sb.append(MessageColumns.FLAG_INCLUDED).append(" = 1 AND ");
+        // Messages of several mailboxes may include those of mailboxes just deleted
+        sb.append(MessagePurge.NOT_QUEUED_SELECTION).append(" AND ");
 
         if (VirtualMailbox.isCombinedMailbox(getContext(), mailboxId)) {
             if (unseenOnly) {
@@ -3466,9 +3634,13 @@ public class EmailProvider extends PIMContentProviderBase {
      * @return the SQLite query to be executed on the EmailProvider database
      */
     private static String genQueryConversation(String[] uiProjection) {
+        final String cached = sQueryCache.get(UI_CONVERSATION, uiProjection, false);
+        if (cached != null) {
+            return cached;
+        }
         StringBuilder sb = genSelect(getMessageListMap(), uiProjection);
         sb.append(" FROM " + Message.TABLE_NAME + " WHERE " + Message.RECORD_ID + "=?");
-        return sb.toString();
+        return sQueryCache.put(UI_CONVERSATION, uiProjection, false, sb.toString());
     }
 
     /**
@@ -3488,6 +3660,35 @@ public class EmailProvider extends PIMContentProviderBase {
         return sb.toString();
     }
 
+    /**
+     * Generate the query of {@link #notificationFoldersQuery}: the folder columns of every mailbox
+     * of an account that has messages, including subfolders and search results, followed by the
+     * mailbox's counters and the id of its newest message
+     *
+     * @return the SQLite query to be executed on the EmailProvider database
+     */
+    private static String genQueryNotificationFolders() {
+        final String cached = sQueryCache.get(MAILBOX_NOTIFICATION_FOLDERS,
+                NOTIFICATION_FOLDERS_PROJECTION, false);
+        if (cached != null) {
+            return cached;
+        }
+        final StringBuilder sb = genSelect(getFolderListMap(), UIProvider.FOLDERS_PROJECTION);
+        sb.append(',').append(MailboxColumns.UNREAD_MESSAGE_COUNT).append(" AS ")
+                .append(NOTIFICATION_UNREAD_COUNT);
+        sb.append(',').append(MailboxColumns.UNSEEN_MESSAGE_COUNT).append(" AS ")
+                .append(NOTIFICATION_UNSEEN_COUNT);
+        // Message ids are autoincremented, so the newest message has the highest; a lookup in
+        // the mailboxKey index
+        sb.append(",(SELECT MAX(" + Message.RECORD_ID + ") FROM " + Message.TABLE_NAME
+                + " WHERE " + MessageColumns.MAILBOX_KEY + "=" + Mailbox.TABLE_NAME + "."
+                + Mailbox.RECORD_ID + ") AS ").append(NOTIFICATION_LATEST_MESSAGE_ID);
+        sb.append(" FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.ACCOUNT_KEY +
+                "=? AND " + MailboxColumns.MESSAGE_COUNT + ">0");
+        return sQueryCache.put(MAILBOX_NOTIFICATION_FOLDERS, NOTIFICATION_FOLDERS_PROJECTION,
+                false, sb.toString());
+    }
+
     /**
      * Generate the "all folders" SQLite query, given a projection from
      * UnifiedEmail. The list is sorted by the name as it appears in a
@@ -3984,7 +4185,8 @@ public class EmailProvider extends PIMContentProviderBase {
                                 + MailboxColumns.ID
                                 + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE
                                 + "="
-                        + Mailbox.TYPE_TRASH + ")", whereArgs);
+                        + Mailbox.TYPE_TRASH + ") AND " + MessagePurge.NOT_QUEUED_SELECTION,
+                        whereArgs);
                 values[UIProvider.FOLDER_UNREAD_COUNT_COLUMN] = unreadCount;
                 // Add the icon
                 values[UIProvider.FOLDER_ICON_RES_ID_COLUMN] = R.drawable.ic_folder_unread;
@@ -4004,7 +4206,8 @@ public class EmailProvider extends PIMContentProviderBase {
                     };
                 }
                 final int starredCount = EmailContent.count(getContext(), Message.CONTENT_URI,
-                        accountKeyClause + MessageColumns.FLAG_FAVORITE + "=1", whereArgs);
+                        accountKeyClause + MessageColumns.FLAG_FAVORITE + "=1 AND "
+                                + MessagePurge.NOT_QUEUED_SELECTION, whereArgs);
                 values[UIProvider.FOLDER_UNREAD_COUNT_COLUMN] = starredCount;
                 // Add the icon
                 values[UIProvider.FOLDER_ICON_RES_ID_COLUMN] = R.drawable.ic_folder_star;
@@ -4017,7 +4220,7 @@ public class EmailProvider extends PIMContentProviderBase {
 
     private Cursor uiAccounts(String[] uiProjection) {
         final Context context = getContext();
-        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase db = getReadableDatabase();
         final Cursor accountIdCursor =
                 db.rawQuery("select _id from " + Account.TABLE_NAME, new String[0]);
         final MatrixCursor mc;
@@ -4055,8 +4258,7 @@ public class EmailProvider extends PIMContentProviderBase {
     }
 
     private Cursor uiQuickResponseAccount(String[] uiProjection, String account) {
-        final Context context = getContext();
-        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase db = getReadableDatabase();
         final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
         sb.append(" FROM " + QuickResponse.TABLE_NAME);
         sb.append(" WHERE " + QuickResponse.ACCOUNT_KEY + "=?");
@@ -4067,8 +4269,7 @@ public class EmailProvider extends PIMContentProviderBase {
     }
 
     private Cursor uiQuickResponseId(String[] uiProjection, String id) {
-        final Context context = getContext();
-        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase db = getReadableDatabase();
         final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
         sb.append(" FROM " + QuickResponse.TABLE_NAME);
         sb.append(" WHERE " + QuickResponse.ID + "=?");
@@ -4079,8 +4280,7 @@ public class EmailProvider extends PIMContentProviderBase {
     }
 
     private Cursor uiQuickResponse(String[] uiProjection) {
-        final Context context = getContext();
-        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase db = getReadableDatabase();
         final StringBuilder sb = genSelect(getQuickResponseMap(), uiProjection);
         sb.append(" FROM " + QuickResponse.TABLE_NAME);
         final String query = sb.toString();
@@ -4185,7 +4385,7 @@ public class EmailProvider extends PIMContentProviderBase {
      */
     private Cursor uiFolders(final Uri uri, final String[] uiProjection) {
         final Context context = getContext();
-        final SQLiteDatabase db = getDatabase(context);
+        final SQLiteDatabase db = getReadableDatabase();
         final String id = uri.getPathSegments().get(1);
 
         final Uri notifyUri =
@@ -4803,7 +5003,7 @@ public class EmailProvider extends PIMContentProviderBase {
     private Cursor uiQuery(int match, Uri uri, String[] uiProjection, final boolean unseenOnly) {
         Context context = getContext();
         ContentResolver resolver = context.getContentResolver();
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getReadableDatabase();
         // Should we ever return null, or throw an exception??
         Cursor c = null;
         String id = uri.getPathSegments().get(1);
@@ -4875,8 +5075,18 @@ public class EmailProvider extends PIMContentProviderBase {
                     // instead b/10819309
                     return new MatrixCursor(uiProjection);
                 }
+                final SearchParams searchParams = mSearchParams;
+                final String searchExpression = searchParams != null
+                        && searchParams.mSearchMailboxId == mailboxId
+                        ? MessageSearchIndex.matchExpression(searchParams.mFilter) : null;
                 if (VirtualMailbox.isVirtualMailbox(getContext(), mailboxId)) {
                     c = getVirtualMailboxMessagesCursor(db, uiProjection, mailboxId, unseenOnly);
+                } else if (searchExpression != null) {
+                    c = db.rawQuery(
+                            genQuerySearchMailboxMessages(uiProjection, unseenOnly), new String[] {
+                                id, searchExpression,
+                                Long.toString(Mailbox.getAccountIdForMailbox(context, id)), id
+                            });
                 } else {
                     c = db.rawQuery(
                             genQueryMailboxMessages(uiProjection, unseenOnly), new String[] {
@@ -6274,6 +6484,15 @@ public class EmailProvider extends PIMContentProviderBase {
                                 totalCount);
                     } catch (RemoteException e) {
                         LogUtils.e("searchMessages", "RemoteException", e);
+                    } finally {
+                        // A new search may have replaced the search mailbox while this one ran;
+                        // the results delivered to it since are purged like the ones before
+                        if (MessagePurge.queueDeletedMailbox(getDatabase(context),
+                                searchMailboxId)) {
+                            LogUtils.d(TAG, "Search mailbox %d deleted during the search",
+                                    searchMailboxId);
+                            mPurge.schedule();
+                        }
                     }
                 }
                 return null;
@@ -6301,31 +6520,34 @@ public class EmailProvider extends PIMContentProviderBase {
             throw new IllegalArgumentException("No query parameter in search query");
         }
 
+        final Context context = getContext();
+        final ContentResolver resolver = context.getContentResolver();
+
+        // Replace the search mailbox with an empty one, rather than deleting the existing
+        // results in place: they are deleted in the background along with the old mailbox (see
+        // MessagePurge), and don't hold up the new search meanwhile
+        final Mailbox previous =
+                Mailbox.restoreMailboxOfType(context, accountId, Mailbox.TYPE_SEARCH);
+        if (previous != null && SEARCH_MAILBOX_SERVER_ID.equals(previous.mServerId)) {
+            LogUtils.d(TAG, "deleting existing search results.");
+            resolver.delete(ContentUris.withAppendedId(Mailbox.CONTENT_URI, previous.mId), null,
+                    null);
+        }
+
         // Find/create our search mailbox
         Mailbox searchMailbox = getSearchMailbox(accountId, false);
         final long searchMailboxId = searchMailbox.mId;
 
         mSearchParams = new SearchParams(inbox.mId, filter, searchMailboxId);
 
-        final Context context = getContext();
-        if (mSearchParams.mOffset == 0) {
-            // TODO: This conditional is unnecessary, just two lines earlier we
-            // created
-            // mSearchParams using a constructor that never sets mOffset.
-            LogUtils.d(TAG, "deleting existing search results.");
-
-            // Delete existing contents of search mailbox
-            ContentResolver resolver = context.getContentResolver();
-            resolver.delete(Message.CONTENT_URI, Message.MAILBOX_KEY + "=" + searchMailboxId,
-                    null);
-            final ContentValues cv = new ContentValues(1);
-            // For now, use the actual query as the name of the mailbox
-            cv.put(Mailbox.DISPLAY_NAME, mSearchParams.mFilter);
-            resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, searchMailboxId),
-                    cv, null, null);
-        }
+        final ContentValues cv = new ContentValues(1);
+        // For now, use the actual query as the name of the mailbox
+        cv.put(Mailbox.DISPLAY_NAME, mSearchParams.mFilter);
+        resolver.update(ContentUris.withAppendedId(Mailbox.CONTENT_URI, searchMailboxId),
+                cv, null, null);
 
-        // Start the search running in the background
+        // Start the search running in the background; meanwhile, the search mailbox lists the
+        // local matches (see genQuerySearchMailboxMessages)
         runSearchQuery(context, accountId, searchMailboxId, mSearchParams);
 
         // This will look just like a "normal" folder
@@ -6444,7 +6666,7 @@ public class EmailProvider extends PIMContentProviderBase {
         // Delete synced attachments
         AttachmentUtilities.deleteAllAccountAttachmentFiles(context, accountId);
 
-        // Delete all mailboxes.
+        // Delete all mailboxes; their messages are deleted in the background (see MessagePurge)
         ContentResolver resolver = context.getContentResolver();
         String[] accountIdArgs = new String[] {
             Long.toString(accountId)
@@ -6509,6 +6731,14 @@ public class EmailProvider extends PIMContentProviderBase {
         } finally {
             cursor.close();
         }
+        writer.println();
+        writer.println(sQueryCache);
+        writer.println();
+        if (mPurge != null) {
+            mPurge.dump(writer);
+            writer.println();
+        }
+        super.dump(fd, writer, args);
     }
 
     synchronized public Handler getDelayedSyncHandler() {
@@ -0,0 +1,215 @@
+package com.blackberry.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import com.blackberry.common.utils.LogUtils;
+import com.blackberry.email.provider.contract.EmailContent;
+import com.blackberry.email.provider.contract.EmailContent.MailboxColumns;
+import com.blackberry.email.provider.contract.EmailContent.Message;
+import com.blackberry.email.provider.contract.EmailContent.MessageColumns;
+import com.blackberry.email.provider.contract.Mailbox;
+import com.blackberry.pimbase.provider.utilities.MaintenanceTask;
+
+/**
+ * The per-mailbox message counters that the notification and message count queries read, instead
+ * of counting the messages of a mailbox or account each time.
+ * <p>
+ * {@link #COLUMNS} of the Mailbox table are kept up to date by triggers on the Message table, as
+ * MESSAGE_COUNT is: every insert, delete, move and change of the flags they count adjusts the
+ * counters of the mailboxes involved. Whatever those miss, e.g. the changes of a version whose
+ * triggers were wrong, is caught by {@link #check}, which the provider's maintenance runs.
+ */
+/*package*/ final class MailboxCounters {
+    private static final String TAG = "EmailProvider";
+
+    /** The counter columns, all "integer not null default 0" */
+    static final String[] COLUMNS = {
+        MailboxColumns.UNREAD_MESSAGE_COUNT,
+        MailboxColumns.UNSEEN_MESSAGE_COUNT,
+        MailboxColumns.INCLUDED_MESSAGE_COUNT
+    };
+
+    /** What each counter adds up over the messages of its mailbox, in the order of COLUMNS */
+    private static final String[] COUNTED = {
+        "CASE " + MessageColumns.FLAG_READ + " WHEN 0 THEN 1 ELSE 0 END",
+        "CASE " + MessageColumns.FLAG_SEEN + " WHEN 0 THEN 1 ELSE 0 END",
+        "CASE " + MessageColumns.FLAG_INCLUDED + " WHEN 1 THEN 1 ELSE 0 END"
+    };
+
+    /** The number of mailboxes checked by each step of {@link #check} */
+    static final int CHECK_CHUNK_SIZE = 10;
+
+    /**
+     * The mailbox id, unread count and unseen count of each mailbox of the account bound to it
+     * that has messages, as {@link EmailContent#MAILBOX_NOTIFICATION_URI} returns them
+     */
+    static final String NOTIFICATION_QUERY = "SELECT " + EmailContent.RECORD_ID + ", "
+            + MailboxColumns.UNREAD_MESSAGE_COUNT + ", " + MailboxColumns.UNSEEN_MESSAGE_COUNT
+            + " FROM " + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.ACCOUNT_KEY + "=? AND "
+            + MailboxColumns.MESSAGE_COUNT + ">0";
+
+    /** The number of included messages of the mailbox bound to it */
+    static final String INCLUDED_COUNT_QUERY = "SELECT "
+            + MailboxColumns.INCLUDED_MESSAGE_COUNT + " FROM " + Mailbox.TABLE_NAME + " WHERE "
+            + EmailContent.RECORD_ID + "=?";
+
+    private static final String[] CHECK_PROJECTION = {
+        EmailContent.RECORD_ID, MailboxColumns.MESSAGE_COUNT, MailboxColumns.UNREAD_MESSAGE_COUNT,
+        MailboxColumns.UNSEEN_MESSAGE_COUNT, MailboxColumns.INCLUDED_MESSAGE_COUNT
+    };
+
+    /** The actual values of the counters of CHECK_PROJECTION, for the mailbox bound to it */
+    private static final String COUNT_QUERY = "SELECT count(*), SUM(" + COUNTED[0] + "), SUM("
+            + COUNTED[1] + "), SUM(" + COUNTED[2] + ") FROM " + Message.TABLE_NAME + " WHERE "
+            + MessageColumns.MAILBOX_KEY + "=?";
+
+    private MailboxCounters() {
+    }
+
+    /**
+     * Create the triggers maintaining the counters; the Mailbox table needn't exist yet
+     */
+    static void createTriggers(SQLiteDatabase db) {
+        // Insert a message
+        db.execSQL("create trigger mailbox_counters_message_insert after insert on "
+                + Message.TABLE_NAME + " begin " + adjust("+", "NEW") + "; end");
+
+        // Delete a message
+        db.execSQL("create trigger mailbox_counters_message_delete after delete on "
+                + Message.TABLE_NAME + " begin " + adjust("-", "OLD") + "; end");
+
+        // Move a message, or change one of the flags counted
+        db.execSQL("create trigger mailbox_counters_message_update after update of "
+                + MessageColumns.MAILBOX_KEY + ", " + MessageColumns.FLAG_READ + ", "
+                + MessageColumns.FLAG_SEEN + ", " + MessageColumns.FLAG_INCLUDED + " on "
+                + Message.TABLE_NAME
+                + " when " + changed(MessageColumns.MAILBOX_KEY)
+                + " or " + changed(MessageColumns.FLAG_READ)
+                + " or " + changed(MessageColumns.FLAG_SEEN)
+                + " or " + changed(MessageColumns.FLAG_INCLUDED)
+                + " begin " + adjust("-", "OLD") + "; " + adjust("+", "NEW") + "; end");
+    }
+
+    /**
+     * Recount the counters of every mailbox, in a single statement
+     */
+    static void recalculate(SQLiteDatabase db) {
+        final StringBuilder sb = new StringBuilder("update ").append(Mailbox.TABLE_NAME)
+                .append(" set ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(COLUMNS[i]).append("=(select total(").append(COUNTED[i]).append(") from ")
+                    .append(Message.TABLE_NAME).append(" where ")
+                    .append(MessageColumns.MAILBOX_KEY).append('=').append(Mailbox.TABLE_NAME)
+                    .append('.').append(EmailContent.RECORD_ID).append(')');
+        }
+        db.execSQL(sb.toString());
+    }
+
+    /**
+     * Compare the counters of every mailbox, MESSAGE_COUNT included, with the messages they
+     * count, {@link #CHECK_CHUNK_SIZE} mailboxes per step, and rebuild those that drifted
+     */
+    static MaintenanceTask check(final SQLiteOpenHelper helper) {
+        return new MaintenanceTask("check." + Mailbox.TABLE_NAME + "Counters") {
+            private long mLastId;
+
+            @Override
+            protected boolean step() {
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                final int count;
+                int rebuilt = 0;
+                // In a transaction, so that no trigger adjusts a counter between its count and
+                // its update
+                db.beginTransaction();
+                try {
+                    final Cursor c = db.query(Mailbox.TABLE_NAME, CHECK_PROJECTION,
+                            EmailContent.RECORD_ID + ">?", new String[] { Long.toString(mLastId) },
+                            null, null, EmailContent.RECORD_ID,
+                            Integer.toString(CHECK_CHUNK_SIZE));
+                    try {
+                        count = c.getCount();
+                        while (c.moveToNext()) {
+                            mLastId = c.getLong(0);
+                            if (rebuild(db, mLastId, c)) {
+                                rebuilt++;
+                            }
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rebuilt > 0) {
+                    LogUtils.w(TAG, "Rebuilt the drifted counters of %d mailboxes", rebuilt);
+                }
+                return count < CHECK_CHUNK_SIZE;
+            }
+        };
+    }
+
+    /**
+     * Recount the counters of a mailbox, and update them if they differ from the stored ones
+     *
+     * @param stored the row of the mailbox, in CHECK_PROJECTION
+     * @return true if the counters were updated
+     */
+    private static boolean rebuild(SQLiteDatabase db, long mailboxId, Cursor stored) {
+        final Cursor c = db.rawQuery(COUNT_QUERY, new String[] { Long.toString(mailboxId) });
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            ContentValues values = null;
+            // Column i of the count is column i + 1 of the mailbox row
+            for (int i = 0; i < CHECK_PROJECTION.length - 1; i++) {
+                final int actual = c.getInt(i);
+                if (stored.getInt(i + 1) != actual) {
+                    if (values == null) {
+                        values = new ContentValues(CHECK_PROJECTION.length - 1);
+                    }
+                    values.put(CHECK_PROJECTION[i + 1], actual);
+                }
+            }
+            if (values == null) {
+                return false;
+            }
+            db.update(Mailbox.TABLE_NAME, values, EmailContent.RECORD_ID + "=?",
+                    new String[] { Long.toString(mailboxId) });
+            return true;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * @param sign "+" to count a message's row in its mailbox's counters, "-" to uncount it
+     * @param row "NEW" or "OLD"
+     * @return the statement adjusting the counters of the mailbox of a trigger's row
+     */
+    private static String adjust(String sign, String row) {
+        final StringBuilder sb = new StringBuilder("update ").append(Mailbox.TABLE_NAME)
+                .append(" set ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            // The row's columns must be qualified inside a trigger
+            sb.append(COLUMNS[i]).append('=').append(COLUMNS[i]).append(sign).append('(')
+                    .append(COUNTED[i].replaceFirst("CASE ", "CASE " + row + ".")).append(')');
+        }
+        return sb.append(" where ").append(EmailContent.RECORD_ID).append('=').append(row)
+                .append('.').append(MessageColumns.MAILBOX_KEY).toString();
+    }
+
+    private static String changed(String column) {
+        return "OLD." + column + " IS NOT NEW." + column;
+    }
+}
@@ -0,0 +1,402 @@
+package com.blackberry.email.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import com.blackberry.common.utils.LogUtils;
+import com.blackberry.email.provider.contract.EmailContent;
+import com.blackberry.email.provider.contract.EmailContent.Body;
+import com.blackberry.email.provider.contract.EmailContent.BodyColumns;
+import com.blackberry.email.provider.contract.EmailContent.Message;
+import com.blackberry.email.provider.contract.EmailContent.MessageColumns;
+import com.blackberry.email.provider.contract.Mailbox;
+import com.blackberry.pimbase.provider.utilities.MaintenanceTask;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Deletes the messages of deleted mailboxes in the background, so that deleting a mailbox, an
+ * account or the previous search results doesn't hold the database for as long as it takes to
+ * delete every message, body and attachment involved.
+ * <p>
+ * Deleting a mailbox only queues its messages in the {@link #TABLE_NAME} table (see the
+ * mailbox_delete trigger), in the same transaction. The queued messages are left out of the
+ * message lists that aren't of a single mailbox ({@link #NOT_QUEUED_SELECTION}) and are then
+ * deleted {@link #BATCH_SIZE} at a time, in the order of their ids, along with their bodies and
+ * search index rows. Each batch is a transaction of its own, which also records how far the purge
+ * of the mailbox got, and batches are {@link #YIELD_MILLIS} apart so that syncs get the database
+ * in between. A purge cut short by the process dying resumes where it stopped the next time the
+ * database is opened.
+ * <p>
+ * Bulk deletes of messages leave their bodies and index rows behind, the body database being out
+ * of reach of triggers; {@link #sweep} deletes those over ranges of {@link #SWEEP_RANGE} ids.
+ */
+/*package*/ final class MessagePurge {
+    private static final String TAG = "EmailProvider";
+
+    /** The queue of mailboxes whose messages are to be deleted, in the main database */
+    static final String TABLE_NAME = "MessagePurge";
+    /** The id of the deleted mailbox */
+    static final String MAILBOX_KEY = "mailboxKey";
+    /** The id of the last message deleted */
+    static final String LAST_MESSAGE_KEY = "lastMessageKey";
+    /** The number of messages deleted so far */
+    static final String PURGED_COUNT = "purgedCount";
+    /** When the mailbox was deleted, in milliseconds since the epoch */
+    static final String QUEUED_TIME = "queuedTime";
+
+    /** The number of messages deleted by each transaction */
+    static final int BATCH_SIZE = 200;
+
+    /** The pause between two transactions */
+    static final long YIELD_MILLIS = 20;
+
+    /** The number of ids of a table each step of a sweep goes through */
+    static final int SWEEP_RANGE = 1000;
+
+    /**
+     * The body of a trigger on the Mailbox table queueing the messages of the deleted mailbox,
+     * if it has any
+     */
+    static final String QUEUE_DELETED_MAILBOX = "insert or ignore into " + TABLE_NAME + " ("
+            + MAILBOX_KEY + ", " + QUEUED_TIME + ") select old." + EmailContent.RECORD_ID
+            + ", strftime('%s', 'now') * 1000 where exists (select 1 from " + Message.TABLE_NAME
+            + " where " + MessageColumns.MAILBOX_KEY + "=old." + EmailContent.RECORD_ID + ")";
+
+    /** Leaves out of a query on the Message table the messages waiting to be deleted */
+    static final String NOT_QUEUED_SELECTION = Message.TABLE_NAME + "."
+            + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MAILBOX_KEY + " FROM "
+            + TABLE_NAME + ")";
+
+    /** Queues the mailboxes that no longer exist but still have messages */
+    private static final String QUEUE_ORPHANS = "insert or ignore into " + TABLE_NAME + " ("
+            + MAILBOX_KEY + ", " + QUEUED_TIME + ") select distinct " + MessageColumns.MAILBOX_KEY
+            + ", ? from " + Message.TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY
+            + " not in (select " + EmailContent.RECORD_ID + " from " + Mailbox.TABLE_NAME + ")";
+
+    /** Queues a mailbox that no longer exists, if it still has messages */
+    private static final String QUEUE_MAILBOX = "insert or ignore into " + TABLE_NAME + " ("
+            + MAILBOX_KEY + ", " + QUEUED_TIME + ") select ?, ? where not exists (select 1 from "
+            + Mailbox.TABLE_NAME + " where " + EmailContent.RECORD_ID + "=?) and exists (select 1"
+            + " from " + Message.TABLE_NAME + " where " + MessageColumns.MAILBOX_KEY + "=?)";
+
+    private static final String[] PROJECTION = {
+        MAILBOX_KEY, LAST_MESSAGE_KEY, PURGED_COUNT, QUEUED_TIME
+    };
+    private static final int MAILBOX_KEY_COLUMN = 0;
+    private static final int LAST_MESSAGE_KEY_COLUMN = 1;
+    private static final int PURGED_COUNT_COLUMN = 2;
+    private static final int QUEUED_TIME_COLUMN = 3;
+
+    private static final String BATCH_SELECTION = MessageColumns.MAILBOX_KEY + "=? AND "
+            + EmailContent.RECORD_ID + ">?";
+
+    private static Handler sHandler;
+
+    private final EmailProvider mProvider;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    // Set by schedule() and sweepOrphans(), cleared by each run
+    private volatile boolean mWorkQueued;
+    private volatile boolean mSweepQueued;
+    // The sweeps in progress, on the handler's thread only
+    private Sweep mBodySweep;
+    private Sweep mIndexSweep;
+
+    // Statistics since the process started, on the handler's thread only
+    private long mPurgedCount;
+    private int mBatchCount;
+    private long mBatchMillis;
+
+    private final Runnable mRun = new Runnable() {
+        @Override
+        public void run() {
+            MessagePurge.this.run();
+        }
+    };
+
+    MessagePurge(EmailProvider provider) {
+        mProvider = provider;
+    }
+
+    /**
+     * Create the queue
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("create table " + TABLE_NAME + " (" + MAILBOX_KEY + " integer primary key, "
+                + LAST_MESSAGE_KEY + " integer not null default 0, "
+                + PURGED_COUNT + " integer not null default 0, "
+                + QUEUED_TIME + " integer)");
+    }
+
+    /**
+     * Queue the messages left behind by mailboxes deleted without the trigger, e.g. by an older
+     * version
+     *
+     * @return the number of mailboxes queued
+     */
+    static int queueOrphans(SQLiteDatabase db) {
+        final long before = DatabaseUtils.queryNumEntries(db, TABLE_NAME);
+        db.execSQL(QUEUE_ORPHANS, new Object[] { System.currentTimeMillis() });
+        final int queued = (int) (DatabaseUtils.queryNumEntries(db, TABLE_NAME) - before);
+        if (queued > 0) {
+            LogUtils.w(TAG, "Found the orphaned messages of %d mailboxes", queued);
+        }
+        return queued;
+    }
+
+    /**
+     * Queue the messages added to a mailbox after it was deleted, e.g. by a remote search that was
+     * still running, unless they are queued already; does nothing if the mailbox still exists
+     *
+     * @return true if the mailbox was queued
+     */
+    static boolean queueDeletedMailbox(SQLiteDatabase db, long mailboxId) {
+        final long before = DatabaseUtils.queryNumEntries(db, TABLE_NAME);
+        db.execSQL(QUEUE_MAILBOX,
+                new Object[] { mailboxId, System.currentTimeMillis(), mailboxId, mailboxId });
+        return DatabaseUtils.queryNumEntries(db, TABLE_NAME) > before;
+    }
+
+    /**
+     * Delete the bodies and index rows whose message no longer exists, {@link #SWEEP_RANGE} ids
+     * per step
+     */
+    static MaintenanceTask sweep(SQLiteOpenHelper helper, String table, String column) {
+        return new Sweep(helper, table, column);
+    }
+
+    /**
+     * Start purging whatever is queued, unless a purge is already under way
+     */
+    void schedule() {
+        mWorkQueued = true;
+        if (mScheduled.compareAndSet(false, true)) {
+            getHandler().post(mRun);
+        }
+    }
+
+    /**
+     * Sweep the bodies and index rows of messages deleted in bulk; a sweep cut short by the
+     * process dying is left to the maintenance tasks
+     */
+    void sweepOrphans() {
+        mSweepQueued = true;
+        schedule();
+    }
+
+    private void run() {
+        mWorkQueued = false;
+        boolean done;
+        try {
+            done = step();
+        } catch (RuntimeException e) {
+            // e.g. the database was closed; whatever is left is picked up when it is reopened
+            LogUtils.w(TAG, e, "Message purge failed");
+            done = true;
+        }
+        if (!done || mWorkQueued) {
+            getHandler().postDelayed(mRun, YIELD_MILLIS);
+            return;
+        }
+        // Cleared first, so that work queued in between schedules another run
+        mScheduled.set(false);
+        if (mWorkQueued && mScheduled.compareAndSet(false, true)) {
+            getHandler().postDelayed(mRun, YIELD_MILLIS);
+        }
+    }
+
+    /**
+     * Delete the next batch of queued messages, or else sweep the next range of ids
+     *
+     * @return true once there is nothing left to do
+     */
+    private boolean step() {
+        final SQLiteDatabase db = mProvider.getDatabase(mProvider.getContext());
+        if (purgeBatch(db)) {
+            return false;
+        }
+        if (mSweepQueued) {
+            mSweepQueued = false;
+            final SQLiteOpenHelper helper = mProvider.getDatabaseHelpers(false)[0];
+            mBodySweep = new Sweep(helper, Body.TABLE_NAME, BodyColumns.MESSAGE_KEY);
+            mIndexSweep = new Sweep(helper, MessageSearchIndex.TABLE_NAME, "docid");
+        }
+        if (mBodySweep != null) {
+            if (mBodySweep.step()) {
+                mBodySweep = null;
+            }
+            return false;
+        }
+        if (mIndexSweep != null) {
+            if (mIndexSweep.step()) {
+                mIndexSweep = null;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Delete, in a single transaction, the next {@link #BATCH_SIZE} messages of the first mailbox
+     * queued, and record the progress
+     *
+     * @return false if nothing is queued
+     */
+    private boolean purgeBatch(SQLiteDatabase db) {
+        final long start = SystemClock.uptimeMillis();
+        final long mailboxId;
+        final int count;
+        final long purgedCount;
+        final long queuedTime;
+        db.beginTransaction();
+        try {
+            final long lastMessageId;
+            final long previousCount;
+            Cursor c = db.query(TABLE_NAME, PROJECTION, null, null, null, null, MAILBOX_KEY,
+                    "1");
+            try {
+                if (!c.moveToFirst()) {
+                    return false;
+                }
+                mailboxId = c.getLong(MAILBOX_KEY_COLUMN);
+                lastMessageId = c.getLong(LAST_MESSAGE_KEY_COLUMN);
+                previousCount = c.getLong(PURGED_COUNT_COLUMN);
+                queuedTime = c.getLong(QUEUED_TIME_COLUMN);
+            } finally {
+                c.close();
+            }
+
+            c = db.query(Message.TABLE_NAME, EmailContent.ID_PROJECTION, BATCH_SELECTION,
+                    new String[] { Long.toString(mailboxId), Long.toString(lastMessageId) },
+                    null, null, EmailContent.RECORD_ID, Integer.toString(BATCH_SIZE));
+            final StringBuilder ids = new StringBuilder("(");
+            long messageId = lastMessageId;
+            try {
+                count = c.getCount();
+                while (c.moveToNext()) {
+                    messageId = c.getLong(0);
+                    if (c.getPosition() > 0) {
+                        ids.append(',');
+                    }
+                    ids.append(messageId);
+                }
+            } finally {
+                c.close();
+            }
+            if (count > 0) {
+                final String in = ids.append(')').toString();
+                // Attachments and change log entries go along with the messages, by trigger
+                db.delete(Message.TABLE_NAME, EmailContent.RECORD_ID + " IN " + in, null);
+                db.delete(Body.TABLE_NAME, BodyColumns.MESSAGE_KEY + " IN " + in, null);
+                db.delete(MessageSearchIndex.TABLE_NAME, "docid IN " + in, null);
+            }
+
+            purgedCount = previousCount + count;
+            final String[] mailboxArgs = new String[] { Long.toString(mailboxId) };
+            if (count < BATCH_SIZE) {
+                db.delete(TABLE_NAME, MAILBOX_KEY + "=?", mailboxArgs);
+            } else {
+                db.execSQL("update " + TABLE_NAME + " set " + LAST_MESSAGE_KEY + "=?, "
+                        + PURGED_COUNT + "=? where " + MAILBOX_KEY + "=?",
+                        new Object[] { messageId, purgedCount, mailboxId });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        mPurgedCount += count;
+        mBatchCount++;
+        mBatchMillis += SystemClock.uptimeMillis() - start;
+        if (count < BATCH_SIZE) {
+            LogUtils.d(TAG, "Purged %d messages of mailbox %d, deleted %d s ago (%s)",
+                    purgedCount, mailboxId, (System.currentTimeMillis() - queuedTime) / 1000,
+                    throughput());
+        }
+        return true;
+    }
+
+    private String throughput() {
+        return String.format("%d messages in %d batches, %d ms, %d/s since start", mPurgedCount,
+                mBatchCount, mBatchMillis,
+                mBatchMillis > 0 ? mPurgedCount * 1000 / mBatchMillis : 0);
+    }
+
+    /**
+     * Print the progress of each purge under way, and the throughput of those done
+     */
+    void dump(PrintWriter writer) {
+        writer.println("Message purge: " + throughput());
+        final SQLiteDatabase db = mProvider.getDatabase(mProvider.getContext());
+        final Cursor c = db.query(TABLE_NAME, PROJECTION, null, null, null, null, MAILBOX_KEY);
+        try {
+            while (c.moveToNext()) {
+                final long mailboxId = c.getLong(MAILBOX_KEY_COLUMN);
+                final long left = DatabaseUtils.queryNumEntries(db, Message.TABLE_NAME,
+                        MessageColumns.MAILBOX_KEY + "=?",
+                        new String[] { Long.toString(mailboxId) });
+                writer.println("  Mailbox " + mailboxId + ": " + c.getLong(PURGED_COUNT_COLUMN)
+                        + " purged, " + left + " left, up to message "
+                        + c.getLong(LAST_MESSAGE_KEY_COLUMN) + ", deleted "
+                        + (System.currentTimeMillis() - c.getLong(QUEUED_TIME_COLUMN)) / 1000
+                        + " s ago");
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            final HandlerThread thread =
+                    new HandlerThread("EmailProvider-purge", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sHandler = new Handler(thread.getLooper());
+        }
+        return sHandler;
+    }
+
+    /**
+     * Goes through the ids of a table of the body database, from the lowest to the highest there
+     * was when it started, and deletes the rows whose message no longer exists
+     */
+    private static final class Sweep extends MaintenanceTask {
+        private final SQLiteOpenHelper mHelper;
+        private final String mTable;
+        private final String mSelection;
+        private long mLastId;
+        private long mMaxId = -1;
+
+        Sweep(SQLiteOpenHelper helper, String table, String column) {
+            super("orphans." + table);
+            mHelper = helper;
+            mTable = table;
+            // A lookup of each message by id, rather than a scan of the Message table
+            mSelection = "rowid>? AND rowid<=? AND NOT EXISTS (SELECT 1 FROM " + Message.TABLE_NAME
+                    + " WHERE " + EmailContent.RECORD_ID + "=" + table + "." + column + ")";
+        }
+
+        @Override
+        protected boolean step() {
+            final SQLiteDatabase db = mHelper.getWritableDatabase();
+            if (mMaxId < 0) {
+                mMaxId = DatabaseUtils.longForQuery(db,
+                        "SELECT ifnull(max(rowid), 0) FROM " + mTable, null);
+            }
+            final long to = Math.min(mLastId + SWEEP_RANGE, mMaxId);
+            if (to > mLastId) {
+                db.delete(mTable, mSelection,
+                        new String[] { Long.toString(mLastId), Long.toString(to) });
+                mLastId = to;
+            }
+            return mLastId >= mMaxId;
+        }
+    }
+}
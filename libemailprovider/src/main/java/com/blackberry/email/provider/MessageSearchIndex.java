@@ -0,0 +1,401 @@
+package com.blackberry.email.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.text.TextUtils;
+
+import com.blackberry.common.utils.LogUtils;
+import com.blackberry.email.provider.contract.EmailContent;
+import com.blackberry.email.provider.contract.EmailContent.Body;
+import com.blackberry.email.provider.contract.EmailContent.BodyColumns;
+import com.blackberry.email.provider.contract.EmailContent.MailboxColumns;
+import com.blackberry.email.provider.contract.EmailContent.Message;
+import com.blackberry.email.provider.contract.EmailContent.MessageColumns;
+import com.blackberry.email.provider.contract.Mailbox;
+import com.blackberry.pimbase.provider.utilities.MaintenanceTask;
+import com.google.android.mail.common.html.parser.HtmlParser;
+import com.google.android.mail.common.html.parser.HtmlTree;
+import com.google.android.mail.common.html.parser.HtmlTreeBuilder;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * The local full-text index of the messages of EmailProvider, an FTS4 table in the body database
+ * with one row per message, whose docid is the message id, over the subject, the sender (display
+ * name and from list), the recipients (to, cc and bcc lists) and the plain text of the body.
+ * <p>
+ * Triggers can't reach from the message database into the attached body database, so EmailProvider
+ * keeps the index up to date itself, in the same places it keeps the Body table in sync: a message
+ * is indexed when it is inserted, reindexed when its indexed columns or its body change, and its
+ * row is deleted along with its body. {@link #backfill} indexes whatever those paths missed, e.g.
+ * the messages that existed before the index did. The copies of messages that remote searches put
+ * in search mailboxes aren't indexed, since local searches leave them out.
+ * <p>
+ * The address lists are indexed as stored, packed or not: the default tokenizer splits on the
+ * packing delimiters just as on the punctuation of an address, so both the addresses and the
+ * personal names are searchable. Only the first {@link #MAX_BODY_LENGTH} characters of a body are
+ * indexed.
+ */
+/*package*/ final class MessageSearchIndex {
+    private static final String TAG = "EmailProvider";
+
+    static final String TABLE_NAME = "MessageSearch";
+
+    static final String SUBJECT = "subject";
+    static final String SENDER = "sender";
+    static final String RECIPIENTS = "recipients";
+    static final String BODY = "body";
+
+    /** The number of characters of a body, text or HTML, that are indexed */
+    static final int MAX_BODY_LENGTH = 32 * 1024;
+
+    /** The number of messages indexed by each step of {@link #backfill} */
+    static final int BACKFILL_CHUNK_SIZE = 100;
+
+    /**
+     * The number of matches a search considers. A word found in most messages would otherwise
+     * have the index produce every message, only for all but the most recent ones to be cut off
+     * after sorting; message ids grow as messages arrive, so the index instead stops after the
+     * matches with the highest ids, a fraction of the work. The cap applies to the matches of the
+     * account searched, so that the other accounts can't crowd them out.
+     */
+    static final int MAX_MATCHES = UIProvider.CONVERSATION_PROJECTION_QUERY_CURSOR_WINDOW_LIMT;
+
+    /** Leaves out of a query on the Message table the messages of search mailboxes */
+    private static final String NOT_SEARCH_RESULT_SELECTION = Message.TABLE_NAME + "."
+            + MessageColumns.MAILBOX_KEY + " NOT IN (SELECT " + MailboxColumns.ID + " FROM "
+            + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_SEARCH
+            + ")";
+
+    /**
+     * The ids of the most recent messages matching the FTS expression bound to it, in the account
+     * whose id is bound to it next, leaving out search results and the messages waiting to be
+     * deleted
+     */
+    static final String MATCHING_MESSAGE_IDS = "SELECT docid FROM " + TABLE_NAME + " JOIN "
+            + Message.TABLE_NAME + " ON " + Message.TABLE_NAME + "." + EmailContent.RECORD_ID
+            + "=docid WHERE " + TABLE_NAME + " MATCH ? AND " + Message.TABLE_NAME + "."
+            + MessageColumns.ACCOUNT_KEY + "=? AND " + NOT_SEARCH_RESULT_SELECTION + " AND "
+            + MessagePurge.NOT_QUEUED_SELECTION + " ORDER BY docid DESC LIMIT " + MAX_MATCHES;
+
+    private static final String[] MESSAGE_PROJECTION = {
+        MessageColumns.SUBJECT, MessageColumns.DISPLAY_NAME, MessageColumns.FROM_LIST,
+        MessageColumns.TO_LIST, MessageColumns.CC_LIST, MessageColumns.BCC_LIST
+    };
+    private static final int MESSAGE_SUBJECT_COLUMN = 0;
+    private static final int MESSAGE_DISPLAY_NAME_COLUMN = 1;
+    private static final int MESSAGE_FROM_LIST_COLUMN = 2;
+    private static final int MESSAGE_TO_LIST_COLUMN = 3;
+    private static final int MESSAGE_CC_LIST_COLUMN = 4;
+    private static final int MESSAGE_BCC_LIST_COLUMN = 5;
+
+    private static final String[] BODY_PROJECTION = {
+        BodyColumns.TEXT_CONTENT, BodyColumns.HTML_CONTENT
+    };
+
+    private static final String SEARCH_SELECTION = EmailContent.RECORD_ID + " IN ("
+            + MATCHING_MESSAGE_IDS + ")";
+
+    private static final String INDEXED_MESSAGE_SELECTION = EmailContent.RECORD_ID + "=? AND "
+            + NOT_SEARCH_RESULT_SELECTION;
+
+    private static final String BACKFILL_SELECTION = EmailContent.RECORD_ID + ">? AND "
+            + NOT_SEARCH_RESULT_SELECTION + " AND NOT EXISTS (SELECT 1 FROM " + TABLE_NAME
+            + " WHERE docid=" + Message.TABLE_NAME + "." + EmailContent.RECORD_ID + ")";
+
+    private static final String SEARCH_MAILBOX_IDS = "SELECT " + MailboxColumns.ID + " FROM "
+            + Mailbox.TABLE_NAME + " WHERE " + MailboxColumns.TYPE + "=" + Mailbox.TYPE_SEARCH
+            + " ORDER BY " + MailboxColumns.ID;
+
+    // The sorted ids of the search mailboxes, so that inserting a message doesn't have to query
+    // its mailbox; null until loaded again after onMailboxesChanged(). The generation counts the
+    // changes, so that a load that raced with one isn't kept.
+    private static final Object sSearchMailboxLock = new Object();
+    private static long[] sSearchMailboxIds;
+    private static int sSearchMailboxGeneration;
+
+    private MessageSearchIndex() {
+    }
+
+    /**
+     * Drop the cached search mailbox ids; called whenever mailboxes are inserted or deleted, or
+     * their type changes, and when the database is opened
+     */
+    static void onMailboxesChanged() {
+        synchronized (sSearchMailboxLock) {
+            sSearchMailboxIds = null;
+            sSearchMailboxGeneration++;
+        }
+    }
+
+    /**
+     * Create the index in the body database
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("create virtual table " + TABLE_NAME + " using fts4(" + SUBJECT + ", "
+                + SENDER + ", " + RECIPIENTS + ", " + BODY + ")");
+    }
+
+    /**
+     * @return true if an update of a message with these values changes what is indexed
+     */
+    static boolean affectsMessage(ContentValues values) {
+        for (String column : MESSAGE_PROJECTION) {
+            if (values.containsKey(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if an update of a body with these values changes what is indexed
+     */
+    static boolean affectsBody(ContentValues values) {
+        return values.containsKey(BodyColumns.TEXT_CONTENT)
+                || values.containsKey(BodyColumns.HTML_CONTENT);
+    }
+
+    /**
+     * Index a message that was just inserted with {@code values}, unless it is a search result;
+     * it has no body yet
+     */
+    static void insertMessage(SQLiteDatabase db, long messageId, ContentValues values) {
+        final Long mailboxKey = values.getAsLong(MessageColumns.MAILBOX_KEY);
+        if (mailboxKey != null && isSearchMailbox(db, mailboxKey)) {
+            return;
+        }
+        write(db, messageId, values.getAsString(MessageColumns.SUBJECT),
+                join(values.getAsString(MessageColumns.DISPLAY_NAME),
+                        values.getAsString(MessageColumns.FROM_LIST)),
+                join(join(values.getAsString(MessageColumns.TO_LIST),
+                        values.getAsString(MessageColumns.CC_LIST)),
+                        values.getAsString(MessageColumns.BCC_LIST)),
+                null);
+    }
+
+    /**
+     * Index a message again, from its row and the row of its body, e.g. after either changed; a
+     * message that no longer exists, or is a search result, is removed from the index
+     */
+    static void reindex(SQLiteDatabase db, long messageId) {
+        final String[] args = { Long.toString(messageId) };
+        final Cursor c = db.query(Message.TABLE_NAME, MESSAGE_PROJECTION,
+                INDEXED_MESSAGE_SELECTION, args, null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                delete(db, messageId);
+                return;
+            }
+            String body = null;
+            final Cursor bodyCursor = db.query(Body.TABLE_NAME, BODY_PROJECTION,
+                    Body.SELECTION_BY_MESSAGE_KEY, args, null, null, null);
+            try {
+                if (bodyCursor.moveToFirst()) {
+                    body = bodyText(bodyCursor.getString(0), bodyCursor.getString(1));
+                }
+            } finally {
+                bodyCursor.close();
+            }
+            write(db, messageId, c.getString(MESSAGE_SUBJECT_COLUMN),
+                    join(c.getString(MESSAGE_DISPLAY_NAME_COLUMN),
+                            c.getString(MESSAGE_FROM_LIST_COLUMN)),
+                    join(join(c.getString(MESSAGE_TO_LIST_COLUMN),
+                            c.getString(MESSAGE_CC_LIST_COLUMN)),
+                            c.getString(MESSAGE_BCC_LIST_COLUMN)),
+                    body);
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Reindex the messages whose key, in {@code column} of {@code table}, matches a selection
+     */
+    static void reindex(SQLiteDatabase db, String table, String column, String selection,
+            String[] selectionArgs) {
+        final Cursor c = db.query(true, table, new String[] { column }, selection, selectionArgs,
+                null, null, null, null);
+        final long[] messageIds;
+        try {
+            messageIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                messageIds[i] = c.getLong(0);
+            }
+        } finally {
+            c.close();
+        }
+        for (long messageId : messageIds) {
+            reindex(db, messageId);
+        }
+    }
+
+    static void delete(SQLiteDatabase db, long messageId) {
+        db.delete(TABLE_NAME, "docid=" + messageId, null);
+    }
+
+    /**
+     * Turn what the user typed into an FTS expression that matches the messages containing every
+     * word of it, the last letters of each word being optional, so that results come up while the
+     * words are still being typed. Quotes and operators are taken literally, and words without
+     * a letter or digit, which the tokenizer would drop, are ignored.
+     *
+     * @return the expression, or null if there is nothing to search for
+     */
+    static String matchExpression(String filter) {
+        if (filter == null) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (String term : filter.replace('"', ' ').trim().split("\\s+")) {
+            if (hasLetterOrDigit(term)) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                // A quoted term is a phrase, in which punctuation separates words rather than
+                // being syntax
+                sb.append('"').append(term).append("*\"");
+            }
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Search the messages of an account, leaving out search results
+     *
+     * @return the ids of at most {@code limit} messages matching {@code filter}, most recent first
+     */
+    static long[] search(SQLiteDatabase db, long accountId, String filter, int limit) {
+        final String expression = matchExpression(filter);
+        if (expression == null) {
+            return new long[0];
+        }
+        final Cursor c = db.query(Message.TABLE_NAME, EmailContent.ID_PROJECTION,
+                SEARCH_SELECTION, new String[] { expression, Long.toString(accountId) }, null,
+                null, MessageColumns.TIMESTAMP + " DESC", Integer.toString(limit));
+        try {
+            final long[] messageIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                messageIds[i] = c.getLong(0);
+            }
+            return messageIds;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Index the messages that aren't indexed yet, {@link #BACKFILL_CHUNK_SIZE} per step, in the
+     * order of their ids
+     */
+    static MaintenanceTask backfill(final SQLiteOpenHelper helper) {
+        return new MaintenanceTask("index." + TABLE_NAME) {
+            private long mLastId;
+
+            @Override
+            protected boolean step() {
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                final Cursor c = db.query(Message.TABLE_NAME, EmailContent.ID_PROJECTION,
+                        BACKFILL_SELECTION, new String[] { Long.toString(mLastId) }, null, null,
+                        EmailContent.RECORD_ID, Integer.toString(BACKFILL_CHUNK_SIZE));
+                final int count;
+                db.beginTransaction();
+                try {
+                    count = c.getCount();
+                    while (c.moveToNext()) {
+                        mLastId = c.getLong(0);
+                        reindex(db, mLastId);
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                    c.close();
+                }
+                return count < BACKFILL_CHUNK_SIZE;
+            }
+        };
+    }
+
+    /**
+     * @return the plain text to index for a body, preferring its text part
+     */
+    static String bodyText(String text, String html) {
+        if (!TextUtils.isEmpty(text)) {
+            return text.length() > MAX_BODY_LENGTH ? text.substring(0, MAX_BODY_LENGTH) : text;
+        }
+        if (TextUtils.isEmpty(html)) {
+            return null;
+        }
+        final StringWriter out = new StringWriter();
+        final HtmlParser parser = new HtmlParser();
+        parser.setClipLength(MAX_BODY_LENGTH);
+        try {
+            parser.parse(new StringReader(html), new HtmlTreeBuilder(
+                    new HtmlTree.PlainTextWriter(new PrintWriter(out))));
+        } catch (IOException e) {
+            // Can't happen with a StringReader
+            LogUtils.w(TAG, e, "Can't convert body to plain text");
+        }
+        return out.toString();
+    }
+
+    private static boolean isSearchMailbox(SQLiteDatabase db, long mailboxId) {
+        long[] ids;
+        final int generation;
+        synchronized (sSearchMailboxLock) {
+            ids = sSearchMailboxIds;
+            generation = sSearchMailboxGeneration;
+        }
+        if (ids == null) {
+            final Cursor c = db.rawQuery(SEARCH_MAILBOX_IDS, null);
+            try {
+                ids = new long[c.getCount()];
+                for (int i = 0; c.moveToNext(); i++) {
+                    ids[i] = c.getLong(0);
+                }
+            } finally {
+                c.close();
+            }
+            synchronized (sSearchMailboxLock) {
+                if (generation == sSearchMailboxGeneration) {
+                    sSearchMailboxIds = ids;
+                }
+            }
+        }
+        return Arrays.binarySearch(ids, mailboxId) >= 0;
+    }
+
+    private static void write(SQLiteDatabase db, long messageId, String subject, String sender,
+            String recipients, String body) {
+        final ContentValues values = new ContentValues(5);
+        values.put("docid", messageId);
+        values.put(SUBJECT, subject);
+        values.put(SENDER, sender);
+        values.put(RECIPIENTS, recipients);
+        values.put(BODY, body);
+        delete(db, messageId);
+        db.insert(TABLE_NAME, null, values);
+    }
+
+    private static boolean hasLetterOrDigit(String term) {
+        for (int i = 0; i < term.length(); i++) {
+            if (Character.isLetterOrDigit(term.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String join(String first, String second) {
+        if (TextUtils.isEmpty(first)) {
+            return second;
+        }
+        return TextUtils.isEmpty(second) ? first : first + ' ' + second;
+    }
+}
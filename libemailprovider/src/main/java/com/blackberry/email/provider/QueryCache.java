@@ -0,0 +1,102 @@
+package com.blackberry.email.provider;
+
+import android.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * A bounded cache of generated SQL text for the UI queries of EmailProvider.  The UI asks for the
+ * same few projections over and over (e.g. every time the conversation list is refreshed), so
+ * rather than rebuilding the SELECT clause column by column on every query, the finished SQL is
+ * kept here, keyed by the uri match, the projection and the unseen-only flag.
+ *
+ * Handing SQLite the very same SQL string also lets the database reuse its compiled statement
+ * from the connection's statement cache instead of compiling it again.
+ *
+ * Only SQL that depends on nothing but the key may be cached; queries that embed per-row values
+ * (e.g. the message view query) must not use this cache.
+ */
+/*package*/ final class QueryCache {
+
+    private final LruCache<Key, String> mCache;
+
+    /**
+     * The key of a cached query.  The projection is compared by identity first, as callers almost
+     * always pass the same static array, and by content otherwise.
+     */
+    private static final class Key {
+        private final int mMatch;
+        private final String[] mProjection;
+        private final boolean mUnseenOnly;
+        private final int mHashCode;
+
+        Key(int match, String[] projection, boolean unseenOnly) {
+            mMatch = match;
+            mProjection = projection;
+            mUnseenOnly = unseenOnly;
+            mHashCode = 31 * (31 * match + Arrays.hashCode(projection)) + (unseenOnly ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return mMatch == other.mMatch && mUnseenOnly == other.mUnseenOnly
+                    && (mProjection == other.mProjection
+                            || Arrays.equals(mProjection, other.mProjection));
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    /**
+     * @param maxSize the maximum number of queries to keep
+     */
+    /*package*/ QueryCache(int maxSize) {
+        mCache = new LruCache<Key, String>(maxSize);
+    }
+
+    /**
+     * Return the cached SQL for a query, or null if it hasn't been cached yet
+     *
+     * @param match the uri match of the query
+     * @param projection the projection requested by the UI
+     * @param unseenOnly whether the query only returns unseen messages
+     */
+    /*package*/ String get(int match, String[] projection, boolean unseenOnly) {
+        return mCache.get(new Key(match, projection, unseenOnly));
+    }
+
+    /**
+     * Cache the SQL for a query; the projection is copied, so the caller remains free to reuse it
+     *
+     * @return the SQL that was passed in
+     */
+    /*package*/ String put(int match, String[] projection, boolean unseenOnly, String sql) {
+        mCache.put(new Key(match, projection.clone(), unseenOnly), sql);
+        return sql;
+    }
+
+    /*package*/ void clear() {
+        mCache.evictAll();
+    }
+
+    @Override
+    public String toString() {
+        final int hits = mCache.hitCount();
+        final int misses = mCache.missCount();
+        final int total = hits + misses;
+        return "QueryCache size: " + mCache.size() + "/" + mCache.maxSize()
+                + ", hits: " + hits + ", misses: " + misses
+                + ", evictions: " + mCache.evictionCount()
+                + ", hit%: " + (total == 0 ? 0 : hits * 100 / total);
+    }
+}
@@ -1457,9 +1457,19 @@ public class UIProvider {
 
         /**
          * Initiate a remote search with given MessageFilter argument
+         *
+         * The Bundle returned will contain the uri of the folder the results are delivered to with
+         * the {@link FolderColumns#URI} key, and the ids of the messages already on the device
+         * that match the search, most recent first, as a long array with the
+         * {@link #LOCAL_SEARCH_RESULTS} key.
          */
         public static final String REMOTE_SEARCH = "remote_search";
 
+        /**
+         * Key of the local matches in the Bundle returned by {@link #REMOTE_SEARCH}
+         */
+        public static final String LOCAL_SEARCH_RESULTS = "local_search_results";
+
         /**
          * Fetch more messages from the given folder
          */
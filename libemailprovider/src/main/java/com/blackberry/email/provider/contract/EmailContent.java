@@ -66,6 +66,13 @@ public abstract class EmailContent {
     public static final int NOTIFICATION_MAILBOX_ID_COLUMN = 0;
     public static final int NOTIFICATION_MAILBOX_UNREAD_COUNT_COLUMN = 1;
     public static final int NOTIFICATION_MAILBOX_UNSEEN_COUNT_COLUMN = 2;
+    // The rows of MAILBOX_NOTIFICATION_FOLDERS_URI are UIProvider.FOLDERS_PROJECTION and these
+    public static final int NOTIFICATION_FOLDER_UNREAD_COUNT_COLUMN =
+            UIProvider.FOLDERS_PROJECTION.length;
+    public static final int NOTIFICATION_FOLDER_UNSEEN_COUNT_COLUMN =
+            UIProvider.FOLDERS_PROJECTION.length + 1;
+    public static final int NOTIFICATION_FOLDER_LATEST_MESSAGE_ID_COLUMN =
+            UIProvider.FOLDERS_PROJECTION.length + 2;
 
     // All classes share this
     public static final String RECORD_ID = "_id";
@@ -128,6 +135,7 @@ public abstract class EmailContent {
     public static Uri PICK_TRASH_FOLDER_URI;
     public static Uri PICK_SENT_FOLDER_URI;
     public static Uri MAILBOX_NOTIFICATION_URI;
+    public static Uri MAILBOX_NOTIFICATION_FOLDERS_URI;
     public static Uri MAILBOX_MOST_RECENT_MESSAGE_URI;
     public static Uri ACCOUNT_CHECK_URI;
 
@@ -153,6 +161,8 @@ public abstract class EmailContent {
             PICK_TRASH_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/pickTrashFolder");
             PICK_SENT_FOLDER_URI = Uri.parse("content://" + AUTHORITY + "/pickSentFolder");
             MAILBOX_NOTIFICATION_URI = Uri.parse("content://" + AUTHORITY + "/mailboxNotification");
+            MAILBOX_NOTIFICATION_FOLDERS_URI = Uri.parse("content://" + AUTHORITY +
+                    "/mailboxNotificationFolders");
             MAILBOX_MOST_RECENT_MESSAGE_URI = Uri.parse("content://" + AUTHORITY +
                     "/mailboxMostRecentMessage");
             ACCOUNT_CHECK_URI = Uri.parse("content://" + AUTHORITY + "/accountCheck");
@@ -1813,6 +1823,12 @@ public abstract class EmailContent {
         public static final String HIERARCHICAL_NAME = "hierarchicalName";
         // The last time that we did a full sync. Set from SystemClock.elapsedRealtime().
         public static final String LAST_FULL_SYNC_TIME = "lastFullSyncTime";
+        // Number of messages in the mailbox with flagRead=0, included or not (unlike UNREAD_COUNT)
+        public static final String UNREAD_MESSAGE_COUNT = "unreadMessageCount";
+        // Number of messages in the mailbox with flagSeen=0
+        public static final String UNSEEN_MESSAGE_COUNT = "unseenMessageCount";
+        // Number of messages in the mailbox with flagIncluded=1
+        public static final String INCLUDED_MESSAGE_COUNT = "includedMessageCount";
     }
 
     public interface VirtualMailboxColumns {
@@ -26,8 +26,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
+import android.content.IntentFilter;
 import android.net.Uri;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.text.format.DateUtils;
@@ -43,6 +45,8 @@ import com.blackberry.email.provider.contract.EmailContent.Message;
 import com.blackberry.email.utils.AttachmentUtilities;
 import com.blackberry.email.utils.Utility;
 import com.blackberry.email.service.IEmailServiceCallback;
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.Tracer;
 import com.blackberry.common.utils.LogUtils;
 
 import java.io.File;
@@ -51,8 +55,8 @@ import java.io.PrintWriter;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 public class AttachmentDownloadService extends Service implements Runnable {
     public static final String TAG = LogUtils.TAG;
@@ -66,8 +70,6 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
     // Our idle time, waiting for notifications; this is something of a failsafe
     private static final int PROCESS_QUEUE_WAIT_TIME = 30 * ((int)DateUtils.MINUTE_IN_MILLIS);
-    // How often our watchdog checks for callback timeouts
-    private static final int WATCHDOG_CHECK_INTERVAL = 20 * ((int)DateUtils.SECOND_IN_MILLIS);
     // How long we'll wait for a callback before canceling a download and retrying
     private static final int CALLBACK_TIMEOUT = 30 * ((int)DateUtils.SECOND_IN_MILLIS);
     // Try to download an attachment in the background this many times before giving up
@@ -86,8 +88,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
     // Maximum prefetch storage (also 25% of total memory)
     private static final float PREFETCH_MAXIMUM_ATTACHMENT_STORAGE = 0.25F;
 
-    // We can try various values here; I think 2 is completely reasonable as a first pass
-    private static final int MAX_SIMULTANEOUS_DOWNLOADS = 2;
+    // The limit on the number of simultaneous downloads adapts to the measured throughput; see
+    // DownloadConcurrencyLimit
     // Limit on the number of simultaneous downloads per account
     // Note that a limit of 1 is currently enforced by both Services (MailService and Controller)
     private static final int MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT = 1;
@@ -97,6 +99,12 @@ public class AttachmentDownloadService extends Service implements Runnable {
     private static final String EXTRA_ATTACHMENT =
         "com.blackberry.email.AttachmentDownloadService.attachment";
 
+    // Time from a request being queued to its download starting
+    private static final TraceSpan QUEUE_WAIT_SPAN =
+            Tracer.register("AttachmentDownload.queueWait");
+    // Time from a download starting to its successful completion
+    private static final TraceSpan DOWNLOAD_SPAN = Tracer.register("AttachmentDownload.download");
+
     // sRunningService is only set in the UI thread; it's visibility elsewhere is guaranteed
     // by the use of "volatile"
     /*package*/ static volatile AttachmentDownloadService sRunningService = null;
@@ -105,6 +113,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
     /*package*/ EmailConnectivityManager mConnectivityManager;
 
     /*package*/ final DownloadSet mDownloadSet = new DownloadSet(new DownloadComparator());
+    /*package*/ final DownloadConcurrencyLimit mConcurrencyLimit = new DownloadConcurrencyLimit();
+    // The network the throughput behind mConcurrencyLimit was measured on
+    private int mLimitNetworkType = -1;
 
     private final HashMap<Long, Intent> mAccountServiceMap = new HashMap<Long, Intent>();
     // A map of attachment storage used per account
@@ -121,6 +132,16 @@ public class AttachmentDownloadService extends Service implements Runnable {
     private final Object mLock = new Object();
     private volatile boolean mStop = false;
 
+    // Background downloads only start while the screen is off; the receiver wakes up the service
+    // thread when it turns off
+    private PowerManager mPowerManager;
+    private final BroadcastReceiver mScreenOffReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            kick();
+        }
+    };
+
     /*package*/ AccountManagerStub mAccountManagerStub;
 
     /**
@@ -153,18 +174,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
     }
 
     /**
-     * Watchdog alarm receiver; responsible for making sure that downloads in progress are not
-     * stalled, as determined by the timing of the most recent service callback
+     * Watchdog alarm receiver; wakes up the device and the service thread once a download in
+     * progress would time out, as determined by the timing of the most recent service callback,
+     * or a download that failed with a connection error may be retried. The service thread waits
+     * for the same deadline, but its wait doesn't count the time the device spends asleep.
      */
     public static class Watchdog extends BroadcastReceiver {
         @Override
         public void onReceive(final Context context, Intent intent) {
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    watchdogAlarm();
-                }
-            }, "AttachmentDownloadService Watchdog").start();
+            watchdogAlarm();
         }
     }
 
@@ -181,6 +199,9 @@ public class AttachmentDownloadService extends Service implements Runnable {
         long startTime;
         long retryCount;
         long retryStartTime;
+        // The TraceSpan start times of the queue wait and the download
+        long queuedSpanStart;
+        long downloadSpanStart;
 
         private DownloadRequest(Context context, Attachment attachment) {
             attachmentId = attachment.mId;
@@ -193,6 +214,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
             priority = getPriority(attachment);
             time = SystemClock.elapsedRealtime();
+            queuedSpanStart = QUEUE_WAIT_SPAN.start();
         }
 
         private DownloadRequest(DownloadRequest orig, long newTime) {
@@ -208,6 +230,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
             startTime = orig.startTime;
             retryCount = orig.retryCount;
             retryStartTime = orig.retryStartTime;
+            queuedSpanStart = QUEUE_WAIT_SPAN.start();
         }
 
 
@@ -229,7 +252,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
 
     /**
      * Comparator class for the download set; we first compare by priority.  Requests with equal
-     * priority are compared by the time the request was created (older requests come first)
+     * priority are compared by the time the request was created (older requests come first),
+     * and then by attachment id, so that only requests for the same attachment compare as equal
      */
     /*protected*/ static class DownloadComparator implements Comparator<DownloadRequest> {
         @Override
@@ -239,7 +263,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 res = (req1.priority < req2.priority) ? -1 : 1;
             } else {
                 if (req1.time == req2.time) {
-                    res = 0;
+                    if (req1.attachmentId == req2.attachmentId) {
+                        res = 0;
+                    } else {
+                        res = (req1.attachmentId > req2.attachmentId) ? -1 : 1;
+                    }
                 } else {
                     res = (req1.time > req2.time) ? -1 : 1;
                 }
@@ -249,18 +277,23 @@ public class AttachmentDownloadService extends Service implements Runnable {
     }
 
     /**
-     * The DownloadSet is a TreeSet sorted by priority class (e.g. low, high, etc.) and the
-     * time of the request.  Higher priority requests
+     * The DownloadSet is a concurrent priority queue sorted by priority class (e.g. low, high,
+     * etc.) and the time of the request.  Higher priority requests
      * are always processed first; among equals, the oldest request is processed first.  The
-     * priority key represents this ordering.  Note: All methods that change the attachment map are
-     * synchronized on the map itself
+     * priority key represents this ordering.  Requests are also indexed by attachment id, so that
+     * they can be looked up without walking the queue.  Reads don't lock; all methods that change
+     * the queue or the downloads in progress are synchronized on the set itself
      */
-    /*package*/ class DownloadSet extends TreeSet<DownloadRequest> {
-        private static final long serialVersionUID = 1L;
+    /*package*/ class DownloadSet {
+        private final ConcurrentSkipListSet<DownloadRequest> mQueue;
+        private final ConcurrentHashMap<Long, DownloadRequest> mQueuedRequests =
+                new ConcurrentHashMap<Long, DownloadRequest>();
         private PendingIntent mWatchdogPendingIntent;
+        // The largest number of queued requests so far, for dumpsys; guarded by this
+        private int mPeakSize;
 
         /*package*/ DownloadSet(Comparator<? super DownloadRequest> comparator) {
-            super(comparator);
+            mQueue = new ConcurrentSkipListSet<DownloadRequest>(comparator);
         }
 
         /**
@@ -310,25 +343,54 @@ public class AttachmentDownloadService extends Service implements Runnable {
             kick();
         }
 
+        /**
+         * Queue a DownloadRequest, replacing any queued request for the same attachment
+         */
+        /*package*/ synchronized boolean add(DownloadRequest req) {
+            final DownloadRequest previous = mQueuedRequests.put(req.attachmentId, req);
+            if (previous != null) {
+                mQueue.remove(previous);
+            }
+            mQueue.add(req);
+            mPeakSize = Math.max(mPeakSize, mQueue.size());
+            return previous == null;
+        }
+
+        /**
+         * Remove the queued DownloadRequest for the attachment of {@code req}
+         * @return whether a request was queued
+         */
+        /*package*/ synchronized boolean remove(DownloadRequest req) {
+            final DownloadRequest queued = mQueuedRequests.remove(req.attachmentId);
+            return queued != null && mQueue.remove(queued);
+        }
+
         /**
          * Find a queued DownloadRequest, given the attachment's id
          * @param id the id of the attachment
          * @return the DownloadRequest for that attachment (or null, if none)
          */
-        /*package*/ synchronized DownloadRequest findDownloadRequest(long id) {
-            Iterator<DownloadRequest> iterator = iterator();
-            while(iterator.hasNext()) {
-                DownloadRequest req = iterator.next();
-                if (req.attachmentId == id) {
-                    return req;
-                }
-            }
-            return null;
+        /*package*/ DownloadRequest findDownloadRequest(long id) {
+            return mQueuedRequests.get(id);
+        }
+
+        /**
+         * @return the number of queued requests, including those in progress
+         */
+        public int size() {
+            return mQueue.size();
+        }
+
+        /**
+         * @return the queued requests, highest priority (and then oldest) first; the iterator
+         *     never throws ConcurrentModificationException
+         */
+        /*package*/ Iterator<DownloadRequest> descendingIterator() {
+            return mQueue.descendingIterator();
         }
 
-        @Override
         public synchronized boolean isEmpty() {
-            return super.isEmpty() && mDownloadsInProgress.isEmpty();
+            return mQueue.isEmpty() && mDownloadsInProgress.isEmpty();
         }
 
         /**
@@ -341,10 +403,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                         + " entries");
             }
 
+            final int maxDownloads = mConcurrencyLimit.getLimit();
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
             while (iterator.hasNext() &&
-                    (mDownloadsInProgress.size() < MAX_SIMULTANEOUS_DOWNLOADS)) {
+                    (mDownloadsInProgress.size() < maxDownloads)) {
                 DownloadRequest req = iterator.next();
                  // Enforce per-account limit here
                 if (downloadsForAccount(req.accountId) >= MAX_SIMULTANEOUS_DOWNLOADS_PER_ACCOUNT) {
@@ -375,10 +438,15 @@ public class AttachmentDownloadService extends Service implements Runnable {
             if (ecm.getActiveNetworkType() != ConnectivityManager.TYPE_WIFI) {
                 return;
             }
+            // Don't prefetch while the device is in use, so as not to compete with the user for
+            // bandwidth; we're kicked when the screen turns off
+            if (!isDeviceIdle()) {
+                return;
+            }
             // Then, try opportunistic download of appropriate attachments
-            int backgroundDownloads = MAX_SIMULTANEOUS_DOWNLOADS - mDownloadsInProgress.size();
+            int backgroundDownloads = maxDownloads - mDownloadsInProgress.size();
             // Always leave one slot for user requested download
-            if (backgroundDownloads > (MAX_SIMULTANEOUS_DOWNLOADS - 1)) {
+            if (backgroundDownloads > (maxDownloads - 1)) {
                 // We'll load up the newest 25 attachments that aren't loaded or queued
                 Uri lookupUri = EmailContent.uriWithLimit(Attachment.CONTENT_URI,
                         MAX_ATTACHMENTS_TO_CHECK);
@@ -440,36 +508,36 @@ public class AttachmentDownloadService extends Service implements Runnable {
         }
 
         /**
-         * Watchdog for downloads; we use this in case we are hanging on a download, which might
-         * have failed silently (the connection dropped, for example)
+         * Cancel (and requeue) the downloads that are hanging, i.e. that haven't had a callback
+         * for CALLBACK_TIMEOUT, since they might have failed silently (the connection dropped,
+         * for example)
+         * @return how long until the next download in progress would time out, or a download
+         * waiting for a retry may be started; the service thread sleeps that long at most
          */
-        private void onWatchdogAlarm() {
-            // If our service instance is gone, just leave
-            if (mStop) {
-                return;
-            }
-            long now = System.currentTimeMillis();
+        /*package*/ synchronized long cancelTimedOutDownloads() {
+            final long now = System.currentTimeMillis();
+            long nextDeadline = now + PROCESS_QUEUE_WAIT_TIME;
             for (DownloadRequest req: mDownloadsInProgress.values()) {
-                // Check how long it's been since receiving a callback
-                long timeSinceCallback = now - req.lastCallbackTime;
-                if (timeSinceCallback > CALLBACK_TIMEOUT) {
+                // Check how long it's been since receiving a callback (or starting)
+                final long deadline =
+                        Math.max(req.startTime, req.lastCallbackTime) + CALLBACK_TIMEOUT;
+                if (deadline <= now) {
                     if (LogUtils.isLoggable(TAG, LogUtils.DEBUG)) {
                         LogUtils.d(TAG, "== Download of " + req.attachmentId + " timed out");
                     }
                     cancelDownload(req);
+                } else {
+                    nextDeadline = Math.min(nextDeadline, deadline);
                 }
             }
-            // Check whether we can start new downloads...
-            if (mConnectivityManager != null && mConnectivityManager.hasConnectivity()) {
-                processQueue();
-            }
-            // If there are downloads in progress, reset alarm
-            if (!mDownloadsInProgress.isEmpty()) {
-                if (LogUtils.isLoggable(TAG, LogUtils.DEBUG)) {
-                    LogUtils.d(TAG, "Reschedule watchdog...");
+            long delay = nextDeadline - now;
+            final long elapsedNow = SystemClock.elapsedRealtime();
+            for (DownloadRequest req : mQueue) {
+                if (!req.inProgress && req.retryStartTime > elapsedNow) {
+                    delay = Math.min(delay, req.retryStartTime - elapsedNow);
                 }
-                setWatchdogAlarm();
             }
+            return Math.max(delay, 1);
         }
 
         /**
@@ -499,11 +567,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
             return true;
         }
 
-        private synchronized DownloadRequest getDownloadInProgress(long attachmentId) {
+        private DownloadRequest getDownloadInProgress(long attachmentId) {
             return mDownloadsInProgress.get(attachmentId);
         }
 
-        private void setWatchdogAlarm(final long delay) {
+        /*package*/ void setWatchdogAlarm(final long delay) {
             // Lazily initialize the pending intent
             if (mWatchdogPendingIntent == null) {
                 Intent intent = new Intent(mContext, Watchdog.class);
@@ -516,13 +584,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
                     mWatchdogPendingIntent);
         }
 
-        private void setWatchdogAlarm() {
-            setWatchdogAlarm(WATCHDOG_CHECK_INTERVAL);
-        }
-
         /**
-         * Do the work of starting an attachment download using the EmailService interface, and
-         * set our watchdog alarm
+         * Do the work of starting an attachment download using the EmailService interface
          *
          * @param service the service handling the download
          * @param req the DownloadRequest
@@ -532,10 +595,11 @@ public class AttachmentDownloadService extends Service implements Runnable {
                 throws RemoteException {
             req.startTime = System.currentTimeMillis();
             req.inProgress = true;
+            QUEUE_WAIT_SPAN.end(req.queuedSpanStart);
+            req.downloadSpanStart = DOWNLOAD_SPAN.start();
             mDownloadsInProgress.put(req.attachmentId, req);
             service.loadAttachment(mServiceCallback, req.attachmentId,
                     req.priority != PRIORITY_FOREGROUND);
-            setWatchdogAlarm();
         }
 
         private void cancelDownload(DownloadRequest req) {
@@ -566,7 +630,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
          */
         /*package*/ synchronized void endDownload(long attachmentId, int statusCode) {
             // Say we're no longer downloading this
-            mDownloadsInProgress.remove(attachmentId);
+            final int concurrency = mDownloadsInProgress.size();
+            final DownloadRequest finished = mDownloadsInProgress.remove(attachmentId);
 
             // TODO: This code is conservative and treats connection issues as failures.
             // Since we have no mechanism to throttle reconnection attempts, it makes
@@ -631,6 +696,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
             }
 
             Attachment attachment = Attachment.restoreAttachmentWithId(mContext, attachmentId);
+            if (finished != null && statusCode == EmailServiceStatus.SUCCESS) {
+                DOWNLOAD_SPAN.end(finished.downloadSpanStart);
+                if (attachment != null) {
+                    mConcurrencyLimit.onDownloadFinished(attachment.mSize,
+                            System.currentTimeMillis() - finished.startTime, concurrency);
+                }
+            }
             if (attachment != null) {
                 long accountId = attachment.mAccountKey;
                 // Update our attachment storage for this account
@@ -835,7 +907,29 @@ public class AttachmentDownloadService extends Service implements Runnable {
     public static void watchdogAlarm() {
         AttachmentDownloadService service = sRunningService;
         if (service != null) {
-            service.mDownloadSet.onWatchdogAlarm();
+            service.kick();
+        }
+    }
+
+    /**
+     * @return whether the device isn't being used, so that background downloads may start
+     */
+    private boolean isDeviceIdle() {
+        return mPowerManager != null && !mPowerManager.isScreenOn();
+    }
+
+    /**
+     * Start over measuring the throughput when the active network changes, since what was
+     * measured on the previous one doesn't apply any longer
+     */
+    private void checkNetworkChange(EmailConnectivityManager ecm) {
+        final int networkType = ecm.getActiveNetworkType();
+        if (networkType != mLimitNetworkType) {
+            if (mLimitNetworkType != -1) {
+                LogUtils.d(TAG, "Network changed, resetting download concurrency limit");
+                mConcurrencyLimit.reset();
+            }
+            mLimitNetworkType = networkType;
         }
     }
 
@@ -920,6 +1014,8 @@ public class AttachmentDownloadService extends Service implements Runnable {
         mContext = this;
         mConnectivityManager = new EmailConnectivityManager(this, TAG);
         mAccountManagerStub = new AccountManagerStub(this);
+        mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        registerReceiver(mScreenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
 
         // Run through all attachments in the database that require download and add them to
         // the queue
@@ -943,27 +1039,38 @@ public class AttachmentDownloadService extends Service implements Runnable {
             c.close();
         }
 
-        // Loop until stopped, with a 30 minute wait loop
+        // Loop until stopped; we're woken up whenever a request is queued or a download ends,
+        // and otherwise wait until the next download would time out (or may be retried), or 30
+        // minutes at most
         while (!mStop) {
             // Here's where we run our attachment loading logic...
             // Make a local copy of the variable so we don't null-crash on service shutdown
             final EmailConnectivityManager ecm = mConnectivityManager;
             if (ecm != null) {
                 ecm.waitForConnectivity();
+                checkNetworkChange(ecm);
             }
             if (mStop) {
                 // We might be bailing out here due to the service shutting down
                 break;
             }
+            mDownloadSet.cancelTimedOutDownloads();
             mDownloadSet.processQueue();
             if (mDownloadSet.isEmpty()) {
                 LogUtils.d(TAG, "*** All done; shutting down service");
                 stopSelf();
                 break;
             }
+            // Check again, for the deadlines of the downloads that were just started
+            final long waitTime = mDownloadSet.cancelTimedOutDownloads();
+            if (waitTime < PROCESS_QUEUE_WAIT_TIME) {
+                // A download is in progress or waiting for a retry: make sure the device wakes up
+                // for its deadline
+                mDownloadSet.setWatchdogAlarm(waitTime);
+            }
             synchronized(mLock) {
                 try {
-                    mLock.wait(PROCESS_QUEUE_WAIT_TIME);
+                    mLock.wait(waitTime);
                 } catch (InterruptedException e) {
                     // That's ok; we'll just keep looping
                 }
@@ -976,6 +1083,7 @@ public class AttachmentDownloadService extends Service implements Runnable {
         if (ecm != null) {
             ecm.unregister();
         }
+        unregisterReceiver(mScreenOffReceiver);
     }
 
     @Override
@@ -1019,8 +1127,13 @@ public class AttachmentDownloadService extends Service implements Runnable {
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("AttachmentDownloadService");
         long time = System.currentTimeMillis();
+        mConcurrencyLimit.dump(pw);
+        pw.println("  Latency:");
+        Tracer.dump(pw, "AttachmentDownload.");
         synchronized(mDownloadSet) {
-            pw.println("  Queue, " + mDownloadSet.size() + " entries");
+            pw.println("  Queue, " + mDownloadSet.size() + " entries (peak "
+                    + mDownloadSet.mPeakSize + "), " + mDownloadSet.mDownloadsInProgress.size()
+                    + " in progress");
             Iterator<DownloadRequest> iterator = mDownloadSet.descendingIterator();
             // First, start up any required downloads, in priority order
             while (iterator.hasNext()) {
@@ -0,0 +1,104 @@
+package com.blackberry.email.service;
+
+import java.io.PrintWriter;
+
+/**
+ * The number of attachment downloads {@link AttachmentDownloadService} runs at once, adapted to
+ * the throughput it measures.
+ * <p>
+ * Every finished download of at least {@link #MIN_SAMPLE_BYTES} contributes a sample of the
+ * aggregate throughput at the concurrency it ran at (its own throughput times the number of
+ * downloads running). Every {@link #SAMPLES_PER_DECISION} samples, the highest concurrency they
+ * reached is compared with one download less: the limit is lowered to that unless the reached
+ * concurrency was measurably faster overall. Otherwise, if the limit itself was reached, it is
+ * raised when one download more was measurably faster or hasn't been tried yet; failing that, it
+ * is lowered to one download less if that hasn't been tried yet. A link that a single download
+ * saturates thus ends up with fewer downloads in parallel, and each of them done sooner, while
+ * faster links, or servers that throttle each connection, get more.
+ * <p>
+ * The concurrency reached is usually below the limit: only one download runs per account, so
+ * there are as many at most as accounts with downloads queued. The limit isn't probed beyond
+ * what is reached, since that would never be measured.
+ */
+class DownloadConcurrencyLimit {
+    /** The limit never goes below this */
+    static final int MIN_LIMIT = 1;
+    /** The limit never goes above this */
+    static final int MAX_LIMIT = 4;
+    /** The limit to start with, before anything is measured */
+    static final int INITIAL_LIMIT = 2;
+
+    /** Smaller downloads are dominated by latency, and say nothing about bandwidth */
+    static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    /** The number of samples at the current limit before it may change again */
+    static final int SAMPLES_PER_DECISION = 4;
+    /** How much faster a neighbouring limit must have been to move to it */
+    private static final double TOLERANCE = 0.1;
+    /** The weight of a new sample in the moving average of its concurrency */
+    private static final double SAMPLE_WEIGHT = 0.3;
+
+    // Moving average of the aggregate throughput, in bytes per second, by concurrency; 0 if
+    // not measured yet
+    private final double[] mThroughput = new double[MAX_LIMIT + 1];
+    private int mLimit = INITIAL_LIMIT;
+    private int mSamples;
+    // The highest concurrency of the samples since the last decision
+    private int mReached;
+
+    synchronized int getLimit() {
+        return mLimit;
+    }
+
+    /**
+     * Account for a finished download
+     *
+     * @param bytes the size of the download
+     * @param millis how long it took
+     * @param concurrency the number of downloads that were running, including this one
+     */
+    synchronized void onDownloadFinished(long bytes, long millis, int concurrency) {
+        if (bytes < MIN_SAMPLE_BYTES || millis <= 0) {
+            return;
+        }
+        final int level = Math.max(MIN_LIMIT, Math.min(concurrency, MAX_LIMIT));
+        final double sample = bytes * 1000.0 / millis * level;
+        mThroughput[level] = mThroughput[level] == 0 ? sample
+                : mThroughput[level] * (1 - SAMPLE_WEIGHT) + sample * SAMPLE_WEIGHT;
+        mReached = Math.max(mReached, level);
+        if (++mSamples < SAMPLES_PER_DECISION) {
+            return;
+        }
+        final int reached = mReached;
+        mSamples = 0;
+        mReached = 0;
+        final double current = mThroughput[reached];
+        if (reached > MIN_LIMIT && mThroughput[reached - 1] * (1 + TOLERANCE) >= current) {
+            mLimit = Math.min(mLimit, reached - 1);
+        } else if (reached == mLimit && mLimit < MAX_LIMIT && (mThroughput[mLimit + 1] == 0
+                || mThroughput[mLimit + 1] > current * (1 + TOLERANCE))) {
+            mLimit++;
+        } else if (reached > MIN_LIMIT && mThroughput[reached - 1] == 0) {
+            mLimit = Math.min(mLimit, reached - 1);
+        }
+    }
+
+    /**
+     * Forget what was measured, e.g. when the device switches networks
+     */
+    synchronized void reset() {
+        for (int i = 0; i < mThroughput.length; i++) {
+            mThroughput[i] = 0;
+        }
+        mLimit = INITIAL_LIMIT;
+        mSamples = 0;
+        mReached = 0;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.print("  Concurrency limit: " + mLimit + ", throughput (KB/s) by concurrency:");
+        for (int i = MIN_LIMIT; i <= MAX_LIMIT; i++) {
+            pw.print(" " + i + "=" + (long) (mThroughput[i] / 1024));
+        }
+        pw.println();
+    }
+}
@@ -348,11 +348,17 @@ public class ConversationSelectionSet implements Parcelable {
 
             // This set contains the conversation ids that are in the conversation cursor
             final Set<Long> cursorConversationIds = cursor.getConversationIds();
+            if (cursorConversationIds == null) {
+                // The cursor hasn't been fully indexed yet; only remove the items we know have
+                // been deleted, and check the others next time
+                removeAll(itemsToRemoveFromBatch);
+                return;
+            }
 
             // We want to remove all of the valid items that are in the conversation cursor, from
             // the batchConversations to check.  The goal is after this block, anything remaining
             // would be items that don't exist in the conversation cursor anymore.
-            if (!batchConversationToCheck.isEmpty() && cursorConversationIds != null) {
+            if (!batchConversationToCheck.isEmpty()) {
                 batchConversationToCheck.removeAll(cursorConversationIds);
             }
 
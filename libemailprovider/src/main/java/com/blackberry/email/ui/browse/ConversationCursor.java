@@ -39,7 +39,11 @@ import android.support.v4.util.SparseArrayCompat;
 import android.text.TextUtils;
 
 //import com.blackberry.mail.ui.ConversationListFragment;
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.Tracer;
 import com.blackberry.common.utils.LogUtils;
+import com.blackberry.common.utils.LongIntHashMap;
+import com.blackberry.common.utils.LongLruCache;
 import com.blackberry.email.Conversation;
 import com.blackberry.email.Folder;
 import com.blackberry.email.FolderList;
@@ -55,13 +59,11 @@ import com.blackberry.email.utils.UtilsEx;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
@@ -77,6 +79,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         DrawIdler.IdleListener {
 
     public static final String LOG_TAG = "ConvCursor";
+
+    /**
+     * Returned by {@link #getConversationPosition} and {@link #getUnderlyingPosition} for a
+     * conversation that may be in the cursor, but beyond the rows indexed so far (see
+     * {@link #WINDOWED_LOADING_MIN_ROWS}); as opposed to -1, for one that isn't in the cursor
+     */
+    public static final int POSITION_NOT_INDEXED = -2;
+
     /** Turn to true for debugging. */
     private static final boolean DEBUG = false;
     /** A deleted row is indicated by the presence of DELETED_COLUMN in the cache map */
@@ -101,6 +111,27 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     private static final boolean DEBUG_DUPLICATE_KEYS = false;
 
+    /**
+     * Cursors with at least this many rows are opened in windowed mode: instead of indexing every
+     * row and building every Conversation up front, rows are indexed on demand and Conversations
+     * are only kept for a window of rows around the ones being shown. On the UI thread, lookups
+     * only index rows up to the end of the window, and the rows after it are indexed by the cache
+     * task; until then, they are reported as {@link #POSITION_NOT_INDEXED}.
+     */
+    private static final int WINDOWED_LOADING_MIN_ROWS = 1000;
+    // Windowed mode: the number of Conversations kept, and the number built ahead of time around
+    // the row last shown
+    private static final int CONVERSATION_WINDOW_SIZE = 256;
+    private static final int WINDOW_PREFETCH_ROWS = 96;
+    // Windowed mode: rows indexed at a time when looking up a position that isn't indexed yet
+    private static final int INDEX_CHUNK_ROWS = 256;
+
+    // The time taken to open an underlying cursor, i.e. before its first row can be shown
+    private static final TraceSpan OPEN_PRELOAD_SPAN =
+            Tracer.register("ConversationCursor.open[preload]");
+    private static final TraceSpan OPEN_WINDOWED_SPAN =
+            Tracer.register("ConversationCursor.open[windowed]");
+
     /** The resolver for the cursor instantiator's context */
     private final ContentResolver mResolver;
 
@@ -246,20 +277,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
     }
 
+    /**
+     * @return the ids of the conversations in the cursor, or null if there is no cursor or, on the
+     *     UI thread, if the cursor hasn't been fully indexed yet
+     */
     public Set<Long> getConversationIds() {
         return mUnderlyingCursor != null ? mUnderlyingCursor.conversationIds() : null;
     }
 
-    private static class UnderlyingRowData {
-        public final String innerUri;
-        public Conversation conversation;
-
-        public UnderlyingRowData(String innerUri, Conversation conversation) {
-            this.innerUri = innerUri;
-            this.conversation = conversation;
-        }
-    }
-
     /**
      * Simple wrapper for a cursor that provides methods for quickly determining
      * the existence of a row.
@@ -289,6 +314,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     UtilsEx.traceBeginSection("backgroundCaching");
                     if (DEBUG) LogUtils.i(LOG_TAG, "in cache job pos=%s c=%s", mStartPos,
                             getWrappedCursor());
+                    if (mWindowed) {
+                        cacheWindow();
+                        return null;
+                    }
                     final int count = getCount();
                     while (true) {
                         // It is possible for two instances of this loop to execute at once if
@@ -301,12 +330,11 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                             break;
                         }
 
-                        final UnderlyingRowData rowData = mRowCache.get(pos);
-                        if (rowData.conversation == null) {
+                        if (mConversations[pos] == null) {
                             // We are running in a background thread.  Set the position to the row
                             // we are interested in.
                             if (moveToPosition(pos)) {
-                                rowData.conversation = new Conversation(
+                                mConversations[pos] = new Conversation(
                                         UnderlyingCursorWrapper.this);
                             }
                         }
@@ -319,6 +347,53 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 return null;
             }
 
+            /**
+             * Windowed mode: build the Conversations of the rows around the row last shown,
+             * starting over around the new one if it changes while we work, then index the rest
+             * of the cursor a chunk at a time, so that lookups on the UI thread don't have to.
+             */
+            private void cacheWindow() {
+                final int count = getCount();
+                int center = -1;
+                int pos = 0;
+                int end = 0;
+                while (!isCancelled()) {
+                    if (center != mWindowCenter) {
+                        center = mWindowCenter;
+                        pos = Math.max(0, center - WINDOW_PREFETCH_ROWS / 2);
+                        end = Math.min(count, pos + WINDOW_PREFETCH_ROWS);
+                    }
+                    if (pos >= end) {
+                        mWindowCachedCenter = center;
+                        // Release the lock between chunks, so that lookups don't wait for more
+                        synchronized (mIndexLock) {
+                            if (mIndexedCount >= count) {
+                                break;
+                            }
+                            indexRows(mIndexedCount + INDEX_CHUNK_ROWS);
+                        }
+                        continue;
+                    }
+                    final boolean cached;
+                    synchronized (mConversationWindow) {
+                        cached = mConversationWindow.containsKey(pos);
+                    }
+                    if (!cached) {
+                        // Move and read under the index lock, as indexRows() does, so that the
+                        // row can't change under the Conversation being built
+                        final Conversation conversation;
+                        synchronized (mIndexLock) {
+                            conversation = moveToPosition(pos)
+                                    ? new Conversation(UnderlyingCursorWrapper.this) : null;
+                        }
+                        if (conversation != null) {
+                            cacheConversation(pos, conversation);
+                        }
+                    }
+                    pos++;
+                }
+            }
+
             @Override
             protected void onPostExecute(Void result) {
                 mCacheLoaderTask = null;
@@ -361,17 +436,38 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         private final NewCursorUpdateObserver mCursorUpdateObserver;
         private boolean mUpdateObserverRegistered = false;
 
-        // Ideally these two objects could be combined into a Map from
-        // conversationId -> position, but the cached values uses the conversation
-        // uri as a key.
-        private final Map<String, Integer> mConversationUriPositionMap;
-        private final Map<Long, Integer> mConversationIdPositionMap;
-        private final List<UnderlyingRowData> mRowCache;
+        // Conversation id -> position. The cached values use the conversation uri as a key;
+        // since conversation uris end with the conversation id, uris are looked up by their id
+        // and then checked against the uri of the row found (see getPosition(String)).
+        private final LongIntHashMap mConversationIdPositions;
+        // Whether the uris of this cursor end with the conversation id, as checked on the first row
+        private final boolean mUrisEndWithIds;
+        // The uri of every indexed row, by position
+        private final String[] mUris;
+        // Uri -> position, only for the cursors whose uris don't end with ids
+        private final HashMap<String, Integer> mUriPositions;
+        // The Conversation of every row, built ahead of time by the cache task
+        private final Conversation[] mConversations;
+
+        // The position index, and mUris and mUriPositions along with it, is complete for the rows
+        // before mIndexedCount; guarded by mIndexLock. In windowed mode it is filled on demand, up
+        // to the end of the window on the UI thread, and by the cache task, and there is no
+        // mConversations.
+        private final boolean mWindowed;
+        private final Object mIndexLock = new Object();
+        private int mIndexedCount;
+        // Windowed mode: Conversations by position, for the rows shown recently and those around
+        // them; guarded by itself
+        private final LongLruCache<Conversation> mConversationWindow;
+        // Windowed mode: the row last shown, and the row around which the window was last filled
+        private volatile int mWindowCenter;
+        private volatile int mWindowCachedCenter = -1;
 
         private boolean mCursorUpdated = false;
 
-        public UnderlyingCursorWrapper(Cursor result) {
+        public UnderlyingCursorWrapper(Cursor result, boolean windowed) {
             super(result);
+            mWindowed = windowed;
 
             // Register the content observer immediately, as we want to make sure that we don't miss
             // any updates
@@ -383,72 +479,41 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             }
 
             final long start = SystemClock.uptimeMillis();
-            final Map<String, Integer> uriPositionMap;
-            final Map<Long, Integer> idPositionMap;
-            final UnderlyingRowData[] cache;
-            final int count;
+            final TraceSpan span = windowed ? OPEN_WINDOWED_SPAN : OPEN_PRELOAD_SPAN;
+            final long traceStart = span.start();
             UtilsEx.traceBeginSection("blockingCaching");
-            if (super.moveToFirst()) {
-                count = super.getCount();
-                cache = new UnderlyingRowData[count];
-                int i = 0;
-
-                uriPositionMap = Maps.newHashMapWithExpectedSize(count);
-                idPositionMap = Maps.newHashMapWithExpectedSize(count);
-
-                do {
-                    final String innerUriString;
-                    final long convId;
-
-                    innerUriString = super.getString(URI_COLUMN_INDEX);
-                    convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
-
-                    if (DEBUG_DUPLICATE_KEYS) {
-                        if (uriPositionMap.containsKey(innerUriString)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation uri key: %s. " +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    innerUriString, getPosition(), i,
-                                    uriPositionMap.get(innerUriString));
-                        }
-                        if (idPositionMap.containsKey(convId)) {
-                            LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
-                                    "Cursor position: %d, iteration: %d map position: %d",
-                                    convId, getPosition(), i, idPositionMap.get(convId));
-                        }
-                    }
-
-                    uriPositionMap.put(innerUriString, i);
-                    idPositionMap.put(convId, i);
-
-                    cache[i] = new UnderlyingRowData(
-                            innerUriString,
-                            null /* conversation */);
-                } while (super.moveToPosition(++i));
-
-                if (uriPositionMap.size() != count || idPositionMap.size() != count) {
+            final int count = super.getCount();
+            // Sized for count, so filling them never rehashes
+            mConversationIdPositions = new LongIntHashMap(count);
+            mUrisEndWithIds = count == 0 || uriEndsWithId(0);
+            mUris = new String[count];
+            mUriPositions = mUrisEndWithIds
+                    ? null : new HashMap<String, Integer>(count * 4 / 3 + 1);
+            mIndexedCount = 0;
+            if (windowed) {
+                mConversations = null;
+                mConversationWindow = new LongLruCache<Conversation>(CONVERSATION_WINDOW_SIZE);
+            } else {
+                synchronized (mIndexLock) {
+                    indexRows(count);
+                }
+                if (mConversationIdPositions.size() != count) {
                     if (DEBUG_DUPLICATE_KEYS)  {
                         throw new IllegalStateException("Unexpected map sizes: cursorN=" + count
-                                + " uriN=" + uriPositionMap.size() + " idN="
-                                + idPositionMap.size());
+                                + " idN=" + mConversationIdPositions.size());
                     } else {
                         LogUtils.e(LOG_TAG, "Unexpected map sizes.  Cursor size: %d, " +
-                                "uri position map size: %d, id position map size: %d", count,
-                                uriPositionMap.size(), idPositionMap.size());
+                                "id position map size: %d", count,
+                                mConversationIdPositions.size());
                     }
                 }
-            } else {
-                count = 0;
-                cache = new UnderlyingRowData[0];
-                uriPositionMap = Maps.newHashMap();
-                idPositionMap = Maps.newHashMap();
+                mConversations = new Conversation[count];
+                mConversationWindow = null;
             }
-            mConversationUriPositionMap = Collections.unmodifiableMap(uriPositionMap);
-            mConversationIdPositionMap = Collections.unmodifiableMap(idPositionMap);
-
-            mRowCache = Collections.unmodifiableList(Arrays.asList(cache));
+            span.end(traceStart);
             final long end = SystemClock.uptimeMillis();
-            LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s", (end-start),
-                    count);
+            LogUtils.i(LOG_TAG, "*** ConversationCursor pre-loading took %sms n=%s windowed=%s",
+                    (end-start), count, windowed);
 
             UtilsEx.traceEndSection();
 
@@ -467,7 +532,10 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 throw new IllegalStateException("unexpected existing task: " + mCacheLoaderTask);
             }
 
-            if (mCachingEnabled && mCachePos < getCount()) {
+            final boolean pending = mWindowed
+                    ? mWindowCachedCenter != mWindowCenter || !isIndexComplete()
+                    : mCachePos < getCount();
+            if (mCachingEnabled && pending) {
                 mCacheLoaderTask = new CacheLoaderTask(mCachePos);
                 mCacheLoaderTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
                 return true;
@@ -489,36 +557,211 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             mCachingEnabled = false;
         }
 
+        /**
+         * @return false if the uri is not in the cursor; true if it is, or may be beyond the rows
+         *     indexed so far
+         */
         public boolean contains(String uri) {
-            return mConversationUriPositionMap.containsKey(uri);
+            return getPosition(uri) != -1;
         }
 
+        /**
+         * @return the ids of the conversations in the cursor, or null if it hasn't been fully
+         *     indexed yet and this is the UI thread
+         */
         public Set<Long> conversationIds() {
-            return mConversationIdPositionMap.keySet();
+            if (mWindowed) {
+                final boolean onUiThread = !offUiThread();
+                while (!isIndexComplete()) {
+                    synchronized (mIndexLock) {
+                        if (onUiThread) {
+                            return null;
+                        }
+                        indexRows(mIndexedCount + INDEX_CHUNK_ROWS);
+                    }
+                }
+                // The index is complete, so the key set won't change anymore
+            }
+            return mConversationIdPositions.keySet();
         }
 
+        /**
+         * @return the position of a conversation, -1 if it isn't in the cursor, or
+         *     {@link ConversationCursor#POSITION_NOT_INDEXED} if it may be beyond the rows
+         *     indexed so far
+         */
         public int getPosition(long conversationId) {
-            final Integer position = mConversationIdPositionMap.get(conversationId);
-            return position != null ? position.intValue() : -1;
+            if (!mWindowed) {
+                return mConversationIdPositions.get(conversationId);
+            }
+            final boolean onUiThread = !offUiThread();
+            while (true) {
+                synchronized (mIndexLock) {
+                    final int position = mConversationIdPositions.get(conversationId);
+                    if (position != LongIntHashMap.NOT_FOUND) {
+                        return position;
+                    }
+                    if (!indexNextRows(onUiThread)) {
+                        return mIndexedCount < getCount() ? POSITION_NOT_INDEXED : -1;
+                    }
+                }
+            }
         }
 
+        /**
+         * Look a uri up in the index, without reading the cursor except to index more rows in
+         * windowed mode; returns positions as {@link #getPosition(long)} does
+         */
         public int getPosition(String conversationUri) {
-            final Integer position = mConversationUriPositionMap.get(conversationUri);
-            return position != null ? position.intValue() : -1;
+            if (mUrisEndWithIds) {
+                final long id = idFromUri(conversationUri);
+                if (id == -1) {
+                    return -1;
+                }
+                // The row was indexed, with its uri, before its id could be found
+                final int position = getPosition(id);
+                if (position < 0) {
+                    return position;
+                }
+                return conversationUri.equals(mUris[position]) ? position : -1;
+            }
+            // Uris that can't be mapped to ids; look for the uri itself
+            final boolean onUiThread = !offUiThread();
+            while (true) {
+                synchronized (mIndexLock) {
+                    final Integer position = mUriPositions.get(conversationUri);
+                    if (position != null) {
+                        return position;
+                    }
+                    if (!indexNextRows(onUiThread)) {
+                        return mIndexedCount < getCount() ? POSITION_NOT_INDEXED : -1;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Windowed mode: index the next chunk of rows, only up to the end of the window on the UI
+         * thread, so that a lookup there never indexes the whole cursor; the lock is released
+         * between chunks, see {@link CacheLoaderTask#cacheWindow}. Must be called with mIndexLock
+         * held.
+         *
+         * @return false if no more rows may be indexed by this thread
+         */
+        private boolean indexNextRows(boolean onUiThread) {
+            final int end = onUiThread
+                    ? Math.max(mWindowCenter, 0) + CONVERSATION_WINDOW_SIZE : getCount();
+            if (mIndexedCount >= Math.min(end, getCount())) {
+                return false;
+            }
+            indexRows(Math.min(end, mIndexedCount + INDEX_CHUNK_ROWS));
+            return true;
+        }
+
+        private boolean isIndexComplete() {
+            synchronized (mIndexLock) {
+                return mIndexedCount >= getCount();
+            }
+        }
+
+        /**
+         * Add the rows up to {@code end} to the position index. The calling thread's position is
+         * left unchanged. Must be called with mIndexLock held.
+         */
+        private void indexRows(int end) {
+            end = Math.min(end, getCount());
+            if (mIndexedCount >= end) {
+                return;
+            }
+            final int savedPosition = super.getPosition();
+            for (int i = mIndexedCount; i < end; i++) {
+                super.moveToPosition(i);
+                final long convId = super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+                final int previous = mConversationIdPositions.put(convId, i);
+
+                if (DEBUG_DUPLICATE_KEYS && previous != LongIntHashMap.NOT_FOUND) {
+                    LogUtils.e(LOG_TAG, "Inserting duplicate conversation id key: %d" +
+                            " position: %d map position: %d", convId, i, previous);
+                }
+                final String uri = super.getString(URI_COLUMN_INDEX);
+                mUris[i] = uri;
+                if (mUriPositions != null) {
+                    mUriPositions.put(uri, i);
+                }
+            }
+            mIndexedCount = end;
+            super.moveToPosition(savedPosition);
+        }
+
+        /**
+         * @return whether the uri of a row ends with its conversation id
+         */
+        private boolean uriEndsWithId(int position) {
+            final int savedPosition = super.getPosition();
+            super.moveToPosition(position);
+            final boolean result = idFromUri(super.getString(URI_COLUMN_INDEX))
+                    == super.getLong(UIProvider.CONVERSATION_ID_COLUMN);
+            super.moveToPosition(savedPosition);
+            return result;
+        }
+
+        /**
+         * @return the id at the end of a conversation uri, or -1 if it doesn't end with one
+         */
+        private static long idFromUri(String uri) {
+            if (uri == null) {
+                return -1;
+            }
+            final int start = uri.lastIndexOf('/') + 1;
+            if (start == uri.length()) {
+                return -1;
+            }
+            long id = 0;
+            for (int i = start; i < uri.length(); i++) {
+                final char c = uri.charAt(i);
+                if (c < '0' || c > '9' || id > (Long.MAX_VALUE - 9) / 10) {
+                    return -1;
+                }
+                id = id * 10 + (c - '0');
+            }
+            return id;
         }
 
         public String getInnerUri() {
-            return mRowCache.get(getPosition()).innerUri;
+            return super.getString(URI_COLUMN_INDEX);
         }
 
         public Conversation getConversation() {
-            return mRowCache.get(getPosition()).conversation;
+            if (mWindowed) {
+                final int position = getPosition();
+                // Let the cache task know which rows are being shown
+                mWindowCenter = position;
+                synchronized (mConversationWindow) {
+                    return mConversationWindow.get(position);
+                }
+            }
+            return mConversations[getPosition()];
         }
 
         public void cacheConversation(Conversation conversation) {
-            final UnderlyingRowData rowData = mRowCache.get(getPosition());
-            if (rowData.conversation == null) {
-                rowData.conversation = conversation;
+            if (mWindowed) {
+                cacheConversation(getPosition(), conversation);
+                return;
+            }
+            final int position = getPosition();
+            if (mConversations[position] == null) {
+                mConversations[position] = conversation;
+            }
+        }
+
+        /**
+         * Windowed mode: cache the Conversation of a row, unless it already has one
+         */
+        private void cacheConversation(int position, Conversation conversation) {
+            synchronized (mConversationWindow) {
+                if (!mConversationWindow.containsKey(position)) {
+                    mConversationWindow.put(position, conversation);
+                }
             }
         }
 
@@ -639,7 +882,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     uri, time, result.getCount());
         }
         System.gc();
-        return new UnderlyingCursorWrapper(result);
+        return new UnderlyingCursorWrapper(result,
+                result != null && result.getCount() >= WINDOWED_LOADING_MIN_ROWS);
     }
 
     static boolean offUiThread() {
@@ -750,7 +994,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
      * cache. Notably, conversations which are marked as deleted in the cache but which haven't yet
      * been deleted in the underlying cursor will return non-negative here.
      * @param conversationId The id of the conversation we are looking for.
-     * @return The position of the conversation in the underlying cursor, or -1 if not there.
+     * @return The position of the conversation in the underlying cursor, -1 if not there, or
+     * {@link #POSITION_NOT_INDEXED} if it may be beyond the rows indexed so far.
      */
     public int getUnderlyingPosition(final long conversationId) {
         return mUnderlyingCursor.getPosition(conversationId);
@@ -758,7 +1003,9 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
 
     /**
      * Returns the position, in the ConversationCursor, of the Conversation with the specified id.
-     * The returned position will take into account any items that have been deleted.
+     * The returned position will take into account any items that have been deleted. Returns -1
+     * if the conversation isn't there, or {@link #POSITION_NOT_INDEXED} as
+     * {@link #getUnderlyingPosition} does.
      */
     public int getConversationPosition(long conversationId) {
         final int underlyingPosition = mUnderlyingCursor.getPosition(conversationId);
@@ -1438,6 +1685,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         public static String sUriPrefix;
         public static final String URI_SEPARATOR = "://";
         private ContentResolver mResolver;
+        private ProviderWriteQueue mWriteQueue;
 
         /**
          * Allows the implementing provider to specify the authority that should be used.
@@ -1450,6 +1698,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             AUTHORITY = getAuthority();
             sUriPrefix = "content://" + AUTHORITY + "/";
             mResolver = getContext().getContentResolver();
+            mWriteQueue = new ProviderWriteQueue(mResolver);
             return true;
         }
 
@@ -1463,7 +1712,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         @Override
         public Uri insert(Uri uri, ContentValues values) {
             insertLocal(uri, values);
-            return ProviderExecute.opInsert(mResolver, uri, values);
+            return ProviderExecute.opInsert(mWriteQueue, mResolver, uri, values);
         }
 
         @Override
@@ -1482,8 +1731,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
         }
 
         /**
-         * Quick and dirty class that executes underlying provider CRUD operations on a background
-         * thread.
+         * Quick and dirty class that executes underlying provider CRUD operations, on the write
+         * queue's background thread when issued from the UI thread.
          */
         static class ProviderExecute implements Runnable {
             static final int DELETE = 0;
@@ -1502,13 +1751,33 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                 mResolver = resolver;
             }
 
-            static Uri opInsert(ContentResolver resolver, Uri uri, ContentValues values) {
+            static Uri opInsert(ProviderWriteQueue queue, ContentResolver resolver, Uri uri,
+                    ContentValues values) {
                 ProviderExecute e = new ProviderExecute(INSERT, resolver, uri, values);
                 if (offUiThread()) return (Uri)e.go();
-                new Thread(e).start();
+                queue.enqueue(e.mUri.getAuthority(), e.toOperations());
                 return null;
             }
 
+            ArrayList<ContentProviderOperation> toOperations() {
+                final ArrayList<ContentProviderOperation> ops =
+                        new ArrayList<ContentProviderOperation>(1);
+                switch(mCode) {
+                    case DELETE:
+                        ops.add(ContentProviderOperation.newDelete(mUri).build());
+                        break;
+                    case INSERT:
+                        ops.add(ContentProviderOperation.newInsert(mUri).withValues(mValues)
+                                .build());
+                        break;
+                    case UPDATE:
+                        ops.add(ContentProviderOperation.newUpdate(mUri).withValues(mValues)
+                                .build());
+                        break;
+                }
+                return ops;
+            }
+
             @Override
             public void run() {
                 go();
@@ -1572,6 +1841,14 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
             return conversationCursor.clearMostlyDead(uriString);
         }
 
+        /**
+         * Run {@code runnable} in the background once the writes issued so far have been sent
+         * to the underlying providers
+         */
+        void runAfterPendingWrites(Runnable runnable) {
+            mWriteQueue.runAfterPendingWrites(runnable);
+        }
+
         public void undo(ConversationCursor conversationCursor) {
             if (mUndoSequence == 0) {
                 return;
@@ -1646,16 +1923,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     } catch (OperationApplicationException e) {
                     }
                 } else {
-                    new Thread(new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                mResolver.applyBatch(authority, opList);
-                            } catch (RemoteException e) {
-                            } catch (OperationApplicationException e) {
-                            }
-                        }
-                    }).start();
+                    // Merged with the other writes of the same gesture into a single transaction
+                    mWriteQueue.enqueue(authority, opList);
                 }
             }
             return sSequence;
@@ -2134,7 +2403,8 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
     }
 
     public void undo(final Context context, final Uri undoUri) {
-        new Thread(new Runnable() {
+        // The undo must reach the provider after the writes it undoes
+        sProvider.runAfterPendingWrites(new Runnable() {
             @Override
             public void run() {
                 Cursor c = context.getContentResolver().query(undoUri, UIProvider.UNDO_PROJECTION,
@@ -2143,7 +2413,7 @@ public final class ConversationCursor implements Cursor, ConversationCursorOpera
                     c.close();
                 }
             }
-        }).start();
+        });
         undoLocal();
     }
 
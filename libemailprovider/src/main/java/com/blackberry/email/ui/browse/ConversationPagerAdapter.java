@@ -381,7 +381,10 @@ public class ConversationPagerAdapter extends FragmentStatePagerAdapter2
 
         int result = POSITION_NONE;
         final int pos = cursor.getConversationPosition(conv.id);
-        if (pos >= 0) {
+        if (pos == ConversationCursor.POSITION_NOT_INDEXED) {
+            // The cursor hasn't indexed that far yet; don't drop the page for now
+            result = POSITION_UNCHANGED;
+        } else if (pos >= 0) {
             LogUtils.d(LOG_TAG, "pager adapter found repositioned convo %s at pos=%d",
                     conv, pos);
             result = pos;
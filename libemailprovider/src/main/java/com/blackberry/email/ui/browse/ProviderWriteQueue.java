@@ -0,0 +1,167 @@
+package com.blackberry.email.ui.browse;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.RemoteException;
+
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.Tracer;
+import com.blackberry.common.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Sends the writes the conversation list makes from the UI thread to the underlying providers.
+ * <p>
+ * Instead of a new thread per write, every write is run by a single background thread, in the
+ * order it was enqueued. Writes for the same authority that are enqueued within
+ * {@link #MERGE_WINDOW_MILLIS} of the first pending one (e.g. a burst of swipes, or the
+ * operations of a multi-selection) are merged into a single applyBatch, i.e. a single transaction
+ * in the underlying provider. Should a merged batch fail, its writes are retried one request at a
+ * time, so that a failing request doesn't take the others down with it, as when every request had
+ * its own batch.
+ */
+class ProviderWriteQueue {
+    private static final String LOG_TAG = ConversationCursor.LOG_TAG;
+
+    /** How long writes wait for more writes to merge with */
+    static final long MERGE_WINDOW_MILLIS = 200;
+
+    private static final TraceSpan APPLY_BATCH_SPAN =
+            Tracer.register("ConversationProvider.applyBatch");
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // The requests waiting for the merge window to expire, by authority, each request being the
+    // list of operations of one enqueue(); guarded by mPending
+    private final LinkedHashMap<String, ArrayList<ArrayList<ContentProviderOperation>>> mPending =
+            new LinkedHashMap<String, ArrayList<ArrayList<ContentProviderOperation>>>();
+    private boolean mFlushScheduled;
+
+    // Statistics, guarded by mPending
+    private int mRequestCount;
+    private int mTransactionCount;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    ProviderWriteQueue(ContentResolver resolver) {
+        mResolver = resolver;
+        final HandlerThread thread =
+                new HandlerThread("ProviderWriteQueue", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Apply operations to the provider of {@code authority} in the background, after at most
+     * MERGE_WINDOW_MILLIS
+     */
+    void enqueue(String authority, ArrayList<ContentProviderOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        synchronized (mPending) {
+            ArrayList<ArrayList<ContentProviderOperation>> requests = mPending.get(authority);
+            if (requests == null) {
+                requests = new ArrayList<ArrayList<ContentProviderOperation>>();
+                mPending.put(authority, requests);
+            }
+            requests.add(operations);
+            mRequestCount++;
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, MERGE_WINDOW_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Run {@code runnable} on the background thread once every write enqueued so far has been
+     * applied, without waiting for the merge window to expire, e.g. for an undo that must not
+     * overtake the writes it undoes
+     */
+    void runAfterPendingWrites(Runnable runnable) {
+        mHandler.removeCallbacks(mFlush);
+        mHandler.post(mFlush);
+        mHandler.post(runnable);
+    }
+
+    private void flush() {
+        final Map<String, ArrayList<ArrayList<ContentProviderOperation>>> pending;
+        synchronized (mPending) {
+            mFlushScheduled = false;
+            if (mPending.isEmpty()) {
+                return;
+            }
+            pending = new LinkedHashMap<String, ArrayList<ArrayList<ContentProviderOperation>>>(
+                    mPending);
+            mPending.clear();
+        }
+        int requests = 0;
+        int transactions = 0;
+        for (Map.Entry<String, ArrayList<ArrayList<ContentProviderOperation>>> entry :
+                pending.entrySet()) {
+            final String authority = entry.getKey();
+            final ArrayList<ArrayList<ContentProviderOperation>> authorityRequests =
+                    entry.getValue();
+            requests += authorityRequests.size();
+            if (authorityRequests.size() == 1) {
+                applyBatch(authority, authorityRequests.get(0));
+                transactions++;
+                continue;
+            }
+            final ArrayList<ContentProviderOperation> merged =
+                    new ArrayList<ContentProviderOperation>();
+            for (ArrayList<ContentProviderOperation> request : authorityRequests) {
+                merged.addAll(request);
+            }
+            transactions++;
+            if (!applyBatch(authority, merged)) {
+                LogUtils.w(LOG_TAG, "Merged batch of %d requests failed, retrying one by one",
+                        authorityRequests.size());
+                for (ArrayList<ContentProviderOperation> request : authorityRequests) {
+                    applyBatch(authority, request);
+                    transactions++;
+                }
+            }
+        }
+        final int totalRequests;
+        final int totalTransactions;
+        synchronized (mPending) {
+            mTransactionCount += transactions;
+            totalRequests = mRequestCount;
+            totalTransactions = mTransactionCount;
+        }
+        LogUtils.d(LOG_TAG, "Applied %d write requests in %d transactions (%d in %d since start)",
+                requests, transactions, totalRequests, totalTransactions);
+    }
+
+    /**
+     * @return false if the batch failed
+     */
+    private boolean applyBatch(String authority, ArrayList<ContentProviderOperation> operations) {
+        final long start = APPLY_BATCH_SPAN.start();
+        try {
+            mResolver.applyBatch(authority, operations);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        } catch (OperationApplicationException e) {
+            return false;
+        } finally {
+            APPLY_BATCH_SPAN.end(start);
+        }
+    }
+}
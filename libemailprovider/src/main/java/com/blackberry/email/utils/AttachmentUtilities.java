@@ -51,6 +51,7 @@ import com.blackberry.common.utils.LogUtils;
 import com.google.common.collect.ImmutableMap;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.util.MappedTempStorage;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -388,8 +389,22 @@ public class AttachmentUtilities {
         }
     }
 
-    private static long copyFile(InputStream in, OutputStream out) throws IOException {
-        long size = IOUtils.copy(in, out);
+    /**
+     * Copy an attachment to its file and close both streams. A body kept in memory-mapped
+     * segments (see BinaryTempFileBody) is written straight from the segments to the file's
+     * channel, without copying it through a buffer on the heap.
+     *
+     * @return the number of bytes copied
+     */
+    public static long copyFile(InputStream in, OutputStream out) throws IOException {
+        final long size;
+        if (in instanceof MappedTempStorage.SegmentInputStream
+                && out instanceof FileOutputStream) {
+            size = ((MappedTempStorage.SegmentInputStream) in).transferTo(
+                    ((FileOutputStream) out).getChannel());
+        } else {
+            size = IOUtils.copy(in, out);
+        }
         in.close();
         out.flush();
         out.close();
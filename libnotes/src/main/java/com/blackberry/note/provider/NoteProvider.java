@@ -353,6 +353,17 @@ public class NoteProvider extends PIMContentProviderBase {
         return match;
     }
 
+    @Override
+    protected int getTraceMatch(Uri uri) {
+        return URI_MATCHER.match(uri);
+    }
+
+    @Override
+    protected boolean useWriteAheadLogging() {
+        // See DatabaseHelper
+        return true;
+    }
+
     /**
      * Gets the list item cursor.
      *
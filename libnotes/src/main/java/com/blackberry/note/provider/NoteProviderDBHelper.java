@@ -10,6 +10,7 @@ import com.blackberry.common.utils.LogUtils;
 import com.blackberry.note.Note;
 import com.blackberry.note.provider.NoteContract.NoteColumns;
 import com.blackberry.note.utils.NoteUtils;
+import com.blackberry.pimbase.provider.utilities.WriteAheadLog;
 
 /**
  * A helper class to access notes database.
@@ -65,6 +66,8 @@ public final class NoteProviderDBHelper {
        DatabaseHelper(Context context, String name) {
             super(context, name, null, DATABASE_VERSION);
             mContext = context;
+            // Queries run alongside syncs, on the connections SQLiteDatabase pools in WAL mode
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -82,6 +85,8 @@ public final class NoteProviderDBHelper {
 
         @Override
         public void onOpen(SQLiteDatabase db) {
+            // Leave the checkpoints to the provider's idle ones
+            WriteAheadLog.enable(db, null);
         }
     }
 }
\ No newline at end of file
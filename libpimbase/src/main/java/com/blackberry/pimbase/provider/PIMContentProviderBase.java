@@ -14,22 +14,38 @@ import android.content.OperationApplicationException;
 import android.content.pm.ProviderInfo;
 import android.database.ContentObserver;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.provider.BaseColumns;
 import android.util.Log;
 
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.TraceSpanGroup;
+import com.blackberry.common.perf.Tracer;
 import com.blackberry.common.utils.LogUtils;
 import com.blackberry.pimbase.BuildConfig;
+import com.blackberry.pimbase.provider.utilities.IncrementalMaintenance;
+import com.blackberry.pimbase.provider.utilities.MaintenanceTask;
+import com.blackberry.pimbase.provider.utilities.NotificationCoalescer;
+import com.blackberry.pimbase.provider.utilities.WriteAheadLog;
 import com.blackberry.pimbase.service.CPMaintenanceService;
 import com.blackberry.pimbase.service.DatabaseMaintenanceService;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Android content Provider base class by which all PIM Content Providers should
@@ -64,14 +80,65 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     protected static final String PIMBCP_DB_LOCK = "pimbcp_db_lock";
     protected static final String PIMBCP_DB_UNLOCK = "pimbcp_db_unlock";
 
+    /** Trace key returned by getTraceMatch() when calls aren't told apart by uri */
+    public static final int TRACE_NO_MATCH = -1;
+
     /***
      * Private data, particularly locked. Note it is assumed this value is set
      * by querying a central service or due to central services notifying us to
      * be locked. Similarly set to false, unlocked, in same manner.
      */
     private static boolean sLock;
-    private ThreadLocal<ArrayList<Uri>> mBatchNotifications =
-        new ThreadLocal<ArrayList<Uri>>();
+    // Set by PIMBCP_DB_LOCK/PIMBCP_DB_UNLOCK, so locking one provider leaves the others usable
+    private volatile boolean mLocked;
+
+    /** Maximum time a single ACTION_DB_MAINT_START call spends on maintenance */
+    protected static final long DB_MAINTENANCE_SLICE_MILLIS = 500;
+    // The maintenance in progress, resumed by the next ACTION_DB_MAINT_START; guarded by this
+    private IncrementalMaintenance mMaintenance;
+    private ThreadLocal<NotificationCoalescer> mBatchNotifications =
+        new ThreadLocal<NotificationCoalescer>();
+
+    // Notifications waiting for the debounce delay to expire; guarded by mPendingNotificationsLock
+    private final Object mPendingNotificationsLock = new Object();
+    private NotificationCoalescer mPendingNotifications;
+    private Handler mNotificationHandler;
+    private final Runnable mFlushPendingNotifications = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingNotifications();
+        }
+    };
+
+    /** Default time without writes after which the WAL databases are checkpointed */
+    protected static final long DEFAULT_CHECKPOINT_IDLE_MILLIS = 1000;
+    // Runs the idle checkpoints of every provider of the process; guarded by the class
+    private static Handler sCheckpointHandler;
+    // The time of the last write, and whether a checkpoint is scheduled after it
+    private volatile long mLastWriteTime;
+    private final AtomicBoolean mCheckpointScheduled = new AtomicBoolean();
+    private final Runnable mCheckpointWhenIdle = new Runnable() {
+        @Override
+        public void run() {
+            checkpointWhenIdle();
+        }
+    };
+    // The connections the checkpoints run on, by database path, kept from one checkpoint to the
+    // next; guarded by itself
+    private final HashMap<String, SQLiteDatabase> mCheckpointConnections =
+            new HashMap<String, SQLiteDatabase>();
+
+    // Batch notification counters, used for logging and by getBatchNotificationCounts()
+    private final AtomicLong mBatchNotificationsReceived = new AtomicLong();
+    private final AtomicLong mBatchNotificationsSent = new AtomicLong();
+
+    // Latency tracing of the entry points, one span per URI match (see getTraceMatch())
+    private final String mTracePrefix = getClass().getSimpleName() + ".";
+    private final TraceSpanGroup mQuerySpans = new TraceSpanGroup(mTracePrefix + "query");
+    private final TraceSpanGroup mInsertSpans = new TraceSpanGroup(mTracePrefix + "insert");
+    private final TraceSpanGroup mDeleteSpans = new TraceSpanGroup(mTracePrefix + "delete");
+    private final TraceSpanGroup mUpdateSpans = new TraceSpanGroup(mTracePrefix + "update");
+    private final TraceSpan mApplyBatchSpan = Tracer.register(mTracePrefix + "applyBatch");
 
     protected enum OpenMode { READ, WRITE }
 
@@ -160,18 +227,24 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     public Cursor query(Uri uri, String[] projection, String selection,
             String[] selectionArgs, String sortOrder) {
         Cursor retval = null;
+        final TraceSpan span = getTraceSpan(mQuerySpans, uri);
+        final long start = span.start();
 
-        if (!sLock) {
-            if (BuildConfig.DEBUG) {
-                retval = pimQuery(uri, projection, selection, selectionArgs, sortOrder);
-            } else {
-                try {
+        try {
+            if (!isLocked()) {
+                if (BuildConfig.DEBUG) {
                     retval = pimQuery(uri, projection, selection, selectionArgs, sortOrder);
-                } catch (Exception e) {
-                    retval = null;
-                    Log.e(TAG, e.getMessage());
+                } else {
+                    try {
+                        retval = pimQuery(uri, projection, selection, selectionArgs, sortOrder);
+                    } catch (Exception e) {
+                        retval = null;
+                        Log.e(TAG, e.getMessage());
+                    }
                 }
             }
+        } finally {
+            span.end(start);
         }
         return retval;
     }
@@ -179,18 +252,25 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         Uri retval = null;
+        final TraceSpan span = getTraceSpan(mInsertSpans, uri);
+        final long start = span.start();
 
-        if (!sLock) {
-            if (BuildConfig.DEBUG) {
-                retval = pimInsert(uri, values);
-            } else {
-                try {
+        try {
+            if (!isLocked()) {
+                if (BuildConfig.DEBUG) {
                     retval = pimInsert(uri, values);
-                } catch (Exception e) {
-                    retval = null;
-                    Log.e(TAG, e.getMessage());
+                } else {
+                    try {
+                        retval = pimInsert(uri, values);
+                    } catch (Exception e) {
+                        retval = null;
+                        Log.e(TAG, e.getMessage());
+                    }
                 }
+                onDatabaseWritten();
             }
+        } finally {
+            span.end(start);
         }
         return retval;
     }
@@ -198,18 +278,25 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
         int retval = 0;
+        final TraceSpan span = getTraceSpan(mDeleteSpans, uri);
+        final long start = span.start();
 
-        if (!sLock) {
-            if (BuildConfig.DEBUG) {
-                retval = pimDelete(uri, selection, selectionArgs);
-            } else {
-                try {
+        try {
+            if (!isLocked()) {
+                if (BuildConfig.DEBUG) {
                     retval = pimDelete(uri, selection, selectionArgs);
-                } catch (Exception e) {
-                    retval = 0;
-                    Log.e(TAG, e.getMessage());
+                } else {
+                    try {
+                        retval = pimDelete(uri, selection, selectionArgs);
+                    } catch (Exception e) {
+                        retval = 0;
+                        Log.e(TAG, e.getMessage());
+                    }
                 }
+                onDatabaseWritten();
             }
+        } finally {
+            span.end(start);
         }
         return retval;
     }
@@ -218,18 +305,25 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     public int update(Uri uri, ContentValues values, String selection,
             String[] selectionArgs) {
         int retval = 0;
+        final TraceSpan span = getTraceSpan(mUpdateSpans, uri);
+        final long start = span.start();
 
-        if (!sLock) {
-            if (BuildConfig.DEBUG) {
-                retval = pimUpdate(uri, values, selection, selectionArgs);
-            } else {
-                try {
+        try {
+            if (!isLocked()) {
+                if (BuildConfig.DEBUG) {
                     retval = pimUpdate(uri, values, selection, selectionArgs);
-                } catch (Exception e) {
-                    retval = 0;
-                    Log.e(TAG, e.getMessage());
+                } else {
+                    try {
+                        retval = pimUpdate(uri, values, selection, selectionArgs);
+                    } catch (Exception e) {
+                        retval = 0;
+                        Log.e(TAG, e.getMessage());
+                    }
                 }
+                onDatabaseWritten();
             }
+        } finally {
+            span.end(start);
         }
         return retval;
     }
@@ -249,7 +343,19 @@ public abstract class PIMContentProviderBase extends ContentProvider {
         Bundle bundleResult = null;
         boolean success;
 
-        if (sLock) {
+        if (method.equals(PIMContentProviderBase.PIMBCP_DB_LOCK)) {
+            // We are being told to lock the provider
+            // TODO - Carl - how do we stop anyone from locking our provider?
+            LogUtils.i(LogUtils.TAG, "Locking the base provider, thisCP=%s", getClass().getName());
+            mLocked = true;
+            // Don't keep the database files open while they are maintained
+            closeCheckpointConnections();
+        } else if (method.equals(PIMContentProviderBase.PIMBCP_DB_UNLOCK)) {
+            // We are being told to unlock the provider
+            // TODO - Carl - how do we stop anyone from locking our provider?
+            LogUtils.i(LogUtils.TAG, "Unlocking the base provider, thisCP=%s", getClass().getName());
+            mLocked = false;
+        } else if (isLocked()) {
             LogUtils.i(LogUtils.TAG, "Base CP is currently locked: command=%s, thisCP=%s", method, getClass().getName());
             // There are only a limited number of methods that are allowed when locked
             bundleResult = new Bundle();
@@ -258,29 +364,19 @@ public abstract class PIMContentProviderBase extends ContentProvider {
                 // Inform this particular CP to do a schema upgrade
                 success = upgradeDatabases(getDatabaseHelpers(true));
                 bundleResult.putBoolean(Intent.EXTRA_RETURN_RESULT, success);
-            } else if (method.equals(PIMContentProviderBase.PIMBCP_DB_UNLOCK)) {
-                // We are being told to unlock the provider
-                // TODO - Carl - how do we stop anyone from locking our provider?
-                LogUtils.i(LogUtils.TAG, "Unlocking the base provider");
-                PIMContentProviderBase.sLock = false;
             } else {
                 // Just in case someone tries to do a call during while we are locked, return false
                 bundleResult.putBoolean(DatabaseMaintenanceService.EXTRA_RESULT_VALUE, false);
             }
+        } else if (method.equals(DatabaseMaintenanceService.ACTION_DB_MAINT_START)
+                && isDbMaintenanceEnabled()) {
+            bundleResult = new Bundle();
+            success = handleStartDbMaintenance(getDatabaseHelpers(true));
+            bundleResult.putBoolean(DatabaseMaintenanceService.EXTRA_RESULT_VALUE, success);
+            bundleResult.putBoolean(DatabaseMaintenanceService.EXTRA_MORE_WORK,
+                    hasPendingDbMaintenance());
         } else {
-            if (method.equals(PIMContentProviderBase.PIMBCP_DB_LOCK)) {
-                // We are being told to lock the provider
-                // TODO - Carl - how do we stop anyone from locking our provider?
-                LogUtils.i(LogUtils.TAG, "Locking the base provider, thisCP=%s", getClass().getName());
-                PIMContentProviderBase.sLock = true;
-            } else if (method.equals(DatabaseMaintenanceService.ACTION_DB_MAINT_START)
-                    && isDbMaintenanceEnabled()) {
-                bundleResult = new Bundle();
-                success = handleStartDbMaintenance(getDatabaseHelpers(true));
-                bundleResult.putBoolean(DatabaseMaintenanceService.EXTRA_RESULT_VALUE, success);
-            } else {
-                bundleResult = pimCall(method, arg, extras);
-            }
+            bundleResult = pimCall(method, arg, extras);
         }
         return bundleResult;
     }
@@ -297,9 +393,10 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
 
+        final long start = mApplyBatchSpan.start();
         SQLiteOpenHelper[] dbHelpers = getDatabaseHelpers(false);
 
-        mBatchNotifications.set(new ArrayList<Uri>());
+        mBatchNotifications.set(new NotificationCoalescer(getNotificationFoldThreshold()));
 
         // Get a list of the writable databases used by the derived class. We'll use this list to
         // begin/mark/end transactions.
@@ -335,22 +432,239 @@ public abstract class PIMContentProviderBase extends ContentProvider {
             for (int i = dbs.size() - 1; i >= 0; i--) {
                 dbs.get(i).endTransaction();
             }
+            onDatabaseWritten();
 
-            // Send all the notifications now that the transaction has completed successfully. In
-            // future we might want to send a subset of the notifications to improve
-            // performance. For now we preserve the number and the order (helps with testing too!).
+            // Send the notifications now that the transaction has completed successfully.
+            // Duplicates are dropped and crowded row URIs are folded into their parent; the
+            // order of first occurrence is preserved.
 
-            final ArrayList<Uri> notifications = mBatchNotifications.get();
+            final NotificationCoalescer notifications = mBatchNotifications.get();
             mBatchNotifications.remove();
 
-            for (final Uri uri : notifications) {
-                getContext().getContentResolver().notifyChange(uri, null);
+            final long debounceMillis = getNotificationDebounceMillis();
+            if (debounceMillis > 0) {
+                scheduleNotifications(notifications, debounceMillis);
+            } else {
+                sendNotifications(notifications);
             }
 
             return results;
 
         } finally {
             mBatchNotifications.remove();
+            mApplyBatchSpan.end(start);
+        }
+    }
+
+    /**
+     * getNotificationFoldThreshold - number of distinct row URIs sharing a parent that a batch may
+     * notify before they are replaced by a single notification on the parent URI. Derived classes
+     * may override this to tune the folding, or return a negative value to disable it.
+     *
+     * @return the fold threshold
+     */
+    protected int getNotificationFoldThreshold() {
+        return NotificationCoalescer.DEFAULT_FOLD_THRESHOLD;
+    }
+
+    /**
+     * getNotificationDebounceMillis - delay used to debounce batch notifications. When positive,
+     * the notifications of a batch are held for this long and merged with those of any batch
+     * completing in the meantime. Debouncing is off by default.
+     *
+     * @return the debounce delay in milliseconds, or 0 to notify as soon as a batch commits
+     */
+    protected long getNotificationDebounceMillis() {
+        return 0;
+    }
+
+    /**
+     * useWriteAheadLogging - whether the databases of the provider are in WAL mode, so that
+     * queries aren't blocked by writes (e.g. a list scrolling during a sync). The derived class
+     * switches them itself, either with SQLiteOpenHelper#setWriteAheadLoggingEnabled, which also
+     * gives the database a pool of read connections, or, for databases that have others attached,
+     * with {@link WriteAheadLog#enable} and a ReadConnectionPool returned by
+     * getReadableDatabase(). The base class then checkpoints them in the background once writes
+     * stop for {@link #getCheckpointIdleMillis}. Off by default.
+     */
+    protected boolean useWriteAheadLogging() {
+        return false;
+    }
+
+    /**
+     * getCheckpointIdleMillis - how long the databases must go without writes before they are
+     * checkpointed, when {@link #useWriteAheadLogging} is on
+     */
+    protected long getCheckpointIdleMillis() {
+        return DEFAULT_CHECKPOINT_IDLE_MILLIS;
+    }
+
+    /**
+     * checkpointDatabases - checkpoint the WAL of the databases of the provider; called on a
+     * background thread. By default the databases of getDatabaseHelpers(true) are checkpointed
+     * as far as their readers allow, each on a connection of its own, so that the checkpoint
+     * doesn't wait for a transaction in progress. The connection is opened by the first
+     * checkpoint of the database and kept until {@link #closeCheckpointConnections}.
+     */
+    protected void checkpointDatabases() {
+        for (SQLiteOpenHelper helper : getDatabaseHelpers(true)) {
+            if (helper != null && helper.getDatabaseName() != null) {
+                final String path =
+                        getContext().getDatabasePath(helper.getDatabaseName()).getPath();
+                synchronized (mCheckpointConnections) {
+                    SQLiteDatabase db = mCheckpointConnections.get(path);
+                    if (db == null) {
+                        db = WriteAheadLog.openForCheckpoint(path);
+                        mCheckpointConnections.put(path, db);
+                    }
+                    WriteAheadLog.checkpoint(db);
+                }
+            }
+        }
+    }
+
+    /**
+     * closeCheckpointConnections - close the connections checkpointDatabases() keeps. The base
+     * class closes them on shutdown, lock and upgrade; derived classes call this when they close
+     * their databases to replace or delete them otherwise.
+     */
+    protected void closeCheckpointConnections() {
+        synchronized (mCheckpointConnections) {
+            for (SQLiteDatabase db : mCheckpointConnections.values()) {
+                db.close();
+            }
+            mCheckpointConnections.clear();
+        }
+    }
+
+    /**
+     * getBatchNotificationCounts - the number of notifications raised by batches since the
+     * provider was created, and the number actually sent after coalescing
+     *
+     * @return array of { received, sent }
+     */
+    public long[] getBatchNotificationCounts() {
+        return new long[] { mBatchNotificationsReceived.get(), mBatchNotificationsSent.get() };
+    }
+
+    /**
+     * getTraceMatch - the key under which calls for a uri are traced, so that the latency of
+     * query(), insert(), update() and delete() can be told apart per kind of uri. Derived classes
+     * should return the code of their UriMatcher; by default all uris are traced together.
+     *
+     * @return the trace key for the uri, or TRACE_NO_MATCH
+     */
+    protected int getTraceMatch(Uri uri) {
+        return TRACE_NO_MATCH;
+    }
+
+    /**
+     * getTraceMatchName - the name of a trace key, as shown in dumps
+     */
+    protected String getTraceMatchName(int match) {
+        return match == TRACE_NO_MATCH ? "*" : "0x" + Integer.toHexString(match);
+    }
+
+    private TraceSpan getTraceSpan(TraceSpanGroup group, Uri uri) {
+        // Don't pay for matching the uri when nothing is going to be recorded
+        final int match = Tracer.isEnabled() ? getTraceMatch(uri) : TRACE_NO_MATCH;
+        final TraceSpan span = group.get(match);
+        return span != null ? span : group.register(match, getTraceMatchName(match));
+    }
+
+    /**
+     * Dump the latency of the provider entry points; derived classes overriding dump() should
+     * call through to keep them.
+     */
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Latency:");
+        Tracer.dump(writer, mTracePrefix);
+        final long[] notificationCounts = getBatchNotificationCounts();
+        writer.println("Batch notifications: received=" + notificationCounts[0]
+                + ", sent=" + notificationCounts[1]);
+    }
+
+    /**
+     * Schedule a checkpoint for when the writes stop; a checkpoint already scheduled is pushed
+     * back by checkpointWhenIdle() rather than on every write
+     */
+    private void onDatabaseWritten() {
+        if (!useWriteAheadLogging()) {
+            return;
+        }
+        mLastWriteTime = SystemClock.uptimeMillis();
+        if (mCheckpointScheduled.compareAndSet(false, true)) {
+            getCheckpointHandler().postDelayed(mCheckpointWhenIdle, getCheckpointIdleMillis());
+        }
+    }
+
+    private void checkpointWhenIdle() {
+        final long idleMillis = getCheckpointIdleMillis();
+        final long sinceLastWrite = SystemClock.uptimeMillis() - mLastWriteTime;
+        if (sinceLastWrite < idleMillis) {
+            getCheckpointHandler().postDelayed(mCheckpointWhenIdle, idleMillis - sinceLastWrite);
+            return;
+        }
+        // Cleared first, so that a write made during the checkpoint schedules another one
+        mCheckpointScheduled.set(false);
+        if (isLocked()) {
+            return;
+        }
+        try {
+            checkpointDatabases();
+        } catch (RuntimeException e) {
+            // e.g. the provider was shut down; the next write schedules another checkpoint
+            LogUtils.w(TAG, e, "Checkpoint failed");
+        }
+    }
+
+    private static synchronized Handler getCheckpointHandler() {
+        if (sCheckpointHandler == null) {
+            final HandlerThread thread =
+                    new HandlerThread("PIMBCP-checkpoint", Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sCheckpointHandler = new Handler(thread.getLooper());
+        }
+        return sCheckpointHandler;
+    }
+
+    private void sendNotifications(NotificationCoalescer notifications) {
+        final ContentResolver resolver = getContext().getContentResolver();
+        for (final Uri uri : notifications.coalesce()) {
+            resolver.notifyChange(uri, null);
+        }
+        final int received = notifications.getReceivedCount();
+        final int saved = notifications.getSavedCount();
+        mBatchNotificationsReceived.addAndGet(received);
+        mBatchNotificationsSent.addAndGet(received - saved);
+        if (saved > 0) {
+            LogUtils.d(TAG, "Batch notifications: received=%d, saved=%d", received, saved);
+        }
+    }
+
+    private void scheduleNotifications(NotificationCoalescer notifications, long delayMillis) {
+        synchronized (mPendingNotificationsLock) {
+            if (mPendingNotifications == null) {
+                mPendingNotifications = new NotificationCoalescer(getNotificationFoldThreshold());
+            }
+            mPendingNotifications.addAll(notifications);
+            if (mNotificationHandler == null) {
+                mNotificationHandler = new Handler(Looper.getMainLooper());
+            }
+            mNotificationHandler.removeCallbacks(mFlushPendingNotifications);
+            mNotificationHandler.postDelayed(mFlushPendingNotifications, delayMillis);
+        }
+    }
+
+    private void flushPendingNotifications() {
+        final NotificationCoalescer notifications;
+        synchronized (mPendingNotificationsLock) {
+            notifications = mPendingNotifications;
+            mPendingNotifications = null;
+        }
+        if (notifications != null) {
+            sendNotifications(notifications);
         }
     }
 
@@ -360,6 +674,7 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     @Override
     public void shutdown() {
         pimShutdown();
+        closeCheckpointConnections();
     }
 
     /**
@@ -387,26 +702,58 @@ public abstract class PIMContentProviderBase extends ContentProvider {
         }
     }
 
+    /**
+     * Run the next slice of database maintenance, at most DB_MAINTENANCE_SLICE_MILLIS long. A new
+     * round of maintenance (see {@link #addDbMaintenanceTasks}) is started once the previous one
+     * is complete; until then each call resumes where the previous one stopped, and
+     * {@link #hasPendingDbMaintenance} tells the caller to call again.
+     *
+     * @return false if a maintenance task failed
+     */
     protected boolean handleStartDbMaintenance(SQLiteOpenHelper[] dbHelpers) {
-        boolean retValue = true;
-
-        if (dbHelpers != null) {
-            for (int x = 0; x < dbHelpers.length; x++) {
-                SQLiteDatabase db = null;
-                try {
-                    db = dbHelpers[x].getWritableDatabase();
-                    // just doing it like this for now
-                    db.execSQL("ANALYZE");
-                    db.execSQL("VACUUM");
-                    Log.i(TAG, "DB Maint Done On::" + db.getPath());
-                } catch (SQLException ex) {
-                    Log.e(TAG, ex.getMessage());
-                    retValue = false;
+        final IncrementalMaintenance maintenance;
+        synchronized (this) {
+            if (mMaintenance == null || mMaintenance.isComplete()) {
+                final ArrayList<MaintenanceTask> tasks = new ArrayList<MaintenanceTask>();
+                addDbMaintenanceTasks(tasks);
+                if (dbHelpers != null) {
+                    for (SQLiteOpenHelper helper : dbHelpers) {
+                        tasks.add(MaintenanceTask.analyze(helper));
+                    }
+                    // Vacuum last, so that the pages freed by the other tasks are reclaimed
+                    for (SQLiteOpenHelper helper : dbHelpers) {
+                        tasks.add(MaintenanceTask.vacuum(helper));
+                    }
                 }
+                mMaintenance = new IncrementalMaintenance(
+                        mTracePrefix.substring(0, mTracePrefix.length() - 1), tasks);
             }
+            maintenance = mMaintenance;
         }
+        return maintenance.runSlice(DB_MAINTENANCE_SLICE_MILLIS);
+    }
 
-        return retValue;
+    /**
+     * addDbMaintenanceTasks - add the provider specific maintenance tasks (e.g. purging orphaned
+     * rows) to a new round of maintenance; they run before the ANALYZE and VACUUM of every
+     * database, which are added by the base class
+     */
+    protected void addDbMaintenanceTasks(ArrayList<MaintenanceTask> tasks) {
+    }
+
+    /**
+     * @return true if the current round of maintenance still has work left
+     */
+    protected synchronized boolean hasPendingDbMaintenance() {
+        return mMaintenance != null && !mMaintenance.isComplete();
+    }
+
+    /**
+     * isLocked - whether this provider is locked for maintenance, either on its own or by the
+     * legacy process wide maintenance lock
+     */
+    protected boolean isLocked() {
+        return sLock || mLocked;
     }
 
     /**
@@ -415,6 +762,7 @@ public abstract class PIMContentProviderBase extends ContentProvider {
     protected boolean upgradeDatabases(SQLiteOpenHelper[] dbHelpers) {
         // Close all of the databases associated with this CP
         closeAllDatabases();
+        closeCheckpointConnections();
         // Now "touch" then all - basically opening then up with the helper
         boolean retValue = false;
         if (dbHelpers != null) {
@@ -434,6 +782,7 @@ public abstract class PIMContentProviderBase extends ContentProvider {
         }
         // Now close them all again
         closeAllDatabases();
+        closeCheckpointConnections();
         return retValue;
     }
 
@@ -527,7 +876,7 @@ public abstract class PIMContentProviderBase extends ContentProvider {
      */
 
     protected void notifyChange (Uri uri, ContentObserver observer) {
-        final ArrayList<Uri> notifications = mBatchNotifications.get();
+        final NotificationCoalescer notifications = mBatchNotifications.get();
         if (notifications != null) {
             notifications.add(uri);
         } else {
@@ -673,18 +1022,11 @@ public abstract class PIMContentProviderBase extends ContentProvider {
         }
     }
     private static void setProviderLockState(boolean lockState, final String[] cps, ContentResolver cr) {
-        String lockCommand = null;
-        if (lockState) {
-            // Set the global lock - only affects CPs in the current process
-            PIMContentProviderBase.sLock = true;
-            lockCommand = PIMBCP_DB_LOCK;
-        } else {
-            // Clear the global lock - only affects CPs in the current process
-            PIMContentProviderBase.sLock = false;
-            lockCommand = PIMBCP_DB_UNLOCK;
-        }
+        // Each CP keeps its own lock, so that locking one CP for an upgrade leaves the other CPs
+        // of the process available
+        final String lockCommand = lockState ? PIMBCP_DB_LOCK : PIMBCP_DB_UNLOCK;
         for (String cp: cps) {
-            // Send the specified command to any CPs not in our process
+            // Send the specified command to the CP, whether or not it is in our process
             LogUtils.i(LogUtils.TAG, "Sending %s command to CP %s", lockCommand, cp);
             try {
                 cr.call(Uri.parse("content://" + cp), lockCommand, null, null);
@@ -0,0 +1,74 @@
+package com.blackberry.pimbase.provider.utilities;
+
+/**
+ * The size, in bytes, up to which batches of operations are sent to one content provider in a
+ * single transaction, learned from the transactions it took and refused. It starts at
+ * {@link #DEFAULT_BYTES}, is halved below the size of any batch refused as too large, and grows
+ * by an eighth after each batch that fills most of it, up to {@link #MAX_BYTES} but short of the
+ * smallest batch refused. That limit is raised again after {@link #PROBE_INTERVAL} full batches,
+ * in case the refusal was only due to other transactions in flight at the time.
+ * <p>
+ * This class is thread safe.
+ */
+public class BatchBudget {
+
+    /**
+     * The largest budget: the binder transaction buffer is 1MB and is shared by every transaction
+     * in flight in the process, so a batch never aims for more than half of it
+     */
+    public static final int MAX_BYTES = 512 * 1024;
+
+    /** The smallest budget repeated refusals shrink it to */
+    public static final int MIN_BYTES = 16 * 1024;
+
+    /** The budget before anything has been sent */
+    public static final int DEFAULT_BYTES = 256 * 1024;
+
+    /** The number of full batches after which the budget may grow past a refused size again */
+    public static final int PROBE_INTERVAL = 64;
+
+    private int mBytes = DEFAULT_BYTES;
+    // The size of the smallest batch refused, which the budget stays an eighth below
+    private int mRefusedBytes = Integer.MAX_VALUE;
+    // The number of full batches sent since the budget stopped short of mRefusedBytes
+    private int mFullBatches;
+
+    /**
+     * @return the current budget, in bytes
+     */
+    public synchronized int get() {
+        return mBytes;
+    }
+
+    /**
+     * A batch went through; if it used most of the budget, allow slightly larger ones
+     *
+     * @param budget the budget the batch was cut for
+     * @param size the estimated size of the batch
+     */
+    public synchronized void onSent(int budget, int size) {
+        if (budget != mBytes || size < budget - (budget >> 2)) {
+            return;
+        }
+        final int limit = Math.min(MAX_BYTES, mRefusedBytes - (mRefusedBytes >> 3));
+        if (budget < limit) {
+            mBytes = Math.min(limit, budget + (budget >> 3));
+        } else if (mRefusedBytes != Integer.MAX_VALUE && ++mFullBatches >= PROBE_INTERVAL) {
+            mFullBatches = 0;
+            mRefusedBytes = mRefusedBytes >= MAX_BYTES
+                    ? Integer.MAX_VALUE : mRefusedBytes + (mRefusedBytes >> 3);
+        }
+    }
+
+    /**
+     * A batch of the given size was refused as too large; halve the budget below that size
+     *
+     * @return the new budget
+     */
+    public synchronized int onTooLarge(int size) {
+        mRefusedBytes = Math.min(mRefusedBytes, size);
+        mFullBatches = 0;
+        mBytes = Math.max(MIN_BYTES, Math.min(mBytes, size) / 2);
+        return mBytes;
+    }
+}
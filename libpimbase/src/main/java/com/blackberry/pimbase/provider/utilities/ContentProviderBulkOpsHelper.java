@@ -5,6 +5,7 @@ import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.OperationApplicationException;
+import android.os.Parcel;
 import android.os.RemoteException;
 import android.os.TransactionTooLargeException;
 
@@ -14,52 +15,153 @@ import com.google.common.annotations.VisibleForTesting;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class ContentProviderBulkOpsHelper {
     private static final String TAG = "CPBulkOpsHelper";
 
+    // No results, for resolving back references that aren't expected to be there
+    private static final ContentProviderResult[] NO_RESULTS = new ContentProviderResult[0];
+
+    // The learned batch budget per authority
+    private static final ConcurrentHashMap<String, BatchBudget> sBudgets =
+            new ConcurrentHashMap<String, BatchBudget>();
+
     /**
-     * commit() this method will attempt to apply a batch of operations against
-     * a CP. If the operations fails due to TransactionTooLargeException retry
-     * logic will then be executed where the operations will be broken into
-     * chunks based on a separator operation and smaller apply batch call will
-     * be made. Note separator logic must be setup when creating the operation
-     * in order to take advantage of this logic. Also this only has a single
-     * retry
+     * commit() this method will apply a batch of operations against a CP.
+     * The operations are sized as they would be in a binder transaction and,
+     * when they don't fit in the batch budget learned for the authority, are
+     * sent in consecutive chunks that each fit (see OperationChunker). Chunks
+     * are never cut between an operation and the operations it back
+     * references, and if the caller placed separator operations, only at
+     * those separators. A TransactionTooLargeException shrinks the budget for
+     * the authority and the refused chunk is re-sent in smaller pieces;
+     * chunks that fill most of the budget grow it again. NOTE: a batch that
+     * fits the budget is a single transaction, but once a batch is split, each
+     * chunk is its own transaction.
      * 
      * @param resovler
      * @param authority
      * @param operations
-     * @return
+     * @return the results of all operations, separators excluded
      * @throws IOException
      */
-    public static ContentProviderResult[] commit(ContentResolver resovler, String authority,
-            ArrayList<Operation> operations) throws IOException {
+    public static ContentProviderResult[] commit(final ContentResolver resovler,
+            final String authority, ArrayList<Operation> operations) throws IOException {
         if (operations.isEmpty()) {
             return new ContentProviderResult[0];
         }
 
-        ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>(
-                operations.size());
+        // The operations to send, and whether a separator precedes each of them
+        final ArrayList<Operation> ops = new ArrayList<Operation>(operations.size());
+        boolean[] separators = null;
         for (Operation op : operations) {
-            if (!op.mSeparator) { // Don't need to commit separators
-                ops.add(op.operationToContentProviderOperation(0));
+            if (op.mSeparator) { // Don't need to commit separators
+                if (separators == null) {
+                    separators = new boolean[operations.size()];
+                }
+                separators[ops.size()] = true;
+            } else {
+                ops.add(op);
             }
         }
 
+        final int count = ops.size();
+        final int[] sizes = new int[count];
+        final int[] lowestReferences = new int[count];
+        measure(ops, sizes, lowestReferences);
+
+        final ArrayList<ContentProviderResult> results =
+                new ArrayList<ContentProviderResult>(count);
+        new OperationChunker(sizes, lowestReferences, separators).commit(getBatchBudget(authority),
+                new OperationChunker.Sender() {
+                    @Override
+                    public boolean send(int start, int end) throws IOException {
+                        final ArrayList<ContentProviderOperation> cpos =
+                                new ArrayList<ContentProviderOperation>(end - start);
+                        for (int i = start; i < end; i++) {
+                            cpos.add(ops.get(i).operationToContentProviderOperation(start));
+                        }
+                        try {
+                            results.addAll(Arrays.asList(resovler.applyBatch(authority, cpos)));
+                            return true;
+                        } catch (TransactionTooLargeException e) {
+                            LogUtils.w(TAG, "TransactionTooLargeException applying %d operations"
+                                    + " to %s, retrying in smaller chunks", end - start, authority);
+                            return false;
+                        } catch (final RemoteException e) {
+                            LogUtils.e(TAG, "RemoteException in commit");
+                            throw new IOException("RemoteException in commit");
+                        } catch (final OperationApplicationException e) {
+                            LogUtils.e(TAG, "OperationApplicationException in commit");
+                            throw new IOException("OperationApplicationException in commit");
+                        }
+                    }
+                });
+        return results.toArray(new ContentProviderResult[results.size()]);
+    }
+
+    /**
+     * @return the batch budget learned for the given authority
+     */
+    public static BatchBudget getBatchBudget(String authority) {
+        BatchBudget budget = sBudgets.get(authority);
+        if (budget == null) {
+            final BatchBudget newBudget = new BatchBudget();
+            budget = sBudgets.putIfAbsent(authority, newBudget);
+            if (budget == null) {
+                budget = newBudget;
+            }
+        }
+        return budget;
+    }
+
+    /**
+     * Measure each operation by writing it to a Parcel, as the binder will, and find the lowest
+     * index it back references
+     */
+    private static void measure(ArrayList<Operation> ops, int[] sizes, int[] lowestReferences) {
+        final Parcel parcel = Parcel.obtain();
         try {
-            return resovler.applyBatch(authority, ops);
-        } catch (TransactionTooLargeException e) {
-            LogUtils.w(TAG,
-                    "TransactionTooLargeException applying batch, attempting to commit in chunks");
-            return commitBySeparators(resovler, authority, operations);
-        } catch (final RemoteException e) {
-            LogUtils.e(TAG, "RemoteException in commit");
-            throw new IOException("RemoteException in commit");
-        } catch (final OperationApplicationException e) {
-            LogUtils.e(TAG, "OperationApplicationException in commit");
-            throw new IOException("OperationApplicationException in commit");
+            for (int i = 0; i < sizes.length; i++) {
+                final Operation op = ops.get(i);
+                final ContentProviderOperation cpo = op.operationToContentProviderOperation(0);
+                parcel.setDataSize(0);
+                cpo.writeToParcel(parcel, 0);
+                sizes[i] = parcel.dataSize();
+                lowestReferences[i] = getLowestBackReference(op, cpo);
+            }
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * @return the lowest index the operation back references, or Integer.MAX_VALUE if it has no
+     *         back references
+     */
+    private static int getLowestBackReference(Operation op, ContentProviderOperation cpo) {
+        int lowest = Integer.MAX_VALUE;
+        if (op.mValuesBackReferences != null) {
+            for (Map.Entry<String, Object> entry : op.mValuesBackReferences.valueSet()) {
+                Integer backRefIndex = op.mValuesBackReferences.getAsInteger(entry.getKey());
+                if (backRefIndex != null) {
+                    lowest = Math.min(lowest, backRefIndex.intValue());
+                }
+            }
+        }
+        // The back references set on the ContentProviderOperation itself aren't visible, but
+        // resolving them against no results fails; they may refer to any operation before
+        try {
+            if (op.mValuesBackReferences == null) {
+                cpo.resolveValueBackReferences(NO_RESULTS, 0);
+            }
+            cpo.resolveSelectionArgsBackReferences(NO_RESULTS, 0);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            lowest = 0;
         }
+        return lowest;
     }
 
     @VisibleForTesting
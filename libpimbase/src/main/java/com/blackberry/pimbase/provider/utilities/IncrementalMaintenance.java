@@ -0,0 +1,98 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import android.database.SQLException;
+import android.os.SystemClock;
+
+import com.blackberry.common.perf.TraceSpan;
+import com.blackberry.common.perf.Tracer;
+import com.blackberry.common.utils.LogUtils;
+
+import java.util.List;
+
+/**
+ * Runs a list of {@link MaintenanceTask}s in time slices. Each call to {@link #runSlice} steps
+ * through the tasks, in order, until either all of them are done or the time budget is spent;
+ * the next call resumes with the task (and step) it stopped at. Since the database is only held
+ * for the duration of a single step, queries and updates from the UI and sync get their turn
+ * between steps, and even more so between slices.
+ * <p>
+ * Every step is timed under the span "prefix.maintenance.taskName", so the duration of each phase
+ * shows up with the rest of the provider's latencies in dumpsys; the total time and number of
+ * steps of each task are also logged when it completes.
+ */
+public class IncrementalMaintenance {
+    private static final String TAG = "PIMBCP";
+
+    private final String mName;
+    private final List<MaintenanceTask> mTasks;
+    private final TraceSpan[] mSpans;
+    // Guarded by this
+    private int mNext;
+    private int mSteps;
+    private long mElapsedMillis;
+    private boolean mFailed;
+
+    /**
+     * @param name the name of the provider, used as the prefix of the trace spans
+     * @param tasks the tasks to run, in order
+     */
+    public IncrementalMaintenance(String name, List<MaintenanceTask> tasks) {
+        mName = name;
+        mTasks = tasks;
+        mSpans = new TraceSpan[tasks.size()];
+        for (int i = 0; i < mSpans.length; i++) {
+            mSpans[i] = Tracer.register(name + ".maintenance." + tasks.get(i).getName());
+        }
+    }
+
+    /**
+     * Run tasks until they are all complete or {@code budgetMillis} has elapsed; at least one step
+     * is run per call. A task failing with an SQLException is logged and abandoned, and the next
+     * task started.
+     *
+     * @return true if no task has failed so far
+     */
+    public synchronized boolean runSlice(long budgetMillis) {
+        final long sliceStart = SystemClock.uptimeMillis();
+        final long deadline = sliceStart + budgetMillis;
+        while (mNext < mTasks.size()) {
+            final MaintenanceTask task = mTasks.get(mNext);
+            final TraceSpan span = mSpans[mNext];
+            final long stepStart = SystemClock.uptimeMillis();
+            final long start = span.start();
+            boolean done;
+            try {
+                done = task.step();
+            } catch (SQLException e) {
+                LogUtils.e(TAG, "%s: maintenance task %s failed: %s", mName, task.getName(),
+                        e.getMessage());
+                mFailed = true;
+                done = true;
+            }
+            span.end(start);
+            final long now = SystemClock.uptimeMillis();
+            mSteps++;
+            mElapsedMillis += now - stepStart;
+            if (done) {
+                LogUtils.i(TAG, "%s: maintenance task %s done in %d ms (%d steps)", mName,
+                        task.getName(), mElapsedMillis, mSteps);
+                mNext++;
+                mSteps = 0;
+                mElapsedMillis = 0;
+            }
+            if (now >= deadline) {
+                break;
+            }
+        }
+        LogUtils.i(TAG, "%s: maintenance slice took %d ms, %d of %d tasks done", mName,
+                SystemClock.uptimeMillis() - sliceStart, mNext, mTasks.size());
+        return !mFailed;
+    }
+
+    /**
+     * @return true once every task has been run to completion (or has failed)
+     */
+    public synchronized boolean isComplete() {
+        return mNext >= mTasks.size();
+    }
+}
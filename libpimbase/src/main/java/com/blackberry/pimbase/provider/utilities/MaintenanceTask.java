@@ -0,0 +1,140 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+
+import java.util.ArrayList;
+
+/**
+ * A resumable piece of database maintenance, done in steps short enough that the database is
+ * never held for long; see {@link IncrementalMaintenance}, which runs the steps within a time
+ * budget and picks up where it left off on the next call.
+ * <p>
+ * Tasks keep their progress in memory only. If the process dies in the middle of a task, the next
+ * maintenance run starts it over, so every step must leave the database consistent on its own.
+ */
+public abstract class MaintenanceTask {
+
+    /** Pages returned to the file system by each incremental vacuum step */
+    public static final int VACUUM_PAGES_PER_STEP = 256;
+
+    /**
+     * Without incremental auto vacuum a VACUUM rewrites the whole file in one go, so it is only
+     * worth doing once this percentage of the pages are free
+     */
+    public static final int FULL_VACUUM_FREE_PERCENT = 10;
+
+    // PRAGMA auto_vacuum values
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final String mName;
+
+    protected MaintenanceTask(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Do the next bounded unit of work
+     *
+     * @return true once the task is complete
+     */
+    protected abstract boolean step();
+
+    /**
+     * ANALYZE the tables of a database one table per step, rather than the whole database at once
+     */
+    public static MaintenanceTask analyze(final SQLiteOpenHelper helper) {
+        return new MaintenanceTask("analyze." + helper.getDatabaseName()) {
+            private ArrayList<String> mTables;
+            private int mNext;
+
+            @Override
+            protected boolean step() {
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                if (mTables == null) {
+                    mTables = new ArrayList<String>();
+                    final Cursor c = db.rawQuery("SELECT name FROM sqlite_master WHERE type='table'"
+                            + " AND name NOT LIKE 'sqlite_%'", null);
+                    try {
+                        while (c.moveToNext()) {
+                            mTables.add(c.getString(0));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                } else if (mNext < mTables.size()) {
+                    db.execSQL("ANALYZE \"" + mTables.get(mNext++) + "\"");
+                }
+                return mNext >= mTables.size();
+            }
+        };
+    }
+
+    /**
+     * Give the free pages of a database back to the file system. Databases using incremental auto
+     * vacuum are shrunk {@link #VACUUM_PAGES_PER_STEP} pages at a time; others can only be
+     * VACUUMed as a whole, which is done in a single step, and only when at least
+     * {@link #FULL_VACUUM_FREE_PERCENT} of the file is free.
+     */
+    public static MaintenanceTask vacuum(final SQLiteOpenHelper helper) {
+        return new MaintenanceTask("vacuum." + helper.getDatabaseName()) {
+            @Override
+            protected boolean step() {
+                final SQLiteDatabase db = helper.getWritableDatabase();
+                final long free = DatabaseUtils.longForQuery(db, "PRAGMA freelist_count", null);
+                if (free == 0) {
+                    return true;
+                }
+                if (DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null)
+                        == AUTO_VACUUM_INCREMENTAL) {
+                    // incremental_vacuum frees one page per row stepped through, so the cursor
+                    // has to be run to the end
+                    final Cursor c = db.rawQuery(
+                            "PRAGMA incremental_vacuum(" + VACUUM_PAGES_PER_STEP + ")", null);
+                    try {
+                        c.getCount();
+                    } finally {
+                        c.close();
+                    }
+                    return free <= VACUUM_PAGES_PER_STEP;
+                }
+                final long pages = DatabaseUtils.longForQuery(db, "PRAGMA page_count", null);
+                if (free * 100 >= pages * FULL_VACUUM_FREE_PERCENT) {
+                    db.execSQL("VACUUM");
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Delete the rows of a table matching a selection, at most {@code chunkSize} rows per step
+     */
+    public static MaintenanceTask delete(String name, final SQLiteOpenHelper helper,
+            final String table, final String selection, final int chunkSize) {
+        return new MaintenanceTask(name) {
+            @Override
+            protected boolean step() {
+                return deleteChunk(helper.getWritableDatabase(), table, selection, chunkSize)
+                        < chunkSize;
+            }
+        };
+    }
+
+    /**
+     * Delete at most {@code chunkSize} rows of a table matching a selection, in a single statement
+     *
+     * @return the number of rows deleted; fewer than chunkSize once there are none left
+     */
+    public static int deleteChunk(SQLiteDatabase db, String table, String selection,
+            int chunkSize) {
+        return db.delete(table, "rowid IN (SELECT rowid FROM " + table + " WHERE " + selection
+                + " LIMIT " + chunkSize + ")", null);
+    }
+}
@@ -0,0 +1,137 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * NotificationCoalescer collects the change notifications raised while a batch of operations is
+ * applied and reduces them to the smallest set that still reaches every interested observer.
+ * <p>
+ * Duplicate URIs are collapsed into one. URIs that address a single row (i.e. whose last path
+ * segment is a numeric id) are grouped by their parent URI, keeping the query part so that the
+ * operation parameter survives; once a parent has more than the fold threshold distinct children,
+ * all of them are replaced by a single notification on the parent. Observers registered on a
+ * child URI are still called, as a notification on a URI also reaches observers of its
+ * descendants. The relative order of the first occurrence of each URI is preserved.
+ * <p>
+ * This class is not thread safe; an instance is meant to be owned by a single batch.
+ */
+public class NotificationCoalescer {
+
+    /** Default number of distinct children a parent URI may have before they are folded */
+    public static final int DEFAULT_FOLD_THRESHOLD = 8;
+
+    private final int mFoldThreshold;
+    private final LinkedHashSet<Uri> mUris = new LinkedHashSet<Uri>();
+    private int mReceivedCount = 0;
+    private int mDeliveredCount = 0;
+
+    /**
+     * @param foldThreshold number of distinct children of a parent URI above which they are
+     *            replaced by the parent; a negative value disables folding
+     */
+    public NotificationCoalescer(int foldThreshold) {
+        mFoldThreshold = foldThreshold;
+    }
+
+    /**
+     * Record a notification for the given URI
+     */
+    public void add(Uri uri) {
+        mReceivedCount++;
+        mUris.add(uri);
+    }
+
+    /**
+     * Record every notification held by another coalescer, e.g. when merging a batch into a
+     * pending debounced delivery
+     */
+    public void addAll(NotificationCoalescer other) {
+        mReceivedCount += other.mReceivedCount;
+        mUris.addAll(other.mUris);
+    }
+
+    public boolean isEmpty() {
+        return mUris.isEmpty();
+    }
+
+    /**
+     * @return the number of notifications recorded, including duplicates
+     */
+    public int getReceivedCount() {
+        return mReceivedCount;
+    }
+
+    /**
+     * @return the number of notifications saved by the last call to {@link #coalesce()}
+     */
+    public int getSavedCount() {
+        return mReceivedCount - mDeliveredCount;
+    }
+
+    /**
+     * Compute the reduced list of URIs to notify
+     *
+     * @return the URIs to notify, in order of first occurrence
+     */
+    public List<Uri> coalesce() {
+        final ArrayList<Uri> result = new ArrayList<Uri>(mUris.size());
+
+        if (mFoldThreshold < 0) {
+            result.addAll(mUris);
+            mDeliveredCount = result.size();
+            return result;
+        }
+
+        // Count the distinct children of each parent
+        final HashMap<Uri, Integer> childCounts = new HashMap<Uri, Integer>();
+        for (Uri uri : mUris) {
+            Uri parent = getParent(uri);
+            if (parent != null) {
+                Integer count = childCounts.get(parent);
+                childCounts.put(parent, count == null ? 1 : count + 1);
+            }
+        }
+
+        // Replace the children of crowded parents with the parent itself; the set takes care of
+        // collapsing the children into one entry at the position of the first of them
+        final LinkedHashSet<Uri> folded = new LinkedHashSet<Uri>(mUris.size());
+        for (Uri uri : mUris) {
+            Uri parent = getParent(uri);
+            if (parent != null && childCounts.get(parent) > mFoldThreshold) {
+                folded.add(parent);
+            } else {
+                folded.add(uri);
+            }
+        }
+
+        result.addAll(folded);
+        mDeliveredCount = result.size();
+        return result;
+    }
+
+    /**
+     * Return the parent of a row URI (the URI without its trailing id), or null if the URI does
+     * not address a single row
+     */
+    private static Uri getParent(Uri uri) {
+        final List<String> segments = uri.getPathSegments();
+        final int size = segments.size();
+        if (size < 2 || !TextUtils.isDigitsOnly(segments.get(size - 1))) {
+            return null;
+        }
+        final Uri.Builder builder = new Uri.Builder()
+                .scheme(uri.getScheme())
+                .encodedAuthority(uri.getEncodedAuthority())
+                .encodedQuery(uri.getEncodedQuery());
+        for (int i = 0; i < size - 1; i++) {
+            builder.appendPath(segments.get(i));
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,136 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import java.io.IOException;
+
+/**
+ * OperationChunker splits a batch of operations into chunks small enough to be sent to a content
+ * provider in separate applyBatch calls without overflowing the binder transaction buffer, from
+ * the estimated size of each operation.
+ * <p>
+ * A batch that fits the budget is sent whole, as a single transaction. A larger one is cut only
+ * where no later operation back references an earlier one, so that every back reference stays
+ * inside its chunk once rebased onto the start of the chunk. If the caller placed separators in
+ * the batch, it is cut only at those separators: they are the caller's statement of where the
+ * batch may be split into separate transactions. A chunk without a place to cut it within the
+ * budget grows past the budget up to the first one.
+ * <p>
+ * This class only deals with sizes and indices, so that it runs, and is benchmarked, off device;
+ * ContentProviderBulkOpsHelper measures the operations and sends the chunks.
+ */
+public class OperationChunker {
+
+    /**
+     * Sends the chunks of a batch, see {@link #commit}
+     */
+    public interface Sender {
+        /**
+         * Send the operations in [start, end) as one transaction, with their back references
+         * rebased onto start
+         *
+         * @return false if the transaction was refused as too large
+         */
+        boolean send(int start, int end) throws IOException;
+    }
+
+    // Fixed per-batch overhead of an applyBatch transaction (interface token, authority, list
+    // header); a rough figure, only used to keep some head room
+    private static final int BATCH_OVERHEAD_BYTES = 256;
+
+    /** Estimated size of each operation */
+    private final int[] mSizes;
+    /** mCutAllowed[i] is true if a chunk may start at operation i */
+    private final boolean[] mCutAllowed;
+
+    /**
+     * @param sizes the estimated size of each operation, separators excluded
+     * @param lowestReferences the lowest index each operation back references, or
+     *            Integer.MAX_VALUE if it has no back references
+     * @param separators whether the caller placed a separator before each operation, indexed like
+     *            sizes; null if there are no separators
+     */
+    public OperationChunker(int[] sizes, int[] lowestReferences, boolean[] separators) {
+        final int count = sizes.length;
+        mSizes = sizes;
+
+        // A chunk may start at i only if no operation at or after i refers to an operation
+        // before i; walk backwards keeping the lowest reference of the suffix
+        mCutAllowed = new boolean[count + 1];
+        int suffixLowest = count;
+        for (int i = count - 1; i >= 0; i--) {
+            suffixLowest = Math.min(suffixLowest, Math.min(i, lowestReferences[i]));
+            mCutAllowed[i] = suffixLowest >= i && (separators == null || separators[i]);
+        }
+        mCutAllowed[0] = true;
+        mCutAllowed[count] = true;
+    }
+
+    /**
+     * @return the number of operations, separators excluded
+     */
+    public int size() {
+        return mSizes.length;
+    }
+
+    /**
+     * @return the estimated size, in bytes, of a transaction of the operations in [start, end)
+     */
+    public int getSize(int start, int end) {
+        int size = BATCH_OVERHEAD_BYTES;
+        for (int i = start; i < end; i++) {
+            size += mSizes[i];
+        }
+        return size;
+    }
+
+    /**
+     * Find where the chunk starting at the given operation should end
+     *
+     * @param start the index of the first operation of the chunk
+     * @param budgetBytes the maximum size of the chunk
+     * @return the index following the last operation of the chunk; always greater than start
+     *         unless start is the end of the batch
+     */
+    public int nextChunkEnd(int start, int budgetBytes) {
+        final int count = mSizes.length;
+        int size = BATCH_OVERHEAD_BYTES;
+        int lastLegalEnd = -1;
+        for (int i = start; i < count; i++) {
+            size += mSizes[i];
+            if (size > budgetBytes && lastLegalEnd > start) {
+                return lastLegalEnd;
+            }
+            if (mCutAllowed[i + 1]) {
+                lastLegalEnd = i + 1;
+                if (size > budgetBytes) {
+                    // Oversized, but this is the first place we are allowed to stop
+                    return lastLegalEnd;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Send every operation, in chunks that fit the budget. A chunk refused as too large shrinks
+     * the budget and is sent again in smaller chunks; chunks that fill most of the budget grow it.
+     *
+     * @throws IOException if a refused chunk can't be cut any smaller, or if the sender fails
+     */
+    public void commit(BatchBudget budget, Sender sender) throws IOException {
+        final int count = mSizes.length;
+        int start = 0;
+        while (start < count) {
+            final int bytes = budget.get();
+            final int end = nextChunkEnd(start, bytes);
+            final int size = getSize(start, end);
+            if (sender.send(start, end)) {
+                budget.onSent(bytes, size);
+                start = end;
+            } else if (nextChunkEnd(start, budget.onTooLarge(size)) >= end) {
+                // A smaller budget doesn't make a smaller chunk: there is nothing left to try
+                throw new IOException("Unable to split " + (end - start) + " operations ("
+                        + size + " bytes) any further");
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of read-only connections to a database in WAL mode (see {@link WriteAheadLog}),
+ * handed out in turn, so that queries run alongside the writer and alongside each other. This is
+ * the pool SQLiteDatabase keeps by itself in WAL mode, for databases it can't keep one for, i.e.
+ * those with attached databases; subclasses attach them to each connection in {@link #onOpen}.
+ * <p>
+ * Each connection is opened the first time it is handed out. A connection sees the database as
+ * of the start of each of its queries, so it doesn't see what the writer's current transaction
+ * hasn't committed yet: queries that must see it have to run on the writer.
+ * <p>
+ * This class is thread safe.
+ */
+public class ReadConnectionPool {
+
+    /**
+     * Largest default number of connections: the UI rarely runs more than a couple of queries at
+     * once (e.g. a message list and a folder list), and each connection has its own page cache
+     */
+    public static final int MAX_DEFAULT_SIZE = 3;
+
+    /**
+     * The default number of connections for this device: one per core, up to
+     * {@link #MAX_DEFAULT_SIZE}, as queries beyond the number of cores can't run at the same time
+     * anyway. ConcurrentAccessBenchmark measures the pool sizes against each other (its
+     * readConnections parameter) on the cores of the machine it runs on.
+     */
+    public static int defaultSize() {
+        return Math.max(1, Math.min(MAX_DEFAULT_SIZE, Runtime.getRuntime().availableProcessors()));
+    }
+
+    private final String mPath;
+    // Guarded by itself
+    private final SQLiteDatabase[] mConnections;
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /**
+     * @param path the path of the database, which must already be in WAL mode
+     * @param size the number of connections
+     */
+    public ReadConnectionPool(String path, int size) {
+        mPath = path;
+        mConnections = new SQLiteDatabase[size];
+    }
+
+    /**
+     * Configure a new connection before it is first handed out, e.g. attach databases to it
+     */
+    protected void onOpen(SQLiteDatabase db) {
+    }
+
+    /**
+     * @return the next connection in turn, opening it if needed
+     */
+    public SQLiteDatabase get() {
+        final int i = (mNext.getAndIncrement() & Integer.MAX_VALUE) % mConnections.length;
+        synchronized (mConnections) {
+            SQLiteDatabase db = mConnections[i];
+            if (db == null) {
+                db = SQLiteDatabase.openDatabase(mPath, null, SQLiteDatabase.OPEN_READONLY);
+                try {
+                    onOpen(db);
+                } catch (RuntimeException e) {
+                    db.close();
+                    throw e;
+                }
+                mConnections[i] = db;
+            }
+            return db;
+        }
+    }
+
+    /**
+     * Close every open connection; cursors that haven't read all their rows yet fail to read more
+     */
+    public void close() {
+        synchronized (mConnections) {
+            for (int i = 0; i < mConnections.length; i++) {
+                if (mConnections[i] != null) {
+                    mConnections[i].close();
+                    mConnections[i] = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.blackberry.pimbase.provider.utilities;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.blackberry.common.utils.LogUtils;
+
+/**
+ * Switching databases to write-ahead logging (WAL) and checkpointing them.
+ * <p>
+ * In WAL mode readers don't block the writer and the writer doesn't block readers: a reader sees
+ * the database as of the start of its read transaction, while the writer appends to the log. The
+ * log is copied back into the database by checkpoints. SQLite runs one whenever a commit leaves
+ * more than {@link #AUTO_CHECKPOINT_PAGES} pages in the log, as part of that commit; providers
+ * run their own once writes stop (see PIMContentProviderBase#useWriteAheadLogging), so that the
+ * automatic ones are only a safety valve for long bursts of writes.
+ * <p>
+ * SQLiteOpenHelper#setWriteAheadLoggingEnabled does all this for a database on its own, along
+ * with a pool of connections reading it concurrently, but SQLiteDatabase turns WAL off as soon
+ * as another database is attached. Databases with attached databases are switched here instead,
+ * each of them by name, and read through a {@link ReadConnectionPool}.
+ * <p>
+ * Checkpoints run on a connection of their own, kept open between them, so that they don't wait
+ * for the writer's: a checkpoint on the writer's connection is queued behind any transaction in
+ * progress, which during a sync can be most of the time.
+ */
+public final class WriteAheadLog {
+    private static final String TAG = "PIMBCP";
+
+    /**
+     * The log size, in pages, beyond which a commit checkpoints; SQLite's own default, ten times
+     * what SQLiteDatabase sets on the connections it opens in WAL mode
+     */
+    public static final int AUTO_CHECKPOINT_PAGES = 1000;
+
+    private WriteAheadLog() {
+    }
+
+    /**
+     * Switch a database of a connection to WAL mode, and set the automatic checkpoint threshold
+     * of the connection. The mode is persistent, but SQLiteDatabase resets it each time it opens
+     * a database without WAL enabled, so this has to be called every time the database is opened.
+     * Switching fails while another connection has the database open in a transaction.
+     *
+     * @param db an open, writable connection
+     * @param schema the name of an attached database, or null for the main one
+     * @return true if the database is in WAL mode
+     */
+    public static boolean enable(SQLiteDatabase db, String schema) {
+        final String prefix = schema == null ? "" : schema + '.';
+        // PRAGMA journal_mode returns the mode in effect, so it has to be run as a query
+        final String mode = DatabaseUtils.stringForQuery(db,
+                "PRAGMA " + prefix + "journal_mode=WAL", null);
+        DatabaseUtils.longForQuery(db, "PRAGMA wal_autocheckpoint=" + AUTO_CHECKPOINT_PAGES,
+                null);
+        if (!"wal".equalsIgnoreCase(mode)) {
+            LogUtils.w(TAG, "Could not switch %s of %s to WAL, journal mode is %s",
+                    schema == null ? "main" : schema, db.getPath(), mode);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Open a connection to checkpoint a database in WAL mode on, with {@link #checkpoint}. It is
+     * meant to be kept from one checkpoint to the next, and used for nothing else.
+     *
+     * @param path the path of the database file
+     */
+    public static SQLiteDatabase openForCheckpoint(String path) {
+        return SQLiteDatabase.openDatabase(path, null,
+                SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING);
+    }
+
+    /**
+     * Checkpoint the database of a connection, as far as its readers allow, without waiting for
+     * any of them or, on a connection of its own (see {@link #openForCheckpoint}), for the writer
+     *
+     * @return true if the log was copied back into the database completely
+     */
+    public static boolean checkpoint(SQLiteDatabase db) {
+        final long start = System.currentTimeMillis();
+        // Returns busy, the pages in the log and the pages checkpointed (of the last database)
+        final Cursor c = db.rawQuery("PRAGMA wal_checkpoint(PASSIVE)", null);
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            final int logPages = c.getInt(1);
+            final int checkpointedPages = c.getInt(2);
+            LogUtils.d(TAG, "Checkpointed %d of %d pages of %s in %d ms", checkpointedPages,
+                    logPages, db.getPath(), System.currentTimeMillis() - start);
+            return c.getInt(0) == 0 && checkpointedPages == logPages;
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.blackberry.pimbase.service;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.SystemClock;
 
 import com.blackberry.common.utils.LogUtils;
 import com.blackberry.pimbase.provider.PIMContentProviderBase;
@@ -34,6 +41,9 @@ public class CPMaintenanceService extends PimWakefulIntentService {
     public static final int DB_LOCALE_ACTION = 3;
     public static final int START_ACTION = 4;
 
+    // Maximum number of ContentProviders upgraded at the same time
+    private static final int MAX_PARALLEL_UPGRADES = 3;
+
     // A "friend" class that is the only one allowed to lock the Base Content Provider
     public static class CPLock {
         private CPLock() {
@@ -194,10 +204,9 @@ public class CPMaintenanceService extends PimWakefulIntentService {
             // Write out our current task information to a preference file
             writeActionState(DB_UPGRADE_ACTION, cps);
 
-            // Lock all providers, then upgrade, then unlock
-            lockProviders(cps);
-            success = upgradeProviders(cps);
-            unlockProviders(cps);
+            // Lock, upgrade and unlock each provider on its own, in parallel; a provider is only
+            // unavailable while its own databases are being upgraded
+            success = upgradeProvidersInParallel(cps);
 
         } catch (Exception e) {
             LogUtils.e(LogUtils.TAG, "Database upgrade exception: %s", e.getMessage());
@@ -209,6 +218,70 @@ public class CPMaintenanceService extends PimWakefulIntentService {
         return success;
     }
 
+    /**
+     * upgradeProvidersInParallel - upgrade each provider with upgradeProvider, up to
+     * MAX_PARALLEL_UPGRADES at a time, and wait for all of them to finish
+     *
+     * @param cps - a String array containing the list of CPs to upgrade
+     * @return boolean - true if all the upgrades succeeded
+     */
+    protected boolean upgradeProvidersInParallel(final String[] cps) {
+        final long start = SystemClock.uptimeMillis();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(cps.length, MAX_PARALLEL_UPGRADES)));
+        final ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>(cps.length);
+        for (final String cp : cps) {
+            results.add(executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return upgradeProvider(cp);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        boolean success = true;
+        for (Future<Boolean> result : results) {
+            try {
+                success &= result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                success = false;
+            } catch (ExecutionException e) {
+                LogUtils.e(LogUtils.TAG, "Database upgrade exception: %s", e.getCause());
+                success = false;
+            }
+        }
+        LogUtils.i(LogUtils.TAG, "Upgraded %d CPs in %d ms", cps.length,
+                SystemClock.uptimeMillis() - start);
+        return success;
+    }
+
+    /**
+     * upgradeProvider - lock, upgrade and unlock a single provider, logging the time taken by
+     * each phase
+     *
+     * @param cp - the authority of the CP to upgrade
+     * @return boolean - success/failure
+     */
+    protected boolean upgradeProvider(final String cp) {
+        final String[] cps = new String[] { cp };
+        final long start = SystemClock.uptimeMillis();
+        lockProviders(cps);
+        final long locked = SystemClock.uptimeMillis();
+        long upgraded = locked;
+        boolean success = false;
+        try {
+            success = upgradeProviders(cps);
+            upgraded = SystemClock.uptimeMillis();
+        } finally {
+            unlockProviders(cps);
+            LogUtils.i(LogUtils.TAG, "Upgrade of CP %s: lock %d ms, upgrade %d ms, unlock %d ms",
+                    cp, locked - start, upgraded - locked, SystemClock.uptimeMillis() - upgraded);
+        }
+        return success;
+    }
+
     /**
      * lockProviders - wrap the call to PIMContentProviderBase to allow override
      *
@@ -35,6 +35,11 @@ public class DatabaseMaintenanceService extends PimWakefulIntentService {
     public static final String EXTRA_FORCED = "forced";
     public static final String EXTRA_PROVIDER_AUTH = "provider_auth";
     public static final String EXTRA_RESULT_VALUE = "result_value";
+    // Set in the result when the provider has more maintenance to do and wants to be called again
+    public static final String EXTRA_MORE_WORK = "more_work";
+
+    // Pause between two maintenance slices, leaving the database to the provider's other clients
+    private static final long SLICE_PAUSE_MILLIS = 250;
 
     // battery min values
     private static final int MIN_BATTERY_LEVEL_CHARGING = 20; // percent
@@ -253,23 +258,45 @@ public class DatabaseMaintenanceService extends PimWakefulIntentService {
 
     /**
      * startDbMaintenance will call back into the CP using call method where the CP
-     * will then process db maintenance 
+     * will then process db maintenance. The CP does its maintenance in short slices, so
+     * it is called again (after a short pause) for as long as it reports EXTRA_MORE_WORK.
      * 
      * @param providerAuth
      * @return
      */
     @VisibleForTesting
     protected boolean startDbMaintenance(String providerAuth) {
-        boolean bRetValue = false;
+        boolean bRetValue = true;
         Log.i(TAG,"startDbMaintenance CP AUTH::" + providerAuth);
+        final long start = SystemClock.uptimeMillis();
+        int slices = 0;
         try {
-            Bundle bundle = this.getContentResolver().call(getContentUri(providerAuth), ACTION_DB_MAINT_START, null, null);
-            if (bundle != null) {
-                bRetValue = bundle.getBoolean(EXTRA_RESULT_VALUE);
+            final Uri uri = getContentUri(providerAuth);
+            boolean moreWork = true;
+            while (moreWork) {
+                Bundle bundle = this.getContentResolver().call(uri, ACTION_DB_MAINT_START, null, null);
+                slices++;
+                if (bundle == null) {
+                    bRetValue = false;
+                    break;
+                }
+                bRetValue &= bundle.getBoolean(EXTRA_RESULT_VALUE);
+                moreWork = bundle.getBoolean(EXTRA_MORE_WORK);
+                if (moreWork) {
+                    if (isCancelled()) {
+                        // The CP keeps its progress; the next run picks up from there
+                        Log.i(TAG, "startDbMaintenance cancelled with work left");
+                        break;
+                    }
+                    SystemClock.sleep(SLICE_PAUSE_MILLIS);
+                }
             }
         } catch (IllegalArgumentException iae) {
             Log.e(TAG, iae.getMessage());
+            bRetValue = false;
         }
+        Log.i(TAG, "startDbMaintenance " + providerAuth + " took "
+                + (SystemClock.uptimeMillis() - start) + "ms in " + slices + " slices");
 
         return bRetValue;
     }
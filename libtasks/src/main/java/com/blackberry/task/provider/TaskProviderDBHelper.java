@@ -7,6 +7,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
 import com.blackberry.common.utils.LogUtils;
+import com.blackberry.pimbase.provider.utilities.WriteAheadLog;
 import com.blackberry.task.Task;
 import com.blackberry.task.provider.TaskContract.TaskColumns;
 import com.blackberry.task.utils.TaskUtils;
@@ -71,6 +72,8 @@ public final class TaskProviderDBHelper {
         DatabaseHelper(Context context, String name) {
             super(context, name, null, DATABASE_VERSION);
             mContext = context;
+            // Queries run alongside syncs, on the connections SQLiteDatabase pools in WAL mode
+            setWriteAheadLoggingEnabled(true);
         }
 
         @Override
@@ -90,6 +93,8 @@ public final class TaskProviderDBHelper {
 
         @Override
         public void onOpen(SQLiteDatabase db) {
+            // Leave the checkpoints to the provider's idle ones
+            WriteAheadLog.enable(db, null);
         }
     }
 }
\ No newline at end of file
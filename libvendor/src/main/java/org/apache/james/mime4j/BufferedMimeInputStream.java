@@ -0,0 +1,175 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Stream that reads ahead from the underlying stream in large chunks, and
+ * exposes its buffer to the {@link MimeBoundaryInputStream}s of a multipart
+ * body so that they can search it for the boundary in bulk. All the body
+ * parts of a multipart body, and its epilogue, are read through the same
+ * instance, so that nothing read ahead while scanning one part is lost to
+ * the next.
+ * <p>
+ * The unread bytes are <code>buf[pos]</code> to <code>buf[limit - 1]</code>.
+ *
+ * @version $Id$
+ */
+class BufferedMimeInputStream extends InputStream {
+    static final int DEFAULT_BUFFER_SIZE = 16 * 1024;
+
+    private InputStream is = null;
+    private RootInputStream root = null;
+    private boolean eof = false;
+
+    byte[] buf = null;
+    int pos = 0;
+    int limit = 0;
+
+    /**
+     * Creates a new <code>BufferedMimeInputStream</code>.
+     *
+     * @param is the stream to read from.
+     * @param root the root stream of the parser, whose truncation
+     *        ({@link MimeStreamParser#stop()}) makes this stream end as
+     *        well, even if it has bytes left in its buffer; may be
+     *        <code>null</code>.
+     */
+    BufferedMimeInputStream(InputStream is, RootInputStream root) {
+        this.is = is;
+        this.root = root;
+        this.buf = new byte[DEFAULT_BUFFER_SIZE];
+    }
+
+    /**
+     * Determines if the parser has been stopped, after which no more bytes
+     * must be returned.
+     */
+    boolean isTruncated() {
+        return root != null && root.isTruncated();
+    }
+
+    /**
+     * Reads one chunk from the underlying stream into the buffer, first
+     * moving the unread bytes to its start, and growing it if it is full.
+     *
+     * @return the number of bytes read, or -1 at the end of the underlying
+     *         stream.
+     */
+    int fill() throws IOException {
+        if (eof || isTruncated()) {
+            return -1;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            byte[] grown = new byte[buf.length * 2];
+            System.arraycopy(buf, 0, grown, 0, limit);
+            buf = grown;
+        }
+        int n = is.read(buf, limit, buf.length - limit);
+        if (n == -1) {
+            eof = true;
+            return -1;
+        }
+        limit += n;
+        return n;
+    }
+
+    /**
+     * Fills the buffer until it holds at least <code>n</code> unread bytes
+     * or the end of the underlying stream is reached.
+     *
+     * @return <code>true</code> if <code>n</code> bytes are available.
+     */
+    boolean request(int n) throws IOException {
+        while (limit - pos < n) {
+            if (fill() == -1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @see java.io.InputStream#read()
+     */
+    public int read() throws IOException {
+        if (isTruncated() || (pos == limit && !request(1))) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (isTruncated()) {
+            return -1;
+        }
+        if (pos == limit) {
+            if (eof) {
+                return -1;
+            }
+            if (len >= buf.length) {
+                /*
+                 * Nothing to gain from copying through the buffer.
+                 */
+                int n = is.read(b, off, len);
+                if (n == -1) {
+                    eof = true;
+                }
+                return n;
+            }
+            if (!request(1)) {
+                return -1;
+            }
+        }
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return limit - pos;
+    }
+
+    /**
+     * Closes the underlying stream.
+     *
+     * @throws IOException on I/O errors.
+     */
+    public void close() throws IOException {
+        is.close();
+    }
+}
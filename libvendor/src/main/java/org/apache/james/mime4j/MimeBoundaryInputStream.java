@@ -21,7 +21,6 @@ package org.apache.james.mime4j;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PushbackInputStream;
 
 /**
  * Stream that constrains itself to a single MIME body part.
@@ -29,43 +28,74 @@ import java.io.PushbackInputStream;
  * can be used to determine if a final boundary has been seen or not.
  * If {@link #parentEOF()} is <code>true</code> an unexpected end of stream
  * has been detected in the parent stream.
- * 
- * 
+ * <p>
+ * The underlying stream is read in large chunks, which are searched for the
+ * delimiter (<code>CRLF--boundary</code>) using a Boyer-Moore-Horspool
+ * skip table, so the body part is found without examining every byte, and
+ * can be read in bulk. The bytes read ahead are kept in a
+ * {@link BufferedMimeInputStream}, which must be shared by all the body
+ * parts of a multipart body and must be used to read what follows the last
+ * of them.
  * 
  * @version $Id: MimeBoundaryInputStream.java,v 1.2 2004/11/29 13:15:42 ntherning Exp $
  */
 public class MimeBoundaryInputStream extends InputStream {
     
-    private PushbackInputStream s = null;
-    private byte[] boundary = null;
-    private boolean first = true;
+    private BufferedMimeInputStream s = null;
+    private byte[] delimiter = null;
+    private int[] skip = null;
     private boolean eof = false;
     private boolean parenteof = false;
     private boolean moreParts = true;
+    /*
+     * The number of bytes at the current position of the buffer which are
+     * known to be part of this body part.
+     */
+    private int available = 0;
 
     /**
      * Creates a new MimeBoundaryInputStream.
-     * @param s The underlying stream.
+     * @param s The underlying stream. Unless it is a
+     *        {@link BufferedMimeInputStream} it will be read past the end
+     *        of this body part.
      * @param boundary Boundary string (not including leading hyphens).
      */
     public MimeBoundaryInputStream(InputStream s, String boundary) 
             throws IOException {
         
-        this.s = new PushbackInputStream(s, boundary.length() + 4);
+        this.s = s instanceof BufferedMimeInputStream 
+                ? (BufferedMimeInputStream) s 
+                : new BufferedMimeInputStream(s, null);
 
-        boundary = "--" + boundary;
-        this.boundary = new byte[boundary.length()];
-        for (int i = 0; i < this.boundary.length; i++) {
-            this.boundary[i] = (byte) boundary.charAt(i);
+        boundary = "\r\n--" + boundary;
+        this.delimiter = new byte[boundary.length()];
+        for (int i = 0; i < this.delimiter.length; i++) {
+            this.delimiter[i] = (byte) boundary.charAt(i);
+        }
+        
+        /*
+         * skip[b] is how far the delimiter can be moved along when b is the
+         * byte under its last position and there is no match.
+         */
+        this.skip = new int[256];
+        int last = delimiter.length - 1;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = delimiter.length;
+        }
+        for (int i = 0; i < last; i++) {
+            skip[delimiter[i] & 0xff] = last - i;
         }
         
         /*
-         * By reading one byte we will update moreParts to be as expected
-         * before any bytes have been read.
+         * A boundary at the very start of the stream isn't preceded by
+         * CRLF. By looking for it, and for the first part of the body, we 
+         * will update moreParts to be as expected before any bytes have 
+         * been read.
          */
-        int b = read();
-        if (b != -1) {
-            this.s.unread(b);
+        if (startsWithBoundary()) {
+            matchBoundary(delimiter.length - 2);
+        } else {
+            scan();
         }
     }
 
@@ -106,7 +136,9 @@ public class MimeBoundaryInputStream extends InputStream {
      * @throws IOException on I/O errors.
      */
     public void consume() throws IOException {
-        while (read() != -1) {
+        while (available > 0 || scan()) {
+            s.pos += available;
+            available = 0;
         }
     }
     
@@ -114,50 +146,125 @@ public class MimeBoundaryInputStream extends InputStream {
      * @see java.io.InputStream#read()
      */
     public int read() throws IOException {
-        if (eof) {
+        if ((available == 0 || s.isTruncated()) && !scan()) {
             return -1;
         }
-        
-        if (first) {
-            first = false;
-            if (matchBoundary()) {
-                return -1;
-            }
-        }
-        
-        int b1 = s.read();
-        int b2 = s.read();
-        
-        if (b1 == '\r' && b2 == '\n') {
-            if (matchBoundary()) {
-                return -1;
-            }
+        available--;
+        return s.buf[s.pos++] & 0xff;
+    }
+    
+    /**
+     * @see java.io.InputStream#read(byte[], int, int)
+     */
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
         }
-        
-        if (b2 != -1) {
-            s.unread(b2);
+        if ((available == 0 || s.isTruncated()) && !scan()) {
+            return -1;
         }
-
-        parenteof = b1 == -1;
-        eof = parenteof;
-        
-        return b1;
+        int n = Math.min(len, available);
+        System.arraycopy(s.buf, s.pos, b, off, n);
+        s.pos += n;
+        available -= n;
+        return n;
     }
     
-    private boolean matchBoundary() throws IOException {
-        
-        for (int i = 0; i < boundary.length; i++) {
-            int b = s.read();
-            if (b != boundary[i]) {
-                if (b != -1) {
-                    s.unread(b);
+    /**
+     * @see java.io.InputStream#available()
+     */
+    public int available() throws IOException {
+        return available;
+    }
+    
+    /**
+     * Finds out how many of the bytes at the current position of the 
+     * buffer belong to this body part, reading more from the underlying 
+     * stream as needed, and handles the boundary if it comes first.
+     * 
+     * @return <code>true</code> if <code>available</code> is now positive,
+     *         <code>false</code> if the end of this stream has been reached.
+     */
+    private boolean scan() throws IOException {
+        available = 0;
+        if (eof) {
+            return false;
+        }
+        int m = delimiter.length;
+        while (!s.isTruncated()) {
+            int index = indexOfDelimiter();
+            if (index == s.pos) {
+                matchBoundary(m);
+                return false;
+            }
+            if (index != -1) {
+                available = index - s.pos;
+                return true;
+            }
+            /*
+             * The last m - 1 bytes could be the start of a delimiter.
+             */
+            if (s.limit - s.pos >= m) {
+                available = s.limit - s.pos - (m - 1);
+                return true;
+            }
+            if (s.fill() == -1) {
+                if (s.isTruncated()) {
+                    break;
                 }
-                for (int j = i - 1; j >= 0; j--) {
-                    s.unread(boundary[j]);
+                available = s.limit - s.pos;
+                if (available > 0) {
+                    return true;
                 }
+                break;
+            }
+        }
+        parenteof = true;
+        eof = true;
+        return false;
+    }
+    
+    /**
+     * Searches the unread bytes of the buffer for the delimiter.
+     * 
+     * @return the position of the delimiter in the buffer, or -1.
+     */
+    private int indexOfDelimiter() {
+        byte[] buf = s.buf;
+        int last = delimiter.length - 1;
+        int end = s.limit - last;
+        for (int i = s.pos; i < end; ) {
+            int j = last;
+            while (buf[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skip[buf[i + last] & 0xff];
+        }
+        return -1;
+    }
+    
+    private boolean startsWithBoundary() throws IOException {
+        int n = delimiter.length - 2;
+        if (!s.request(n)) {
+            return false;
+        }
+        for (int i = 0; i < n; i++) {
+            if (s.buf[s.pos + i] != delimiter[i + 2]) {
                 return false;
             }
         }
+        return true;
+    }
+    
+    /**
+     * Skips the boundary, which is <code>length</code> bytes at the current
+     * position of the buffer, and the rest of its line.
+     */
+    private void matchBoundary(int length) throws IOException {
+        s.pos += length;
         
         /*
          * We have a match. Is it an end boundary?
@@ -178,7 +285,5 @@ public class MimeBoundaryInputStream extends InputStream {
         }
         
         eof = true;
-        
-        return true;
     }
 }
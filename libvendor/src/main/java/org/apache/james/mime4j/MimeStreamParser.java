@@ -141,6 +141,12 @@ public class MimeStreamParser {
 
             handler.startMultipart(bd);
 
+            /*
+             * The body parts read ahead into a buffer shared by all of
+             * them, which must also be used to read the epilogue.
+             */
+            is = new BufferedMimeInputStream(is, rootStream);
+
             MimeBoundaryInputStream tempIs =
                 new MimeBoundaryInputStream(is, bd.getBoundary());
             handler.preamble(new CloseShieldInputStream(tempIs));
@@ -188,7 +194,8 @@ public class MimeStreamParser {
         /*
          * Make sure the stream has been consumed.
          */
-        while (is.read() != -1) {
+        byte[] skipBuffer = new byte[4096];
+        while (is.read(skipBuffer) != -1) {
         }
     }
 
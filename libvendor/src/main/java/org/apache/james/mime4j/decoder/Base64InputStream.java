@@ -28,16 +28,27 @@ import java.io.InputStream;
 
 /**
  * Performs Base-64 decoding on an underlying stream.
- * 
+ * <p>
+ * The underlying stream is read in blocks, which {@link #read(byte[], int, int)}
+ * decodes straight into the caller's buffer.
  * 
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int INPUT_BUFFER_SIZE = 8192;
+
     private final InputStream s;
-    private int outCount = 0;
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inputIndex = 0;
+    private int inputCount = 0;
+    // The decoded bytes that didn't fit in the caller's buffer
+    private final byte[] outputBuffer = new byte[3];
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    private int outCount = 0;
+    private final byte[] singleByte = new byte[1];
+    // The 6-bit values of the current group of 4 characters, and how many of them have been read
+    private int accum = 0;
+    private int accumCount = 0;
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -56,79 +67,142 @@ public class Base64InputStream extends InputStream {
     
     @Override
     public int read() throws IOException {
-        if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
-                return -1;
-            }
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        if (decode(singleByte, 0, 1, 0) == 0) {
+            return -1;
         }
+        return singleByte[0] & 0xFF;
+    }
 
-        return outputBuffer[outIndex++];
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (outIndex < outCount && n < len) {
+            b[off + n++] = outputBuffer[outIndex++];
+        }
+        if (n < len) {
+            n = decode(b, off, len, n);
+        }
+        return n == 0 ? -1 : n;
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes into b[off + n] to b[off + len - 1], reading from the underlying stream only if
+     * nothing has been decoded yet, so as not to block needlessly. Decoded bytes that don't fit
+     * are kept in the output buffer.
+     *
+     * @return the number of bytes in b, including the n bytes that were already there
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
+    private int decode(byte[] b, int off, int len, int n) throws IOException {
         outIndex = 0;
-        int inCount = 0;
-
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
-                    // once we meet the first '=', avoid reading the second '='
+        outCount = 0;
+        while (n < len && !done) {
+            if (inputIndex == inputCount) {
+                if (n > 0) {
+                    break;
+                }
+                inputIndex = 0;
+                inputCount = s.read(inputBuffer, 0, inputBuffer.length);
+                if (inputCount == -1) {
+                    // No more input; decode whatever is left of the last group, and be done
+                    inputCount = 0;
                     done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
+                    n = decodeLastGroup(b, off, len, n);
                     break;
+                }
+                continue;
+            }
+
+            // The common case: whole groups that fit in the caller's buffer
+            final byte[] in = inputBuffer;
+            int i = inputIndex;
+            int o = off + n;
+            int acc = accum;
+            int count = accumCount;
+            final int inEnd = inputCount;
+            final int outEnd = off + len - 3;
+            while (i < inEnd && o <= outEnd) {
+                final int c = in[i];
+                if (c == '=') {
+                    break;
+                }
+                final int sX = TRANSLATION[c & 0xFF];
+                i++;
+                if (sX < 0) {
+                    continue;
+                }
+                acc = (acc << 6) | sX;
+                if (++count == 4) {
+                    b[o++] = (byte) (acc >> 16);
+                    b[o++] = (byte) (acc >> 8);
+                    b[o++] = (byte) acc;
+                    acc = 0;
+                    count = 0;
+                }
+            }
+            inputIndex = i;
+            accum = acc;
+            accumCount = count;
+            n = o - off;
+            if (i == inEnd || n == len) {
+                continue;
+            }
+
+            // The odd cases: padding, or a group that doesn't fit
+            final int c = in[inputIndex++];
+            if (c == '=') {
+                // once we meet the first '=', avoid reading the second '='
+                done = true;
+                n = decodeLastGroup(b, off, len, n);
+                break;
+            }
+            final int sX = TRANSLATION[c & 0xFF];
+            if (sX < 0) {
+                continue;
+            }
+            accum = (accum << 6) | sX;
+            if (++accumCount == 4) {
+                n = emit(b, off, len, n, (byte) (accum >> 16));
+                n = emit(b, off, len, n, (byte) (accum >> 8));
+                n = emit(b, off, len, n, (byte) accum);
+                accum = 0;
+                accumCount = 0;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes an incomplete last group: 3 characters make 2 bytes, 2 make 1, and 1 is nothing.
+     */
+    private int decodeLastGroup(byte[] b, int off, int len, int n) {
+        if (accumCount >= 2) {
+            final int acc = accum << (6 * (4 - accumCount));
+            n = emit(b, off, len, n, (byte) (acc >> 16));
+            if (accumCount == 3) {
+                n = emit(b, off, len, n, (byte) (acc >> 8));
             }
         }
+        accum = 0;
+        accumCount = 0;
+        return n;
     }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
-
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
+    private int emit(byte[] b, int off, int len, int n, byte value) {
+        if (n < len) {
+            b[off + n] = value;
+            return n + 1;
         }
+        outputBuffer[outCount++] = value;
+        return n;
     }
 
-    private static byte[] TRANSLATION = {
+    private static final byte[] TRANSLATION = {
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
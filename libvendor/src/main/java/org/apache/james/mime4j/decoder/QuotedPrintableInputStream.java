@@ -29,18 +29,36 @@ import org.apache.james.mime4j.LogFactory;
 
 /**
  * Performs Quoted-Printable decoding on an underlying stream.
- * 
- * 
+ * <p>
+ * The underlying stream is read in blocks, which {@link #read(byte[], int, int)}
+ * decodes straight into the caller's buffer.
  * 
  * @version $Id: QuotedPrintableInputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
     
+    private static final int INPUT_BUFFER_SIZE = 8192;
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+    private byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inputIndex = 0;
+    private int inputCount = 0;
+    private boolean eof = false;
+    /*
+     * The whitespace before this index is known not to be followed by a
+     * line break, and has to be decoded.
+     */
+    private int keptWhitespaceEnd = 0;
+    /*
+     * The decoded bytes that didn't fit in the caller's buffer.
+     */
+    private byte[] outputBuffer = new byte[3];
+    private int outIndex = 0;
+    private int outCount = 0;
+    private byte[] singleByte = new byte[1];
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,152 +74,247 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
+        }
+        if (decode(singleByte, 0, 1, 0) == 0) {
             return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
         }
+        return singleByte[0] & 0xFF;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int n = 0;
+        while (outIndex < outCount && n < len) {
+            b[off + n++] = outputBuffer[outIndex++];
+        }
+        if (n < len) {
+            n = decode(b, off, len, n);
+        }
+        return n == 0 ? -1 : n;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
+     * Reads more of the underlying stream into the input buffer, keeping 
+     * its unread bytes.
      *
+     * @return <code>false</code> at the end of the underlying stream.
      * @throws IOException Underlying stream threw IOException.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
-
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
-            }
+    private boolean fillInputBuffer() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (inputIndex > 0) {
+            System.arraycopy(inputBuffer, inputIndex, inputBuffer, 0, 
+                    inputCount - inputIndex);
+            inputCount -= inputIndex;
+            keptWhitespaceEnd -= inputIndex;
+            inputIndex = 0;
         }
+        if (inputCount == inputBuffer.length) {
+            /*
+             * Nothing but whitespace, which can only be decoded once we
+             * know what follows it.
+             */
+            byte[] grown = new byte[inputBuffer.length * 2];
+            System.arraycopy(inputBuffer, 0, grown, 0, inputCount);
+            inputBuffer = grown;
+        }
+        int count = stream.read(inputBuffer, inputCount, 
+                inputBuffer.length - inputCount);
+        if (count == -1) {
+            eof = true;
+            return false;
+        }
+        inputCount += count;
+        return true;
     }
 
     /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
+     * Decodes into b[off + n] to b[off + len - 1], reading from the 
+     * underlying stream only if nothing has been decoded yet, so as not to
+     * block needlessly. Decoded bytes that don't fit are kept in the output
+     * buffer.
+     * <p>
+     * "Transport padding" whitespace, i.e., all whitespace that appears
+     * immediately before a CRLF or the end of the stream, is filtered out
+     * before decoding.
      *
+     * @return the number of bytes in b, including the n bytes that were
+     *         already there.
      * @throws IOException Underlying stream threw IOException.
      */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
+    private int decode(byte[] b, int off, int len, int n) throws IOException {
+        outIndex = 0;
+        outCount = 0;
+        while (n < len) {
+            if (inputIndex == inputCount) {
+                if (n > 0 || !fillInputBuffer()) {
+                    break;
+                }
             }
 
-            byte b = (byte)pushbackq.dequeue();
-
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
+            if (state == 0) {
+                /*
+                 * The common case: bytes that decode to themselves.
+                 */
+                byte[] in = inputBuffer;
+                int i = inputIndex;
+                int o = off + n;
+                int end = Math.min(inputCount, i + len - n);
+                int last = inputCount - 1;
+                while (i < end) {
+                    byte c = in[i];
+                    if (c == '=') {
                         break;
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
+                    if (c == ' ' || c == '\t') {
                         /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
+                         * Whitespace followed by anything but more
+                         * whitespace or a line break isn't padding.
                          */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
+                        if (i == last) {
+                            break;
                         }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
+                        byte next = in[i + 1];
+                        if (next == ' ' || next == '\t' 
+                                || next == '\r' || next == '\n') {
+                            break;
                         }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
-                        break;
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
+                    b[o++] = c;
+                    i++;
+                }
+                inputIndex = i;
+                n = o - off;
+                if (i == end) {
+                    continue;
+                }
+            }
+
+            byte c = inputBuffer[inputIndex];
+            if ((c == ' ' || c == '\t') && inputIndex >= keptWhitespaceEnd) {
+                int i = inputIndex + 1;
+                while (i < inputCount 
+                        && (inputBuffer[i] == ' ' || inputBuffer[i] == '\t')) {
+                    i++;
+                }
+                if (i == inputCount && !eof) {
+                    if (n > 0) {
                         break;
                     }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
-                        break;
+                    fillInputBuffer();
+                    continue;
+                }
+                if (i == inputCount 
+                        || inputBuffer[i] == '\r' || inputBuffer[i] == '\n') {
+                    // discard any whitespace preceding EOL or EOF
+                    inputIndex = i;
+                    continue;
+                }
+                keptWhitespaceEnd = i;
+            }
+            inputIndex++;
+            n = decodeByte(b, off, len, n, c);
+        }
+        return n;
+    }
+
+    /**
+     * Consumes one byte of (unpadded) input. This decoding step performs
+     * the actual QP decoding.
+     */
+    private int decodeByte(byte[] b, int off, int len, int n, byte c) {
+        switch (state) {
+            case 0:  // start state, no bytes pending
+                if (c != '=') {
+                    n = emit(b, off, len, n, c);
+                    break;  // state remains 0
+                } else {
+                    state = 1;
+                    break;
+                }
+            case 1:  // encountered "=" so far
+                if (c == '\r') {
+                    state = 2;
+                    break;
+                } else if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')) {
+                    state = 3;
+                    msdChar = c;  // save until next digit encountered
+                    break;
+                } else if (c == '=') {
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
+                    }
+                    n = emit(b, off, len, n, (byte)'=');
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + c);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    n = emit(b, off, len, n, (byte)'=');
+                    n = emit(b, off, len, n, c);
                     break;
-            }
+                }
+            case 2:  // encountered "=\r" so far
+                if (c == '\n') {
+                    state = 0;
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected " 
+                                + (int)'\n' + ", got " + c);
+                    }
+                    state = 0;
+                    n = emit(b, off, len, n, (byte)'=');
+                    n = emit(b, off, len, n, (byte)'\r');
+                    n = emit(b, off, len, n, c);
+                    break;
+                }
+            case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
+                if ((c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f')) {
+                    byte msd = asciiCharToNumericValue(msdChar);
+                    byte low = asciiCharToNumericValue(c);
+                    state = 0;
+                    n = emit(b, off, len, n, (byte)((msd << 4) | low));
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + c);
+                    }
+                    state = 0;
+                    n = emit(b, off, len, n, (byte)'=');
+                    n = emit(b, off, len, n, msdChar);
+                    n = emit(b, off, len, n, c);
+                    break;
+                }
+            default:  // should never happen
+                log.error("Illegal state: " + state);
+                state = 0;
+                n = emit(b, off, len, n, c);
+                break;
+        }
+        return n;
+    }
+
+    private int emit(byte[] b, int off, int len, int n, byte value) {
+        if (n < len) {
+            b[off + n] = value;
+            return n + 1;
         }
+        outputBuffer[outCount++] = value;
+        return n;
     }
 
     /**
@@ -0,0 +1,699 @@
+/****************************************************************
+ * Licensed to the Apache Software Foundation (ASF) under one   *
+ * or more contributor license agreements.  See the NOTICE file *
+ * distributed with this work for additional information        *
+ * regarding copyright ownership.  The ASF licenses this file   *
+ * to you under the Apache License, Version 2.0 (the            *
+ * "License"); you may not use this file except in compliance   *
+ * with the License.  You may obtain a copy of the License at   *
+ *                                                              *
+ *   http://www.apache.org/licenses/LICENSE-2.0                 *
+ *                                                              *
+ * Unless required by applicable law or agreed to in writing,   *
+ * software distributed under the License is distributed on an  *
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY       *
+ * KIND, either express or implied.  See the License for the    *
+ * specific language governing permissions and limitations      *
+ * under the License.                                           *
+ ****************************************************************/
+
+package org.apache.james.mime4j.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+//BEGIN android-changed: Stubbing out logging
+import org.apache.james.mime4j.Log;
+import org.apache.james.mime4j.LogFactory;
+//END android-changed
+
+/**
+ * <code>TempStorage</code> which keeps large temporary files in
+ * memory-mapped segment files of {@link #SEGMENT_SIZE} bytes each, all in
+ * one directory, and small ones on the heap.
+ * <p>
+ * A temporary file stays on the heap until it grows past
+ * {@link #MAX_IN_MEMORY_LENGTH} bytes, so that the many small parts of a
+ * message cost neither a segment nor any disk write. Past that, it is moved
+ * to segments. A segment file is allocated in full when it is created, and
+ * stays mapped for as long as it is in use. Writing to or reading from a
+ * large temporary file is thus a copy to or from the mapping, rather than a
+ * system call per buffer, and
+ * {@link SegmentInputStream#transferTo(WritableByteChannel)} hands the
+ * contents to a channel, e.g. that of the file an attachment is saved to,
+ * without copying them through a buffer on the heap.
+ * <p>
+ * When a temporary file is deleted, or garbage collected without having
+ * been deleted, its segments are recycled for the next one. As many are
+ * kept as the largest temporary file so far has held, so that a body of
+ * that size doesn't have to allocate segments again: at least
+ * {@link #DEFAULT_FREE_SEGMENTS} and at most {@link #MAX_FREE_SEGMENTS},
+ * including across restarts. The rest are deleted. Every read and write
+ * of a temporary file is checked against its deletion, under the file's
+ * lock, so that a stream left open never sees a segment once it has been
+ * handed to another file.
+ * 
+ * @version $Id$
+ */
+public class MappedTempStorage extends TempStorage {
+    private static Log log = LogFactory.getLog(MappedTempStorage.class);
+    
+    /**
+     * The size of a segment file.
+     */
+    public static final int SEGMENT_SIZE = 1024 * 1024;
+    
+    /**
+     * The length up to which a temporary file is kept on the heap.
+     */
+    public static final int MAX_IN_MEMORY_LENGTH = 128 * 1024;
+
+    /**
+     * The number of unused segments kept for reuse until a temporary file
+     * holds more.
+     */
+    public static final int DEFAULT_FREE_SEGMENTS = 8;
+
+    /**
+     * The largest number of unused segments kept for reuse.
+     */
+    public static final int MAX_FREE_SEGMENTS = 32;
+    
+    private static final String SEGMENT_PREFIX = "segment";
+    private static final String SEGMENT_SUFFIX = ".bin";
+    
+    private static final int INITIAL_MEMORY_SIZE = 4 * 1024;
+
+    private TempPath rootPath = null;
+    private File directory = null;
+    private ArrayList<Segment> freeSegments = new ArrayList<Segment>();
+    private int freeSegmentLimit = DEFAULT_FREE_SEGMENTS;
+    private boolean scanned = false;
+
+    /*
+     * The files holding segments, so that those of the files collected
+     * without having been deleted can be recycled.
+     */
+    private ReferenceQueue<MappedTempFile> collectedFiles =
+        new ReferenceQueue<MappedTempFile>();
+    private HashSet<FileReference> fileReferences = new HashSet<FileReference>();
+    
+    /**
+     * Creates a new <code>MappedTempStorage</code> instance keeping its 
+     * segments in the directory <code>mime4j-segments</code> of the
+     * system's temporary directory.
+     */
+    public MappedTempStorage() {
+        this(new File(System.getProperty("java.io.tmpdir"), "mime4j-segments"));
+    }
+    
+    /**
+     * Creates a new <code>MappedTempStorage</code> instance.
+     * 
+     * @param directory the directory to keep the segment files in; it is 
+     *        created when the first segment is needed. It must not be used 
+     *        for anything else, nor by another instance.
+     */
+    public MappedTempStorage(File directory) {
+        this.directory = directory;
+        this.rootPath = new MappedTempPath();
+    }
+    
+    /**
+     * @see org.apache.james.mime4j.util.TempStorage#getRootTempPath()
+     */
+    public TempPath getRootTempPath() {
+        return rootPath;
+    }
+    
+    /**
+     * Creates a new, empty temporary file.
+     * 
+     * @return the file.
+     */
+    public MappedTempFile createTempFile() {
+        return new MappedTempFile();
+    }
+    
+    /**
+     * Gets the number of segments currently kept for reuse.
+     * 
+     * @return the number of free segments.
+     */
+    public synchronized int getFreeSegmentCount() {
+        reclaimCollectedFiles();
+        return freeSegments.size();
+    }
+    
+    /**
+     * @param held the number of segments the file already holds.
+     */
+    private synchronized Segment acquireSegment(int held) throws IOException {
+        if (!scanned) {
+            scanned = true;
+            reuseSegmentFiles();
+        }
+        reclaimCollectedFiles();
+        if (held >= freeSegmentLimit) {
+            freeSegmentLimit = Math.min(held + 1, MAX_FREE_SEGMENTS);
+        }
+        if (!freeSegments.isEmpty()) {
+            Segment segment = freeSegments.remove(freeSegments.size() - 1);
+            if (segment.buffer == null) {
+                segment.map();
+            }
+            return segment;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Creating dir '" 
+                                    + directory.getAbsolutePath() + "' failed.");
+        }
+        Segment segment = new Segment(File.createTempFile(SEGMENT_PREFIX, 
+                SEGMENT_SUFFIX, directory));
+        try {
+            segment.allocate();
+            segment.map();
+        } catch (IOException e) {
+            segment.file.delete();
+            throw e;
+        }
+        return segment;
+    }
+    
+    private synchronized void releaseSegment(Segment segment) {
+        if (freeSegments.size() < freeSegmentLimit) {
+            freeSegments.add(segment);
+        } else {
+            /*
+             * The mapping itself goes away once the buffer is garbage 
+             * collected.
+             */
+            segment.buffer = null;
+            segment.file.delete();
+        }
+    }
+
+    private synchronized FileReference register(MappedTempFile file) {
+        FileReference reference = new FileReference(file, collectedFiles);
+        fileReferences.add(reference);
+        return reference;
+    }
+
+    private synchronized void unregister(FileReference reference) {
+        reference.clear();
+        fileReferences.remove(reference);
+    }
+
+    /**
+     * Recycles the segments of the files collected without having been
+     * deleted.
+     */
+    private synchronized void reclaimCollectedFiles() {
+        FileReference reference;
+        while ((reference = (FileReference) collectedFiles.poll()) != null) {
+            if (fileReferences.remove(reference)) {
+                for (int i = 0; i < reference.segments.size(); i++) {
+                    releaseSegment(reference.segments.get(i));
+                }
+                reference.segments.clear();
+            }
+        }
+    }
+    
+    /**
+     * Takes the segment files left by a previous process as free segments, 
+     * to be mapped when they are needed; as many were kept as its largest
+     * temporary file held.
+     */
+    private void reuseSegmentFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+                    && file.length() == SEGMENT_SIZE 
+                    && freeSegments.size() < MAX_FREE_SEGMENTS) {
+                freeSegments.add(new Segment(file));
+            } else if (!file.delete()) {
+                log.warn("Unable to delete " + file.getAbsolutePath());
+            }
+        }
+        freeSegmentLimit = Math.max(freeSegmentLimit, freeSegments.size());
+    }
+    
+    private static class Segment {
+        private File file = null;
+        private MappedByteBuffer buffer = null;
+        
+        private Segment(File file) {
+            this.file = file;
+        }
+        
+        /**
+         * Writes the whole file: a store to a page of a mapping which the 
+         * file system can't back (e.g. because it is full) is fatal, unlike
+         * a failed write.
+         */
+        private void allocate() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                ByteBuffer zeroes = ByteBuffer.allocate(64 * 1024);
+                for (long written = 0; written < SEGMENT_SIZE; ) {
+                    zeroes.clear();
+                    written += channel.write(zeroes);
+                }
+            } finally {
+                raf.close();
+            }
+        }
+        
+        private void map() throws IOException {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                /*
+                 * The mapping stays valid after the file is closed.
+                 */
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 
+                        0, SEGMENT_SIZE);
+            } finally {
+                raf.close();
+            }
+        }
+    }
+    
+    /**
+     * Outlives the file it refers to, with the segments the file held.
+     */
+    private static class FileReference extends WeakReference<MappedTempFile> {
+        private final ArrayList<Segment> segments;
+
+        private FileReference(MappedTempFile file,
+                ReferenceQueue<MappedTempFile> queue) {
+            super(file, queue);
+            this.segments = file.segments;
+        }
+    }
+
+    private class MappedTempPath implements TempPath {
+        /**
+         * @see org.apache.james.mime4j.util.TempPath#createTempFile()
+         */
+        public TempFile createTempFile() throws IOException {
+            return MappedTempStorage.this.createTempFile();
+        }
+
+        /**
+         * @see org.apache.james.mime4j.util.TempPath#createTempFile(java.lang.String, java.lang.String)
+         */
+        public TempFile createTempFile(String prefix, String suffix) 
+                throws IOException {
+            
+            return MappedTempStorage.this.createTempFile();
+        }
+
+        /**
+         * @see org.apache.james.mime4j.util.TempPath#createTempFile(java.lang.String, java.lang.String, boolean)
+         */
+        public TempFile createTempFile(String prefix, String suffix, 
+                                       boolean allowInMemory) 
+            throws IOException {
+            
+            return MappedTempStorage.this.createTempFile();
+        }
+        
+        /**
+         * @see org.apache.james.mime4j.util.TempPath#getAbsolutePath()
+         */
+        public String getAbsolutePath() {
+            return directory.getAbsolutePath();
+        }
+
+        /**
+         * Do nothing
+         */
+        public void delete() {
+        }
+
+        /**
+         * All temporary files share the segments of the storage.
+         */
+        public TempPath createTempPath() throws IOException {
+            return this;
+        }
+
+        /**
+         * All temporary files share the segments of the storage.
+         */
+        public TempPath createTempPath(String prefix) throws IOException {
+            return this;
+        }
+    }
+    
+    /**
+     * A temporary file, on the heap or made of a list of segments. It is
+     * written once, through {@link #getOutputStream()}, and can then be read
+     * any number of times until it is deleted.
+     * <p>
+     * The contents are only ever touched under the file's lock, after
+     * checking that it hasn't been deleted.
+     */
+    public class MappedTempFile implements TempFile {
+        private byte[] memory = null;
+        private ArrayList<Segment> segments = new ArrayList<Segment>();
+        private FileReference reference = null;
+        private long length = 0;
+        private boolean deleted = false;
+        
+        private MappedTempFile() {
+        }
+        
+        /**
+         * @see org.apache.james.mime4j.util.TempFile#getInputStream()
+         */
+        public InputStream getInputStream() throws IOException {
+            return getInputStream(false);
+        }
+        
+        /**
+         * Gets an <code>InputStream</code> to read bytes from this 
+         * temporary file.
+         * 
+         * @param deleteOnClose whether to delete this file when the stream
+         *        is closed, i.e. to recycle its segments as soon as it has 
+         *        been read.
+         * @return the stream.
+         * @throws IOException if this file has been deleted.
+         */
+        public SegmentInputStream getInputStream(boolean deleteOnClose) 
+                throws IOException {
+            checkNotDeleted();
+            return new SegmentInputStream(this, deleteOnClose);
+        }
+
+        /**
+         * Gets an <code>OutputStream</code> to write bytes to this temporary
+         * file, replacing what it held.
+         * 
+         * @see org.apache.james.mime4j.util.TempFile#getOutputStream()
+         */
+        public synchronized OutputStream getOutputStream() throws IOException {
+            checkNotDeleted();
+            releaseSegments();
+            memory = null;
+            length = 0;
+            return new SegmentOutputStream(this);
+        }
+
+        /**
+         * Returns <code>null</code>: the file isn't in a single place.
+         * 
+         * @see org.apache.james.mime4j.util.TempFile#getAbsolutePath()
+         */
+        public String getAbsolutePath() {
+            return null;
+        }
+
+        /**
+         * Recycles the segments of this file; the streams still open on it
+         * fail from then on.
+         * 
+         * @see org.apache.james.mime4j.util.TempFile#delete()
+         */
+        public synchronized void delete() {
+            if (!deleted) {
+                deleted = true;
+                memory = null;
+                releaseSegments();
+            }
+        }
+
+        /**
+         * @see org.apache.james.mime4j.util.TempFile#isInMemory()
+         */
+        public synchronized boolean isInMemory() {
+            return segments.isEmpty();
+        }
+
+        /**
+         * @see org.apache.james.mime4j.util.TempFile#length()
+         */
+        public synchronized long length() {
+            return length;
+        }
+        
+        private void checkNotDeleted() throws IOException {
+            if (deleted) {
+                throw new IOException("Temp file has been deleted");
+            }
+        }
+        
+        private void releaseSegments() {
+            if (reference != null) {
+                unregister(reference);
+                reference = null;
+            }
+            for (int i = 0; i < segments.size(); i++) {
+                releaseSegment(segments.get(i));
+            }
+            segments.clear();
+        }
+        
+        /**
+         * Makes room for <code>count</code> more bytes at
+         * <code>position</code>, moving the contents from the heap to
+         * segments once they no longer fit there.
+         */
+        private void ensureCapacity(long position, int count)
+                throws IOException {
+            long needed = position + count;
+            if (segments.isEmpty() && needed <= MAX_IN_MEMORY_LENGTH) {
+                if (memory == null || memory.length < needed) {
+                    int size = memory == null ? INITIAL_MEMORY_SIZE
+                                              : memory.length * 2;
+                    byte[] grown = new byte[(int) Math.min(MAX_IN_MEMORY_LENGTH,
+                            Math.max(size, needed))];
+                    if (memory != null) {
+                        System.arraycopy(memory, 0, grown, 0, (int) length);
+                    }
+                    memory = grown;
+                }
+                return;
+            }
+            if (reference == null) {
+                reference = register(this);
+            }
+            while ((long) segments.size() * SEGMENT_SIZE < needed) {
+                segments.add(acquireSegment(segments.size()));
+            }
+            if (memory != null) {
+                ByteBuffer buffer = segments.get(0).buffer;
+                buffer.clear();
+                buffer.put(memory, 0, (int) length);
+                memory = null;
+            }
+        }
+
+        private synchronized void write(long position, int b)
+                throws IOException {
+            checkNotDeleted();
+            ensureCapacity(position, 1);
+            if (memory != null) {
+                memory[(int) position] = (byte) b;
+            } else {
+                segments.get((int) (position / SEGMENT_SIZE)).buffer.put(
+                        (int) (position % SEGMENT_SIZE), (byte) b);
+            }
+            length = Math.max(length, position + 1);
+        }
+
+        private synchronized void write(long position, byte[] b, int off,
+                int len) throws IOException {
+            checkNotDeleted();
+            ensureCapacity(position, len);
+            if (memory != null) {
+                System.arraycopy(b, off, memory, (int) position, len);
+            } else {
+                long end = position + len;
+                for (long p = position; p < end; ) {
+                    ByteBuffer buffer =
+                        segments.get((int) (p / SEGMENT_SIZE)).buffer;
+                    int offset = (int) (p % SEGMENT_SIZE);
+                    int n = (int) Math.min(end - p, SEGMENT_SIZE - offset);
+                    buffer.clear();
+                    buffer.position(offset);
+                    buffer.put(b, off + (int) (p - position), n);
+                    p += n;
+                }
+            }
+            length = Math.max(length, position + len);
+        }
+
+        private synchronized int read(long position) throws IOException {
+            checkNotDeleted();
+            if (position >= length) {
+                return -1;
+            }
+            if (memory != null) {
+                return memory[(int) position] & 0xff;
+            }
+            return segments.get((int) (position / SEGMENT_SIZE)).buffer.get(
+                    (int) (position % SEGMENT_SIZE)) & 0xff;
+        }
+        
+        /**
+         * Reads up to the end of the segment holding the byte at
+         * <code>position</code>.
+         */
+        private synchronized int read(long position, byte[] b, int off,
+                int len) throws IOException {
+            checkNotDeleted();
+            if (position >= length) {
+                return -1;
+            }
+            int n = (int) Math.min(len, length - position);
+            if (memory != null) {
+                System.arraycopy(memory, (int) position, b, off, n);
+                return n;
+            }
+            int offset = (int) (position % SEGMENT_SIZE);
+            n = Math.min(n, SEGMENT_SIZE - offset);
+            ByteBuffer buffer = segments.get((int) (position / SEGMENT_SIZE)).buffer;
+            buffer.clear();
+            buffer.position(offset);
+            buffer.get(b, off, n);
+            return n;
+        }
+        
+        /**
+         * Writes to a channel from <code>position</code> up to the end of the
+         * segment holding it, in as many writes as the channel needs.
+         */
+        private synchronized int transfer(long position,
+                WritableByteChannel target) throws IOException {
+            checkNotDeleted();
+            if (position >= length) {
+                return -1;
+            }
+            ByteBuffer source;
+            if (memory != null) {
+                source = ByteBuffer.wrap(memory, (int) position,
+                        (int) (length - position));
+            } else {
+                int index = (int) (position / SEGMENT_SIZE);
+                source = segments.get(index).buffer.duplicate();
+                source.limit((int) Math.min(SEGMENT_SIZE,
+                        length - (long) index * SEGMENT_SIZE));
+                source.position((int) (position % SEGMENT_SIZE));
+            }
+            int n = 0;
+            while (source.hasRemaining()) {
+                n += target.write(source);
+            }
+            return n;
+        }
+    }
+    
+    private static class SegmentOutputStream extends OutputStream {
+        private MappedTempFile file = null;
+        private long position = 0;
+        
+        private SegmentOutputStream(MappedTempFile file) {
+            this.file = file;
+        }
+        
+        public void write(int b) throws IOException {
+            file.write(position, b);
+            position++;
+        }
+        
+        public void write(byte[] b, int off, int len) throws IOException {
+            file.write(position, b, off, len);
+            position += len;
+        }
+    }
+    
+    /**
+     * Stream reading a {@link MappedTempFile}.
+     */
+    public static class SegmentInputStream extends InputStream {
+        private MappedTempFile file = null;
+        private boolean deleteOnClose = false;
+        private long position = 0;
+        
+        private SegmentInputStream(MappedTempFile file, boolean deleteOnClose) {
+            this.file = file;
+            this.deleteOnClose = deleteOnClose;
+        }
+        
+        public int read() throws IOException {
+            int b = file.read(position);
+            if (b >= 0) {
+                position++;
+            }
+            return b;
+        }
+        
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int n = file.read(position, b, off, len);
+            if (n > 0) {
+                position += n;
+            }
+            return n;
+        }
+        
+        public long skip(long n) throws IOException {
+            long skipped = Math.max(0, Math.min(n, file.length() - position));
+            position += skipped;
+            return skipped;
+        }
+        
+        public int available() throws IOException {
+            return (int) Math.max(0,
+                    Math.min(Integer.MAX_VALUE, file.length() - position));
+        }
+        
+        /**
+         * Writes the rest of the file to a channel, straight from the 
+         * mapped segments.
+         * 
+         * @param target the channel to write to.
+         * @return the number of bytes written.
+         * @throws IOException on I/O errors.
+         */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            long start = position;
+            int n;
+            while ((n = file.transfer(position, target)) >= 0) {
+                position += n;
+            }
+            return position - start;
+        }
+        
+        /**
+         * Deletes the file if this stream was created to do so.
+         */
+        public void close() throws IOException {
+            if (deleteOnClose) {
+                file.delete();
+            }
+        }
+    }
+}